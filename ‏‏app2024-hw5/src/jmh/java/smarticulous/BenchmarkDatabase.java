@@ -0,0 +1,140 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A generated database that the benchmarks run against.
+ * <p>
+ * Its size is set by the users, exercises and submissions parameters, and it is kept either in memory
+ * or in a temporary file (the storage parameter). The data is made by {@link DatasetGenerator}, so the
+ * same seed always generates the same data.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkDatabase {
+
+    /**
+     * The number of users.
+     */
+    @Param({"100"})
+    public int users;
+
+    /**
+     * The number of exercises.
+     */
+    @Param({"10"})
+    public int exercises;
+
+    /**
+     * The number of graded submissions, spread over users by a Zipf distribution.
+     */
+    @Param({"10000"})
+    public int submissions;
+
+    /**
+     * "memory" for an in-memory database, "disk" for a temporary file.
+     */
+    @Param({"memory", "disk"})
+    public String storage;
+
+    /**
+     * "on" to record {@link Metrics} of every operation and statement, "off" to measure without them.
+     */
+    @Param({"off"})
+    public String metrics;
+
+    /**
+     * The seed of the generated data.
+     */
+    @Param({"42"})
+    public long seed;
+
+    Smarticulous smarticulous;
+
+    List<User> userList;
+    List<String> passwords;
+    List<Exercise> exerciseList;
+
+    /**
+     * The id of the next exercise added by a benchmark.
+     */
+    int nextExerciseId;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException {
+        String dburl;
+        if (storage.equals("memory")) {
+            dburl = "jdbc:sqlite::memory:";
+        } else if (storage.equals("disk")) {
+            file = File.createTempFile("smarticulous-bench", ".db");
+            file.delete();
+            dburl = "jdbc:sqlite:" + file.getPath();
+        } else {
+            throw new IllegalArgumentException("storage must be memory or disk: " + storage);
+        }
+
+        smarticulous = new Smarticulous();
+        smarticulous.openDB(dburl);
+        generate();
+        if (metrics.equals("on"))
+            smarticulous.setMetrics(new Metrics());
+        else if (!metrics.equals("off"))
+            throw new IllegalArgumentException("metrics must be on or off: " + metrics);
+    }
+
+    // Fills the database with a generated dataset
+    private void generate() throws SQLException {
+        DatasetGenerator.Dataset dataset = new DatasetGenerator(seed)
+                .users(users)
+                .exercises(exercises)
+                .submissions(submissions)
+                .generate(smarticulous);
+        userList = dataset.users;
+        passwords = dataset.passwords;
+        exerciseList = dataset.exercises;
+        nextExerciseId = exercises + 1;
+    }
+
+    /**
+     * @return a new graded submission of a random user to a random exercise, not yet stored.
+     */
+    Submission newSubmission(Random random) {
+        User user = userList.get(random.nextInt(userList.size()));
+        Exercise exercise = exerciseList.get(random.nextInt(exerciseList.size()));
+        float[] grades = new float[exercise.questions.size()];
+        for (int q = 0; q < grades.length; ++q)
+            grades[q] = random.nextInt(exercise.questions.get(q).points + 1);
+        return new Submission(user, exercise, new Date(exercise.dueDate.getTime() - random.nextInt(86_400_000)), grades);
+    }
+
+    /**
+     * @return the index of a random user or exercise, for use inside a benchmark.
+     */
+    static int pick(List<?> list) {
+        return ThreadLocalRandom.current().nextInt(list.size());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        smarticulous.closeDB();
+        if (file != null)
+            file.delete();
+    }
+}
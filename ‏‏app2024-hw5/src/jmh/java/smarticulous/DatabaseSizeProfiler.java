@@ -0,0 +1,53 @@
+package smarticulous;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Adds the bytes used by a benchmark's database to the JMH results, as the secondary metric "usedBytes".
+ * <p>
+ * A size is a gauge, not a count of events, so it can't be an {@link org.openjdk.jmh.annotations.AuxCounters}
+ * field, which JMH sums over the iterations. Instead the benchmark calls {@link #record(long)}, and the
+ * profiler reports the recorded size after every iteration; benchmarks that record nothing get no metric.
+ * The jmh task enables it; when running JMH by hand, add <code>-prof smarticulous.DatabaseSizeProfiler</code>.
+ */
+public class DatabaseSizeProfiler implements InternalProfiler {
+
+    /**
+     * The last recorded size, or -1 if none was. Benchmarks fork a JVM each, so it belongs to one benchmark.
+     */
+    private static volatile long usedBytes = -1;
+
+    /**
+     * Record the bytes the database of the running benchmark uses.
+     */
+    static void record(long bytes) {
+        usedBytes = bytes;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Bytes used by the benchmark database";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+    }
+
+    @Override
+    public Collection<? extends Result<?>> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                          IterationResult result) {
+        long bytes = usedBytes;
+        if (bytes < 0)
+            return Collections.emptyList();
+        return Collections.singletonList(new ScalarResult("usedBytes", bytes, "bytes", AggregationPolicy.MAX));
+    }
+}
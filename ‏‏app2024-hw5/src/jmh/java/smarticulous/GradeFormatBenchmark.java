@@ -0,0 +1,85 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes of grades in each {@link PackedGrades.Format}. The bytes the database uses after the
+ * migration are reported as the "usedBytes" metric of each benchmark (see {@link DatabaseSizeProfiler}),
+ * for comparing the formats' footprints.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GradeFormatBenchmark {
+
+    /**
+     * The benchmark database, with its grades migrated to a format.
+     */
+    @State(Scope.Benchmark)
+    public static class FormattedDatabase {
+        /**
+         * The format of the grades.
+         */
+        @Param({"ROWS", "FLOAT32", "FIXED16"})
+        public String format;
+
+        BenchmarkDatabase database;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkDatabase database) throws SQLException {
+            this.database = database;
+            PackedGrades.Format gradeFormat = PackedGrades.Format.valueOf(format);
+            database.smarticulous.migrateGrades(gradeFormat);
+            database.smarticulous.setGradeFormat(gradeFormat);
+            DatabaseSizeProfiler.record(PackedGrades.usedBytes(database.smarticulous.db));
+        }
+
+        Exercise exercise() {
+            return database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        }
+
+        User user() {
+            return database.userList.get(BenchmarkDatabase.pick(database.userList));
+        }
+    }
+
+    @Benchmark
+    public Submission lastSubmission(FormattedDatabase formatted) throws SQLException {
+        return formatted.database.smarticulous.getLastSubmission(formatted.user(), formatted.exercise());
+    }
+
+    @Benchmark
+    public Submission bestSubmission(FormattedDatabase formatted) throws SQLException {
+        return formatted.database.smarticulous.getBestSubmission(formatted.user(), formatted.exercise());
+    }
+
+    @Benchmark
+    public void gradeSubmission(FormattedDatabase formatted) throws SQLException {
+        Submission submission = formatted.database.newSubmission(ThreadLocalRandom.current());
+        formatted.database.smarticulous.inTransaction(() -> {
+            submission.id = formatted.database.smarticulous.storeSubmission(submission);
+            formatted.database.smarticulous.addGrade(submission);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,89 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the {@link Leaderboard}: score updates, both in memory and through graded submissions
+ * that commit to the database, and the top-K and rank queries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeaderboardBenchmark {
+
+    /**
+     * The benchmark database, with a leaderboard attached.
+     */
+    @State(Scope.Benchmark)
+    public static class RankedDatabase {
+        BenchmarkDatabase database;
+        Leaderboard leaderboard;
+
+        @Setup(Level.Trial)
+        public void setUp(BenchmarkDatabase database) throws SQLException {
+            this.database = database;
+            this.leaderboard = new Leaderboard();
+            database.smarticulous.setLeaderboard(leaderboard);
+        }
+
+        Exercise exercise() {
+            return database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        }
+
+        User user() {
+            return database.userList.get(BenchmarkDatabase.pick(database.userList));
+        }
+    }
+
+    @Benchmark
+    public void gradeSubmission(RankedDatabase ranked) throws SQLException {
+        // Stores and grades a submission in one transaction; the leaderboard is updated on commit
+        Submission submission = ranked.database.newSubmission(ThreadLocalRandom.current());
+        ranked.database.smarticulous.inTransaction(() -> {
+            submission.id = ranked.database.smarticulous.storeSubmission(submission);
+            ranked.database.smarticulous.addGrade(submission);
+            return null;
+        });
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void update(RankedDatabase ranked) {
+        Random random = ThreadLocalRandom.current();
+        ranked.leaderboard.update(ranked.exercise().id, ranked.user().username, random.nextInt(1000),
+                new Date(DatasetGenerator.TERM_START + random.nextInt(1_000_000_000)));
+    }
+
+    @Benchmark
+    public List<Leaderboard.Standing> top10(RankedDatabase ranked) {
+        return ranked.leaderboard.top(ranked.exercise().id, 10);
+    }
+
+    @Benchmark
+    public int rank(RankedDatabase ranked) {
+        return ranked.leaderboard.rank(ranked.exercise().id, ranked.user().username);
+    }
+}
@@ -0,0 +1,140 @@
+package smarticulous;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the public {@link Smarticulous} operations.
+ * <p>
+ * Run them with <code>gradle jmh</code>; the results are written to build/reports/jmh/results.json.
+ * JMH options can be passed with -PjmhArgs, e.g. to benchmark a larger on-disk database:
+ * <pre>gradle jmh -PjmhArgs="-p users=1000 -p submissions=100000 -p storage=disk"</pre>
+ * The write benchmarks add rows to the database, so it grows slowly during a trial.
+ * <p>
+ * The overhead of instrumentation is the difference between <code>-p metrics=off</code> and
+ * <code>-p metrics=on</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmarticulousBenchmark {
+
+    /**
+     * A stored submission whose grades are not stored yet, prepared before each addGrade call.
+     */
+    @State(Scope.Thread)
+    public static class UngradedSubmission {
+        Submission submission;
+
+        @Setup(Level.Invocation)
+        public void setUp(BenchmarkDatabase database) throws SQLException {
+            submission = database.newSubmission(ThreadLocalRandom.current());
+            submission.id = database.smarticulous.storeSubmission(submission);
+        }
+    }
+
+    @Benchmark
+    public int addOrUpdateUser(BenchmarkDatabase database) throws SQLException {
+        // Updates an existing user, so the table doesn't grow
+        int i = BenchmarkDatabase.pick(database.userList);
+        return database.smarticulous.addOrUpdateUser(database.userList.get(i), database.passwords.get(i));
+    }
+
+    @Benchmark
+    public boolean verifyLogin(BenchmarkDatabase database) throws SQLException {
+        // After the first round, answered from the login cache
+        int i = BenchmarkDatabase.pick(database.userList);
+        return database.smarticulous.verifyLogin(database.userList.get(i).username, database.passwords.get(i));
+    }
+
+    @Benchmark
+    public boolean verifyLoginRejected(BenchmarkDatabase database) throws SQLException {
+        // Failed logins are never cached, so this always reads the database
+        int i = BenchmarkDatabase.pick(database.userList);
+        return database.smarticulous.verifyLogin(database.userList.get(i).username, "wrong password");
+    }
+
+    @Benchmark
+    public int addExercise(BenchmarkDatabase database) throws SQLException {
+        Random random = ThreadLocalRandom.current();
+        Exercise exercise = new Exercise(database.nextExerciseId++, "Exercise", new Date());
+        for (int q = 1; q <= 5; ++q)
+            exercise.addQuestion("Question" + q, "Description", 5 + random.nextInt(26));
+        return database.smarticulous.inTransaction(() -> database.smarticulous.addExercise(exercise));
+    }
+
+    @Benchmark
+    public List<Exercise> loadExercises(BenchmarkDatabase database) throws SQLException {
+        // Answered from the exercise cache, except right after addExercise
+        return database.smarticulous.loadExercises();
+    }
+
+    @Benchmark
+    public List<Exercise> loadExercisesFromDB(BenchmarkDatabase database) throws SQLException {
+        return database.smarticulous.loadExercisesFromDB();
+    }
+
+    @Benchmark
+    public int storeSubmission(BenchmarkDatabase database) throws SQLException {
+        return database.smarticulous.storeSubmission(database.newSubmission(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public void addGrade(BenchmarkDatabase database, UngradedSubmission ungraded) throws SQLException {
+        database.smarticulous.addGrade(ungraded.submission);
+    }
+
+    @Benchmark
+    public Submission getLastSubmission(BenchmarkDatabase database) throws SQLException {
+        User user = database.userList.get(BenchmarkDatabase.pick(database.userList));
+        Exercise exercise = database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        return database.smarticulous.getLastSubmission(user, exercise);
+    }
+
+    @Benchmark
+    public Submission getBestSubmission(BenchmarkDatabase database) throws SQLException {
+        User user = database.userList.get(BenchmarkDatabase.pick(database.userList));
+        Exercise exercise = database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        return database.smarticulous.getBestSubmission(user, exercise);
+    }
+
+    @Benchmark
+    public int classLastSubmissionsOneByOne(BenchmarkDatabase database) throws SQLException {
+        // A class gradebook the old way, for comparison with classLastSubmissions
+        Exercise exercise = database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        int found = 0;
+        for (User user : database.userList) {
+            if (database.smarticulous.getLastSubmission(user, exercise) != null)
+                ++found;
+        }
+        return found;
+    }
+
+    @Benchmark
+    public Map<String, Submission> classLastSubmissions(BenchmarkDatabase database) throws SQLException {
+        Exercise exercise = database.exerciseList.get(BenchmarkDatabase.pick(database.exerciseList));
+        return database.smarticulous.getLastSubmissions(database.userList, exercise);
+    }
+}
@@ -0,0 +1,239 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A non-blocking front end to a {@link Storage}, for callers that must not wait on JDBC, such as an event loop.
+ * <p>
+ * Every method returns at once with a future of what the blocking method returns. The calls run on a
+ * bounded pool of database threads, sized to what the storage can run in parallel: one thread per
+ * connection of a {@link ConcurrentSmarticulous}, or a single thread for a plain {@link Smarticulous}.
+ * Calls wait in a bounded queue; once it is full, new calls fail with a {@link RejectedExecutionException}
+ * instead of blocking the caller. Storage errors fail the future with their {@link SQLException}.
+ * <p>
+ * Identical reads that are in flight at the same time ({@link #loadExercises()},
+ * {@link #getLastSubmission(User, Exercise)}, {@link #getBestSubmission(User, Exercise)}) are coalesced
+ * into one call, and all their callers get the same result object, which they must not modify. A read
+ * never joins one that started before a write of this facade that it could miss: storing or grading a
+ * submission detaches the reads of that user and exercise that are in flight.
+ */
+public class AsyncSmarticulous implements AutoCloseable {
+
+    /**
+     * The default number of calls that may wait for a database thread.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+    /**
+     * A blocking call on the storage.
+     */
+    interface Call<T> {
+        T run(Storage storage) throws SQLException;
+    }
+
+    private static final Object EXERCISES = "exercises";
+
+    private final Storage storage;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The coalesced reads in flight, by the name and arguments of the call.
+     */
+    private final ConcurrentMap<Object, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * Run calls on a thread for each connection of a pool, with the default queue capacity.
+     *
+     * @param pool the database
+     */
+    public AsyncSmarticulous(ConcurrentSmarticulous pool) {
+        this(pool, pool.getReaderCount() + 1, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param storage the storage the calls run on
+     * @param threads the number of calls that run in parallel; must be 1 for a {@link Smarticulous},
+     *                which is not thread-safe
+     * @param queueCapacity the number of calls that may wait for a thread before new ones are rejected
+     */
+    public AsyncSmarticulous(Storage storage, int threads, int queueCapacity) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+
+        this.storage = storage;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "smarticulous-db-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * @see Storage#addOrUpdateUser(User, String)
+     */
+    public CompletableFuture<Integer> addOrUpdateUser(User user, String password) {
+        return submit(s -> s.addOrUpdateUser(user, password));
+    }
+
+    /**
+     * @see Storage#verifyLogin(String, String)
+     */
+    public CompletableFuture<Boolean> verifyLogin(String username, String password) {
+        return submit(s -> s.verifyLogin(username, password));
+    }
+
+    /**
+     * Coalesced with the other calls in flight.
+     *
+     * @see Storage#loadExercises()
+     */
+    public CompletableFuture<List<Exercise>> loadExercises() {
+        return coalesce(EXERCISES, Storage::loadExercises);
+    }
+
+    /**
+     * Once the future completes, coalesced reads of the submission's user and exercise see the submission.
+     *
+     * @see Storage#storeSubmission(Submission)
+     */
+    public CompletableFuture<Integer> storeSubmission(Submission submission) {
+        return submit(s -> {
+            int id = s.storeSubmission(submission);
+            detach(submission.user, submission.exercise);
+            return id;
+        });
+    }
+
+    /**
+     * Once the future completes, coalesced reads of the submission's user and exercise see the grades.
+     *
+     * @see Storage#addGrade(Submission)
+     */
+    public CompletableFuture<Void> addGrade(Submission submission) {
+        return submit(s -> {
+            s.addGrade(submission);
+            detach(submission.user, submission.exercise);
+            return null;
+        });
+    }
+
+    /**
+     * Coalesced with the other calls in flight for the same user and exercise.
+     *
+     * @see Storage#getLastSubmission(User, Exercise)
+     */
+    public CompletableFuture<Submission> getLastSubmission(User user, Exercise exercise) {
+        return coalesce(key("last", user, exercise), s -> s.getLastSubmission(user, exercise));
+    }
+
+    /**
+     * Coalesced with the other calls in flight for the same user and exercise.
+     *
+     * @see Storage#getBestSubmission(User, Exercise)
+     */
+    public CompletableFuture<Submission> getBestSubmission(User user, Exercise exercise) {
+        return coalesce(key("best", user, exercise), s -> s.getBestSubmission(user, exercise));
+    }
+
+    private static Object key(String call, User user, Exercise exercise) {
+        return Arrays.asList(call, user.username, exercise.id);
+    }
+
+    // Lets the next reads of a user and exercise start afresh rather than join ones that may miss a write
+    private void detach(User user, Exercise exercise) {
+        inFlight.remove(key("last", user, exercise));
+        inFlight.remove(key("best", user, exercise));
+    }
+
+    // Runs a call on a database thread
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.run(storage);
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    // Joins the identical call in flight, or starts one
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> coalesce(Object key, Call<T> call) {
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            // A dependent future, so that one caller can't complete it for the others
+            return running.thenApply(result -> (T) result);
+        }
+        submit(call).whenComplete((result, e) -> {
+            // Later calls start a new read rather than get this result
+            inFlight.remove(key, mine);
+            if (e != null)
+                mine.completeExceptionally(e);
+            else
+                mine.complete(result);
+        });
+        return mine.thenApply(result -> (T) result);
+    }
+
+    /**
+     * @return the number of reads answered by joining an identical read in flight.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of calls waiting for a database thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting calls and wait until the ones already made are done.
+     * <p>
+     * Does not close the underlying storage.
+     *
+     * @throws SQLException if interrupted while waiting
+     */
+    @Override
+    public void close() throws SQLException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for database calls", e);
+        }
+    }
+}
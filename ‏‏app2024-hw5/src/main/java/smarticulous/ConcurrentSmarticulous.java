@@ -0,0 +1,477 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+
+/**
+ * A thread-safe front end to a Smarticulous database file.
+ * <p>
+ * A {@link Smarticulous} object owns a single connection and must only be used by one thread at a time.
+ * This class keeps a small bounded pool of them over the same database file:
+ * <ul>
+ *   <li>Reads ({@link #loadExercises()}, {@link #getLastSubmission(User, Exercise)}, ...) borrow one of the
+ *   reader connections, so up to {@link #getReaderCount()} of them run in parallel. Callers wait for a
+ *   free reader when all of them are busy.</li>
+ *   <li>Writes go through a single writer connection, one at a time, so they never compete for SQLite's
+ *   write lock.</li>
+ * </ul>
+ * The database is switched to WAL journaling, so readers see the last committed state and are not blocked
+ * by the writer, and every connection waits up to {@link #BUSY_TIMEOUT_MILLIS} for a lock instead of failing.
+ * <p>
+ * The database must be a file, and each connection gets its own page cache (see {@link #privateCacheUrl(String)}).
+ * The {@link ScoreSummary} is in the same file and is updated in the same transaction as the grades, so a
+ * reader sees both as of the same commit.
+ */
+public class ConcurrentSmarticulous implements Storage {
+
+    /**
+     * How long a connection waits for a lock held by another connection before failing.
+     */
+    public static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * An operation on a single-threaded {@link Smarticulous}.
+     */
+    interface Op<T> {
+        T run(Smarticulous smarticulous) throws SQLException;
+    }
+
+    /**
+     * The only connection that writes. Guarded by its own monitor.
+     */
+    private final Smarticulous writer;
+
+    /**
+     * Held while the plaintext passwords are hashed, so that concurrent first calls of
+     * {@link #addOrUpdateUser(User, String)} hash them once. Never held together with a connection.
+     */
+    private final Object credentialsLock = new Object();
+
+    /**
+     * All the reader connections.
+     */
+    private final List<Smarticulous> readers = new ArrayList<>();
+
+    /**
+     * The reader connections that are not in use.
+     */
+    private final BlockingQueue<Smarticulous> idleReaders;
+
+    /**
+     * Open the database with one writer and the given number of reader connections.
+     * <p>
+     * The writer is opened first, so it alone creates, migrates and switches the database to WAL.
+     *
+     * @param dburl The JDBC url of the database file (will be of the form "jdbc:sqlite:...")
+     * @param readerCount the number of reads that may run in parallel
+     * @throws SQLException
+     */
+    public ConcurrentSmarticulous(String dburl, int readerCount) throws SQLException {
+        if (readerCount < 1)
+            throw new IllegalArgumentException("readerCount must be positive: " + readerCount);
+
+        String url = privateCacheUrl(dburl);
+        this.idleReaders = new ArrayBlockingQueue<>(readerCount);
+        this.writer = open(url);
+        try {
+            for (int i = 0; i < readerCount; ++i) {
+                Smarticulous reader = open(url);
+                // One exercise and login cache for all, so that the writer's invalidations reach every reader
+                reader.exercises = writer.exercises;
+                reader.logins = writer.logins;
+                readers.add(reader);
+                idleReaders.add(reader);
+            }
+        } catch (SQLException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Turn a database file url into one whose connections each get their own page cache.
+     * <p>
+     * Connections that share a cache lock each other out table by table (SQLITE_LOCKED), which WAL and
+     * the busy timeout can't help with.
+     *
+     * @param dburl a url of the form "jdbc:sqlite:..."
+     * @return the url with "cache=shared" replaced by "cache=private"
+     * @throws IllegalArgumentException if the url names an in-memory database
+     */
+    static String privateCacheUrl(String dburl) {
+        String name = dburl.startsWith("jdbc:sqlite:") ? dburl.substring("jdbc:sqlite:".length()) : dburl;
+        if (name.isEmpty() || name.equals(":memory:") || name.contains("mode=memory"))
+            throw new IllegalArgumentException("An in-memory database can't be shared by a connection pool: " + dburl);
+        return dburl.replace("cache=shared", "cache=private");
+    }
+
+    // Opens one connection of the pool
+    private static Smarticulous open(String dburl) throws SQLException {
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(dburl);
+        try (Statement statement = smarticulous.db.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS + ";");
+            statement.execute("PRAGMA journal_mode = WAL;");
+        } catch (SQLException | RuntimeException e) {
+            smarticulous.closeDB();
+            throw e;
+        }
+        return smarticulous;
+    }
+
+    /**
+     * Run a read-only operation on a free reader connection, waiting for one if all are busy.
+     *
+     * @throws SQLException
+     */
+    <T> T read(Op<T> op) throws SQLException {
+        Smarticulous reader;
+        try {
+            reader = idleReaders.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader connection", e);
+        }
+        try {
+            return op.run(reader);
+        } finally {
+            idleReaders.add(reader);
+        }
+    }
+
+    /**
+     * Run an operation on the writer connection, after any write already in progress.
+     *
+     * @throws SQLException
+     */
+    <T> T write(Op<T> op) throws SQLException {
+        synchronized (writer) {
+            return op.run(writer);
+        }
+    }
+
+    /**
+     * @return the number of reads that may run in parallel.
+     */
+    public int getReaderCount() {
+        return readers.size();
+    }
+
+    /**
+     * Store passwords as salted hashes from now on.
+     * <p>
+     * Must be called before the object is shared between threads.
+     *
+     * @see Smarticulous#setPasswordHasher(PasswordHasher)
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        writer.setPasswordHasher(hasher);
+        for (Smarticulous reader : readers)
+            reader.setPasswordHasher(hasher);
+    }
+
+    /**
+     * Write question grades in the given format from now on.
+     * <p>
+     * Must be called before the object is shared between threads.
+     *
+     * @see Smarticulous#setGradeFormat(PackedGrades.Format)
+     */
+    public void setGradeFormat(PackedGrades.Format format) {
+        writer.setGradeFormat(format);
+    }
+
+    /**
+     * Record metrics of every connection of the pool, or turn instrumentation off with null.
+     * <p>
+     * Must be called before the object is shared between threads.
+     *
+     * @see Smarticulous#setMetrics(Metrics)
+     */
+    public void setMetrics(Metrics metrics) throws SQLException {
+        writer.setMetrics(metrics);
+        for (Smarticulous reader : readers)
+            reader.setMetrics(metrics);
+    }
+
+    /**
+     * Add a user to the database / modify an existing user.
+     * <p>
+     * The password is hashed before the writer connection is taken, so hashing never holds up other writes.
+     *
+     * @see Smarticulous#addOrUpdateUser(User, String)
+     */
+    public int addOrUpdateUser(User user, String password) throws SQLException {
+        if (writer.hasher != null && !writer.credentialsMigrated)
+            migrateCredentials();
+        String stored = writer.encodePassword(password);
+        int userId = write(s -> s.storeUser(user, stored));
+        writer.logins.invalidate(user.username);
+        return userId;
+    }
+
+    /**
+     * Hash every plaintext password in the database.
+     * <p>
+     * The passwords are read on a reader connection and hashed with no connection taken; only writing the
+     * hashes takes the writer.
+     *
+     * @see Smarticulous#migrateCredentials()
+     */
+    public int migrateCredentials() throws SQLException {
+        if (writer.hasher == null)
+            throw new IllegalStateException("No password hasher is set");
+        synchronized (credentialsLock) {
+            Map<Integer, String> passwords = read(Smarticulous::plaintextPasswords);
+            Map<Integer, String> hashes = writer.hashPasswords(passwords);
+            int migrated = write(s -> s.storeHashedPasswords(passwords, hashes));
+            writer.credentialsMigrated = true;
+            return migrated;
+        }
+    }
+
+    /**
+     * Verify a user's login credentials.
+     * <p>
+     * The reader connection is released before the password is checked, so hashing never holds up other reads.
+     * A password that needs hashing again is hashed before the writer is taken.
+     *
+     * @see Smarticulous#verifyLogin(String, String)
+     */
+    public boolean verifyLogin(String username, String password) throws SQLException {
+        LoginCache logins = writer.logins;
+        if (logins.contains(username, password))
+            return true;
+
+        long generation = logins.generation();
+        String stored = read(s -> s.storedPassword(username));
+        boolean verified = writer.checkPassword(password, stored);
+        if (verified) {
+            if (writer.hasher != null && writer.hasher.needsRehash(stored)) {
+                String rehashed = writer.encodePassword(password);
+                write(s -> {
+                    s.replacePassword(username, stored, rehashed);
+                    return null;
+                });
+            }
+            logins.put(username, password, generation);
+        }
+        return verified;
+    }
+
+    /**
+     * @return the login cache shared by all the connections.
+     */
+    public LoginCache getLoginCache() {
+        return writer.logins;
+    }
+
+    /**
+     * @see Smarticulous#addExercise(Exercise)
+     */
+    public int addExercise(Exercise exercise) throws SQLException {
+        // The exercise and its questions are committed together, so readers never see it half-written
+        return write(s -> {
+            int id = s.inTransaction(() -> s.addExercise(exercise));
+            // A reader may have cached the catalog between the invalidation and the commit
+            s.exercises.invalidate(exercise.id);
+            return id;
+        });
+    }
+
+    /**
+     * @see Smarticulous#loadExercises()
+     */
+    public List<Exercise> loadExercises() throws SQLException {
+        return read(Smarticulous::loadExercises);
+    }
+
+    /**
+     * @see Smarticulous#getExercise(int)
+     */
+    public Exercise getExercise(int id) throws SQLException {
+        return read(s -> s.getExercise(id));
+    }
+
+    /**
+     * @return the exercise cache shared by all the connections.
+     */
+    public ExerciseCache getExerciseCache() {
+        return writer.exercises;
+    }
+
+    /**
+     * @see Smarticulous#storeSubmission(Submission)
+     */
+    public int storeSubmission(Submission submission) throws SQLException {
+        return write(s -> s.storeSubmission(submission));
+    }
+
+    /**
+     * @see Smarticulous#storeSubmissions(Iterable)
+     */
+    public int storeSubmissions(Iterable<Submission> submissions) throws SQLException {
+        return write(s -> s.storeSubmissions(submissions));
+    }
+
+    /**
+     * @see Smarticulous#addGrade(Submission)
+     */
+    public void addGrade(Submission submission) throws SQLException {
+        write(s -> {
+            s.addGrade(submission);
+            return null;
+        });
+    }
+
+    /**
+     * @see Smarticulous#addGrades(Iterable)
+     */
+    public int addGrades(Iterable<Submission> submissions) throws SQLException {
+        return write(s -> s.addGrades(submissions));
+    }
+
+    /**
+     * Return all submissions of an exercise, reading each page on whichever reader is idle.
+     * <p>
+     * No connection is held between pages, so a slow consumer doesn't tie up a reader.
+     *
+     * @see Smarticulous#streamSubmissions(Exercise)
+     */
+    public Stream<Submission> streamSubmissions(Exercise exercise) {
+        return new SubmissionCursor((afterId, limit) -> read(s -> s.readSubmissionPage(exercise, afterId, limit)),
+                Smarticulous.DEFAULT_SUBMISSION_PAGE_SIZE).stream();
+    }
+
+    /**
+     * @see Smarticulous#getLastSubmission(User, Exercise)
+     */
+    public Submission getLastSubmission(User user, Exercise exercise) throws SQLException {
+        return read(s -> s.getLastSubmission(user, exercise));
+    }
+
+    /**
+     * @see Smarticulous#getBestSubmission(User, Exercise)
+     */
+    public Submission getBestSubmission(User user, Exercise exercise) throws SQLException {
+        return read(s -> s.getBestSubmission(user, exercise));
+    }
+
+    /**
+     * @see Smarticulous#getLastSubmissions(Collection, Exercise)
+     */
+    public Map<String, Submission> getLastSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        return read(s -> s.getLastSubmissions(users, exercise));
+    }
+
+    /**
+     * @see Smarticulous#getBestSubmissions(Collection, Exercise)
+     */
+    public Map<String, Submission> getBestSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        return read(s -> s.getBestSubmissions(users, exercise));
+    }
+
+    /**
+     * @see Smarticulous#getLastSubmissions(User, Collection)
+     */
+    public Map<Integer, Submission> getLastSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        return read(s -> s.getLastSubmissions(user, exercises));
+    }
+
+    /**
+     * @see Smarticulous#getBestSubmissions(User, Collection)
+     */
+    public Map<Integer, Submission> getBestSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        return read(s -> s.getBestSubmissions(user, exercises));
+    }
+
+    /**
+     * @see Smarticulous#loadGradebook(Exercise)
+     */
+    public GradebookSnapshot loadGradebook(Exercise exercise) throws SQLException {
+        return read(s -> s.loadGradebook(exercise));
+    }
+
+    /**
+     * Append the submissions added since a snapshot was last refreshed, reading them on a reader.
+     *
+     * @return the number of submissions appended
+     * @see GradebookSnapshot#refresh(Smarticulous)
+     */
+    public int refresh(GradebookSnapshot snapshot) throws SQLException {
+        return read(snapshot::refresh);
+    }
+
+    /**
+     * Cache the latest and best submissions read through this pool. One cache is shared by all the
+     * connections, so the grades written through by the writer reach every reader.
+     *
+     * @see Smarticulous#setSubmissionCache(SubmissionCache)
+     */
+    public void setSubmissionCache(SubmissionCache cache) throws SQLException {
+        write(s -> {
+            s.setSubmissionCache(cache);
+            return null;
+        });
+        for (Smarticulous reader : readers)
+            reader.setSubmissionCache(cache);
+    }
+
+    /**
+     * Rank the grades stored through this pool on a leaderboard. Grades are only written by the writer,
+     * so it is the only connection that updates the leaderboard.
+     *
+     * @see Smarticulous#setLeaderboard(Leaderboard)
+     */
+    public void setLeaderboard(Leaderboard leaderboard) throws SQLException {
+        write(s -> {
+            s.setLeaderboard(leaderboard);
+            return null;
+        });
+    }
+
+    /**
+     * @see Smarticulous#checkScores()
+     */
+    public List<String> checkScores() throws SQLException {
+        return read(Smarticulous::checkScores);
+    }
+
+    /**
+     * Close every connection of the pool.
+     * <p>
+     * Must only be called once no other thread uses this object. All the connections are closed even
+     * if some of them fail; the first failure is rethrown.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        List<Smarticulous> all = new ArrayList<>(readers);
+        all.add(writer);
+        for (Smarticulous smarticulous : all) {
+            try {
+                smarticulous.closeDB();
+            } catch (SQLException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        readers.clear();
+        idleReaders.clear();
+        if (failure != null)
+            throw failure;
+    }
+}
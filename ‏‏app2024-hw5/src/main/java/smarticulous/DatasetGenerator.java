@@ -0,0 +1,461 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills an empty Smarticulous database with a synthetic dataset of production scale, for load tests
+ * and benchmarks.
+ * <p>
+ * The shape of the data is configurable:
+ * <ul>
+ *   <li>The number of users, exercises and submissions, and the range of questions per exercise.</li>
+ *   <li>How active the students are: the submissions are spread over users by a Zipf distribution, so a
+ *   few students submit a lot and most submit a little ({@link #zipfExponent(double)}, 0 for uniform).</li>
+ *   <li>When they submit: submission times cluster before the exercise's due date, with exponentially
+ *   distributed lead times ({@link #deadlineHours(double)}), and a fraction comes in late
+ *   ({@link #lateFraction(double)}).</li>
+ * </ul>
+ * Everything is drawn from one seeded random generator, so a seed always produces the same database.
+ * <p>
+ * The rows are written with large JDBC batches and explicit ids, in the order of the primary keys, and
+ * committed every {@link #COMMIT_ROWS} rows. The {@link ScoreSummary} is suspended during the load and
+ * rebuilt once at the end. Submissions are generated on the fly, so the dataset never has to fit in memory.
+ * <p>
+ * Run as a program to generate a database file:
+ * <pre>java smarticulous.DatasetGenerator jdbc:sqlite:big.db users=10000 submissions=5000000 seed=7</pre>
+ */
+public class DatasetGenerator {
+
+    /**
+     * The number of rows written per transaction.
+     */
+    static final int COMMIT_ROWS = 100_000;
+
+    /**
+     * The start of the generated term, so the generated times don't depend on the current date.
+     */
+    static final long TERM_START = 1_704_067_200_000L; // 2024-01-01 UTC
+
+    private static final long HOUR = 3_600_000L;
+    private static final long DAY = 24 * HOUR;
+
+    private static final String[] FIRST_NAMES = {
+            "Noa", "Ariel", "Yael", "Omer", "Maya", "Itai", "Tamar", "Eitan", "Shira", "Daniel",
+            "Lior", "Roni", "Adi", "Yuval", "Michal", "Amit", "Gal", "Tal", "Dana", "Yonatan",
+    };
+
+    private static final String[] LAST_NAMES = {
+            "Cohen", "Levi", "Mizrahi", "Peretz", "Biton", "Friedman", "Azoulay", "Katz", "Shapiro", "Avraham",
+    };
+
+    /**
+     * What was generated: the users (with their passwords) and exercises, and the row counts.
+     */
+    public static class Dataset {
+        public final List<User> users;
+        public final List<String> passwords;
+        public final List<Exercise> exercises;
+        public final long submissions;
+        public final long grades;
+
+        Dataset(List<User> users, List<String> passwords, List<Exercise> exercises, long submissions, long grades) {
+            this.users = users;
+            this.passwords = passwords;
+            this.exercises = exercises;
+            this.submissions = submissions;
+            this.grades = grades;
+        }
+    }
+
+    private final long seed;
+    private int users = 1000;
+    private int exercises = 20;
+    private long submissions = 100_000;
+    private int minQuestions = 3;
+    private int maxQuestions = 12;
+    private double zipfExponent = 1.0;
+    private double deadlineHours = 24;
+    private double lateFraction = 0.05;
+    private long termDays = 90;
+
+    /**
+     * @param seed the seed of all the random choices
+     */
+    public DatasetGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @param users the number of users (default 1000)
+     */
+    public DatasetGenerator users(int users) {
+        if (users < 1)
+            throw new IllegalArgumentException("users must be positive: " + users);
+        this.users = users;
+        return this;
+    }
+
+    /**
+     * @param exercises the number of exercises (default 20)
+     */
+    public DatasetGenerator exercises(int exercises) {
+        if (exercises < 1)
+            throw new IllegalArgumentException("exercises must be positive: " + exercises);
+        this.exercises = exercises;
+        return this;
+    }
+
+    /**
+     * @param submissions the total number of graded submissions (default 100,000)
+     */
+    public DatasetGenerator submissions(long submissions) {
+        if (submissions < 0)
+            throw new IllegalArgumentException("submissions must not be negative: " + submissions);
+        this.submissions = submissions;
+        return this;
+    }
+
+    /**
+     * @param min the least number of questions of an exercise (default 3)
+     * @param max the largest number of questions of an exercise (default 12)
+     */
+    public DatasetGenerator questions(int min, int max) {
+        if (min < 1 || max < min)
+            throw new IllegalArgumentException("Invalid question range: " + min + ".." + max);
+        this.minQuestions = min;
+        this.maxQuestions = max;
+        return this;
+    }
+
+    /**
+     * @param zipfExponent the skew of submissions per user: the k-th most active user submits
+     *                     in proportion to 1 / k^zipfExponent (default 1; 0 is uniform)
+     */
+    public DatasetGenerator zipfExponent(double zipfExponent) {
+        if (zipfExponent < 0)
+            throw new IllegalArgumentException("zipfExponent must not be negative: " + zipfExponent);
+        this.zipfExponent = zipfExponent;
+        return this;
+    }
+
+    /**
+     * @param deadlineHours the mean time between an on-time submission and its due date (default 24)
+     */
+    public DatasetGenerator deadlineHours(double deadlineHours) {
+        if (deadlineHours <= 0)
+            throw new IllegalArgumentException("deadlineHours must be positive: " + deadlineHours);
+        this.deadlineHours = deadlineHours;
+        return this;
+    }
+
+    /**
+     * @param lateFraction the fraction of submissions made up to a day after the due date (default 0.05)
+     */
+    public DatasetGenerator lateFraction(double lateFraction) {
+        if (lateFraction < 0 || lateFraction > 1)
+            throw new IllegalArgumentException("lateFraction must be between 0 and 1: " + lateFraction);
+        this.lateFraction = lateFraction;
+        return this;
+    }
+
+    /**
+     * Fill the database of an open Smarticulous with the dataset.
+     *
+     * @param smarticulous an open Smarticulous whose database has no users, exercises or submissions
+     * @return what was generated
+     * @throws IllegalStateException if the database isn't empty
+     * @throws SQLException
+     */
+    public Dataset generate(Smarticulous smarticulous) throws SQLException {
+        Connection db = smarticulous.db;
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT (SELECT COUNT(*) FROM User) + (SELECT COUNT(*) FROM Exercise) + " +
+                     "(SELECT COUNT(*) FROM Submission) + (SELECT COUNT(*) FROM QuestionGrade);")) {
+            if (rs.getLong(1) != 0)
+                throw new IllegalStateException("The dataset can only be generated into an empty database");
+        }
+
+        Random random = new Random(seed);
+        ScoreSummary.suspend(db);
+        try {
+            List<String> passwords = new ArrayList<>(users);
+            List<User> userList = generateUsers(random, passwords);
+            List<Exercise> exerciseList = generateExercises(random);
+            insertUsers(db, userList, passwords);
+            insertExercises(db, exerciseList);
+
+            long grades = 0;
+            if (submissions > 0) {
+                db.setAutoCommit(false);
+                try {
+                    grades = storeSubmissions(db, random, userList, exerciseList);
+                    db.commit();
+                } catch (SQLException | RuntimeException e) {
+                    db.rollback();
+                    throw e;
+                } finally {
+                    db.setAutoCommit(true);
+                }
+            }
+            return new Dataset(userList, passwords, exerciseList, submissions, grades);
+        } finally {
+            ScoreSummary.resume(db);
+            smarticulous.exercises.clear();
+            smarticulous.logins.clear();
+            if (smarticulous.leaderboard != null)
+                smarticulous.leaderboard.rebuild(smarticulous);
+        }
+    }
+
+    private List<User> generateUsers(Random random, List<String> passwords) {
+        List<User> userList = new ArrayList<>(users);
+        for (int i = 1; i <= users; ++i) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            userList.add(new User(String.format("%s%s%d", first.toLowerCase(), last.toLowerCase(), i), first, last));
+            passwords.add(Long.toString(random.nextLong() & Long.MAX_VALUE, 36));
+        }
+        return userList;
+    }
+
+    private List<Exercise> generateExercises(Random random) {
+        List<Exercise> exerciseList = new ArrayList<>(exercises);
+        // Due dates are spread evenly over the term, at 23:59
+        long spacing = termDays * DAY / exercises;
+        for (int i = 1; i <= exercises; ++i) {
+            long due = TERM_START + i * spacing / DAY * DAY + DAY - 60_000;
+            Exercise exercise = new Exercise(i, "Exercise " + i, new Date(due));
+            int questions = minQuestions + random.nextInt(maxQuestions - minQuestions + 1);
+            for (int q = 1; q <= questions; ++q)
+                exercise.addQuestion("Question " + q, "Question " + q + " of exercise " + i, 5 * (1 + random.nextInt(6)));
+            exerciseList.add(exercise);
+        }
+        return exerciseList;
+    }
+
+    // Inserts the users, with explicit ids matching their position
+    private void insertUsers(Connection db, List<User> userList, List<String> passwords) throws SQLException {
+        inBatches(db, "INSERT INTO User (UserId, Username, Firstname, Lastname, Password) VALUES (?,?,?,?,?)", ps -> {
+            for (int i = 0; i < userList.size(); ++i) {
+                User user = userList.get(i);
+                ps.setInt(1, i + 1);
+                ps.setString(2, user.username);
+                ps.setString(3, user.firstname);
+                ps.setString(4, user.lastname);
+                ps.setString(5, passwords.get(i));
+                ps.addBatch();
+            }
+        });
+    }
+
+    private void insertExercises(Connection db, List<Exercise> exerciseList) throws SQLException {
+        inBatches(db, "INSERT INTO Exercise (ExerciseId, Name, DueDate) VALUES (?,?,?)", ps -> {
+            for (Exercise exercise : exerciseList) {
+                ps.setInt(1, exercise.id);
+                ps.setString(2, exercise.name);
+                ps.setDate(3, new java.sql.Date(exercise.dueDate.getTime()));
+                ps.addBatch();
+            }
+        });
+        inBatches(db, "INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) VALUES (?,?,?,?,?)", ps -> {
+            for (Exercise exercise : exerciseList) {
+                for (int q = 0; q < exercise.questions.size(); ++q) {
+                    Exercise.Question question = exercise.questions.get(q);
+                    ps.setInt(1, exercise.id);
+                    ps.setInt(2, q + 1);
+                    ps.setString(3, question.name);
+                    ps.setString(4, question.desc);
+                    ps.setInt(5, question.points);
+                    ps.addBatch();
+                }
+            }
+        });
+    }
+
+    /**
+     * Fills a batch of a statement.
+     */
+    private interface BatchWork {
+        void fill(PreparedStatement ps) throws SQLException;
+    }
+
+    // Runs a small batch in one transaction
+    private static void inBatches(Connection db, String sql, BatchWork work) throws SQLException {
+        db.setAutoCommit(false);
+        try (PreparedStatement ps = db.prepareStatement(sql)) {
+            work.fill(ps);
+            ps.executeBatch();
+            db.commit();
+        } catch (SQLException | RuntimeException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    // Generates and inserts the submissions and their grades, committing every COMMIT_ROWS rows
+    private long storeSubmissions(Connection db, Random random, List<User> userList, List<Exercise> exerciseList) throws SQLException {
+        double[] activity = zipfCumulative(users);
+        // The most active students are spread over the user ids
+        int[] userByRank = new int[users];
+        for (int i = 0; i < users; ++i)
+            userByRank[i] = i;
+        shuffle(userByRank, random);
+
+        // How good each student is, as the mean fraction of the points they get
+        double[] skill = new double[users];
+        for (int i = 0; i < users; ++i)
+            skill[i] = 0.4 + 0.55 * random.nextDouble();
+
+        long grades = 0;
+        int pendingRows = 0;
+        try (PreparedStatement psSubmission = db.prepareStatement(
+                     "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?,?,?,?)");
+             PreparedStatement psGrade = db.prepareStatement(
+                     "INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?,?,?)")) {
+            for (long n = 1; n <= submissions; ++n) {
+                int userIndex = userByRank[sample(activity, random.nextDouble())];
+                Exercise exercise = exerciseList.get(random.nextInt(exerciseList.size()));
+                Submission submission = new Submission((int) n, userList.get(userIndex), exercise,
+                        submissionTime(random, exercise), grades(random, exercise, skill[userIndex]));
+
+                psSubmission.setInt(1, submission.id);
+                psSubmission.setInt(2, userIndex + 1);
+                psSubmission.setInt(3, submission.exercise.id);
+                psSubmission.setDate(4, new java.sql.Date(submission.submissionTime.getTime()));
+                psSubmission.addBatch();
+
+                List<Exercise.Question> questions = submission.exercise.questions;
+                for (int q = 0; q < questions.size(); ++q) {
+                    psGrade.setInt(1, submission.id);
+                    psGrade.setInt(2, q + 1);
+                    // The grade is stored as a fraction of the question's points
+                    psGrade.setFloat(3, submission.questionGrades[q] / questions.get(q).points);
+                    psGrade.addBatch();
+                }
+                grades += questions.size();
+                pendingRows += 1 + questions.size();
+
+                if (pendingRows >= COMMIT_ROWS) {
+                    psSubmission.executeBatch();
+                    psGrade.executeBatch();
+                    db.commit();
+                    pendingRows = 0;
+                }
+            }
+            psSubmission.executeBatch();
+            psGrade.executeBatch();
+        }
+        return grades;
+    }
+
+    private Date submissionTime(Random random, Exercise exercise) {
+        long due = exercise.dueDate.getTime();
+        if (random.nextDouble() < lateFraction)
+            return new Date(due + (long) (random.nextDouble() * DAY));
+        // Exponentially distributed lead time before the deadline
+        double lead = -Math.log(1 - random.nextDouble()) * deadlineHours * HOUR;
+        return new Date(due - (long) lead);
+    }
+
+    private static float[] grades(Random random, Exercise exercise, double skill) {
+        float[] grades = new float[exercise.questions.size()];
+        for (int q = 0; q < grades.length; ++q) {
+            int points = exercise.questions.get(q).points;
+            double fraction = Math.min(1, Math.max(0, skill + 0.2 * random.nextGaussian()));
+            // Graders give whole points
+            grades[q] = Math.round(fraction * points);
+        }
+        return grades;
+    }
+
+    // The cumulative distribution of Zipf(n, zipfExponent) over ranks 0..n-1
+    private double[] zipfCumulative(int n) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; ++k) {
+            sum += 1 / Math.pow(k + 1, zipfExponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; ++k)
+            cumulative[k] /= sum;
+        return cumulative;
+    }
+
+    // The rank whose cumulative probability first reaches u
+    private static int sample(double[] cumulative, double u) {
+        int i = Arrays.binarySearch(cumulative, u);
+        return Math.min(i >= 0 ? i : -i - 1, cumulative.length - 1);
+    }
+
+    private static void shuffle(int[] values, Random random) {
+        for (int i = values.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = values[i];
+            values[i] = values[j];
+            values[j] = tmp;
+        }
+    }
+
+    /**
+     * Generate a dataset into a database.
+     *
+     * @param args the JDBC url of the database, followed by any of users=N, exercises=N, submissions=N,
+     *             seed=N, zipf=S, deadlineHours=H and late=F
+     * @throws SQLException
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 1) {
+            System.err.println("Usage: DatasetGenerator <dburl> [users=N] [exercises=N] [submissions=N] [seed=N] [zipf=S] [deadlineHours=H] [late=F]");
+            System.exit(2);
+        }
+
+        long seed = 42;
+        for (int i = 1; i < args.length; ++i) {
+            if (args[i].startsWith("seed="))
+                seed = Long.parseLong(args[i].substring("seed=".length()));
+        }
+        DatasetGenerator generator = new DatasetGenerator(seed);
+        for (int i = 1; i < args.length; ++i) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2)
+                throw new IllegalArgumentException("Options are of the form name=value: " + args[i]);
+            switch (option[0]) {
+                case "users": generator.users(Integer.parseInt(option[1])); break;
+                case "exercises": generator.exercises(Integer.parseInt(option[1])); break;
+                case "submissions": generator.submissions(Long.parseLong(option[1])); break;
+                case "zipf": generator.zipfExponent(Double.parseDouble(option[1])); break;
+                case "deadlineHours": generator.deadlineHours(Double.parseDouble(option[1])); break;
+                case "late": generator.lateFraction(Double.parseDouble(option[1])); break;
+                case "seed": break;
+                default: throw new IllegalArgumentException("Unknown option: " + option[0]);
+            }
+        }
+
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(args[0]);
+        try {
+            long start = System.nanoTime();
+            Dataset dataset = generator.generate(smarticulous);
+            System.out.printf("Generated %d users, %d exercises, %d submissions and %d grades in %.1f s%n",
+                    dataset.users.size(), dataset.exercises.size(), dataset.submissions, dataset.grades,
+                    (System.nanoTime() - start) / 1e9);
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+}
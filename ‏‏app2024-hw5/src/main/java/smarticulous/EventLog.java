@@ -0,0 +1,258 @@
+package smarticulous;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of events in a memory-mapped file, the write-ahead log of {@link LoggedStorage}.
+ * <p>
+ * The file starts with a header, followed by the records:
+ * <pre>
+ * header: int magic, int unused, long base sequence, 16 bytes unused
+ * record: int length, int crc, long sequence, byte type, payload
+ * </pre>
+ * The length covers the whole record, and the CRC-32 covers everything after it. Sequence numbers are
+ * consecutive from the base sequence + 1. The length is written last, so a record is complete once its
+ * length is in place.
+ * <p>
+ * Opening the log scans the records and stops at the first one that is incomplete, fails its CRC or is
+ * out of sequence: the tail of a write that was cut short by a crash, or a record left over from before
+ * the last {@link #reset(long)}. Later appends overwrite it.
+ * <p>
+ * An appended record is in the operating system's page cache as soon as {@link #append(byte, ByteBuffer)}
+ * returns, so it survives a crash of the process; {@link #sync()} writes it to the disk, so it survives a
+ * crash of the machine as well.
+ * <p>
+ * An EventLog is not thread-safe.
+ */
+public class EventLog implements AutoCloseable {
+
+    /**
+     * The first bytes of an event log file ("SLG" and the format version).
+     */
+    static final int MAGIC = 0x534c4701;
+
+    static final int HEADER_BYTES = 32;
+
+    private static final int BASE_SEQUENCE_OFFSET = 8;
+
+    /**
+     * The bytes of a record before its payload.
+     */
+    static final int RECORD_HEADER_BYTES = 17;
+
+    /**
+     * The size the file is first mapped with; it doubles whenever it is full.
+     */
+    public static final int DEFAULT_INITIAL_BYTES = 1 << 20;
+
+    /**
+     * Receives the records of the log, see {@link #replay(Visitor)}.
+     */
+    public interface Visitor {
+        /**
+         * @param type the type of the record
+         * @param sequence its sequence number
+         * @param payload its payload, between the position and the limit
+         */
+        void accept(byte type, long sequence, ByteBuffer payload) throws IOException;
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * The end of the last record.
+     */
+    private int position;
+    private long baseSequence;
+    private long lastSequence;
+
+    /**
+     * Open an event log, creating it if it doesn't exist.
+     *
+     * @param file the log file
+     * @throws IOException if it can't be opened, or isn't an event log
+     */
+    public EventLog(Path file) throws IOException {
+        this(file, DEFAULT_INITIAL_BYTES);
+    }
+
+    /**
+     * Open an event log, creating it if it doesn't exist.
+     *
+     * @param file the log file
+     * @param initialBytes the size a new file is mapped with
+     * @throws IOException if it can't be opened, or isn't an event log
+     */
+    public EventLog(Path file, int initialBytes) throws IOException {
+        if (initialBytes < HEADER_BYTES)
+            throw new IllegalArgumentException("initialBytes must be at least " + HEADER_BYTES + ": " + initialBytes);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            boolean created = channel.size() == 0;
+            map(Math.max(initialBytes, (int) Math.min(channel.size(), Integer.MAX_VALUE)));
+            if (created) {
+                map.putInt(0, MAGIC);
+                map.putLong(BASE_SEQUENCE_OFFSET, 0);
+            } else if (map.getInt(0) != MAGIC) {
+                throw new IOException("Not an event log, or an unknown version: " + file);
+            }
+            baseSequence = map.getLong(BASE_SEQUENCE_OFFSET);
+            scan();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(int capacity) throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Find the end of the valid records
+    private void scan() {
+        position = HEADER_BYTES;
+        lastSequence = baseSequence;
+        while (position + RECORD_HEADER_BYTES <= map.capacity()) {
+            int length = map.getInt(position);
+            if (length < RECORD_HEADER_BYTES || length > map.capacity() - position)
+                break;
+            if (map.getLong(position + 8) != lastSequence + 1 || map.getInt(position + 4) != checksum(position, length))
+                break;
+            position += length;
+            ++lastSequence;
+        }
+    }
+
+    // The CRC-32 of a record, from its sequence number on
+    private int checksum(int start, int length) {
+        ByteBuffer record = map.duplicate();
+        record.limit(start + length).position(start + 8);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param type the type of the record, for the reader
+     * @param payload the payload, from its position to its limit; the position is moved to the limit
+     * @return the sequence number of the record
+     * @throws IOException if the file can't be extended
+     */
+    public long append(byte type, ByteBuffer payload) throws IOException {
+        long length = (long) RECORD_HEADER_BYTES + payload.remaining();
+        ensureCapacity(position + length);
+
+        int start = position;
+        long sequence = lastSequence + 1;
+        map.putLong(start + 8, sequence);
+        map.put(start + 16, type);
+        ByteBuffer target = map.duplicate();
+        target.position(start + RECORD_HEADER_BYTES);
+        target.put(payload);
+        map.putInt(start + 4, checksum(start, (int) length));
+        // The length goes in last: it is what makes the record count
+        map.putInt(start, (int) length);
+
+        position += (int) length;
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    private void ensureCapacity(long end) throws IOException {
+        if (end <= map.capacity())
+            return;
+        if (end > Integer.MAX_VALUE)
+            throw new IOException("The event log is full; it must be reset");
+        long capacity = map.capacity();
+        while (capacity < end)
+            capacity *= 2;
+        map.force();
+        map((int) Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Pass every record in the log to a visitor, in order.
+     *
+     * @return the number of records
+     * @throws IOException if the visitor throws
+     */
+    public int replay(Visitor visitor) throws IOException {
+        int count = 0;
+        for (int start = HEADER_BYTES; start < position; ++count) {
+            int length = map.getInt(start);
+            ByteBuffer payload = map.duplicate();
+            payload.limit(start + length).position(start + RECORD_HEADER_BYTES);
+            visitor.accept(map.get(start + 16), map.getLong(start + 8), payload.slice());
+            start += length;
+        }
+        return count;
+    }
+
+    /**
+     * Empty the log, e.g. once its events are in a checkpoint.
+     *
+     * @param baseSequence the sequence number before the next record; at least the last sequence number
+     * @throws IOException
+     */
+    public void reset(long baseSequence) throws IOException {
+        if (baseSequence < lastSequence)
+            throw new IllegalArgumentException("The log is at sequence " + lastSequence + ", past " + baseSequence);
+        map.putLong(BASE_SEQUENCE_OFFSET, baseSequence);
+        map.force();
+        this.baseSequence = baseSequence;
+        this.lastSequence = baseSequence;
+        this.position = HEADER_BYTES;
+    }
+
+    /**
+     * Write the appended records to the disk.
+     */
+    public void sync() {
+        map.force();
+    }
+
+    /**
+     * @return the sequence number of the last record, or the base sequence if the log is empty.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the sequence number before the first record.
+     */
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * @return the number of bytes used by the header and the records.
+     */
+    public long size() {
+        return position;
+    }
+
+    /**
+     * Write the records to the disk and close the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            map.force();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded read-through cache of exercises and their questions, keyed by exercise id.
+ * <p>
+ * Exercises hardly ever change once added, so {@link Smarticulous#getExercise(int)} and
+ * {@link Smarticulous#loadExercises()} are answered from here, and only a miss reads the database.
+ * The least recently used exercises are evicted once more than {@link #getCapacity()} are cached.
+ * The list of all exercises is answered from the cache as long as none of them was evicted.
+ * <p>
+ * {@link Smarticulous#addExercise(Exercise)} and {@link Smarticulous#addQuestion(Exercise.Question, int)}
+ * invalidate the entries they change. Changes made through other connections are not seen until the
+ * entries are invalidated or evicted.
+ * <p>
+ * The cache is thread-safe and may be shared by several connections to the same database (as
+ * {@link ConcurrentSmarticulous} does). Loads run outside the cache's lock, and a load that overlaps an
+ * invalidation is not cached, so a stale read never outlives the write that invalidated it.
+ * <p>
+ * Callers get their own copies of the cached {@link Exercise} objects, so a caller that modifies an
+ * exercise doesn't change what later lookups return.
+ */
+public class ExerciseCache {
+
+    /**
+     * The maximal number of cached exercises.
+     */
+    private final int capacity;
+
+    /**
+     * The cached exercises, least recently used first.
+     */
+    private final Map<Integer, Exercise> entries;
+
+    /**
+     * The ids of all the exercises in the database, in order, or null if not known.
+     */
+    private List<Integer> catalog;
+
+    /**
+     * Incremented by every invalidation.
+     */
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity the maximal number of cached exercises
+     */
+    public ExerciseCache(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Integer, Exercise>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Exercise> eldest) {
+                if (size() <= ExerciseCache.this.capacity)
+                    return false;
+                ++evictions;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Return an exercise, reading it through the given connection on a miss.
+     *
+     * @param id the exercise id
+     * @param source the connection used on a miss
+     * @return the exercise, or null if it isn't in the database.
+     * @throws SQLException
+     */
+    Exercise get(int id, Smarticulous source) throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            Exercise exercise = entries.get(id);
+            if (exercise != null) {
+                ++hits;
+                return copy(exercise);
+            }
+            ++misses;
+            loadGeneration = generation;
+        }
+
+        Exercise exercise = source.loadExercise(id);
+        synchronized (this) {
+            if (exercise != null && loadGeneration == generation)
+                entries.put(id, exercise);
+        }
+        return exercise == null ? null : copy(exercise);
+    }
+
+    /**
+     * Return all the exercises, sorted by id, reading them through the given connection on a miss.
+     *
+     * @param source the connection used on a miss
+     * @return a new list of the exercises.
+     * @throws SQLException
+     */
+    List<Exercise> getAll(Smarticulous source) throws SQLException {
+        long loadGeneration;
+        synchronized (this) {
+            if (catalog != null) {
+                List<Exercise> exercises = new ArrayList<>(catalog.size());
+                for (int id : catalog) {
+                    Exercise exercise = entries.get(id);
+                    if (exercise == null)
+                        break;
+                    exercises.add(copy(exercise));
+                }
+                if (exercises.size() == catalog.size()) {
+                    ++hits;
+                    return exercises;
+                }
+            }
+            ++misses;
+            loadGeneration = generation;
+        }
+
+        List<Exercise> exercises = source.loadExercisesFromDB();
+        synchronized (this) {
+            if (loadGeneration == generation) {
+                List<Integer> ids = new ArrayList<>(exercises.size());
+                for (Exercise exercise : exercises) {
+                    ids.add(exercise.id);
+                    entries.put(exercise.id, exercise);
+                }
+                catalog = ids;
+            }
+        }
+        List<Exercise> copies = new ArrayList<>(exercises.size());
+        for (Exercise exercise : exercises)
+            copies.add(copy(exercise));
+        return copies;
+    }
+
+    // Returns a deep copy of an exercise and its questions
+    private static Exercise copy(Exercise exercise) {
+        Date dueDate = exercise.dueDate == null ? null : new Date(exercise.dueDate.getTime());
+        Exercise copy = new Exercise(exercise.id, exercise.name, dueDate);
+        for (Exercise.Question question : exercise.questions)
+            copy.addQuestion(question.name, question.desc, question.points);
+        return copy;
+    }
+
+    /**
+     * Drop an exercise (and the list of all exercises) from the cache.
+     *
+     * @param id the id of an exercise that changed
+     */
+    public synchronized void invalidate(int id) {
+        entries.remove(id);
+        catalog = null;
+        ++generation;
+    }
+
+    /**
+     * Drop everything from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        catalog = null;
+        ++generation;
+    }
+
+    /**
+     * @return the maximal number of cached exercises.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to read the database.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of exercises dropped to stay within the capacity.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of exercises currently cached.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExerciseCache[size=" + entries.size() + ", capacity=" + capacity + ", hits=" + hits +
+                ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,509 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the gradebook, every user's latest or best graded submission of every exercise, into a file.
+ * <p>
+ * The submissions are read from the {@link ScoreSummary} a page at a time, with keyset pagination as in
+ * {@link SubmissionCursor}, and each row goes straight from the result set into reusable direct buffers
+ * that are written to a {@link FileChannel}. No {@link smarticulous.db.Submission} objects are built, and
+ * the memory used is bounded by the page size and the buffers, however many grades there are.
+ * <p>
+ * Grades are written as stored: fractions of the questions' points, in question order. There are two formats:
+ * <ul>
+ *   <li>{@link Format#CSV}: a header line, then one line per submission:
+ *   <pre>exercise_id,username,submission_id,submission_time,total_points,grades</pre>
+ *   where submission_time is in milliseconds since the epoch and grades holds the fractions separated
+ *   by spaces.</li>
+ *   <li>{@link Format#COLUMNAR}: a compact binary file of row groups, each holding its rows column by
+ *   column, which {@link #readColumnar(Path, RowVisitor)} reads back. All numbers are big-endian:
+ *   <pre>
+ *   file:      int magic, int flags (1 for best submissions), row group*, int 0
+ *   row group: int rows, int[7] column lengths in bytes, then the columns:
+ *              int exercise ids, int submission ids, long submission times, double total points,
+ *              short grade counts, usernames (short length + UTF-8 each), float grades
+ *   </pre></li>
+ * </ul>
+ */
+public class GradebookExport {
+
+    /**
+     * The formats of an export.
+     */
+    public enum Format {
+        CSV,
+        COLUMNAR
+    }
+
+    /**
+     * Receives the rows of a columnar file.
+     */
+    public interface RowVisitor {
+        /**
+         * @param grades the grades, as fractions; the array is reused for later rows
+         */
+        void row(int exerciseId, String username, int submissionId, long submissionTime, double totalPoints, float[] grades);
+    }
+
+    /**
+     * The first int of a columnar file: "SGB" and the format version.
+     */
+    static final int MAGIC = 0x53474201;
+
+    /**
+     * The default number of submissions read per query.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 10_000;
+
+    /**
+     * The default size of each buffer: the CSV output buffer, and the username and grade columns of a row group.
+     */
+    public static final int DEFAULT_BUFFER_BYTES = 1 << 20;
+
+    private static final int COLUMNS = 7;
+
+    /**
+     * The query of a page of the gradebook: the flagged submissions after a given submission id, with
+     * their grades. The page is limited in a subquery, so the limit counts submissions rather than grade rows.
+     */
+    static final String SQL_QUERY_EXPORT_LATEST = exportQuery("IsLatest");
+
+    /**
+     * As {@link #SQL_QUERY_EXPORT_LATEST}, for the best submissions.
+     */
+    static final String SQL_QUERY_EXPORT_BEST = exportQuery("IsBest");
+
+    private static String exportQuery(String flag) {
+        return "SELECT Page.SubmissionId, Page.ExerciseId, Page.SubmissionTime, Page.TotalPoints, User.Username, " +
+                "QuestionGrade.Grade, SubmissionGrades.Grades FROM " +
+                "(SELECT SubmissionId, UserId, ExerciseId, SubmissionTime, TotalPoints FROM SubmissionScore " +
+                "WHERE " + flag + " = 1 AND SubmissionId > ? " +
+                "ORDER BY SubmissionId LIMIT ?) AS Page " +
+                "INNER JOIN User ON User.UserId = Page.UserId " +
+                "LEFT JOIN QuestionGrade ON QuestionGrade.SubmissionId = Page.SubmissionId " +
+                "LEFT JOIN SubmissionGrades ON SubmissionGrades.SubmissionId = Page.SubmissionId " +
+                "ORDER BY Page.SubmissionId, QuestionGrade.QuestionId";
+    }
+
+    private final Smarticulous smarticulous;
+    private final int pageSize;
+    private final int bufferBytes;
+
+    /**
+     * An export with the default page and buffer sizes.
+     *
+     * @param smarticulous an open Smarticulous to read the gradebook through
+     */
+    public GradebookExport(Smarticulous smarticulous) {
+        this(smarticulous, DEFAULT_PAGE_SIZE, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param smarticulous an open Smarticulous to read the gradebook through
+     * @param pageSize the number of submissions read per query
+     * @param bufferBytes the size of each buffer; must hold at least one row
+     */
+    public GradebookExport(Smarticulous smarticulous, int pageSize, int bufferBytes) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        if (bufferBytes < 1024)
+            throw new IllegalArgumentException("bufferBytes must be at least 1024: " + bufferBytes);
+        this.smarticulous = smarticulous;
+        this.pageSize = pageSize;
+        this.bufferBytes = bufferBytes;
+    }
+
+    /**
+     * Write the gradebook to a file, replacing it if it exists.
+     * <p>
+     * All pages are read in one read transaction, so the file is a consistent snapshot even while
+     * submissions are graded: a user's flag can't move to a submission after one already exported.
+     *
+     * @param file the file
+     * @param format the format of the file
+     * @param best whether to export the best submissions rather than the latest ones
+     * @return the number of submissions written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long write(Path file, Format format, boolean best) throws SQLException, IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Sink sink = format == Format.CSV ? new CsvSink(channel, bufferBytes) : new ColumnarSink(channel, bufferBytes, best);
+            long rows;
+            try {
+                rows = smarticulous.inTransaction(() -> writeRows(sink, best));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            sink.finish();
+            return rows;
+        }
+    }
+
+    // Reads the gradebook page by page into a sink; write errors are wrapped, as the work may only throw SQLException
+    private long writeRows(Sink sink, boolean best) throws SQLException {
+        // The question counts of the exercises, so grade rows can be laid out without the exercises themselves
+        Map<Integer, Integer> questionCounts = new HashMap<>();
+        int maxQuestions = 0;
+        for (Exercise exercise : smarticulous.loadExercises()) {
+            questionCounts.put(exercise.id, exercise.questions.size());
+            maxQuestions = Math.max(maxQuestions, exercise.questions.size());
+        }
+
+        long rows = 0;
+        float[] grades = new float[maxQuestions];
+        PreparedStatement ps = smarticulous.statements.prepare(best ? SQL_QUERY_EXPORT_BEST : SQL_QUERY_EXPORT_LATEST);
+        int lastId = 0;
+        while (true) {
+            ps.setInt(1, lastId);
+            ps.setInt(2, pageSize);
+            int submissions = 0;
+            try (ResultSet rs = ps.executeQuery()) {
+                boolean hasRow = rs.next();
+                while (hasRow) {
+                    // The first row of a submission
+                    int id = rs.getInt(1);
+                    int exerciseId = rs.getInt(2);
+                    long time = rs.getLong(3);
+                    double total = rs.getDouble(4);
+                    String username = rs.getString(5);
+                    Integer count = questionCounts.get(exerciseId);
+                    int questions = count == null ? 0 : count;
+                    Arrays.fill(grades, 0, questions, 0);
+
+                    // Packed grades come in a single row, and rows one per question
+                    byte[] packed = rs.getBytes(7);
+                    if (packed != null)
+                        PackedGrades.decode(packed, grades);
+                    int question = 0;
+                    do {
+                        if (packed == null && question < questions)
+                            grades[question] = rs.getFloat(6);
+                        ++question;
+                        hasRow = rs.next();
+                    } while (hasRow && rs.getInt(1) == id);
+
+                    try {
+                        sink.row(exerciseId, username, id, time, total, grades, questions);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    lastId = id;
+                    ++submissions;
+                }
+            }
+            rows += submissions;
+            if (submissions < pageSize)
+                return rows;
+        }
+    }
+
+    /**
+     * Receives the rows of an export and writes them out.
+     */
+    private abstract static class Sink {
+        final FileChannel channel;
+
+        Sink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        abstract void row(int exerciseId, String username, int submissionId, long time, double total,
+                          float[] grades, int count) throws IOException;
+
+        abstract void finish() throws IOException;
+
+        // Writes out a buffer from its start to its position, and clears it
+        void drain(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    // Encodes the characters into a buffer, calling overflow whenever the buffer is full
+    private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer out, Overflow overflow) throws IOException {
+        while (true) {
+            CoderResult result = encoder.encode(chars, out, false);
+            if (!result.isOverflow())
+                break;
+            overflow.handle();
+        }
+    }
+
+    private interface Overflow {
+        void handle() throws IOException;
+    }
+
+    private static class CsvSink extends Sink {
+        final ByteBuffer out;
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        final StringBuilder line = new StringBuilder();
+        CharBuffer chars = CharBuffer.allocate(256);
+
+        CsvSink(FileChannel channel, int bufferBytes) throws IOException {
+            super(channel);
+            this.out = ByteBuffer.allocateDirect(bufferBytes);
+            line.append("exercise_id,username,submission_id,submission_time,total_points,grades\n");
+            flushLine();
+        }
+
+        @Override
+        void row(int exerciseId, String username, int submissionId, long time, double total, float[] grades, int count) throws IOException {
+            line.setLength(0);
+            line.append(exerciseId).append(',');
+            appendField(username);
+            line.append(',').append(submissionId).append(',').append(time).append(',').append(total).append(',');
+            for (int i = 0; i < count; ++i) {
+                if (i > 0)
+                    line.append(' ');
+                line.append(grades[i]);
+            }
+            line.append('\n');
+            flushLine();
+        }
+
+        // Quotes a field that holds a separator, a quote or a line break
+        private void appendField(String value) {
+            boolean quote = false;
+            for (int i = 0; i < value.length() && !quote; ++i) {
+                char c = value.charAt(i);
+                quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == '"')
+                    line.append('"');
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        // Encodes the line into the output buffer through the reused char buffer
+        private void flushLine() throws IOException {
+            if (chars.capacity() < line.length())
+                chars = CharBuffer.allocate(Math.max(line.length(), 2 * chars.capacity()));
+            chars.clear();
+            line.getChars(0, line.length(), chars.array(), 0);
+            chars.limit(line.length());
+            encode(encoder, chars, out, () -> drain(out));
+        }
+
+        @Override
+        void finish() throws IOException {
+            drain(out);
+        }
+    }
+
+    private static class ColumnarSink extends Sink {
+        final int maxRows;
+        final ByteBuffer header = ByteBuffer.allocateDirect(4 * (1 + COLUMNS));
+        final ByteBuffer exerciseIds;
+        final ByteBuffer submissionIds;
+        final ByteBuffer times;
+        final ByteBuffer totals;
+        final ByteBuffer counts;
+        final ByteBuffer usernames;
+        final ByteBuffer grades;
+        /**
+         * The header and the columns, in file order, for gathering writes.
+         */
+        final ByteBuffer[] group;
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        CharBuffer chars = CharBuffer.allocate(64);
+        int rows;
+
+        ColumnarSink(FileChannel channel, int bufferBytes, boolean best) throws IOException {
+            super(channel);
+            // The fixed-width columns hold as many rows as the widest of them fits in the buffer size
+            this.maxRows = Math.max(1, bufferBytes / 8);
+            this.exerciseIds = ByteBuffer.allocateDirect(4 * maxRows);
+            this.submissionIds = ByteBuffer.allocateDirect(4 * maxRows);
+            this.times = ByteBuffer.allocateDirect(8 * maxRows);
+            this.totals = ByteBuffer.allocateDirect(8 * maxRows);
+            this.counts = ByteBuffer.allocateDirect(2 * maxRows);
+            this.usernames = ByteBuffer.allocateDirect(bufferBytes);
+            this.grades = ByteBuffer.allocateDirect(bufferBytes);
+            this.group = new ByteBuffer[] {header, exerciseIds, submissionIds, times, totals, counts, usernames, grades};
+
+            header.putInt(MAGIC).putInt(best ? 1 : 0);
+            drain(header);
+        }
+
+        @Override
+        void row(int exerciseId, String username, int submissionId, long time, double total, float[] rowGrades, int count) throws IOException {
+            if (4 * count > grades.capacity())
+                throw new IOException("A row of " + count + " grades doesn't fit in the buffer");
+            // Start a new row group when this row might not fit
+            if (rows == maxRows || grades.remaining() < 4 * count || usernames.remaining() < 2 + 3 * username.length())
+                flushGroup();
+            if (usernames.remaining() < 2 + 3 * username.length())
+                throw new IOException("A username of " + username.length() + " characters doesn't fit in the buffer");
+
+            exerciseIds.putInt(exerciseId);
+            submissionIds.putInt(submissionId);
+            times.putLong(time);
+            totals.putDouble(total);
+            counts.putShort((short) count);
+            for (int i = 0; i < count; ++i)
+                grades.putFloat(rowGrades[i]);
+
+            // The length goes before the bytes, so leave room for it
+            int start = usernames.position();
+            usernames.position(start + 2);
+            if (chars.capacity() < username.length())
+                chars = CharBuffer.allocate(Math.max(username.length(), 2 * chars.capacity()));
+            chars.clear();
+            username.getChars(0, username.length(), chars.array(), 0);
+            chars.limit(username.length());
+            encode(encoder, chars, usernames, () -> {
+                // Unreachable: the space was checked for the longest encoding
+                throw new IOException("Username buffer overflow");
+            });
+            usernames.putShort(start, (short) (usernames.position() - start - 2));
+            ++rows;
+        }
+
+        // Writes the row group with one gathering write, and clears the columns
+        private void flushGroup() throws IOException {
+            if (rows == 0)
+                return;
+            header.clear();
+            header.putInt(rows);
+            for (int c = 1; c < group.length; ++c) {
+                header.putInt(group[c].position());
+                group[c].flip();
+            }
+            header.flip();
+            long remaining = 0;
+            for (ByteBuffer buffer : group)
+                remaining += buffer.remaining();
+            while (remaining > 0)
+                remaining -= channel.write(group);
+            for (ByteBuffer buffer : group)
+                buffer.clear();
+            rows = 0;
+        }
+
+        @Override
+        void finish() throws IOException {
+            flushGroup();
+            header.clear();
+            header.putInt(0);
+            drain(header);
+        }
+    }
+
+    /**
+     * Read a file written in the {@link Format#COLUMNAR} format.
+     *
+     * @param file the file
+     * @param visitor receives the rows, in the order they were written
+     * @return the number of rows
+     * @throws IOException if the file is not a columnar gradebook or is cut short
+     */
+    public static long readColumnar(Path file, RowVisitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4 * (1 + COLUMNS));
+            readFully(channel, header, 8);
+            if (header.getInt() != MAGIC)
+                throw new IOException("Not a columnar gradebook: " + file);
+            header.getInt();
+
+            long total = 0;
+            // An array of grades per grade count, reused for every row with that count
+            Map<Integer, float[]> gradeArrays = new HashMap<>();
+            byte[] name = new byte[0];
+            ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+            int[] lengths = new int[COLUMNS];
+            while (true) {
+                readFully(channel, header, 4);
+                int rows = header.getInt();
+                if (rows == 0)
+                    return total;
+                readFully(channel, header, 4 * COLUMNS);
+                for (int c = 0; c < COLUMNS; ++c) {
+                    lengths[c] = header.getInt();
+                    if (columns[c] == null || columns[c].capacity() < lengths[c])
+                        columns[c] = ByteBuffer.allocate(lengths[c]);
+                }
+                for (int c = 0; c < COLUMNS; ++c)
+                    readFully(channel, columns[c], lengths[c]);
+
+                for (int r = 0; r < rows; ++r) {
+                    int count = columns[4].getShort() & 0xffff;
+                    float[] grades = gradeArrays.computeIfAbsent(count, float[]::new);
+                    for (int i = 0; i < count; ++i)
+                        grades[i] = columns[6].getFloat();
+                    int length = columns[5].getShort() & 0xffff;
+                    if (name.length < length)
+                        name = new byte[length];
+                    columns[5].get(name, 0, length);
+                    visitor.row(columns[0].getInt(), new String(name, 0, length, StandardCharsets.UTF_8),
+                            columns[1].getInt(), columns[2].getLong(), columns[3].getDouble(), grades);
+                }
+                total += rows;
+            }
+        }
+    }
+
+    // Reads exactly length bytes into the start of a buffer, and flips it for reading
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new IOException("Columnar gradebook is cut short");
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Export the gradebook of an existing database.
+     *
+     * @param args the JDBC url of the database, "latest" or "best", "csv" or "columnar", and the output file
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4 || !args[1].matches("latest|best") || !args[2].matches("csv|columnar")) {
+            System.err.println("Usage: GradebookExport <dburl> latest|best csv|columnar <file>");
+            System.exit(2);
+        }
+
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(args[0]);
+        try {
+            long rows = new GradebookExport(smarticulous).write(Paths.get(args[3]),
+                    Format.valueOf(args[2].toUpperCase()), args[1].equals("best"));
+            System.out.println(rows + " submissions exported to " + args[3]);
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+}
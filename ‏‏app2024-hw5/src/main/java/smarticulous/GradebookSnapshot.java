@@ -0,0 +1,362 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+
+/**
+ * An in-memory, column-oriented copy of the grades of an exercise, for analytics over all its submissions:
+ * per-question averages, histograms and percentiles.
+ * <p>
+ * Every graded submission is a row. The columns are primitive arrays: the submission ids, the user ids,
+ * and one float column per question with the grades as stored (as in {@link smarticulous.db.Submission#questionGrades}).
+ * Aggregates split the rows into ranges and run on a {@link ForkJoinPool}.
+ * <p>
+ * The snapshot starts empty. {@link #refresh(Smarticulous)} appends the graded submissions past the
+ * {@link #getHighWaterMark() high-water mark}, the largest submission id loaded so far, so refreshing
+ * only reads what was added since. Rows below the mark are never read again: a grade changed later, or a
+ * submission that is graded only after a larger id was loaded, is seen only by a new snapshot.
+ * <p>
+ * Rows are only ever appended, and every query works on the rows that were published when it started,
+ * so queries may run while another thread refreshes. Refreshes are serialized.
+ */
+public class GradebookSnapshot {
+
+    /**
+     * The grades of the graded submissions of an exercise after a given id, in row order.
+     */
+    static final String SQL_QUERY_GRADES =
+            "SELECT Submission.SubmissionId, Submission.UserId, QuestionGrade.QuestionId, QuestionGrade.Grade, SubmissionGrades.Grades FROM " +
+            "Submission LEFT JOIN QuestionGrade ON QuestionGrade.SubmissionId = Submission.SubmissionId " +
+            "LEFT JOIN SubmissionGrades ON SubmissionGrades.SubmissionId = Submission.SubmissionId " +
+            "WHERE Submission.ExerciseId = ? AND Submission.SubmissionId > ? " +
+            "AND (QuestionGrade.SubmissionId IS NOT NULL OR SubmissionGrades.SubmissionId IS NOT NULL) " +
+            "ORDER BY Submission.SubmissionId, QuestionGrade.QuestionId";
+
+    /**
+     * The number of rows below which an aggregate isn't split further.
+     */
+    static final int SPLIT_THRESHOLD = 16 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The published rows. The arrays may be longer than size; the rows past it belong to a refresh
+     * in progress.
+     */
+    private static class Columns {
+        final int size;
+        final int[] submissionIds;
+        final int[] userIds;
+        final float[][] grades;
+
+        Columns(int size, int[] submissionIds, int[] userIds, float[][] grades) {
+            this.size = size;
+            this.submissionIds = submissionIds;
+            this.userIds = userIds;
+            this.grades = grades;
+        }
+    }
+
+    private final Exercise exercise;
+    private final ForkJoinPool pool;
+    private volatile Columns columns;
+
+    /**
+     * Create an empty snapshot whose aggregates run on the common fork/join pool.
+     *
+     * @param exercise the exercise, with its questions
+     */
+    public GradebookSnapshot(Exercise exercise) {
+        this(exercise, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param exercise the exercise, with its questions
+     * @param pool the pool the aggregates run on
+     */
+    public GradebookSnapshot(Exercise exercise, ForkJoinPool pool) {
+        this.exercise = exercise;
+        this.pool = pool;
+        this.columns = new Columns(0, new int[0], new int[0], new float[exercise.questions.size()][0]);
+    }
+
+    /**
+     * Append the graded submissions with ids past the high-water mark.
+     *
+     * @param smarticulous an open Smarticulous to read the grades through
+     * @return the number of submissions appended
+     * @throws SQLException
+     */
+    public synchronized int refresh(Smarticulous smarticulous) throws SQLException {
+        Columns current = columns;
+        int questions = exercise.questions.size();
+        int[] submissionIds = current.submissionIds;
+        int[] userIds = current.userIds;
+        float[][] grades = current.grades;
+        int size = current.size;
+
+        PreparedStatement ps = smarticulous.statements.prepare(SQL_QUERY_GRADES);
+        ps.setInt(1, exercise.id);
+        ps.setInt(2, getHighWaterMark());
+        try (ResultSet rs = ps.executeQuery()) {
+            int row = -1;
+            int lastId = 0;
+            while (rs.next()) {
+                // Submission ids are positive, and each submission's grades are consecutive rows
+                int submissionId = rs.getInt(1);
+                if (submissionId != lastId) {
+                    lastId = submissionId;
+                    row = size++;
+                    if (row == submissionIds.length) {
+                        // Growing copies the arrays, so the published columns are never written
+                        int capacity = Math.max(INITIAL_CAPACITY, 2 * submissionIds.length);
+                        submissionIds = Arrays.copyOf(submissionIds, capacity);
+                        userIds = Arrays.copyOf(userIds, capacity);
+                        float[][] grown = new float[questions][];
+                        for (int q = 0; q < questions; ++q)
+                            grown[q] = Arrays.copyOf(grades[q], capacity);
+                        grades = grown;
+                    }
+                    submissionIds[row] = submissionId;
+                    userIds[row] = rs.getInt(2);
+                    for (int q = 0; q < questions; ++q)
+                        grades[q][row] = 0;
+                }
+                // Packed grades come in a single row
+                byte[] packed = rs.getBytes(5);
+                if (packed != null) {
+                    int n = Math.min(questions, PackedGrades.count(packed));
+                    for (int q = 0; q < n; ++q)
+                        grades[q][row] = PackedGrades.grade(packed, q);
+                    continue;
+                }
+                // QuestionIds are 1-based
+                int question = rs.getInt(3) - 1;
+                if (question >= 0 && question < questions)
+                    grades[question][row] = rs.getFloat(4);
+            }
+        }
+
+        int appended = size - current.size;
+        if (appended > 0)
+            columns = new Columns(size, submissionIds, userIds, grades);
+        return appended;
+    }
+
+    /**
+     * @return the exercise of this snapshot.
+     */
+    public Exercise getExercise() {
+        return exercise;
+    }
+
+    /**
+     * @return the number of submissions in the snapshot.
+     */
+    public int size() {
+        return columns.size;
+    }
+
+    /**
+     * @return the largest submission id in the snapshot, or 0 if it is empty.
+     */
+    public int getHighWaterMark() {
+        Columns c = columns;
+        return c.size == 0 ? 0 : c.submissionIds[c.size - 1];
+    }
+
+    /**
+     * @return the submission id of a row.
+     */
+    public int getSubmissionId(int row) {
+        return columns(row).submissionIds[row];
+    }
+
+    /**
+     * @return the user id of a row.
+     */
+    public int getUserId(int row) {
+        return columns(row).userIds[row];
+    }
+
+    /**
+     * @return the grade of a question (0-based) in a row.
+     */
+    public float getGrade(int row, int question) {
+        return columns(row).grades[question][row];
+    }
+
+    private Columns columns(int row) {
+        Columns c = columns;
+        if (row < 0 || row >= c.size)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + c.size);
+        return c;
+    }
+
+    /**
+     * @return the mean grade of every question, or NaNs if the snapshot is empty.
+     */
+    public double[] questionMeans() {
+        Columns c = columns;
+        int questions = c.grades.length;
+        double[] sums = aggregate(c.size, (from, to) -> {
+            double[] partial = new double[questions];
+            for (int q = 0; q < questions; ++q) {
+                float[] column = c.grades[q];
+                double sum = 0;
+                for (int row = from; row < to; ++row)
+                    sum += column[row];
+                partial[q] = sum;
+            }
+            return partial;
+        }, (a, b) -> {
+            for (int q = 0; q < questions; ++q)
+                a[q] += b[q];
+            return a;
+        });
+        for (int q = 0; q < questions; ++q)
+            sums[q] /= c.size;
+        return sums;
+    }
+
+    /**
+     * @return the mean total points of a submission, or NaN if the snapshot is empty.
+     */
+    public double meanTotalPoints() {
+        Columns c = columns;
+        int questions = c.grades.length;
+        double[] points = new double[questions];
+        for (int q = 0; q < questions; ++q)
+            points[q] = exercise.questions.get(q).points;
+        double[] sum = aggregate(c.size, (from, to) -> {
+            double total = 0;
+            for (int q = 0; q < questions; ++q) {
+                float[] column = c.grades[q];
+                double columnSum = 0;
+                for (int row = from; row < to; ++row)
+                    columnSum += column[row];
+                // Grades are stored as a fraction of the question's points
+                total += columnSum * points[q];
+            }
+            return new double[] {total};
+        }, (a, b) -> {
+            a[0] += b[0];
+            return a;
+        });
+        return sum[0] / c.size;
+    }
+
+    /**
+     * Count the grades of a question in equal-width bins over [0, 1]. Grades outside the range are
+     * counted in the first or last bin.
+     *
+     * @param question the question (0-based)
+     * @param bins the number of bins
+     * @return the count of every bin
+     */
+    public int[] histogram(int question, int bins) {
+        if (bins < 1)
+            throw new IllegalArgumentException("bins must be positive: " + bins);
+        Columns c = columns;
+        float[] column = c.grades[question];
+        return aggregate(c.size, (from, to) -> {
+            int[] counts = new int[bins];
+            for (int row = from; row < to; ++row) {
+                int bin = (int) (column[row] * bins);
+                counts[Math.max(0, Math.min(bins - 1, bin))]++;
+            }
+            return counts;
+        }, (a, b) -> {
+            for (int i = 0; i < bins; ++i)
+                a[i] += b[i];
+            return a;
+        });
+    }
+
+    /**
+     * Return a percentile of the grades of a question, by the nearest-rank method.
+     *
+     * @param question the question (0-based)
+     * @param percentile between 0 and 100
+     * @return the grade, or NaN if the snapshot is empty
+     */
+    public float percentile(int question, double percentile) {
+        return percentiles(question, percentile)[0];
+    }
+
+    /**
+     * Return several percentiles of the grades of a question, sorting the grades once.
+     *
+     * @see #percentile(int, double)
+     */
+    public float[] percentiles(int question, double... percentiles) {
+        for (double p : percentiles) {
+            if (p < 0 || p > 100)
+                throw new IllegalArgumentException("Percentiles are between 0 and 100: " + p);
+        }
+        Columns c = columns;
+        float[] result = new float[percentiles.length];
+        if (c.size == 0) {
+            Arrays.fill(result, Float.NaN);
+            return result;
+        }
+        float[] sorted = Arrays.copyOf(c.grades[question], c.size);
+        // Sorts on the common fork/join pool
+        Arrays.parallelSort(sorted);
+        for (int i = 0; i < percentiles.length; ++i) {
+            int rank = (int) Math.ceil(percentiles[i] / 100 * c.size);
+            result[i] = sorted[Math.max(0, rank - 1)];
+        }
+        return result;
+    }
+
+    /**
+     * Computes a partial aggregate of a range of rows.
+     */
+    private interface RangeFunction<R> {
+        R apply(int from, int to);
+    }
+
+    private <R> R aggregate(int size, RangeFunction<R> leaf, BinaryOperator<R> combine) {
+        return pool.invoke(new RangeTask<>(0, size, leaf, combine));
+    }
+
+    private static class RangeTask<R> extends RecursiveTask<R> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final RangeFunction<R> leaf;
+        private final BinaryOperator<R> combine;
+
+        RangeTask(int from, int to, RangeFunction<R> leaf, BinaryOperator<R> combine) {
+            this.from = from;
+            this.to = to;
+            this.leaf = leaf;
+            this.combine = combine;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= SPLIT_THRESHOLD)
+                return leaf.apply(from, to);
+            int middle = (from + to) >>> 1;
+            RangeTask<R> left = new RangeTask<>(from, middle, leaf, combine);
+            left.fork();
+            R right = new RangeTask<>(middle, to, leaf, combine).compute();
+            return combine.apply(left.join(), right);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GradebookSnapshot[exercise=" + exercise.id + ", size=" + size() + ", highWaterMark=" + getHighWaterMark() + "]";
+    }
+}
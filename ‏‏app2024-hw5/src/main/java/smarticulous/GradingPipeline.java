@@ -0,0 +1,256 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Grades submissions in parallel and stores them through a {@link SubmissionIngest}.
+ * <p>
+ * A submission handed to {@link #grade(Submission)} is split into one task per question, which run on a
+ * work-stealing {@link ForkJoinPool} and call the {@link Grader}. When its last question is graded, the
+ * submission gets its questionGrades and moves on to the ingest, which commits graded submissions in
+ * groups. The worker that finishes a submission waits if the ingest's queue is full, so a slow database
+ * holds grading back instead of piling up graded submissions in memory.
+ * <p>
+ * At most {@link #getCapacity()} submissions are in the pipeline at once; past that,
+ * {@link #grade(Submission)} blocks. Queue depths and the latency of each stage are exposed for monitoring.
+ */
+public class GradingPipeline implements AutoCloseable {
+
+    /**
+     * The default number of submissions that may be in the pipeline at once.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Grades one question of a submission. Called concurrently from the pool's threads.
+     */
+    @FunctionalInterface
+    public interface Grader {
+        /**
+         * @param submission the submission, whose questionGrades are not set yet
+         * @param question the index of the question in the exercise
+         * @return the points the question received
+         * @throws Exception if the question could not be graded; the whole submission then fails
+         */
+        float grade(Submission submission, int question) throws Exception;
+    }
+
+    private final SubmissionIngest ingest;
+    private final Grader grader;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final int capacity;
+    private final Semaphore admission;
+
+    private final AtomicInteger grading = new AtomicInteger();
+    private final AtomicInteger persisting = new AtomicInteger();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram questionLatency = new LatencyHistogram();
+    private final LatencyHistogram gradingLatency = new LatencyHistogram();
+    private final LatencyHistogram persistLatency = new LatencyHistogram();
+
+    private volatile boolean closed;
+
+    /**
+     * Start a pipeline with its own pool of one thread per processor and the default capacity.
+     *
+     * @param ingest the stage the graded submissions are stored through
+     * @param grader grades the questions
+     */
+    public GradingPipeline(SubmissionIngest ingest, Grader grader) {
+        this(ingest, grader, null, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start a pipeline.
+     *
+     * @param ingest the stage the graded submissions are stored through
+     * @param grader grades the questions
+     * @param pool the pool the questions are graded on, or null for a pool of the pipeline's own,
+     *             which {@link #close()} shuts down
+     * @param capacity the number of submissions that may be in the pipeline before {@link #grade(Submission)} blocks
+     */
+    public GradingPipeline(SubmissionIngest ingest, Grader grader, ForkJoinPool pool, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.ingest = ingest;
+        this.grader = grader;
+        this.ownsPool = pool == null;
+        this.pool = ownsPool ? new ForkJoinPool(Runtime.getRuntime().availableProcessors()) : pool;
+        this.capacity = capacity;
+        this.admission = new Semaphore(capacity);
+    }
+
+    /**
+     * Grade all questions of a submission in parallel, then store it with its grades.
+     * <p>
+     * The future completes with the submission id, or -1 if the user doesn't exist in the database,
+     * as {@link SubmissionIngest#submit(Submission)} does. It completes exceptionally, and nothing is
+     * stored, if the grader fails on any question.
+     *
+     * @param submission the submission to grade; its questionGrades are replaced once it is graded
+     * @return the future id of the submission
+     * @throws IllegalStateException if the pipeline was closed
+     */
+    public CompletableFuture<Integer> grade(Submission submission) {
+        if (closed)
+            throw new IllegalStateException("Grading pipeline is closed");
+        try {
+            admission.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<Integer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (closed) {
+            admission.release();
+            throw new IllegalStateException("Grading pipeline is closed");
+        }
+
+        grading.incrementAndGet();
+        long admitted = System.nanoTime();
+        float[] grades = new float[submission.exercise.questions.size()];
+        CompletableFuture<?>[] questions = new CompletableFuture<?>[grades.length];
+        for (int q = 0; q < grades.length; ++q) {
+            int question = q;
+            questions[q] = CompletableFuture.runAsync(() -> grades[question] = gradeQuestion(submission, question), pool);
+        }
+
+        CompletableFuture<Integer> id = CompletableFuture.allOf(questions)
+                .whenComplete((v, e) -> {
+                    gradingLatency.record(System.nanoTime() - admitted);
+                    grading.decrementAndGet();
+                })
+                .thenCompose(v -> persist(submission, grades));
+        return id.whenComplete((v, e) -> {
+            if (e != null)
+                failures.increment();
+            admission.release();
+        });
+    }
+
+    // Calls the grader, timing it
+    private float gradeQuestion(Submission submission, int question) {
+        long start = System.nanoTime();
+        try {
+            return grader.grade(submission, question);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            questionLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // Hands a graded submission to the ingest
+    private CompletableFuture<Integer> persist(Submission submission, float[] grades) {
+        submission.questionGrades = grades;
+        persisting.incrementAndGet();
+        long start = System.nanoTime();
+        CompletableFuture<Integer> id;
+        try {
+            id = ingest.submit(submission);
+        } catch (RuntimeException e) {
+            id = new CompletableFuture<>();
+            id.completeExceptionally(e);
+        }
+        return id.whenComplete((v, e) -> {
+            persistLatency.record(System.nanoTime() - start);
+            persisting.decrementAndGet();
+        });
+    }
+
+    /**
+     * @return the number of submissions whose questions are being graded or wait for a thread.
+     */
+    public int getGradingQueueDepth() {
+        return grading.get();
+    }
+
+    /**
+     * @return the number of graded submissions waiting to be stored.
+     */
+    public int getPersistQueueDepth() {
+        return persisting.get();
+    }
+
+    /**
+     * @return the number of questions waiting for a thread of the pool.
+     */
+    public long getQueuedQuestions() {
+        return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+    }
+
+    /**
+     * @return the number of submissions that failed to be graded or stored.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the latency of single grader calls.
+     */
+    public LatencyHistogram getQuestionLatency() {
+        return questionLatency;
+    }
+
+    /**
+     * @return the latency of grading a whole submission, from {@link #grade(Submission)} until its last
+     * question is graded, including the time its questions waited for a thread.
+     */
+    public LatencyHistogram getGradingLatency() {
+        return gradingLatency;
+    }
+
+    /**
+     * @return the latency of storing a graded submission, including the time it waited for its group.
+     */
+    public LatencyHistogram getPersistLatency() {
+        return persistLatency;
+    }
+
+    /**
+     * @return the number of submissions that may be in the pipeline before {@link #grade(Submission)} blocks.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stop accepting submissions and wait until the ones in the pipeline are graded and stored.
+     * <p>
+     * Shuts down the pipeline's own pool, but not a pool passed to it, and does not close the ingest.
+     *
+     * @throws SQLException if interrupted while waiting
+     */
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+        try {
+            // Every submission in the pipeline holds a permit until its future completes
+            admission.acquire(capacity);
+            // Let callers that raced with close() through to see that it is closed
+            admission.release(capacity);
+            if (ownsPool) {
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for submissions being graded", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package smarticulous;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue with a single consumer thread that takes the queued elements in groups.
+ * <p>
+ * A group is everything that arrives within maxDelayMillis of its first element, or maxGroupSize elements,
+ * whichever comes first. This is the collection loop of {@link SubmissionIngest} and {@link LookupBatcher}.
+ * <p>
+ * Every element is either handled by the consumer or failed: if the consumer throws anything, including an
+ * {@link Error}, the elements of its group are failed with it and the thread goes on with the next group,
+ * so callers waiting on a full queue are never stuck.
+ *
+ * @param <E> the queued elements
+ */
+class GroupingQueue<E> {
+
+    private final BlockingQueue<E> queue;
+    private final int maxGroupSize;
+    private final long maxDelayMillis;
+    private final Consumer<List<E>> consumer;
+    private final BiConsumer<E, Throwable> failure;
+    private final Thread thread;
+
+    /**
+     * Set by {@link #close(String)}; the thread stops once the queue is empty.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Start the consumer thread.
+     *
+     * @param name the name of the thread
+     * @param maxGroupSize the maximal number of elements in a group
+     * @param maxDelayMillis how long the thread waits for more elements after the first one of a group
+     * @param capacity the number of elements that may wait before {@link #put(Object)} blocks
+     * @param consumer handles a group; it must not keep the list
+     * @param failure fails an element; it must not throw, and must do nothing to an element the consumer
+     *                already handled
+     */
+    GroupingQueue(String name, int maxGroupSize, long maxDelayMillis, int capacity,
+                  Consumer<List<E>> consumer, BiConsumer<E, Throwable> failure) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.consumer = consumer;
+        this.failure = failure;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue an element, waiting for room if the queue is full.
+     * <p>
+     * Callers check {@link #isClosed()} first; an element that races with {@link #close(String)} is failed.
+     */
+    void put(E element) throws InterruptedException {
+        queue.put(element);
+    }
+
+    /**
+     * @return true once {@link #close(String)} was called.
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of elements that may wait before {@link #put(Object)} blocks.
+     */
+    int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * Stop accepting elements and wait until the ones already queued are handled.
+     * <p>
+     * Elements that raced with the close and arrived after the thread stopped are failed with an
+     * {@link IllegalStateException} carrying the given message.
+     *
+     * @param closedMessage the message of the failure of late elements
+     * @throws InterruptedException if interrupted while waiting; the thread is then interrupted too, and
+     *                              fails the elements still queued
+     */
+    void close(String closedMessage) throws InterruptedException {
+        closed = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            throw e;
+        }
+        for (E element; (element = queue.poll()) != null; )
+            failure.accept(element, new IllegalStateException(closedMessage));
+    }
+
+    // The consumer thread: collects groups and hands them on until closed and drained
+    private void run() {
+        List<E> group = new ArrayList<>(maxGroupSize);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                // Wait for the first element of the group, checking for close now and then
+                E first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                group.add(first);
+
+                // Then gather more until the group is full or its time is up
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (group.size() < maxGroupSize) {
+                    queue.drainTo(group, maxGroupSize - group.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (group.size() == maxGroupSize || remaining <= 0)
+                        break;
+                    E next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+
+                try {
+                    consumer.accept(group);
+                } catch (Throwable e) {
+                    // Fail whatever the consumer didn't handle, and keep draining the queue
+                    for (E element : group)
+                        failure.accept(element, e);
+                }
+                group.clear();
+            }
+        } catch (InterruptedException e) {
+            // close() gave up waiting; fail what is left
+            for (E element : group)
+                failure.accept(element, e);
+            for (E element; (element = queue.poll()) != null; )
+                failure.accept(element, e);
+        }
+    }
+}
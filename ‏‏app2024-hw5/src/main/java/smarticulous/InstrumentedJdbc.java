@@ -0,0 +1,217 @@
+package smarticulous;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * JDBC wrappers that record every statement in {@link Metrics}.
+ * <p>
+ * A wrapped connection returns wrapped statements, which remember their bind parameters and time their
+ * executions. A query is timed until its result set is exhausted or closed, counting the time spent
+ * fetching rows but not the caller's work between them. Everything else is passed through.
+ */
+final class InstrumentedJdbc {
+
+    private InstrumentedJdbc() {
+    }
+
+    /**
+     * @return a connection that records the statements run on db.
+     */
+    static Connection wrap(Connection db, Metrics metrics) {
+        return proxy(Connection.class, new ConnectionHandler(db, metrics));
+    }
+
+    /**
+     * @return the connection wrapped by {@link #wrap(Connection, Metrics)}, or db itself if it isn't wrapped.
+     */
+    static Connection unwrap(Connection db) {
+        if (db != null && Proxy.isProxyClass(db.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(db);
+            if (handler instanceof ConnectionHandler)
+                return ((ConnectionHandler) handler).db;
+        }
+        return db;
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        final Connection db;
+        final Metrics metrics;
+
+        ConnectionHandler(Connection db, Metrics metrics) {
+            this.db = db;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = call(db, method, args);
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return proxy(PreparedStatement.class, new StatementHandler((Statement) result, (String) args[0], this));
+                case "createStatement":
+                    return proxy(Statement.class, new StatementHandler((Statement) result, null, this));
+                default:
+                    return result;
+            }
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        final Statement statement;
+        /**
+         * The SQL of a prepared statement, or null for a plain statement.
+         */
+        final String sql;
+        final ConnectionHandler connection;
+        Object[] parameters;
+
+        StatementHandler(Statement statement, String sql, ConnectionHandler connection) {
+            this.statement = statement;
+            this.sql = sql;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (sql != null && name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+                return call(statement, method, args);
+            }
+            switch (name) {
+                case "clearParameters":
+                    parameters = null;
+                    return call(statement, method, args);
+                case "executeQuery": {
+                    long start = System.nanoTime();
+                    ResultSet rs = (ResultSet) call(statement, method, args);
+                    return proxy(ResultSet.class, new ResultSetHandler(rs, this, sqlOf(args), snapshot(), System.nanoTime() - start));
+                }
+                case "executeUpdate":
+                case "executeLargeUpdate": {
+                    long start = System.nanoTime();
+                    Object result = call(statement, method, args);
+                    record(sqlOf(args), System.nanoTime() - start, 0, ((Number) result).longValue());
+                    return result;
+                }
+                case "executeBatch":
+                case "executeLargeBatch": {
+                    long start = System.nanoTime();
+                    Object result = call(statement, method, args);
+                    long rows = 0;
+                    if (result instanceof int[]) {
+                        for (int count : (int[]) result)
+                            rows += Math.max(0, count);
+                    } else {
+                        for (long count : (long[]) result)
+                            rows += Math.max(0, count);
+                    }
+                    record(sqlOf(args), System.nanoTime() - start, 0, rows);
+                    return result;
+                }
+                case "execute": {
+                    long start = System.nanoTime();
+                    boolean hasResultSet = (Boolean) call(statement, method, args);
+                    long elapsed = System.nanoTime() - start;
+                    record(sqlOf(args), elapsed, 0, hasResultSet ? 0 : Math.max(0, statement.getUpdateCount()));
+                    return hasResultSet;
+                }
+                default:
+                    return call(statement, method, args);
+            }
+        }
+
+        private void bind(int index, Object value) {
+            if (parameters == null || index >= parameters.length)
+                parameters = parameters == null ? new Object[index + 1] : Arrays.copyOf(parameters, index + 1);
+            parameters[index] = value;
+        }
+
+        private Object[] snapshot() {
+            return parameters == null ? null : parameters.clone();
+        }
+
+        private String sqlOf(Object[] args) {
+            if (sql != null)
+                return sql;
+            return args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : "(batch)";
+        }
+
+        void record(String sql, long nanos, long rowsRead, long rowsWritten) {
+            connection.metrics.recordStatement(connection.db, sql, snapshot(), nanos, rowsRead, rowsWritten);
+        }
+
+        void recordQuery(String sql, Object[] parameters, long nanos, long rowsRead) {
+            connection.metrics.recordStatement(connection.db, sql, parameters, nanos, rowsRead, 0);
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        final ResultSet rs;
+        final StatementHandler statement;
+        final String sql;
+        final Object[] parameters;
+        long nanos;
+        long rows;
+        boolean recorded;
+
+        ResultSetHandler(ResultSet rs, StatementHandler statement, String sql, Object[] parameters, long nanos) {
+            this.rs = rs;
+            this.statement = statement;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next": {
+                    long start = System.nanoTime();
+                    boolean hasRow = (Boolean) call(rs, method, args);
+                    nanos += System.nanoTime() - start;
+                    if (hasRow)
+                        ++rows;
+                    else
+                        finish();
+                    return hasRow;
+                }
+                case "close":
+                    try {
+                        return call(rs, method, args);
+                    } finally {
+                        finish();
+                    }
+                default:
+                    return call(rs, method, args);
+            }
+        }
+
+        private void finish() {
+            if (recorded)
+                return;
+            recorded = true;
+            statement.recordQuery(sql, parameters, nanos, rows);
+        }
+    }
+}
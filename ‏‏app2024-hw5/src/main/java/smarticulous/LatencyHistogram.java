@@ -0,0 +1,135 @@
+package smarticulous;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, in the style of HdrHistogram: log-linear buckets with a fixed
+ * relative precision, so percentiles are accurate to within 1% at any magnitude.
+ * <p>
+ * Values below 128 ns have a bucket each. Above that, every power of two is split into 64 linear buckets.
+ * Values above {@link #MAX_VALUE} (about 73 minutes) are counted as MAX_VALUE.
+ * <p>
+ * Recording allocates nothing and takes no lock, so it can be called on every operation from any number
+ * of threads. Reads are not atomic with respect to concurrent recording, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+
+    /**
+     * The largest value told apart from larger ones: 2^42 ns.
+     */
+    public static final long MAX_VALUE = 1L << 42;
+
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // The bucket of a value: its exponent and the next 6 bits after the leading one
+    static int index(long value) {
+        if (value < LINEAR_BUCKETS)
+            return (int) Math.max(0, value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (exponent - 7) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // The largest value of a bucket
+    static long highestValue(int index) {
+        if (index < LINEAR_BUCKETS)
+            return index;
+        int k = index - LINEAR_BUCKETS;
+        int shift = 7 + k / SUB_BUCKETS - SUB_BUCKET_BITS;
+        long mantissa = SUB_BUCKETS + k % SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least this value
+        }
+    }
+
+    /**
+     * @return the number of recorded values.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the recorded values in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return the largest recorded value, or 0 if nothing was recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Return the value below which the given percentage of the recorded values fall.
+     * <p>
+     * The result is the highest value of the bucket the percentile falls in, capped by the maximum, so it
+     * is never below the exact percentile and at most 1% above it.
+     *
+     * @param percentile between 0 and 100
+     * @return the value in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentiles are between 0 and 100: " + percentile);
+        long total = 0;
+        for (int i = 0; i < BUCKETS; ++i)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Forget all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram[count=" + getCount() + ", p50=" + getValueAtPercentile(50) +
+                ", p99=" + getValueAtPercentile(99) + ", max=" + getMax() + "]";
+    }
+}
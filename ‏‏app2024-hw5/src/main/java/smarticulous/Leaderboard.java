@@ -0,0 +1,352 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live per-exercise rankings of the users by their best total score.
+ * <p>
+ * Every exercise has a ranking of the users who submitted a graded solution, by the total points of
+ * their best submission, highest first; among equal totals the user who reached it first ranks higher,
+ * then by username. The rankings are order-statistic trees (treaps with subtree sizes), so an update and
+ * a rank-of-user query take logarithmic time and the top K take O(K + log n).
+ * <p>
+ * A leaderboard is attached with {@link Smarticulous#setLeaderboard(Leaderboard)}, which rebuilds it
+ * from the {@link ScoreSummary}. After that, the grades stored through that Smarticulous update it as
+ * their transaction commits. A user's entry only ever improves: a submission regraded to a lower total,
+ * or grades written through another connection, are seen after the next {@link #rebuild(Smarticulous)}.
+ * <p>
+ * The leaderboard is thread-safe. Every exercise is locked separately.
+ */
+public class Leaderboard {
+
+    /**
+     * The best submission of every user and exercise, earliest first among equal totals.
+     */
+    static final String SQL_QUERY_BEST_SCORES =
+            "SELECT Best.ExerciseId, User.Username, Best.TotalPoints, Best.SubmissionTime FROM " +
+            "(SELECT UserId, ExerciseId, TotalPoints, SubmissionTime, ROW_NUMBER() OVER " +
+            "(PARTITION BY UserId, ExerciseId ORDER BY TotalPoints DESC, SubmissionTime ASC, SubmissionId ASC) AS Position " +
+            "FROM SubmissionScore WHERE GradeCount > 0) AS Best " +
+            "INNER JOIN User ON User.UserId = Best.UserId WHERE Best.Position = 1";
+
+    /**
+     * The place of a user on the leaderboard of an exercise.
+     */
+    public static class Standing {
+        /**
+         * The position, from 1.
+         */
+        public final int rank;
+        public final String username;
+        /**
+         * The total points of the user's best submission.
+         */
+        public final double totalPoints;
+        /**
+         * When the best submission was submitted.
+         */
+        public final Date submissionTime;
+
+        Standing(int rank, Score score) {
+            this.rank = rank;
+            this.username = score.username;
+            this.totalPoints = score.totalPoints;
+            this.submissionTime = new Date(score.time);
+        }
+
+        @Override
+        public String toString() {
+            return rank + ". " + username + " (" + totalPoints + ")";
+        }
+    }
+
+    /**
+     * A score reached by a user in an exercise.
+     */
+    static class Score {
+        final int exerciseId;
+        final String username;
+        final double totalPoints;
+        final long time;
+
+        Score(int exerciseId, String username, double totalPoints, long time) {
+            this.exerciseId = exerciseId;
+            this.username = username;
+            this.totalPoints = totalPoints;
+            this.time = time;
+        }
+
+        /**
+         * The score of a graded submission, computed as the {@link ScoreSummary} does from the stored grades.
+         */
+        static Score of(Submission submission) {
+            List<Exercise.Question> questions = submission.exercise.questions;
+            double total = 0;
+            for (int i = 0; i < questions.size(); ++i) {
+                int points = questions.get(i).points;
+                // The grade is stored as a float fraction of the question's points
+                total += (double) (submission.questionGrades[i] / points) * points;
+            }
+            return new Score(submission.exercise.id, submission.user.username, total, submission.submissionTime.getTime());
+        }
+
+        // Ranking order: higher total, then earlier, then by username
+        int compareTo(Score other) {
+            int c = Double.compare(other.totalPoints, totalPoints);
+            if (c == 0)
+                c = Long.compare(time, other.time);
+            if (c == 0)
+                c = username.compareTo(other.username);
+            return c;
+        }
+
+        boolean beats(Score other) {
+            return totalPoints > other.totalPoints || (totalPoints == other.totalPoints && time < other.time);
+        }
+    }
+
+    private static class Node {
+        final Score score;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(Score score) {
+            this.score = score;
+            this.priority = ThreadLocalRandom.current().nextInt();
+        }
+    }
+
+    /**
+     * The ranking of one exercise.
+     */
+    private static class Board {
+        final Map<String, Score> scores = new HashMap<>();
+        Node root;
+
+        void put(Score score) {
+            Score old = scores.get(score.username);
+            if (old != null && !score.beats(old))
+                return;
+            if (old != null)
+                root = remove(root, old);
+            scores.put(score.username, score);
+            root = insert(root, new Node(score));
+        }
+
+        int rank(Score score) {
+            int rank = 0;
+            for (Node node = root; node != null; ) {
+                int c = score.compareTo(node.score);
+                if (c < 0) {
+                    node = node.left;
+                } else {
+                    rank += size(node.left) + 1;
+                    if (c == 0)
+                        return rank;
+                    node = node.right;
+                }
+            }
+            throw new IllegalStateException("Score is not ranked: " + score.username);
+        }
+
+        List<Standing> top(int k) {
+            List<Standing> top = new ArrayList<>(Math.min(k, scores.size()));
+            Deque<Node> path = new ArrayDeque<>();
+            Node node = root;
+            while (top.size() < k && (node != null || !path.isEmpty())) {
+                if (node != null) {
+                    path.push(node);
+                    node = node.left;
+                } else {
+                    node = path.pop();
+                    top.add(new Standing(top.size() + 1, node.score));
+                    node = node.right;
+                }
+            }
+            return top;
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node update(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+        return node;
+    }
+
+    private static Node insert(Node root, Node node) {
+        if (root == null)
+            return node;
+        if (node.priority > root.priority) {
+            split(root, node.score, node);
+            return update(node);
+        }
+        if (node.score.compareTo(root.score) < 0)
+            root.left = insert(root.left, node);
+        else
+            root.right = insert(root.right, node);
+        return update(root);
+    }
+
+    // Splits a tree into the nodes before and after a score, as the children of into
+    private static void split(Node root, Score score, Node into) {
+        if (root == null) {
+            into.left = into.right = null;
+            return;
+        }
+        if (score.compareTo(root.score) < 0) {
+            split(root.left, score, into);
+            root.left = into.right;
+            into.right = update(root);
+        } else {
+            split(root.right, score, into);
+            root.right = into.left;
+            into.left = update(root);
+        }
+    }
+
+    private static Node remove(Node root, Score score) {
+        int c = score.compareTo(root.score);
+        if (c == 0)
+            return merge(root.left, root.right);
+        if (c < 0)
+            root.left = remove(root.left, score);
+        else
+            root.right = remove(root.right, score);
+        return update(root);
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null)
+            return right;
+        if (right == null)
+            return left;
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            return update(left);
+        }
+        right.left = merge(left, right.left);
+        return update(right);
+    }
+
+    private final Map<Integer, Board> boards = new ConcurrentHashMap<>();
+    private final AtomicLong updates = new AtomicLong();
+
+    /**
+     * Replace all rankings with the best scores in the database.
+     *
+     * @param smarticulous an open Smarticulous
+     * @throws SQLException
+     */
+    public void rebuild(Smarticulous smarticulous) throws SQLException {
+        Map<Integer, Board> rebuilt = new HashMap<>();
+        try (Statement statement = smarticulous.db.createStatement();
+             ResultSet rs = statement.executeQuery(SQL_QUERY_BEST_SCORES)) {
+            while (rs.next()) {
+                Score score = new Score(rs.getInt(1), rs.getString(2), rs.getDouble(3), rs.getLong(4));
+                rebuilt.computeIfAbsent(score.exerciseId, id -> new Board()).put(score);
+            }
+        }
+        boards.keySet().retainAll(rebuilt.keySet());
+        boards.putAll(rebuilt);
+    }
+
+    /**
+     * Record a score reached by a user, if it is their best in the exercise.
+     *
+     * @param exerciseId the exercise
+     * @param username the user
+     * @param totalPoints the total points of the submission
+     * @param submissionTime when it was submitted
+     */
+    public void update(int exerciseId, String username, double totalPoints, Date submissionTime) {
+        apply(new Score(exerciseId, username, totalPoints, submissionTime.getTime()));
+    }
+
+    void apply(Score score) {
+        Board board = boards.computeIfAbsent(score.exerciseId, id -> new Board());
+        synchronized (board) {
+            board.put(score);
+        }
+        updates.incrementAndGet();
+    }
+
+    /**
+     * Return the K best users of an exercise.
+     *
+     * @param exerciseId the exercise
+     * @param k the number of users
+     * @return up to k standings, best first
+     */
+    public List<Standing> top(int exerciseId, int k) {
+        Board board = boards.get(exerciseId);
+        if (board == null)
+            return Collections.emptyList();
+        synchronized (board) {
+            return board.top(k);
+        }
+    }
+
+    /**
+     * Return the place of a user on the leaderboard of an exercise.
+     *
+     * @return the standing, or null if the user has no graded submission of the exercise
+     */
+    public Standing standing(int exerciseId, String username) {
+        Board board = boards.get(exerciseId);
+        if (board == null)
+            return null;
+        synchronized (board) {
+            Score score = board.scores.get(username);
+            return score == null ? null : new Standing(board.rank(score), score);
+        }
+    }
+
+    /**
+     * @return the rank (from 1) of a user in an exercise, or 0 if the user has no graded submission of it.
+     */
+    public int rank(int exerciseId, String username) {
+        Standing standing = standing(exerciseId, username);
+        return standing == null ? 0 : standing.rank;
+    }
+
+    /**
+     * @return the number of users ranked in an exercise.
+     */
+    public int size(int exerciseId) {
+        Board board = boards.get(exerciseId);
+        if (board == null)
+            return 0;
+        synchronized (board) {
+            return board.scores.size();
+        }
+    }
+
+    /**
+     * @return the number of scores recorded since the leaderboard was created, including ones that
+     * didn't improve a user's best.
+     */
+    public long getUpdates() {
+        return updates.get();
+    }
+}
@@ -0,0 +1,404 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * A durable {@link Storage}: a {@link MemoryStorage} whose writes are appended to an {@link EventLog}, and
+ * which is checkpointed into a snapshot file now and then.
+ * <p>
+ * A write is applied to the memory storage and then appended to the log as one fixed-layout record, so
+ * storing a submission costs a memory copy instead of B-tree updates. Once a write method returns, its
+ * record is in the log: it survives a crash of the process, and with {@code syncWrites} a crash of the
+ * machine as well. A batch is one record, so it is recovered whole or not at all.
+ * <p>
+ * When the log passes {@code checkpointBytes}, the memory storage is saved to the snapshot with the
+ * sequence number of the last record, and the log is emptied. Opening the storage loads the snapshot and
+ * replays the records after it, skipping any that the snapshot already holds (a crash between the two
+ * steps of a checkpoint).
+ * <p>
+ * The directory holds two files:
+ * <pre>
+ * storage.snapshot   the last checkpoint, see {@link MemoryStorage#save(Path)}
+ * events.log         the events since, see {@link EventLog}
+ * </pre>
+ * A LoggedStorage is thread-safe. Reads go straight to the memory storage; writes are serialized.
+ */
+public class LoggedStorage implements Storage {
+
+    static final String SNAPSHOT_FILE = "storage.snapshot";
+    static final String LOG_FILE = "events.log";
+
+    /**
+     * The log size at which it is checkpointed.
+     */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    static final byte USER = 1;
+    static final byte EXERCISE = 2;
+    static final byte SUBMISSIONS = 3;
+    static final byte GRADES = 4;
+
+    // id, user id, exercise id, time
+    private static final int SUBMISSION_BYTES = 4 + 4 + 4 + 8;
+
+    private final MemoryStorage memory;
+    private final EventLog log;
+    private final Path snapshot;
+    private final long checkpointBytes;
+    private final boolean syncWrites;
+
+    // Reused to encode records; guarded by this
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    /**
+     * Open the storage in a directory, creating it if it doesn't exist, with the default checkpoint size
+     * and without syncing every write.
+     *
+     * @param directory the directory of the snapshot and the log
+     * @throws IOException if the files can't be read, or don't match
+     */
+    public LoggedStorage(Path directory) throws IOException {
+        this(directory, DEFAULT_CHECKPOINT_BYTES, false);
+    }
+
+    /**
+     * Open the storage in a directory, creating it if it doesn't exist.
+     *
+     * @param directory the directory of the snapshot and the log
+     * @param checkpointBytes the log size at which it is checkpointed
+     * @param syncWrites whether every write is synced to the disk before it returns
+     * @throws IOException if the files can't be read, or don't match
+     */
+    public LoggedStorage(Path directory, long checkpointBytes, boolean syncWrites) throws IOException {
+        if (checkpointBytes < EventLog.HEADER_BYTES || checkpointBytes > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("checkpointBytes out of range: " + checkpointBytes);
+        this.checkpointBytes = checkpointBytes;
+        this.syncWrites = syncWrites;
+        Files.createDirectories(directory);
+        snapshot = directory.resolve(SNAPSHOT_FILE);
+        memory = Files.exists(snapshot) ? MemoryStorage.load(snapshot) : new MemoryStorage();
+        log = new EventLog(directory.resolve(LOG_FILE));
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    // Replay the records after the snapshot
+    private void recover() throws IOException {
+        long checkpoint = memory.logSequence;
+        if (log.getBaseSequence() > checkpoint)
+            throw new IOException("The event log starts at sequence " + log.getBaseSequence() +
+                    ", after the snapshot at " + checkpoint);
+        log.replay((type, sequence, payload) -> {
+            if (sequence <= checkpoint)
+                return;
+            try {
+                apply(type, payload);
+            } catch (SQLException e) {
+                throw new IOException("Event " + sequence + " can't be replayed", e);
+            }
+        });
+        // The whole log is in the snapshot: the checkpoint was cut short before emptying it
+        if (log.getLastSequence() < checkpoint)
+            log.reset(checkpoint);
+    }
+
+    private void apply(byte type, ByteBuffer in) throws SQLException, IOException {
+        switch (type) {
+            case USER: {
+                User user = new User(readString(in), readString(in), readString(in));
+                memory.addOrUpdateUser(user, readString(in));
+                break;
+            }
+            case EXERCISE: {
+                Exercise exercise = new Exercise(in.getInt(), readString(in), new Date(in.getLong()));
+                int questions = in.getInt();
+                for (int q = 0; q < questions; q++)
+                    exercise.addQuestion(readString(in), readString(in), in.getInt());
+                memory.addExercise(exercise);
+                break;
+            }
+            case SUBMISSIONS: {
+                int count = in.getInt();
+                for (int i = 0; i < count; i++)
+                    memory.storeSubmission(in.getInt(), in.getInt(), in.getInt(), in.getLong());
+                break;
+            }
+            case GRADES: {
+                int count = in.getInt();
+                for (int i = 0; i < count; i++) {
+                    int id = in.getInt();
+                    float[] fractions = new float[in.getInt()];
+                    for (int q = 0; q < fractions.length; q++)
+                        fractions[q] = in.getFloat();
+                    memory.addGrade(id, fractions);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown event type " + type);
+        }
+    }
+
+    // =========== Writes =============
+
+    @Override
+    public synchronized int addOrUpdateUser(User user, String password) throws SQLException {
+        int id = memory.addOrUpdateUser(user, password);
+        ByteBuffer out = buffer(0);
+        out = putString(out, user.username);
+        out = putString(out, user.firstname);
+        out = putString(out, user.lastname);
+        out = putString(out, password);
+        append(USER, out);
+        return id;
+    }
+
+    @Override
+    public synchronized int addExercise(Exercise exercise) throws SQLException {
+        int id = memory.addExercise(exercise);
+        if (id == -1)
+            return id;
+        ByteBuffer out = buffer(4 + 8 + 4);
+        out.putInt(exercise.id);
+        out = putString(out, exercise.name);
+        out = ensure(out, 8 + 4);
+        out.putLong(exercise.dueDate.getTime());
+        out.putInt(exercise.questions.size());
+        for (Exercise.Question q : exercise.questions) {
+            out = putString(out, q.name);
+            out = putString(out, q.desc);
+            out = ensure(out, 4);
+            out.putInt(q.points);
+        }
+        append(EXERCISE, out);
+        return id;
+    }
+
+    @Override
+    public synchronized int storeSubmission(Submission submission) throws SQLException {
+        int id = memory.storeSubmission(submission);
+        if (id == -1)
+            return id;
+        ByteBuffer out = buffer(4 + SUBMISSION_BYTES);
+        out.putInt(1);
+        putSubmission(out, id, submission);
+        append(SUBMISSIONS, out);
+        return id;
+    }
+
+    @Override
+    public synchronized int storeSubmissions(Iterable<Submission> submissions) throws SQLException {
+        List<Submission> list = toList(submissions);
+        int stored = memory.storeSubmissions(list);
+        if (stored == 0)
+            return 0;
+        ByteBuffer out = buffer(4 + stored * SUBMISSION_BYTES);
+        out.putInt(stored);
+        for (Submission submission : list) {
+            if (submission.id != -1)
+                putSubmission(out, submission.id, submission);
+        }
+        append(SUBMISSIONS, out);
+        return stored;
+    }
+
+    private void putSubmission(ByteBuffer out, int id, Submission submission) {
+        out.putInt(id);
+        out.putInt(memory.userId(submission.user.username));
+        out.putInt(submission.exercise.id);
+        out.putLong(submission.submissionTime.getTime());
+    }
+
+    @Override
+    public synchronized void addGrade(Submission submission) throws SQLException {
+        memory.addGrade(submission);
+        ByteBuffer out = buffer(4);
+        out.putInt(1);
+        append(GRADES, putGrades(out, submission));
+    }
+
+    @Override
+    public synchronized int addGrades(Iterable<Submission> submissions) throws SQLException {
+        List<Submission> list = toList(submissions);
+        int graded = memory.addGrades(list);
+        if (graded == 0)
+            return 0;
+        ByteBuffer out = buffer(4);
+        out.putInt(graded);
+        for (Submission submission : list)
+            out = putGrades(out, submission);
+        append(GRADES, out);
+        return graded;
+    }
+
+    private ByteBuffer putGrades(ByteBuffer out, Submission submission) {
+        float[] fractions = MemoryStorage.fractions(submission);
+        out = ensure(out, 4 + 4 + 4 * fractions.length);
+        out.putInt(submission.id);
+        out.putInt(fractions.length);
+        for (float fraction : fractions)
+            out.putFloat(fraction);
+        return out;
+    }
+
+    private static List<Submission> toList(Iterable<Submission> submissions) {
+        if (submissions instanceof List)
+            return (List<Submission>) submissions;
+        List<Submission> list = new ArrayList<>();
+        submissions.forEach(list::add);
+        return list;
+    }
+
+    // Append a record whose write is already applied, and checkpoint if the log is full
+    private void append(byte type, ByteBuffer out) throws SQLException {
+        out.flip();
+        try {
+            log.append(type, out);
+            if (syncWrites)
+                log.sync();
+            if (log.size() >= checkpointBytes)
+                checkpoint();
+        } catch (IOException e) {
+            // The write is in memory but not in the log; a checkpoint still saves it
+            try {
+                checkpoint();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+                throw new SQLException("The write can't be logged", e);
+            }
+        }
+    }
+
+    /**
+     * Save the memory storage to the snapshot file and empty the log.
+     *
+     * @throws IOException if the snapshot can't be written; the log is kept
+     */
+    public synchronized void checkpoint() throws IOException {
+        memory.logSequence = log.getLastSequence();
+        memory.save(snapshot);
+        log.reset(memory.logSequence);
+    }
+
+    // =========== Reads =============
+
+    @Override
+    public boolean verifyLogin(String username, String password) {
+        return memory.verifyLogin(username, password);
+    }
+
+    @Override
+    public List<Exercise> loadExercises() {
+        return memory.loadExercises();
+    }
+
+    @Override
+    public Exercise getExercise(int id) {
+        return memory.getExercise(id);
+    }
+
+    @Override
+    public Submission getLastSubmission(User user, Exercise exercise) {
+        return memory.getLastSubmission(user, exercise);
+    }
+
+    @Override
+    public Submission getBestSubmission(User user, Exercise exercise) {
+        return memory.getBestSubmission(user, exercise);
+    }
+
+    @Override
+    public Stream<Submission> streamSubmissions(Exercise exercise) {
+        return memory.streamSubmissions(exercise);
+    }
+
+    /**
+     * @return the number of stored submissions.
+     */
+    public int getSubmissionCount() {
+        return memory.getSubmissionCount();
+    }
+
+    /**
+     * @return the number of bytes in the log since the last checkpoint.
+     */
+    public synchronized long getLogSize() {
+        return log.size();
+    }
+
+    /**
+     * Checkpoint if there is anything in the log, and close it.
+     *
+     * @throws SQLException if the log can't be written
+     */
+    @Override
+    public synchronized void close() throws SQLException {
+        try {
+            try {
+                if (log.getLastSequence() > log.getBaseSequence())
+                    checkpoint();
+            } finally {
+                log.close();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Closing the event log failed", e);
+        }
+    }
+
+    // =========== Encoding =============
+
+    // The reused buffer, cleared, with room for at least the given bytes
+    private ByteBuffer buffer(int bytes) {
+        buffer.clear();
+        return ensure(buffer, bytes);
+    }
+
+    private ByteBuffer ensure(ByteBuffer out, int bytes) {
+        if (out.remaining() >= bytes)
+            return out;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        bigger.put(out);
+        buffer = bigger;
+        return bigger;
+    }
+
+    private ByteBuffer putString(ByteBuffer out, String s) {
+        if (s == null) {
+            out = ensure(out, 4);
+            out.putInt(-1);
+            return out;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out = ensure(out, 4 + bytes.length);
+        out.putInt(bytes.length);
+        out.put(bytes);
+        return out;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
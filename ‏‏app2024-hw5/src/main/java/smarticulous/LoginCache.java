@@ -0,0 +1,197 @@
+package smarticulous;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, short-lived cache of successful login verifications.
+ * <p>
+ * When a whole class logs in at once, many logins repeat within seconds. A login that matches a recent
+ * successful verification of the same username and password is accepted without a database lookup or a
+ * password hash. Entries expire after {@link #getTtlMillis()}, and the least recently used entries are
+ * dropped once more than {@link #getCapacity()} are cached.
+ * <p>
+ * Passwords are never kept: an entry holds an HMAC of the password under a random key that exists only in
+ * memory. {@link Smarticulous#addOrUpdateUser(smarticulous.db.User, String)} invalidates the user's entry;
+ * a password changed through another connection is still accepted until the entry expires.
+ * <p>
+ * The cache is thread-safe.
+ */
+public class LoginCache {
+
+    /**
+     * A cached verification.
+     */
+    private static class Login {
+        final byte[] fingerprint;
+        final long expiresAt;
+
+        Login(byte[] fingerprint, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+
+    /**
+     * The key of the password fingerprints.
+     */
+    private final SecretKeySpec key;
+
+    /**
+     * Verifications by username, least recently used first.
+     */
+    private final Map<String, Login> entries;
+
+    /**
+     * Incremented by every invalidation.
+     */
+    private long generation;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity the maximal number of cached verifications
+     * @param ttlMillis how long a verification is remembered
+     */
+    public LoginCache(int capacity, long ttlMillis) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (ttlMillis < 0)
+            throw new IllegalArgumentException("ttlMillis must not be negative: " + ttlMillis);
+
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+        this.entries = new LinkedHashMap<String, Login>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Login> eldest) {
+                return size() > LoginCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Check whether the username and password were verified recently.
+     *
+     * @return true if they match an entry that hasn't expired
+     */
+    public boolean contains(String username, String password) {
+        byte[] fingerprint = fingerprint(password);
+        synchronized (this) {
+            Login entry = entries.get(username);
+            if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+                entries.remove(username);
+                entry = null;
+            }
+            if (entry != null && MessageDigest.isEqual(entry.fingerprint, fingerprint)) {
+                ++hits;
+                return true;
+            }
+            ++misses;
+            return false;
+        }
+    }
+
+    /**
+     * @return the current generation, to be passed to {@link #put(String, String, long)} by a verification
+     * that starts now.
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Remember a successful verification, unless some user was invalidated since it started.
+     * <p>
+     * This keeps a verification that read the old password from outliving a concurrent password change.
+     *
+     * @param generation the {@link #generation()} from before the password was read
+     */
+    public void put(String username, String password, long generation) {
+        Login entry = new Login(fingerprint(password), System.nanoTime() + ttlNanos);
+        synchronized (this) {
+            if (generation == this.generation)
+                entries.put(username, entry);
+        }
+    }
+
+    /**
+     * Forget the verification of a user, e.g. because their password changed.
+     */
+    public synchronized void invalidate(String username) {
+        entries.remove(username);
+        ++generation;
+    }
+
+    /**
+     * Forget all verifications.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        ++generation;
+    }
+
+    private byte[] fingerprint(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            // Every Java runtime provides HmacSHA256
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * @return the maximal number of cached verifications.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return how long a verification is remembered.
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * @return the number of logins accepted from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of logins that had to be checked against the database.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of verifications currently cached (including expired ones not yet dropped).
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LoginCache[size=" + entries.size() + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -0,0 +1,210 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Merges concurrent single-user lookups of the latest or best submission into multi-gets.
+ * <p>
+ * Callers hand lookups to {@link #getLastSubmission(User, Exercise)} and
+ * {@link #getBestSubmission(User, Exercise)} and get a future of the submission back. A single thread
+ * collects the lookups that arrive within {@link #getMaxDelayMillis()} of the first pending one (or
+ * {@link #getMaxBatchSize()} of them, whichever comes first), groups them by exercise, and answers each
+ * group with one {@link Storage#getLastSubmissions(java.util.Collection, Exercise)} or
+ * {@link Storage#getBestSubmissions(java.util.Collection, Exercise)}. So when a whole class opens its
+ * grades at once, the database sees a few set-based queries instead of one query per student, at the
+ * price of at most maxDelayMillis of extra latency.
+ * <p>
+ * The storage must allow use from several threads, like {@link ConcurrentSmarticulous} or
+ * {@link MemoryStorage}. Futures are completed on the batching thread.
+ */
+public class LookupBatcher implements AutoCloseable {
+
+    /**
+     * The default maximal number of lookups answered together.
+     */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * The default time the batcher waits for more lookups.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2;
+
+    /**
+     * The default number of lookups that may wait for the batcher.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * A lookup waiting for the batcher, with the future of its submission.
+     */
+    private static class Pending {
+        final boolean best;
+        final User user;
+        final Exercise exercise;
+        final CompletableFuture<Submission> submission = new CompletableFuture<>();
+
+        Pending(boolean best, User user, Exercise exercise) {
+            this.best = best;
+            this.user = user;
+            this.exercise = exercise;
+        }
+    }
+
+    private final Storage storage;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final GroupingQueue<Pending> queue;
+
+    private volatile long queries;
+    private volatile long lookups;
+
+    /**
+     * Start a batcher with the default batch size, delay and capacity.
+     *
+     * @param storage the storage the lookups run on
+     */
+    public LookupBatcher(Storage storage) {
+        this(storage, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start a batcher.
+     *
+     * @param storage the storage the lookups run on
+     * @param maxBatchSize the maximal number of lookups answered together
+     * @param maxDelayMillis how long the batcher waits for more lookups
+     * @param capacity the number of lookups that may wait before a new one blocks
+     */
+    public LookupBatcher(Storage storage, int maxBatchSize, long maxDelayMillis, int capacity) {
+        if (maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+        if (maxDelayMillis < 0)
+            throw new IllegalArgumentException("maxDelayMillis must not be negative: " + maxDelayMillis);
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.storage = storage;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.queue = new GroupingQueue<>("lookup-batcher", maxBatchSize, maxDelayMillis, capacity,
+                this::answer, (pending, e) -> pending.submission.completeExceptionally(e));
+    }
+
+    /**
+     * Queue a lookup of the latest graded submission, waiting for room if the queue is full.
+     *
+     * @return the future submission, or null if there is none
+     * @throws IllegalStateException if the batcher was closed
+     * @see Storage#getLastSubmission(User, Exercise)
+     */
+    public CompletableFuture<Submission> getLastSubmission(User user, Exercise exercise) {
+        return submit(new Pending(false, user, exercise));
+    }
+
+    /**
+     * Queue a lookup of the best graded submission, waiting for room if the queue is full.
+     *
+     * @return the future submission, or null if there is none
+     * @throws IllegalStateException if the batcher was closed
+     * @see Storage#getBestSubmission(User, Exercise)
+     */
+    public CompletableFuture<Submission> getBestSubmission(User user, Exercise exercise) {
+        return submit(new Pending(true, user, exercise));
+    }
+
+    private CompletableFuture<Submission> submit(Pending pending) {
+        if (queue.isClosed())
+            throw new IllegalStateException("Lookup batcher is closed");
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.submission.completeExceptionally(e);
+        }
+        return pending.submission;
+    }
+
+    // Answers a batch with one multi-get per kind of lookup and exercise
+    private void answer(List<Pending> batch) {
+        Map<List<Object>, List<Pending>> groups = new LinkedHashMap<>();
+        for (Pending pending : batch)
+            groups.computeIfAbsent(Arrays.asList(pending.best, pending.exercise.id), k -> new ArrayList<>()).add(pending);
+
+        for (List<Pending> group : groups.values()) {
+            Exercise exercise = group.get(0).exercise;
+            List<User> users = new ArrayList<>(group.size());
+            for (Pending pending : group)
+                users.add(pending.user);
+
+            Map<String, Submission> submissions;
+            try {
+                submissions = group.get(0).best
+                        ? storage.getBestSubmissions(users, exercise)
+                        : storage.getLastSubmissions(users, exercise);
+            } catch (Throwable e) {
+                for (Pending pending : group)
+                    pending.submission.completeExceptionally(e);
+                continue;
+            }
+            ++queries;
+            lookups += group.size();
+            for (Pending pending : group)
+                pending.submission.complete(submissions.get(pending.user.username));
+        }
+    }
+
+    /**
+     * @return the number of multi-gets run so far.
+     */
+    public long getQueries() {
+        return queries;
+    }
+
+    /**
+     * @return the number of lookups answered so far.
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return the maximal number of lookups answered together.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return how long the batcher waits for more lookups.
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Stop accepting lookups and wait until the ones already queued are answered.
+     * <p>
+     * Does not close the underlying storage.
+     *
+     * @throws SQLException if interrupted while waiting; lookups still queued then fail
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            queue.close("Lookup batcher is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for queued lookups", e);
+        }
+    }
+}
@@ -0,0 +1,748 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * An in-memory implementation of {@link Storage}, for read replicas and tests.
+ * <p>
+ * Submissions are kept column by column in primitive arrays, one row per submission, and their grades in
+ * one flat array of fractions of the questions' points, exactly as {@link Smarticulous} stores them. Hash
+ * indexes find a submission by id, and the latest and best graded submission of every user and exercise,
+ * which are kept up to date as grades are added (with the tie-breaks of the {@link ScoreSummary}).
+ * <p>
+ * The whole state can be saved to a snapshot file with {@link #save(Path)} and read back with
+ * {@link #load(Path)}.
+ * <p>
+ * A MemoryStorage is thread-safe: reads share a lock and writes are exclusive. A batch write is applied
+ * only once all of it is known to succeed, so a failed batch leaves nothing behind.
+ */
+public class MemoryStorage implements Storage {
+
+    /**
+     * The first bytes of a snapshot file ("SMS" and the format version).
+     */
+    static final int SNAPSHOT_MAGIC = 0x534d5302;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Users by row; the user id is the row + 1
+    private final Map<String, Integer> userRows = new HashMap<>();
+    private String[] usernames = new String[INITIAL_CAPACITY];
+    private String[] firstnames = new String[INITIAL_CAPACITY];
+    private String[] lastnames = new String[INITIAL_CAPACITY];
+    private String[] passwords = new String[INITIAL_CAPACITY];
+    private int userCount;
+
+    // Exercises by id, sorted for loadExercises
+    private final TreeMap<Integer, Exercise> exercises = new TreeMap<>();
+
+    // Submissions by row
+    private int[] submissionIds = new int[INITIAL_CAPACITY];
+    private int[] submissionUsers = new int[INITIAL_CAPACITY];
+    private int[] submissionExercises = new int[INITIAL_CAPACITY];
+    private long[] submissionTimes = new long[INITIAL_CAPACITY];
+    // The start of a row's grades in grades, and their number (0 for an ungraded submission)
+    private int[] gradeOffsets = new int[INITIAL_CAPACITY];
+    private int[] gradeCounts = new int[INITIAL_CAPACITY];
+    // The point total of a graded row
+    private double[] totalPoints = new double[INITIAL_CAPACITY];
+    private int submissionCount;
+    private int nextSubmissionId = 1;
+
+    private float[] grades = new float[INITIAL_CAPACITY * 4];
+    private int gradeSize;
+
+    // Row of a submission id
+    private final LongIntIndex rowsById = new LongIntIndex();
+    // Row of the latest and of the best graded submission, by pairKey(user, exercise)
+    private final LongIntIndex latestRows = new LongIntIndex();
+    private final LongIntIndex bestRows = new LongIntIndex();
+    // Rows of the submissions of each exercise
+    private final Map<Integer, RowList> rowsByExercise = new HashMap<>();
+
+    /**
+     * The sequence number of the last {@link EventLog} event in this state, or 0; kept in snapshots so
+     * {@link LoggedStorage} knows where to replay its log from.
+     */
+    volatile long logSequence;
+
+    // =========== Users =============
+
+    @Override
+    public int addOrUpdateUser(User user, String password) {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            return putUser(user.username, user.firstname, user.lastname, password) + 1;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    private int putUser(String username, String firstname, String lastname, String password) {
+        Integer row = userRows.get(username);
+        if (row == null) {
+            if (userCount == usernames.length) {
+                int capacity = userCount * 2;
+                usernames = Arrays.copyOf(usernames, capacity);
+                firstnames = Arrays.copyOf(firstnames, capacity);
+                lastnames = Arrays.copyOf(lastnames, capacity);
+                passwords = Arrays.copyOf(passwords, capacity);
+            }
+            row = userCount++;
+            userRows.put(username, row);
+            usernames[row] = username;
+        }
+        firstnames[row] = firstname;
+        lastnames[row] = lastname;
+        passwords[row] = password;
+        return row;
+    }
+
+    /**
+     * @return the id of a user, or -1 if there is no such user.
+     */
+    int userId(String username) {
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            Integer row = userRows.get(username);
+            return row == null ? -1 : row + 1;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Check a password against the stored one, which may be a {@link PasswordHasher} hash.
+     */
+    @Override
+    public boolean verifyLogin(String username, String password) {
+        String stored;
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            Integer row = userRows.get(username);
+            stored = row == null ? null : passwords[row];
+        } finally {
+            read.unlock();
+        }
+        // Hashes are checked outside the lock, as they take a while
+        return PasswordHasher.matches(password, stored);
+    }
+
+    // =========== Exercises =============
+
+    @Override
+    public int addExercise(Exercise exercise) {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            if (exercises.containsKey(exercise.id))
+                return -1;
+            putExercise(exercise.id, exercise.name, exercise.dueDate.getTime(), exercise.questions);
+            return exercise.id;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    // Store a copy, so later changes to the caller's exercise don't leak in
+    private void putExercise(int id, String name, long dueDate, List<Exercise.Question> questions) {
+        Exercise copy = new Exercise(id, name, new Date(dueDate));
+        for (Exercise.Question q : questions)
+            copy.addQuestion(q.name, q.desc, q.points);
+        exercises.put(id, copy);
+    }
+
+    @Override
+    public List<Exercise> loadExercises() {
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return new ArrayList<>(exercises.values());
+        } finally {
+            read.unlock();
+        }
+    }
+
+    @Override
+    public Exercise getExercise(int id) {
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return exercises.get(id);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    // ========== Submissions ===============
+
+    @Override
+    public int storeSubmission(Submission submission) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            Integer user = userRows.get(submission.user.username);
+            if (user == null)
+                return -1;
+            int id = submission.id == -1 ? nextSubmissionId : submission.id;
+            if (rowsById.get(id) >= 0)
+                throw duplicateSubmission(id);
+            appendSubmission(id, user, submission.exercise.id, submission.submissionTime.getTime());
+            return id;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Store many submissions. They are all checked before any of them is stored, so if one of them fails
+     * (its id is taken), none is stored and the ids written so far are not valid.
+     */
+    @Override
+    public int storeSubmissions(Iterable<Submission> submissions) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            List<Submission> accepted = new ArrayList<>();
+            Set<Integer> taken = new HashSet<>();
+            int nextId = nextSubmissionId;
+            for (Submission submission : submissions) {
+                if (!userRows.containsKey(submission.user.username)) {
+                    submission.id = -1;
+                    continue;
+                }
+                int id = submission.id == -1 ? nextId : submission.id;
+                if (rowsById.get(id) >= 0 || !taken.add(id))
+                    throw duplicateSubmission(id);
+                nextId = Math.max(nextId, id + 1);
+                submission.id = id;
+                accepted.add(submission);
+            }
+            for (Submission submission : accepted)
+                appendSubmission(submission.id, userRows.get(submission.user.username), submission.exercise.id,
+                        submission.submissionTime.getTime());
+            return accepted.size();
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Store a submission by user id, as replayed from an {@link EventLog}.
+     *
+     * @throws SQLException if the user doesn't exist or the id is taken
+     */
+    void storeSubmission(int id, int userId, int exerciseId, long time) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            if (userId < 1 || userId > userCount)
+                throw new SQLException("No user with id " + userId);
+            if (rowsById.get(id) >= 0)
+                throw duplicateSubmission(id);
+            appendSubmission(id, userId - 1, exerciseId, time);
+        } finally {
+            write.unlock();
+        }
+    }
+
+    private static SQLException duplicateSubmission(int id) {
+        return new SQLException("Submission id " + id + " is already taken");
+    }
+
+    private int appendSubmission(int id, int user, int exerciseId, long time) {
+        if (submissionCount == submissionIds.length) {
+            int capacity = submissionCount * 2;
+            submissionIds = Arrays.copyOf(submissionIds, capacity);
+            submissionUsers = Arrays.copyOf(submissionUsers, capacity);
+            submissionExercises = Arrays.copyOf(submissionExercises, capacity);
+            submissionTimes = Arrays.copyOf(submissionTimes, capacity);
+            gradeOffsets = Arrays.copyOf(gradeOffsets, capacity);
+            gradeCounts = Arrays.copyOf(gradeCounts, capacity);
+            totalPoints = Arrays.copyOf(totalPoints, capacity);
+        }
+        int row = submissionCount++;
+        submissionIds[row] = id;
+        submissionUsers[row] = user;
+        submissionExercises[row] = exerciseId;
+        submissionTimes[row] = time;
+        rowsById.put(id, row);
+        rowsByExercise.computeIfAbsent(exerciseId, e -> new RowList()).add(row, id);
+        nextSubmissionId = Math.max(nextSubmissionId, id + 1);
+        return row;
+    }
+
+    // ========== Grades ===============
+
+    @Override
+    public void addGrade(Submission submission) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            int row = gradableRow(submission.id);
+            setGrades(row, fractions(submission));
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Store the grades of many submissions. They are all checked before any grade is stored, so if one
+     * of them fails, no grade is stored.
+     */
+    @Override
+    public int addGrades(Iterable<Submission> submissions) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            List<Submission> accepted = new ArrayList<>();
+            Set<Integer> seen = new HashSet<>();
+            for (Submission submission : submissions) {
+                gradableRow(submission.id);
+                if (!seen.add(submission.id))
+                    throw alreadyGraded(submission.id);
+                accepted.add(submission);
+            }
+            for (Submission submission : accepted)
+                setGrades(rowsById.get(submission.id), fractions(submission));
+            return accepted.size();
+        } finally {
+            write.unlock();
+        }
+    }
+
+    // The row of a stored submission without grades
+    private int gradableRow(int id) throws SQLException {
+        int row = rowsById.get(id);
+        if (row < 0)
+            throw new SQLException("No submission with id " + id);
+        if (gradeCounts[row] > 0)
+            throw alreadyGraded(id);
+        return row;
+    }
+
+    /**
+     * Store the grades of a submission as fractions of the questions' points, as replayed from an {@link EventLog}.
+     *
+     * @throws SQLException if there is no such submission, or it is already graded
+     */
+    void addGrade(int id, float[] fractions) throws SQLException {
+        Lock write = lock.writeLock();
+        write.lock();
+        try {
+            setGrades(gradableRow(id), fractions);
+        } finally {
+            write.unlock();
+        }
+    }
+
+    private static SQLException alreadyGraded(int id) {
+        return new SQLException("Submission " + id + " is already graded");
+    }
+
+    // The grades of a submission as fractions of the questions' points, as Smarticulous stores them
+    static float[] fractions(Submission submission) {
+        List<Exercise.Question> questions = submission.exercise.questions;
+        float[] fractions = new float[questions.size()];
+        for (int i = 0; i < fractions.length; i++)
+            fractions[i] = submission.questionGrades[i] / questions.get(i).points;
+        return fractions;
+    }
+
+    private void setGrades(int row, float[] fractions) {
+        // Without questions there is nothing to store, and the submission stays ungraded
+        if (fractions.length == 0)
+            return;
+        if (gradeSize + fractions.length > grades.length)
+            grades = Arrays.copyOf(grades, Math.max(grades.length * 2, gradeSize + fractions.length));
+        System.arraycopy(fractions, 0, grades, gradeSize, fractions.length);
+        gradeOffsets[row] = gradeSize;
+        gradeCounts[row] = fractions.length;
+        gradeSize += fractions.length;
+
+        Exercise exercise = exercises.get(submissionExercises[row]);
+        double total = 0;
+        for (int i = 0; i < fractions.length; i++) {
+            // Grades of questions the stored exercise doesn't have are worth nothing, as in the score summary
+            if (exercise != null && i < exercise.questions.size())
+                total += (double) fractions[i] * exercise.questions.get(i).points;
+        }
+        totalPoints[row] = total;
+
+        long pair = pairKey(submissionUsers[row], submissionExercises[row]);
+        int latest = latestRows.get(pair);
+        if (latest < 0 || compareLatest(row, latest) > 0)
+            latestRows.put(pair, row);
+        int best = bestRows.get(pair);
+        if (best < 0 || compareBest(row, best) > 0)
+            bestRows.put(pair, row);
+    }
+
+    private static long pairKey(int user, int exerciseId) {
+        return ((long) user << 32) | (exerciseId & 0xffffffffL);
+    }
+
+    // Later is greater: by submission time, then by id
+    private int compareLatest(int a, int b) {
+        int c = Long.compare(submissionTimes[a], submissionTimes[b]);
+        return c != 0 ? c : Integer.compare(submissionIds[a], submissionIds[b]);
+    }
+
+    // Better is greater: by point total, then the latest
+    private int compareBest(int a, int b) {
+        int c = Double.compare(totalPoints[a], totalPoints[b]);
+        return c != 0 ? c : compareLatest(a, b);
+    }
+
+    // ============= Queries ===============
+
+    @Override
+    public Submission getLastSubmission(User user, Exercise exercise) {
+        return getSubmission(user, exercise, latestRows);
+    }
+
+    @Override
+    public Submission getBestSubmission(User user, Exercise exercise) {
+        return getSubmission(user, exercise, bestRows);
+    }
+
+    private Submission getSubmission(User user, Exercise exercise, LongIntIndex index) {
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            Integer userRow = userRows.get(user.username);
+            if (userRow == null)
+                return null;
+            int row = index.get(pairKey(userRow, exercise.id));
+            if (row < 0)
+                return null;
+            return new Submission(submissionIds[row], user, exercise, new Date(submissionTimes[row]),
+                    gradesOf(row, exercise));
+        } finally {
+            read.unlock();
+        }
+    }
+
+    // The stored grades of a row, one per question of the exercise
+    private float[] gradesOf(int row, Exercise exercise) {
+        float[] result = new float[exercise.questions.size()];
+        System.arraycopy(grades, gradeOffsets[row], result, 0, Math.min(result.length, gradeCounts[row]));
+        return result;
+    }
+
+    /**
+     * Return all submissions of an exercise, in order of their ids, with their grades.
+     * <p>
+     * The rows of the exercise are copied when this is called, so submissions stored later are not
+     * included; each submission is read when the stream reaches it.
+     */
+    @Override
+    public Stream<Submission> streamSubmissions(Exercise exercise) {
+        int[] rows;
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            RowList list = rowsByExercise.get(exercise.id);
+            if (list == null)
+                return Stream.empty();
+            rows = list.sortedRows(submissionIds);
+        } finally {
+            read.unlock();
+        }
+        return Arrays.stream(rows).mapToObj(row -> {
+            read.lock();
+            try {
+                int user = submissionUsers[row];
+                return new Submission(submissionIds[row], new User(usernames[user], firstnames[user], lastnames[user]),
+                        exercise, new Date(submissionTimes[row]), gradesOf(row, exercise));
+            } finally {
+                read.unlock();
+            }
+        });
+    }
+
+    /**
+     * @return the number of stored submissions.
+     */
+    public int getSubmissionCount() {
+        Lock read = lock.readLock();
+        read.lock();
+        try {
+            return submissionCount;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Does nothing: the data lives as long as this object. Use {@link #save(Path)} to keep it.
+     */
+    @Override
+    public void close() {
+    }
+
+    // ============= Snapshots ===============
+
+    /**
+     * Save everything to a snapshot file.
+     * <p>
+     * Writes wait while the snapshot is written; reads don't. The file is replaced atomically, so a crash
+     * leaves either the old snapshot or the new one.
+     *
+     * @param file the snapshot file
+     * @throws IOException
+     */
+    public void save(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            Lock read = lock.readLock();
+            read.lock();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                writeSnapshot(out);
+            } finally {
+                read.unlock();
+            }
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Load a snapshot file written by {@link #save(Path)}.
+     *
+     * @param file the snapshot file
+     * @return a new storage with the saved data
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    public static MemoryStorage load(Path file) throws IOException {
+        MemoryStorage storage = new MemoryStorage();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            storage.readSnapshot(in);
+        }
+        return storage;
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(logSequence);
+
+        out.writeInt(userCount);
+        for (int i = 0; i < userCount; i++) {
+            writeString(out, usernames[i]);
+            writeString(out, firstnames[i]);
+            writeString(out, lastnames[i]);
+            writeString(out, passwords[i]);
+        }
+
+        out.writeInt(exercises.size());
+        for (Exercise exercise : exercises.values()) {
+            out.writeInt(exercise.id);
+            writeString(out, exercise.name);
+            out.writeLong(exercise.dueDate.getTime());
+            out.writeInt(exercise.questions.size());
+            for (Exercise.Question q : exercise.questions) {
+                writeString(out, q.name);
+                writeString(out, q.desc);
+                out.writeInt(q.points);
+            }
+        }
+
+        out.writeInt(submissionCount);
+        out.writeInt(nextSubmissionId);
+        for (int row = 0; row < submissionCount; row++) {
+            out.writeInt(submissionIds[row]);
+            out.writeInt(submissionUsers[row]);
+            out.writeInt(submissionExercises[row]);
+            out.writeLong(submissionTimes[row]);
+            out.writeInt(gradeCounts[row]);
+            for (int i = 0; i < gradeCounts[row]; i++)
+                out.writeFloat(grades[gradeOffsets[row] + i]);
+        }
+    }
+
+    // Replays the snapshot, so the indexes are rebuilt as they were
+    private void readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC)
+            throw new IOException("Not a snapshot, or an unknown version");
+        logSequence = in.readLong();
+
+        int users = in.readInt();
+        for (int i = 0; i < users; i++)
+            putUser(readString(in), readString(in), readString(in), readString(in));
+
+        int exerciseCount = in.readInt();
+        for (int i = 0; i < exerciseCount; i++) {
+            int id = in.readInt();
+            Exercise exercise = new Exercise(id, readString(in), new Date(in.readLong()));
+            int questions = in.readInt();
+            for (int q = 0; q < questions; q++)
+                exercise.addQuestion(readString(in), readString(in), in.readInt());
+            exercises.put(id, exercise);
+        }
+
+        int submissions = in.readInt();
+        int nextId = in.readInt();
+        for (int i = 0; i < submissions; i++) {
+            int row = appendSubmission(in.readInt(), in.readInt(), in.readInt(), in.readLong());
+            float[] fractions = new float[in.readInt()];
+            for (int q = 0; q < fractions.length; q++)
+                fractions[q] = in.readFloat();
+            setGrades(row, fractions);
+        }
+        nextSubmissionId = nextId;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A hash index from long keys to rows, with open addressing and linear probing in primitive arrays.
+     * Entries are never removed.
+     */
+    private static final class LongIntIndex {
+        private long[] keys = new long[INITIAL_CAPACITY];
+        // -1 marks an empty slot
+        private int[] rows = newRows(INITIAL_CAPACITY);
+        private int size;
+
+        private static int[] newRows(int capacity) {
+            int[] rows = new int[capacity];
+            Arrays.fill(rows, -1);
+            return rows;
+        }
+
+        private static int slot(long key, int mask) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        /**
+         * @return the row of the key, or -1 if it has none.
+         */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int i = slot(key, mask); rows[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return rows[i];
+            }
+            return -1;
+        }
+
+        void put(long key, int row) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            for (; rows[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    rows[i] = row;
+                    return;
+                }
+            }
+            keys[i] = key;
+            rows[i] = row;
+            // Keep the table at most half full, so probes stay short
+            if (++size * 2 > keys.length)
+                grow();
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldRows = rows;
+            keys = new long[oldKeys.length * 2];
+            rows = newRows(oldKeys.length * 2);
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldRows[j] < 0)
+                    continue;
+                int i = slot(oldKeys[j], mask);
+                while (rows[i] >= 0)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                rows[i] = oldRows[j];
+            }
+        }
+    }
+
+    /**
+     * The rows of an exercise's submissions, in the order they were stored.
+     */
+    private static final class RowList {
+        private int[] rows = new int[8];
+        private int size;
+        private int lastId = Integer.MIN_VALUE;
+        // Whether the ids are increasing, as they are unless ids were given out of order
+        private boolean sorted = true;
+
+        void add(int row, int id) {
+            if (size == rows.length)
+                rows = Arrays.copyOf(rows, size * 2);
+            rows[size++] = row;
+            sorted &= id > lastId;
+            lastId = Math.max(lastId, id);
+        }
+
+        /**
+         * @param ids the submission ids by row
+         * @return a copy of the rows, in order of their submission ids.
+         */
+        int[] sortedRows(int[] ids) {
+            if (sorted)
+                return Arrays.copyOf(rows, size);
+            // Sort (id, row) pairs packed into longs, the id in the high half
+            long[] pairs = new long[size];
+            for (int i = 0; i < size; i++)
+                pairs[i] = ((long) ids[rows[i]] << 32) | rows[i];
+            Arrays.sort(pairs);
+            int[] result = new int[size];
+            for (int i = 0; i < size; i++)
+                result[i] = (int) pairs[i];
+            return result;
+        }
+    }
+}
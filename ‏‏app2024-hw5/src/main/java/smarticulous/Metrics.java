@@ -0,0 +1,378 @@
+package smarticulous;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, call and row metrics of Smarticulous, and a log of slow SQL statements.
+ * <p>
+ * Instrumentation is off unless a Metrics is set with {@link Smarticulous#setMetrics(Metrics)}. Then:
+ * <ul>
+ *   <li>Every public Smarticulous operation records its latency in a {@link LatencyHistogram}, and counts
+ *   its calls and failures.</li>
+ *   <li>Every SQL statement run on the connection records its latency and the rows it read and wrote.
+ *   The latency of a query includes fetching its rows.</li>
+ *   <li>A statement slower than the threshold is logged with its bind parameters and the output of
+ *   <code>EXPLAIN QUERY PLAN</code>. The last {@link #SLOW_QUERY_LOG_SIZE} are kept for
+ *   {@link #getSlowQueries()}.</li>
+ * </ul>
+ * With instrumentation off, the cost is a null check per operation.
+ * <p>
+ * The metrics are exported in the Prometheus text format, to a file ({@link #exportTo(Path)}) or on an
+ * HTTP endpoint ({@link #startServer(InetSocketAddress)}). A Metrics is thread-safe and may be shared by
+ * several connections.
+ */
+public class Metrics {
+
+    /**
+     * The default threshold of the slow-query log.
+     */
+    public static final long DEFAULT_SLOW_QUERY_MILLIS = 100;
+
+    /**
+     * The number of slow queries kept by {@link #getSlowQueries()}.
+     */
+    public static final int SLOW_QUERY_LOG_SIZE = 100;
+
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    /**
+     * The quantiles exported for every latency histogram.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /**
+     * The metrics of a Smarticulous operation.
+     */
+    public static class CallStats {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+
+        /**
+         * @return the number of calls that threw.
+         */
+        public long getErrors() {
+            return errors.sum();
+        }
+    }
+
+    /**
+     * The metrics of an SQL statement.
+     */
+    public static class StatementStats {
+        public final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder rowsRead = new LongAdder();
+        final LongAdder rowsWritten = new LongAdder();
+
+        /**
+         * @return the number of rows returned by the statement.
+         */
+        public long getRowsRead() {
+            return rowsRead.sum();
+        }
+
+        /**
+         * @return the number of rows the statement inserted, updated or deleted.
+         */
+        public long getRowsWritten() {
+            return rowsWritten.sum();
+        }
+    }
+
+    /**
+     * A statement that ran longer than the threshold.
+     */
+    public static class SlowQuery {
+        public final Date time;
+        public final String sql;
+        /**
+         * The bind parameters, by index from 1 (element 0 is unused); empty for a statement without parameters.
+         */
+        public final List<Object> parameters;
+        public final long nanos;
+        /**
+         * The details of <code>EXPLAIN QUERY PLAN</code>, one line per step.
+         */
+        public final List<String> plan;
+
+        SlowQuery(String sql, List<Object> parameters, long nanos, List<String> plan) {
+            this.time = new Date();
+            this.sql = sql;
+            this.parameters = parameters;
+            this.nanos = nanos;
+            this.plan = plan;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f ms: %s; parameters %s; plan %s", nanos / 1e6, sql,
+                    parameters.isEmpty() ? "[]" : parameters.subList(1, parameters.size()), plan);
+        }
+    }
+
+    private final long slowQueryNanos;
+    private final Map<String, CallStats> calls = new ConcurrentHashMap<>();
+    private final Map<String, StatementStats> statements = new ConcurrentHashMap<>();
+    private final Deque<SlowQuery> slowQueries = new ArrayDeque<>();
+    private final LongAdder slowQueryCount = new LongAdder();
+
+    /**
+     * Create metrics with the default slow-query threshold.
+     */
+    public Metrics() {
+        this(DEFAULT_SLOW_QUERY_MILLIS);
+    }
+
+    /**
+     * @param slowQueryMillis statements that take at least this long are logged
+     */
+    public Metrics(long slowQueryMillis) {
+        if (slowQueryMillis < 0)
+            throw new IllegalArgumentException("slowQueryMillis must not be negative: " + slowQueryMillis);
+        this.slowQueryNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryMillis);
+    }
+
+    /**
+     * Record a call of an operation.
+     *
+     * @param operation the name of the operation
+     * @param nanos how long it took
+     * @param failed whether it threw
+     */
+    public void recordCall(String operation, long nanos, boolean failed) {
+        CallStats stats = getCallStats(operation);
+        stats.latency.record(nanos);
+        if (failed)
+            stats.errors.increment();
+    }
+
+    /**
+     * @return the metrics of an operation, created if it wasn't called yet.
+     */
+    public CallStats getCallStats(String operation) {
+        CallStats stats = calls.get(operation);
+        return stats != null ? stats : calls.computeIfAbsent(operation, o -> new CallStats());
+    }
+
+    /**
+     * @return the metrics of an SQL statement, created if it didn't run yet.
+     */
+    public StatementStats getStatementStats(String sql) {
+        StatementStats stats = statements.get(sql);
+        return stats != null ? stats : statements.computeIfAbsent(sql, s -> new StatementStats());
+    }
+
+    /**
+     * Record a run of an SQL statement, logging it if it was slow.
+     *
+     * @param db the connection it ran on, to explain it if it was slow
+     * @param sql the statement
+     * @param parameters its bind parameters by index, or null
+     */
+    void recordStatement(Connection db, String sql, Object[] parameters, long nanos, long rowsRead, long rowsWritten) {
+        StatementStats stats = getStatementStats(sql);
+        stats.latency.record(nanos);
+        stats.rowsRead.add(rowsRead);
+        stats.rowsWritten.add(rowsWritten);
+        if (nanos >= slowQueryNanos)
+            logSlowQuery(db, sql, parameters, nanos);
+    }
+
+    private void logSlowQuery(Connection db, String sql, Object[] parameters, long nanos) {
+        List<Object> bound = parameters == null ? Collections.emptyList() :
+                Collections.unmodifiableList(new ArrayList<>(Arrays.asList(parameters)));
+        SlowQuery query = new SlowQuery(sql, bound, nanos, explain(db, sql, parameters));
+        slowQueryCount.increment();
+        synchronized (slowQueries) {
+            slowQueries.addLast(query);
+            if (slowQueries.size() > SLOW_QUERY_LOG_SIZE)
+                slowQueries.removeFirst();
+        }
+        log.warn("Slow query, {}", query);
+    }
+
+    // The query plan of a statement, with the same parameters bound
+    private static List<String> explain(Connection db, String sql, Object[] parameters) {
+        List<String> plan = new ArrayList<>();
+        try (PreparedStatement ps = db.prepareStatement("EXPLAIN QUERY PLAN " + sql)) {
+            if (parameters != null) {
+                for (int i = 1; i < parameters.length; ++i)
+                    ps.setObject(i, parameters[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next())
+                    plan.add(rs.getString("detail"));
+            }
+        } catch (SQLException e) {
+            // Not every statement can be explained (e.g. several statements, or DDL)
+            plan.add("no plan: " + e.getMessage());
+        }
+        return plan;
+    }
+
+    /**
+     * @return the most recent slow queries, oldest first.
+     */
+    public List<SlowQuery> getSlowQueries() {
+        synchronized (slowQueries) {
+            return new ArrayList<>(slowQueries);
+        }
+    }
+
+    /**
+     * @return the number of slow queries since the metrics were created.
+     */
+    public long getSlowQueryCount() {
+        return slowQueryCount.sum();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @param out where to write
+     * @throws IOException
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        Map<String, CallStats> sortedCalls = new TreeMap<>(calls);
+        Map<String, StatementStats> sortedStatements = new TreeMap<>(statements);
+
+        out.write("# HELP smarticulous_call_seconds Latency of Smarticulous operations.\n");
+        out.write("# TYPE smarticulous_call_seconds summary\n");
+        for (Map.Entry<String, CallStats> entry : sortedCalls.entrySet())
+            writeSummary(out, "smarticulous_call_seconds", "operation", entry.getKey(), entry.getValue().latency);
+
+        out.write("# HELP smarticulous_call_errors_total Smarticulous operations that threw.\n");
+        out.write("# TYPE smarticulous_call_errors_total counter\n");
+        for (Map.Entry<String, CallStats> entry : sortedCalls.entrySet())
+            writeSample(out, "smarticulous_call_errors_total", "operation", entry.getKey(), entry.getValue().getErrors());
+
+        out.write("# HELP smarticulous_sql_seconds Latency of SQL statements, including fetching their rows.\n");
+        out.write("# TYPE smarticulous_sql_seconds summary\n");
+        for (Map.Entry<String, StatementStats> entry : sortedStatements.entrySet())
+            writeSummary(out, "smarticulous_sql_seconds", "sql", entry.getKey(), entry.getValue().latency);
+
+        out.write("# HELP smarticulous_sql_rows_read_total Rows returned by SQL statements.\n");
+        out.write("# TYPE smarticulous_sql_rows_read_total counter\n");
+        for (Map.Entry<String, StatementStats> entry : sortedStatements.entrySet())
+            writeSample(out, "smarticulous_sql_rows_read_total", "sql", entry.getKey(), entry.getValue().getRowsRead());
+
+        out.write("# HELP smarticulous_sql_rows_written_total Rows inserted, updated or deleted by SQL statements.\n");
+        out.write("# TYPE smarticulous_sql_rows_written_total counter\n");
+        for (Map.Entry<String, StatementStats> entry : sortedStatements.entrySet())
+            writeSample(out, "smarticulous_sql_rows_written_total", "sql", entry.getKey(), entry.getValue().getRowsWritten());
+
+        out.write("# HELP smarticulous_slow_queries_total SQL statements slower than the slow-query threshold.\n");
+        out.write("# TYPE smarticulous_slow_queries_total counter\n");
+        out.write("smarticulous_slow_queries_total " + getSlowQueryCount() + "\n");
+    }
+
+    private static void writeSummary(Writer out, String name, String label, String value, LatencyHistogram histogram) throws IOException {
+        String labels = label + "=\"" + escape(value) + "\"";
+        for (double quantile : QUANTILES) {
+            out.write(name + "{" + labels + ",quantile=\"" + quantile + "\"} " +
+                    seconds(histogram.getValueAtPercentile(quantile * 100)) + "\n");
+        }
+        out.write(name + "_sum{" + labels + "} " + seconds(histogram.getSum()) + "\n");
+        out.write(name + "_count{" + labels + "} " + histogram.getCount() + "\n");
+    }
+
+    private static void writeSample(Writer out, String name, String label, String value, long sample) throws IOException {
+        out.write(name + "{" + label + "=\"" + escape(value) + "\"} " + sample + "\n");
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    // Label values escape backslashes, quotes and line feeds
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return all metrics in the Prometheus text format.
+     */
+    public String toPrometheus() {
+        StringWriter out = new StringWriter();
+        try {
+            writePrometheus(out);
+        } catch (IOException e) {
+            // A StringWriter doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write all metrics to a file in the Prometheus text format, e.g. for the node exporter's textfile
+     * collector. The file is replaced atomically, so a scrape never sees it half written.
+     *
+     * @param file the file
+     * @throws IOException
+     */
+    public void exportTo(Path file) throws IOException {
+        Path absolute = file.toAbsolutePath();
+        Path tmp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tmp, toPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Serve the metrics over HTTP at <code>/metrics</code>, for Prometheus to scrape.
+     *
+     * @param address the address to listen on, e.g. <code>new InetSocketAddress("localhost", 9464)</code>
+     * @return the running server; stop it with {@link HttpServer#stop(int)}
+     * @throws IOException
+     */
+    public HttpServer startServer(InetSocketAddress address) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    /**
+     * Wrap a connection so the statements run on it are recorded in these metrics.
+     */
+    Connection instrument(Connection db) {
+        return InstrumentedJdbc.wrap(InstrumentedJdbc.unwrap(db), this);
+    }
+}
@@ -0,0 +1,441 @@
+package smarticulous;
+
+import org.sqlite.Function;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The packed storage format of question grades: all the grades of a submission in a single BLOB, instead
+ * of one QuestionGrade row (and index entry) per question.
+ *
+ * <table>
+ *   <caption><em>Table name: <strong>SubmissionGrades</strong></em></caption>
+ *   <tr><th>Column</th><th>Type</th></tr>
+ *   <tr><td>SubmissionId</td><td>Integer (Primary Key)</td></tr>
+ *   <tr><td>Grades</td><td>Blob</td></tr>
+ * </table>
+ * <p>
+ * The table is created by a {@link Schema} migration, in the same database file as QuestionGrade: a packed
+ * submission has no QuestionGrade rows, so moving its grades from one table to the other must commit at once.
+ * <p>
+ * A BLOB holds the grades as fractions of the questions' points, in question order:
+ * <pre>
+ * byte format (1: FLOAT32, 2: FIXED16), then one value per question:
+ *   FLOAT32: a 4-byte float
+ *   FIXED16: a 2-byte fixed-point number, the fraction times 2^14 (so -2 to 2, in steps of 1/16384)
+ * </pre>
+ * Every BLOB names its own format, so the formats can be mixed, and each submission is read back in the
+ * format it was written in. Which format new grades are written in is chosen with
+ * {@link Smarticulous#setGradeFormat(Format)}, and {@link Smarticulous#migrateGrades(Format)} converts the
+ * grades already stored.
+ * <p>
+ * {@link #registerFunctions(Connection)} registers two SQL functions on a connection, which the score
+ * summary uses to read packed grades: <code>packed_grade(Grades, QuestionId)</code> (NULL past the end)
+ * and <code>packed_count(Grades)</code> (0 for NULL).
+ * <p>
+ * Run as a program to convert the grades of an existing database:
+ * <pre>java smarticulous.PackedGrades jdbc:sqlite:dburl rows|float32|fixed16</pre>
+ */
+public final class PackedGrades {
+
+    /**
+     * How question grades are stored.
+     */
+    public enum Format {
+        /**
+         * One QuestionGrade row per question; the default, and the format of the original schema.
+         */
+        ROWS,
+        /**
+         * One BLOB per submission, with a 4-byte float per question; lossless.
+         */
+        FLOAT32,
+        /**
+         * One BLOB per submission, with a 2-byte fixed-point number per question; grades are rounded to
+         * 1/16384 of the question's points.
+         */
+        FIXED16
+    }
+
+    /**
+     * The name of the table of packed grades.
+     */
+    static final String TABLE = "SubmissionGrades";
+
+    /**
+     * The number of submissions converted per transaction by {@link #migrate(Smarticulous, Format)}.
+     */
+    static final int MIGRATION_CHUNK_SIZE = 1000;
+
+    private static final byte FLOAT32_TAG = 1;
+    private static final byte FIXED16_TAG = 2;
+
+    private static final float FIXED16_SCALE = 1 << 14;
+
+    private PackedGrades() {
+    }
+
+    // ============= Encoding ===============
+
+    /**
+     * Pack grades.
+     *
+     * @param fractions the grades as fractions of the questions' points
+     * @param format FLOAT32 or FIXED16
+     * @return the BLOB
+     */
+    static byte[] encode(float[] fractions, Format format) {
+        switch (format) {
+            case FLOAT32: {
+                ByteBuffer out = ByteBuffer.allocate(1 + 4 * fractions.length);
+                out.put(FLOAT32_TAG);
+                for (float fraction : fractions)
+                    out.putFloat(fraction);
+                return out.array();
+            }
+            case FIXED16: {
+                ByteBuffer out = ByteBuffer.allocate(1 + 2 * fractions.length);
+                out.put(FIXED16_TAG);
+                for (float fraction : fractions) {
+                    long fixed = Math.round(fraction * FIXED16_SCALE);
+                    out.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, fixed)));
+                }
+                return out.array();
+            }
+            default:
+                throw new IllegalArgumentException("Not a packed format: " + format);
+        }
+    }
+
+    /**
+     * @return the format of a BLOB.
+     * @throws IllegalArgumentException if it isn't a packed grades BLOB
+     */
+    static Format format(byte[] packed) {
+        if (packed.length > 0) {
+            if (packed[0] == FLOAT32_TAG && packed.length % 4 == 1)
+                return Format.FLOAT32;
+            if (packed[0] == FIXED16_TAG && packed.length % 2 == 1)
+                return Format.FIXED16;
+        }
+        throw new IllegalArgumentException("Not a packed grades BLOB (" + packed.length + " bytes)");
+    }
+
+    /**
+     * @return the number of grades in a BLOB.
+     */
+    static int count(byte[] packed) {
+        return (packed.length - 1) / (format(packed) == Format.FLOAT32 ? 4 : 2);
+    }
+
+    /**
+     * @param index the 0-based index of the question
+     * @return a grade of a BLOB, as a fraction of the question's points.
+     */
+    static float grade(byte[] packed, int index) {
+        if (format(packed) == Format.FLOAT32)
+            return ByteBuffer.wrap(packed).getFloat(1 + 4 * index);
+        return ByteBuffer.wrap(packed).getShort(1 + 2 * index) / FIXED16_SCALE;
+    }
+
+    /**
+     * Unpack grades into an array, e.g. the grades of a submission; grades past its end are ignored, and
+     * missing ones are left as they are.
+     */
+    static void decode(byte[] packed, float[] into) {
+        int n = Math.min(count(packed), into.length);
+        for (int i = 0; i < n; i++)
+            into[i] = grade(packed, i);
+    }
+
+    /**
+     * @return all the grades of a BLOB.
+     */
+    static float[] decode(byte[] packed) {
+        float[] fractions = new float[count(packed)];
+        decode(packed, fractions);
+        return fractions;
+    }
+
+    // ============= Database ===============
+
+    /**
+     * Register the SQL functions that read packed grades on a connection.
+     *
+     * @param db an open connection to the database
+     * @throws SQLException
+     */
+    static void registerFunctions(Connection db) throws SQLException {
+        // Functions are registered with the driver, so they go on the connection under any instrumentation
+        Connection sqlite = InstrumentedJdbc.unwrap(db);
+        Function.create(sqlite, "packed_grade", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                byte[] packed = value_blob(0);
+                int index = value_int(1) - 1;
+                if (packed == null || index < 0 || index >= count(packed))
+                    result();
+                else
+                    result(grade(packed, index));
+            }
+        });
+        Function.create(sqlite, "packed_count", new Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                byte[] packed = value_blob(0);
+                result(packed == null ? 0 : count(packed));
+            }
+        });
+    }
+
+    /**
+     * Convert every stored grade to the given format, {@link #MIGRATION_CHUNK_SIZE} submissions per transaction.
+     * <p>
+     * Each chunk moves its submissions' grades between QuestionGrade and SubmissionGrades in one transaction,
+     * so a crash leaves every submission either converted or not, never with its grades in both tables or in
+     * neither. The score summary is suspended while the grades are converted, and rebuilt at the end;
+     * so that no other connection reads or writes it in between, the migration holds an exclusive lock on the
+     * database from start to end, and fails at once if another connection has it open.
+     *
+     * @param smarticulous an open Smarticulous, in auto-commit mode
+     * @param format the format to convert to
+     * @return the number of submissions whose grades were converted
+     * @throws SQLException if another connection uses the database, or if a chunk fails (it is rolled back;
+     * the chunks before it stay converted)
+     */
+    static int migrate(Smarticulous smarticulous, Format format) throws SQLException {
+        lockExclusively(smarticulous.db);
+        try {
+            return migrateLocked(smarticulous, format);
+        } finally {
+            unlock(smarticulous.db);
+        }
+    }
+
+    // Takes an exclusive lock on the database, and keeps it until unlock
+    private static void lockExclusively(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            statement.execute("PRAGMA locking_mode = EXCLUSIVE;");
+            try {
+                // In exclusive locking mode, the locks a transaction takes are kept after it ends
+                statement.execute("BEGIN EXCLUSIVE;");
+                statement.execute("COMMIT;");
+            } catch (SQLException e) {
+                unlock(db);
+                throw new SQLException("Converting grades needs exclusive access to the database; " +
+                        "close its other connections first", e);
+            }
+        }
+    }
+
+    // Returns to normal locking; the lock is released by the next access to the database
+    private static void unlock(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            statement.execute("PRAGMA locking_mode = NORMAL;");
+            statement.executeQuery("SELECT COUNT(*) FROM sqlite_master;").close();
+        }
+    }
+
+    private static int migrateLocked(Smarticulous smarticulous, Format format) throws SQLException {
+        ScoreSummary.suspend(smarticulous.db);
+        try {
+            int converted = 0;
+            int chunk;
+            if (format == Format.ROWS) {
+                do {
+                    chunk = smarticulous.inTransaction(() -> unpackChunk(smarticulous.statements));
+                    converted += chunk;
+                } while (chunk > 0);
+            } else {
+                do {
+                    chunk = smarticulous.inTransaction(() -> packChunk(smarticulous.statements, format));
+                    converted += chunk;
+                } while (chunk > 0);
+                int[] afterId = {0};
+                do {
+                    chunk = smarticulous.inTransaction(() -> repackChunk(smarticulous.statements, format, afterId));
+                    converted += chunk;
+                } while (afterId[0] != -1);
+            }
+            return converted;
+        } finally {
+            ScoreSummary.resume(smarticulous.db);
+        }
+    }
+
+    // Moves the QuestionGrade rows of the first chunk of submissions that have any into BLOBs
+    private static int packChunk(StatementCache statements, Format format) throws SQLException {
+        PreparedStatement psLast = statements.prepare(
+                "SELECT MAX(SubmissionId) FROM (SELECT DISTINCT SubmissionId FROM QuestionGrade ORDER BY SubmissionId LIMIT ?)");
+        psLast.setInt(1, MIGRATION_CHUNK_SIZE);
+        int lastId;
+        try (ResultSet rs = psLast.executeQuery()) {
+            lastId = rs.getInt(1);
+            if (rs.wasNull())
+                return 0;
+        }
+
+        PreparedStatement psRows = statements.prepare(
+                "SELECT SubmissionId, QuestionId, Grade FROM QuestionGrade WHERE SubmissionId <= ? ORDER BY SubmissionId, QuestionId");
+        psRows.setInt(1, lastId);
+        PreparedStatement psPack = statements.prepare("INSERT INTO SubmissionGrades (SubmissionId, Grades) VALUES (?,?)");
+        psPack.clearBatch();
+        int count = 0;
+        try (ResultSet rs = psRows.executeQuery()) {
+            int id = 0;
+            float[] fractions = new float[16];
+            int size = 0;
+            while (rs.next()) {
+                if (rs.getInt(1) != id) {
+                    if (size > 0)
+                        addPacked(psPack, id, Arrays.copyOf(fractions, size), format);
+                    id = rs.getInt(1);
+                    Arrays.fill(fractions, 0);
+                    size = 0;
+                    ++count;
+                }
+                // QuestionIds are 1-based; a missing question is packed as 0
+                int question = rs.getInt(2) - 1;
+                if (question < 0)
+                    continue;
+                if (question >= fractions.length)
+                    fractions = Arrays.copyOf(fractions, Math.max(2 * fractions.length, question + 1));
+                fractions[question] = rs.getFloat(3);
+                size = Math.max(size, question + 1);
+            }
+            if (size > 0)
+                addPacked(psPack, id, Arrays.copyOf(fractions, size), format);
+        }
+        psPack.executeBatch();
+
+        PreparedStatement psDelete = statements.prepare("DELETE FROM QuestionGrade WHERE SubmissionId <= ?");
+        psDelete.setInt(1, lastId);
+        psDelete.execute();
+        return count;
+    }
+
+    private static void addPacked(PreparedStatement ps, int id, float[] fractions, Format format) throws SQLException {
+        ps.setInt(1, id);
+        ps.setBytes(2, encode(fractions, format));
+        ps.addBatch();
+    }
+
+    // Moves the first chunk of BLOBs into QuestionGrade rows
+    private static int unpackChunk(StatementCache statements) throws SQLException {
+        PreparedStatement psPacked = statements.prepare("SELECT SubmissionId, Grades FROM SubmissionGrades ORDER BY SubmissionId LIMIT ?");
+        psPacked.setInt(1, MIGRATION_CHUNK_SIZE);
+        PreparedStatement psInsert = statements.prepare("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?,?,?)");
+        psInsert.clearBatch();
+        int count = 0;
+        int lastId = 0;
+        try (ResultSet rs = psPacked.executeQuery()) {
+            while (rs.next()) {
+                lastId = rs.getInt(1);
+                float[] fractions = decode(rs.getBytes(2));
+                for (int q = 0; q < fractions.length; q++) {
+                    psInsert.setInt(1, lastId);
+                    psInsert.setInt(2, q + 1);
+                    psInsert.setFloat(3, fractions[q]);
+                    psInsert.addBatch();
+                }
+                ++count;
+            }
+        }
+        if (count == 0)
+            return 0;
+        psInsert.executeBatch();
+
+        PreparedStatement psDelete = statements.prepare("DELETE FROM SubmissionGrades WHERE SubmissionId <= ?");
+        psDelete.setInt(1, lastId);
+        psDelete.execute();
+        return count;
+    }
+
+    // Re-encodes the BLOBs of the next chunk that are in another packed format; sets afterId[0] to -1 at the end
+    private static int repackChunk(StatementCache statements, Format format, int[] afterId) throws SQLException {
+        PreparedStatement psPacked = statements.prepare(
+                "SELECT SubmissionId, Grades FROM SubmissionGrades WHERE SubmissionId > ? ORDER BY SubmissionId LIMIT ?");
+        psPacked.setInt(1, afterId[0]);
+        psPacked.setInt(2, MIGRATION_CHUNK_SIZE);
+        List<Integer> ids = new ArrayList<>();
+        List<byte[]> repacked = new ArrayList<>();
+        int read = 0;
+        try (ResultSet rs = psPacked.executeQuery()) {
+            while (rs.next()) {
+                ++read;
+                afterId[0] = rs.getInt(1);
+                byte[] packed = rs.getBytes(2);
+                if (format(packed) != format) {
+                    ids.add(rs.getInt(1));
+                    repacked.add(encode(decode(packed), format));
+                }
+            }
+        }
+        if (read < MIGRATION_CHUNK_SIZE)
+            afterId[0] = -1;
+
+        PreparedStatement psUpdate = statements.prepare("UPDATE SubmissionGrades SET Grades = ? WHERE SubmissionId = ?");
+        psUpdate.clearBatch();
+        for (int i = 0; i < ids.size(); i++) {
+            psUpdate.setBytes(1, repacked.get(i));
+            psUpdate.setInt(2, ids.get(i));
+            psUpdate.addBatch();
+        }
+        psUpdate.executeBatch();
+        return ids.size();
+    }
+
+    /**
+     * @return the bytes of the pages the database uses, not counting free pages.
+     * @throws SQLException
+     */
+    static long usedBytes(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            long pageSize;
+            long pages;
+            long free;
+            try (ResultSet rs = statement.executeQuery("PRAGMA page_size;")) {
+                pageSize = rs.getLong(1);
+            }
+            try (ResultSet rs = statement.executeQuery("PRAGMA page_count;")) {
+                pages = rs.getLong(1);
+            }
+            try (ResultSet rs = statement.executeQuery("PRAGMA freelist_count;")) {
+                free = rs.getLong(1);
+            }
+            return (pages - free) * pageSize;
+        }
+    }
+
+    /**
+     * Convert the grades of an existing database to another format.
+     *
+     * @param args the JDBC url of the database, followed by "rows", "float32" or "fixed16"
+     * @throws SQLException
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length != 2 || !args[1].matches("rows|float32|fixed16")) {
+            System.err.println("Usage: PackedGrades <dburl> rows|float32|fixed16");
+            System.exit(2);
+        }
+
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(args[0]);
+        try {
+            long before = usedBytes(smarticulous.db);
+            int converted = smarticulous.migrateGrades(Format.valueOf(args[1].toUpperCase()));
+            long after = usedBytes(smarticulous.db);
+            System.out.println(converted + " submissions converted; the database now uses " + after + " bytes instead of " + before);
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+}
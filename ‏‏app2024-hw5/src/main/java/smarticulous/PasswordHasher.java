@@ -0,0 +1,176 @@
+package smarticulous;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Salted, deliberately slow password hashes (PBKDF2 with HMAC-SHA256).
+ * <p>
+ * A hash is stored as a single string, so it fits the existing Password column:
+ * <pre>pbkdf2-sha256$&lt;iterations&gt;$&lt;base64 salt&gt;$&lt;base64 hash&gt;</pre>
+ * The iteration count is the tunable cost. It is recorded in every hash, so the cost can be raised
+ * later and old hashes still verify.
+ * <p>
+ * Hashing takes milliseconds of CPU by design, so it runs on a dedicated pool of threads
+ * ({@link #hashAsync(String)}, {@link #verifyAsync(String, String)}) that bounds how many hashes run at
+ * once. Callers wait for a hash before they take a database connection or after they release it.
+ */
+public class PasswordHasher implements AutoCloseable {
+
+    /**
+     * The OWASP recommendation for PBKDF2-HMAC-SHA256 (2023).
+     */
+    public static final int DEFAULT_ITERATIONS = 600_000;
+
+    /**
+     * The prefix of every hash.
+     */
+    static final String PREFIX = "pbkdf2-sha256$";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final int iterations;
+    private final ExecutorService executor;
+
+    /**
+     * Create a hasher with the default cost and one hashing thread per processor.
+     */
+    public PasswordHasher() {
+        this(DEFAULT_ITERATIONS, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param iterations the PBKDF2 iteration count of new hashes
+     * @param threads the number of hashing threads
+     */
+    public PasswordHasher(int iterations, int threads) {
+        if (iterations < 1)
+            throw new IllegalArgumentException("iterations must be positive: " + iterations);
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+
+        this.iterations = iterations;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "password-hasher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the iteration count of new hashes.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hash a password with a new random salt.
+     *
+     * @param password the password
+     * @return the encoded hash
+     */
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + iterations + "$" + base64.encodeToString(salt) + "$" +
+                base64.encodeToString(pbkdf2(password, salt, iterations));
+    }
+
+    /**
+     * Hash a password on the hashing threads.
+     *
+     * @see #hash(String)
+     */
+    public CompletableFuture<String> hashAsync(String password) {
+        return CompletableFuture.supplyAsync(() -> hash(password), executor);
+    }
+
+    /**
+     * Check a password against a stored value on the hashing threads.
+     *
+     * @see #matches(String, String)
+     */
+    public CompletableFuture<Boolean> verifyAsync(String password, String stored) {
+        return CompletableFuture.supplyAsync(() -> matches(password, stored), executor);
+    }
+
+    /**
+     * @return true if the stored value is a hash of this class (rather than a plaintext password).
+     */
+    public static boolean isHash(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * Check whether a stored value should be hashed again, because it is plaintext or has a different cost.
+     */
+    public boolean needsRehash(String stored) {
+        return !isHash(stored) || !stored.startsWith(PREFIX + iterations + "$");
+    }
+
+    /**
+     * Check a password against a stored value.
+     * <p>
+     * The stored value is either a hash, or a plaintext password from before hashing was enabled.
+     * Both are compared in constant time.
+     *
+     * @param password the password to check
+     * @param stored the stored value; null never matches
+     * @return true if the password matches
+     */
+    public static boolean matches(String password, String stored) {
+        if (password == null || stored == null)
+            return false;
+        if (!isHash(stored))
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+
+        String[] parts = stored.substring(PREFIX.length()).split("\\$");
+        if (parts.length != 3)
+            return false;
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] salt = base64.decode(parts[1]);
+            byte[] expected = base64.decode(parts[2]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, salt, Integer.parseInt(parts[0])));
+        } catch (IllegalArgumentException e) {
+            // A malformed hash never matches
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            // Every Java 8 runtime provides PBKDF2WithHmacSHA256
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Stop the hashing threads. Hashes already requested are still computed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
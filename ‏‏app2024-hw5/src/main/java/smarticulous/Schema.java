@@ -0,0 +1,189 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned migrations of the Smarticulous schema.
+ * <p>
+ * The schema version is kept in SQLite's <code>user_version</code> header field. The tables themselves
+ * are created by {@link Smarticulous#openDB(String)}; every migration after that is listed here, and
+ * {@link #migrate(Connection)} applies the ones a database hasn't seen yet, each in its own transaction.
+ * This way existing databases are upgraded in place when they are opened.
+ * <p>
+ * Migrations are only ever appended: a migration that shipped must not be changed.
+ */
+class Schema {
+
+    /**
+     * A query plan step that scans a table: "SCAN Submission", or "SCAN TABLE Submission" before SQLite 3.36.
+     * The scanned name is the first group.
+     */
+    private static final Pattern SCAN_STEP = Pattern.compile("^SCAN (?:TABLE )?(\\S+)");
+
+    /**
+     * A single schema migration.
+     */
+    interface Migration {
+        void apply(Connection db, Statement statement) throws SQLException;
+    }
+
+    /**
+     * All migrations, in order. Migration i brings the schema from version i to version i + 1.
+     */
+    private static final Migration[] MIGRATIONS = {
+            Schema::addLookupIndexes,
+            Schema::addGradeCoveringIndex,
+            Schema::addExerciseSubmissionIndex,
+            Schema::addPackedGradesTable,
+    };
+
+    /**
+     * The schema version this code expects.
+     */
+    static final int VERSION = MIGRATIONS.length;
+
+    // Version 1: indexes for the username and per-user submission lookups
+    private static void addLookupIndexes(Connection db, Statement statement) throws SQLException {
+        // Username is declared UNIQUE by openDB, but older databases may not have an index on it
+        if (!hasIndexOn(db, "User", "Username"))
+            statement.execute("CREATE INDEX User_Username_Index ON User (Username);");
+        // Covers the user/exercise lookup of the submission queries, including the latest submission time
+        statement.execute("CREATE INDEX IF NOT EXISTS Submission_User_Exercise_Index ON Submission (UserId, ExerciseId, SubmissionTime);");
+    }
+
+    // Version 2: lets the submission queries read grades without visiting the QuestionGrade table
+    private static void addGradeCoveringIndex(Connection db, Statement statement) throws SQLException {
+        statement.execute("CREATE INDEX IF NOT EXISTS QuestionGrade_Covering_Index ON QuestionGrade (SubmissionId, QuestionId, Grade);");
+    }
+
+    // Version 3: lets a cursor page through the submissions of an exercise in id order
+    private static void addExerciseSubmissionIndex(Connection db, Statement statement) throws SQLException {
+        statement.execute("CREATE INDEX IF NOT EXISTS Submission_Exercise_Index ON Submission (ExerciseId, SubmissionId);");
+    }
+
+    // Version 4: the grades of a submission may be stored as one BLOB instead (see PackedGrades)
+    private static void addPackedGradesTable(Connection db, Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE IF NOT EXISTS " + PackedGrades.TABLE + " (SubmissionId INTEGER PRIMARY KEY, Grades BLOB NOT NULL);");
+    }
+
+    /**
+     * @return the schema version recorded in the database.
+     * @throws SQLException
+     */
+    static int version(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA user_version;")) {
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Apply all the migrations the database hasn't seen yet.
+     *
+     * @param db an open connection in auto-commit mode
+     * @return the number of migrations applied
+     * @throws SQLException if a migration fails (it is rolled back, and the version stays at the last one applied)
+     */
+    static int migrate(Connection db) throws SQLException {
+        int from = version(db);
+        if (from > VERSION)
+            throw new SQLException("Database schema version " + from + " is newer than the supported version " + VERSION);
+
+        for (int v = from; v < VERSION; ++v) {
+            db.setAutoCommit(false);
+            try (Statement statement = db.createStatement()) {
+                MIGRATIONS[v].apply(db, statement);
+                // The version is updated in the same transaction as the migration
+                statement.execute("PRAGMA user_version = " + (v + 1) + ";");
+                db.commit();
+            } catch (SQLException | RuntimeException e) {
+                db.rollback();
+                throw e;
+            } finally {
+                db.setAutoCommit(true);
+            }
+        }
+        return VERSION - from;
+    }
+
+    /**
+     * Check whether some index of the table starts with the given column.
+     *
+     * @throws SQLException
+     */
+    static boolean hasIndexOn(Connection db, String table, String column) throws SQLException {
+        List<String> indexes = new ArrayList<>();
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA index_list(" + table + ");")) {
+            while (rs.next())
+                indexes.add(rs.getString("name"));
+        }
+        for (String index : indexes) {
+            try (Statement statement = db.createStatement();
+                 ResultSet rs = statement.executeQuery("PRAGMA index_info(" + index + ");")) {
+                // Rows are ordered by the position of the column in the index
+                if (rs.next() && column.equalsIgnoreCase(rs.getString("name")))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run <code>EXPLAIN QUERY PLAN</code> on each query and collect the steps that scan a whole table
+     * or index instead of searching it.
+     * <p>
+     * Scans of subqueries and common table expressions are not reported, since they read
+     * intermediate results rather than stored tables.
+     *
+     * @param db an open connection
+     * @param queries the queries to check (parameters may be left unbound)
+     * @return one entry per full scan, of the form "query: plan step"; empty if no query scans.
+     * @throws SQLException
+     */
+    static List<String> findFullScans(Connection db, Collection<String> queries) throws SQLException {
+        // The tables of the main database and of any attached ones
+        List<String> schemas = new ArrayList<>();
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("PRAGMA database_list;")) {
+            while (rs.next())
+                schemas.add(rs.getString("name"));
+        }
+        Set<String> tables = new HashSet<>();
+        for (String schema : schemas) {
+            try (Statement statement = db.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT name FROM \"" + schema + "\".sqlite_master WHERE type = 'table';")) {
+                while (rs.next()) {
+                    tables.add(rs.getString(1).toLowerCase());
+                    tables.add((schema + "." + rs.getString(1)).toLowerCase());
+                }
+            }
+        }
+
+        List<String> scans = new ArrayList<>();
+        for (String query : queries) {
+            try (PreparedStatement ps = db.prepareStatement("EXPLAIN QUERY PLAN " + query);
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String step = rs.getString("detail");
+                    // Steps look like "SCAN Submission", "SCAN SubmissionScore" or "SCAN Submission USING COVERING INDEX ..."
+                    Matcher scan = SCAN_STEP.matcher(step);
+                    if (scan.find() && tables.contains(scan.group(1).toLowerCase()))
+                        scans.add(query + ": " + step);
+                }
+            }
+        }
+        return scans;
+    }
+}
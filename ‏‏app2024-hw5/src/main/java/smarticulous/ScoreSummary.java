@@ -0,0 +1,439 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The materialized score summary of a Smarticulous database.
+ * <p>
+ * The summary holds one row per submission, with its point total, its number of grades and two flags
+ * that mark the latest and the best graded submission of each user to each exercise:
+ *
+ * <table>
+ *   <caption><em>Table name: <strong>SubmissionScore</strong></em></caption>
+ *   <tr><th>Column</th><th>Type</th></tr>
+ *   <tr><td>SubmissionId</td><td>Integer (Primary Key)</td></tr>
+ *   <tr><td>UserId</td><td>Integer</td></tr>
+ *   <tr><td>ExerciseId</td><td>Integer</td></tr>
+ *   <tr><td>SubmissionTime</td><td>Integer</td></tr>
+ *   <tr><td>TotalPoints</td><td>Real</td></tr>
+ *   <tr><td>GradeCount</td><td>Integer</td></tr>
+ *   <tr><td>IsLatest</td><td>Integer (1 for at most one submission per user and exercise)</td></tr>
+ *   <tr><td>IsBest</td><td>Integer (1 for at most one submission per user and exercise)</td></tr>
+ * </table>
+ * <p>
+ * Each flag has a partial unique index on (UserId, ExerciseId), so finding the latest or the best
+ * submission is a single keyed lookup.
+ * <p>
+ * The summary is derived data and can always be rebuilt. It lives in the main database, next to the tables
+ * it summarizes, and is kept up to date by triggers stored in the database: every write to Submission,
+ * QuestionGrade, Question or the {@link PackedGrades}, through any connection, updates the summary in the
+ * same transaction, so a reader sees both as of the same commit.
+ * <p>
+ * The triggers on the base tables use plain SQL, so any program may write them. Reading packed grades
+ * needs the functions of {@link PackedGrades#registerFunctions(Connection)}, so the packed grades themselves
+ * are only written by Smarticulous, and a change the summary can't follow without those functions (to the
+ * questions of an exercise with packed grades, or to the exercise or id of a packed submission) is refused.
+ * <p>
+ * {@link #open(Connection)} rebuilds the summary if it was not maintained: when it is created, and when any
+ * of its triggers is missing, e.g. after {@link #suspend(Connection)}.
+ * <p>
+ * Run as a program to rebuild or check the summary of an existing database:
+ * <pre>java smarticulous.ScoreSummary jdbc:sqlite:dburl [rebuild|check]</pre>
+ */
+public class ScoreSummary {
+
+    /**
+     * The name of the summary table.
+     */
+    static final String TABLE = "SubmissionScore";
+
+    /**
+     * The relative tolerance used when comparing point totals, which are summed in different orders.
+     */
+    private static final double TOLERANCE = 1e-6;
+
+    /**
+     * The point total and grade count of every submission, computed from the base tables.
+     */
+    private static final String SQL_QUERY_TOTALS =
+            "SELECT Submission.SubmissionId, Submission.UserId, Submission.ExerciseId, Submission.SubmissionTime, " +
+            "COALESCE(SUM(QuestionGrade.Grade * Question.Points), 0) + " +
+            // A submission's grades may be packed instead (see PackedGrades), one BLOB per submission
+            "CASE WHEN SubmissionGrades.Grades IS NULL THEN 0 ELSE COALESCE((SELECT SUM(packed_grade(SubmissionGrades.Grades, Packed.QuestionId) * Packed.Points) " +
+            "FROM Question AS Packed WHERE Packed.ExerciseId = Submission.ExerciseId), 0) END AS TotalPoints, " +
+            "COUNT(QuestionGrade.SubmissionId) + packed_count(SubmissionGrades.Grades) AS GradeCount " +
+            "FROM Submission LEFT JOIN QuestionGrade ON Submission.SubmissionId = QuestionGrade.SubmissionId " +
+            "LEFT JOIN Question ON (Submission.ExerciseId = Question.ExerciseId AND QuestionGrade.QuestionId = Question.QuestionId) " +
+            "LEFT JOIN SubmissionGrades ON Submission.SubmissionId = SubmissionGrades.SubmissionId " +
+            "GROUP BY Submission.SubmissionId";
+
+    /**
+     * The latest and the best graded submission of every user to every exercise, ranked with window functions.
+     */
+    private static final String SQL_QUERY_FLAGS =
+            "SELECT SubmissionId, " +
+            "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY SubmissionTime DESC, SubmissionId DESC) = 1 AS IsLatest, " +
+            "ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId ORDER BY TotalPoints DESC, SubmissionTime DESC, SubmissionId DESC) = 1 AS IsBest " +
+            "FROM SubmissionScore WHERE GradeCount > 0";
+
+    /**
+     * Create the summary if needed, and rebuild it if it was not maintained, in one transaction.
+     *
+     * @param db an open connection to the database, in auto-commit mode, with the functions that read
+     *           packed grades registered
+     * @return true if the summary was rebuilt
+     * @throws SQLException
+     */
+    static boolean open(Connection db) throws SQLException {
+        db.setAutoCommit(false);
+        try (Statement statement = db.createStatement()) {
+            boolean stale = isStale(db);
+            statement.execute("CREATE TABLE IF NOT EXISTS SubmissionScore (SubmissionId INTEGER PRIMARY KEY, " +
+                    "UserId INTEGER NOT NULL, ExerciseId INTEGER NOT NULL, SubmissionTime INTEGER, " +
+                    "TotalPoints REAL NOT NULL DEFAULT 0, GradeCount INTEGER NOT NULL DEFAULT 0, " +
+                    "IsLatest INTEGER NOT NULL DEFAULT 0, IsBest INTEGER NOT NULL DEFAULT 0);");
+            // Used to find the new latest and best submissions when a pair changes
+            statement.execute("CREATE INDEX IF NOT EXISTS SubmissionScore_Time_Index ON SubmissionScore (UserId, ExerciseId, SubmissionTime);");
+            statement.execute("CREATE INDEX IF NOT EXISTS SubmissionScore_Total_Index ON SubmissionScore (UserId, ExerciseId, TotalPoints, SubmissionTime);");
+            // The single-lookup reads
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS SubmissionScore_Latest_Index ON SubmissionScore (UserId, ExerciseId) WHERE IsLatest = 1;");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS SubmissionScore_Best_Index ON SubmissionScore (UserId, ExerciseId) WHERE IsBest = 1;");
+            installTriggers(statement);
+            if (stale)
+                rebuild(statement);
+            db.commit();
+            return stale;
+        } catch (SQLException | RuntimeException | Error e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    // Statements that move the IsLatest and IsBest flags of the pair (U, E) to the right submissions.
+    // A flag is cleared before it is set, since each flag has a unique index per pair.
+    private static String refreshFlags(String userId, String exerciseId) {
+        String pair = "UserId = " + userId + " AND ExerciseId = " + exerciseId;
+        return "UPDATE SubmissionScore SET IsLatest = 0 WHERE " + pair + " AND IsLatest = 1; " +
+                "UPDATE SubmissionScore SET IsLatest = 1 WHERE SubmissionId = (SELECT SubmissionId FROM SubmissionScore " +
+                "WHERE " + pair + " AND GradeCount > 0 ORDER BY SubmissionTime DESC, SubmissionId DESC LIMIT 1); " +
+                "UPDATE SubmissionScore SET IsBest = 0 WHERE " + pair + " AND IsBest = 1; " +
+                "UPDATE SubmissionScore SET IsBest = 1 WHERE SubmissionId = (SELECT SubmissionId FROM SubmissionScore " +
+                "WHERE " + pair + " AND GradeCount > 0 ORDER BY TotalPoints DESC, SubmissionTime DESC, SubmissionId DESC LIMIT 1); ";
+    }
+
+    // Statements that move the IsBest flags of every user of the given exercises, after their points changed
+    private static String refreshBestFlags(String exerciseIds) {
+        String submissions = "SubmissionId IN (SELECT SubmissionId FROM Submission WHERE ExerciseId IN (" + exerciseIds + "))";
+        return "UPDATE SubmissionScore SET IsBest = 0 WHERE " + submissions + " AND IsBest = 1; " +
+                "UPDATE SubmissionScore SET IsBest = 1 WHERE SubmissionId IN (SELECT SubmissionId FROM (" +
+                "SELECT SubmissionId, ROW_NUMBER() OVER (PARTITION BY UserId, ExerciseId " +
+                "ORDER BY TotalPoints DESC, SubmissionTime DESC, SubmissionId DESC) AS Rank " +
+                "FROM SubmissionScore WHERE " + submissions + " AND GradeCount > 0) WHERE Rank = 1); ";
+    }
+
+    // Statements that recompute the summary row of submission S from the base tables; needs the packed functions
+    private static String computeRow(String submissionId) {
+        return "INSERT OR REPLACE INTO SubmissionScore (SubmissionId, UserId, ExerciseId, SubmissionTime, TotalPoints, GradeCount) " +
+                "SELECT * FROM (" + SQL_QUERY_TOTALS.replace("GROUP BY", "WHERE Submission.SubmissionId = " + submissionId + " GROUP BY") + "); ";
+    }
+
+    // The condition on a summary row that its submission's grades are QuestionGrade rows, not packed
+    private static final String NOT_PACKED =
+            "NOT EXISTS (SELECT 1 FROM SubmissionGrades WHERE SubmissionGrades.SubmissionId = SubmissionScore.SubmissionId)";
+
+    // The point total of a summary row from its QuestionGrade rows, in plain SQL
+    private static final String ROW_POINTS =
+            "(SELECT COALESCE(SUM(QuestionGrade.Grade * Question.Points), 0) FROM QuestionGrade LEFT JOIN Question " +
+            "ON (Question.ExerciseId = SubmissionScore.ExerciseId AND Question.QuestionId = QuestionGrade.QuestionId) " +
+            "WHERE QuestionGrade.SubmissionId = SubmissionScore.SubmissionId)";
+
+    // A statement that aborts the write if the query finds a packed submission whose total it would change
+    private static String refusePacked(String packedQuery) {
+        return "SELECT RAISE(ABORT, 'The score summary can''t follow this change to packed grades; " +
+                "convert them to rows first') WHERE EXISTS (" + packedQuery + "); ";
+    }
+
+    // Stored triggers may only refer to tables of their own database, without a schema name
+    private static void installTriggers(Statement statement) throws SQLException {
+        // The pair of the submission a grade row belongs to
+        String userOf = "(SELECT UserId FROM SubmissionScore WHERE SubmissionId = %s.SubmissionId)";
+        String exerciseOf = "(SELECT ExerciseId FROM SubmissionScore WHERE SubmissionId = %s.SubmissionId)";
+        // The points a grade row is worth (grades are stored as a fraction of the question's points)
+        String gradePoints = "COALESCE((SELECT %1$s.Grade * Question.Points FROM Question " +
+                "WHERE Question.ExerciseId = SubmissionScore.ExerciseId AND Question.QuestionId = %1$s.QuestionId), 0)";
+        // The point total and grade count of a submission's QuestionGrade rows
+        String recount = "UPDATE SubmissionScore SET TotalPoints = " + ROW_POINTS + ", " +
+                "GradeCount = (SELECT COUNT(*) FROM QuestionGrade WHERE QuestionGrade.SubmissionId = SubmissionScore.SubmissionId) " +
+                "WHERE SubmissionId = %s AND " + NOT_PACKED + "; ";
+        // The packed submissions of the exercises of a question
+        String packedOf = "SELECT 1 FROM Submission INNER JOIN SubmissionGrades ON Submission.SubmissionId = SubmissionGrades.SubmissionId " +
+                "WHERE Submission.ExerciseId IN (%s)";
+        // The point totals of the exercises of a question, which only change for grade rows
+        String repoint = "UPDATE SubmissionScore SET TotalPoints = " + ROW_POINTS + " " +
+                "WHERE SubmissionId IN (SELECT SubmissionId FROM Submission WHERE ExerciseId IN (%s)); ";
+
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Submission_Insert_Score AFTER INSERT ON Submission BEGIN " +
+                refusePacked("SELECT 1 FROM SubmissionGrades WHERE SubmissionId = NEW.SubmissionId") +
+                "INSERT OR REPLACE INTO SubmissionScore (SubmissionId, UserId, ExerciseId, SubmissionTime) " +
+                "VALUES (NEW.SubmissionId, NEW.UserId, NEW.ExerciseId, NEW.SubmissionTime); " +
+                String.format(recount, "NEW.SubmissionId") +
+                refreshFlags("NEW.UserId", "NEW.ExerciseId") + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Submission_Update_Score AFTER UPDATE ON Submission BEGIN " +
+                refusePacked("SELECT 1 FROM SubmissionGrades WHERE SubmissionId IN (OLD.SubmissionId, NEW.SubmissionId) " +
+                        "AND (NEW.SubmissionId IS NOT OLD.SubmissionId OR NEW.ExerciseId IS NOT OLD.ExerciseId)") +
+                "UPDATE SubmissionScore SET SubmissionId = NEW.SubmissionId, UserId = NEW.UserId, ExerciseId = NEW.ExerciseId, " +
+                "SubmissionTime = NEW.SubmissionTime WHERE SubmissionId = OLD.SubmissionId; " +
+                String.format(recount, "NEW.SubmissionId") +
+                refreshFlags("OLD.UserId", "OLD.ExerciseId") +
+                refreshFlags("NEW.UserId", "NEW.ExerciseId") + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Submission_Delete_Score AFTER DELETE ON Submission BEGIN " +
+                "DELETE FROM SubmissionScore WHERE SubmissionId = OLD.SubmissionId; " +
+                refreshFlags("OLD.UserId", "OLD.ExerciseId") + "END;");
+
+        statement.execute("CREATE TRIGGER IF NOT EXISTS QuestionGrade_Insert_Score AFTER INSERT ON QuestionGrade BEGIN " +
+                "UPDATE SubmissionScore SET TotalPoints = TotalPoints + " + String.format(gradePoints, "NEW") + ", " +
+                "GradeCount = GradeCount + 1 WHERE SubmissionId = NEW.SubmissionId; " +
+                refreshFlags(String.format(userOf, "NEW"), String.format(exerciseOf, "NEW")) + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS QuestionGrade_Update_Score AFTER UPDATE ON QuestionGrade BEGIN " +
+                "UPDATE SubmissionScore SET TotalPoints = TotalPoints - " + String.format(gradePoints, "OLD") + ", " +
+                "GradeCount = GradeCount - 1 WHERE SubmissionId = OLD.SubmissionId; " +
+                "UPDATE SubmissionScore SET TotalPoints = TotalPoints + " + String.format(gradePoints, "NEW") + ", " +
+                "GradeCount = GradeCount + 1 WHERE SubmissionId = NEW.SubmissionId; " +
+                refreshFlags(String.format(userOf, "OLD"), String.format(exerciseOf, "OLD")) +
+                refreshFlags(String.format(userOf, "NEW"), String.format(exerciseOf, "NEW")) + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS QuestionGrade_Delete_Score AFTER DELETE ON QuestionGrade BEGIN " +
+                "UPDATE SubmissionScore SET TotalPoints = TotalPoints - " + String.format(gradePoints, "OLD") + ", " +
+                "GradeCount = GradeCount - 1 WHERE SubmissionId = OLD.SubmissionId; " +
+                refreshFlags(String.format(userOf, "OLD"), String.format(exerciseOf, "OLD")) + "END;");
+
+        // Question points weigh every grade of the exercise
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Question_Insert_Score AFTER INSERT ON Question BEGIN " +
+                refusePacked(String.format(packedOf, "NEW.ExerciseId")) +
+                String.format(repoint, "NEW.ExerciseId") +
+                refreshBestFlags("NEW.ExerciseId") + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Question_Update_Score AFTER UPDATE OF ExerciseId, QuestionId, Points ON Question BEGIN " +
+                refusePacked(String.format(packedOf, "OLD.ExerciseId, NEW.ExerciseId")) +
+                String.format(repoint, "OLD.ExerciseId, NEW.ExerciseId") +
+                refreshBestFlags("OLD.ExerciseId, NEW.ExerciseId") + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS Question_Delete_Score AFTER DELETE ON Question BEGIN " +
+                refusePacked(String.format(packedOf, "OLD.ExerciseId")) +
+                String.format(repoint, "OLD.ExerciseId") +
+                refreshBestFlags("OLD.ExerciseId") + "END;");
+
+        // Packed grades replace the whole row of their submission
+        statement.execute("CREATE TRIGGER IF NOT EXISTS SubmissionGrades_Insert_Score AFTER INSERT ON SubmissionGrades BEGIN " +
+                computeRow("NEW.SubmissionId") +
+                refreshFlags(String.format(userOf, "NEW"), String.format(exerciseOf, "NEW")) + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS SubmissionGrades_Update_Score AFTER UPDATE ON SubmissionGrades BEGIN " +
+                computeRow("OLD.SubmissionId") +
+                computeRow("NEW.SubmissionId") +
+                refreshFlags(String.format(userOf, "OLD"), String.format(exerciseOf, "OLD")) +
+                refreshFlags(String.format(userOf, "NEW"), String.format(exerciseOf, "NEW")) + "END;");
+        statement.execute("CREATE TRIGGER IF NOT EXISTS SubmissionGrades_Delete_Score AFTER DELETE ON SubmissionGrades BEGIN " +
+                computeRow("OLD.SubmissionId") +
+                refreshFlags(String.format(userOf, "OLD"), String.format(exerciseOf, "OLD")) + "END;");
+    }
+
+    /**
+     * The names of the triggers created by {@link #installTriggers(Statement)}.
+     */
+    private static final List<String> TRIGGERS = Arrays.asList(
+            "Submission_Insert_Score", "Submission_Update_Score", "Submission_Delete_Score",
+            "QuestionGrade_Insert_Score", "QuestionGrade_Update_Score", "QuestionGrade_Delete_Score",
+            "Question_Insert_Score", "Question_Update_Score", "Question_Delete_Score",
+            "SubmissionGrades_Insert_Score", "SubmissionGrades_Update_Score", "SubmissionGrades_Delete_Score");
+
+    /**
+     * Stop maintaining the summary, e.g. before a bulk load.
+     * <p>
+     * Updating the summary row by row is the main cost of inserting millions of grades; rebuilding it once
+     * afterwards with {@link #resume(Connection)} is much cheaper. The triggers are dropped from the database,
+     * so this applies to every connection; if {@link #resume(Connection)} never runs, the next
+     * {@link #open(Connection)} rebuilds the summary.
+     *
+     * @throws SQLException
+     */
+    static void suspend(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement()) {
+            for (String trigger : TRIGGERS)
+                statement.execute("DROP TRIGGER IF EXISTS " + trigger + ";");
+        }
+    }
+
+    /**
+     * Maintain the summary again after {@link #suspend(Connection)}, rebuilding it in the same transaction.
+     *
+     * @param db an open connection, in auto-commit mode
+     * @throws SQLException
+     */
+    static void resume(Connection db) throws SQLException {
+        db.setAutoCommit(false);
+        try (Statement statement = db.createStatement()) {
+            rebuild(statement);
+            installTriggers(statement);
+            db.commit();
+        } catch (SQLException | RuntimeException | Error e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Check whether the summary may be out of date: it, or one of the triggers that maintain it, is missing.
+     * <p>
+     * While the summary and all its triggers exist, every commit updates it together with the base tables.
+     *
+     * @throws SQLException
+     */
+    static boolean isStale(Connection db) throws SQLException {
+        return missingTriggers(db).size() > 0 || !hasTable(db);
+    }
+
+    // The triggers of the summary that are not in the database
+    private static List<String> missingTriggers(Connection db) throws SQLException {
+        List<String> missing = new ArrayList<>(TRIGGERS);
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT name FROM sqlite_master WHERE type = 'trigger';")) {
+            while (rs.next())
+                missing.remove(rs.getString(1));
+        }
+        return missing;
+    }
+
+    private static boolean hasTable(Connection db) throws SQLException {
+        try (Statement statement = db.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = '" + TABLE + "';")) {
+            return rs.getInt(1) > 0;
+        }
+    }
+
+    /**
+     * Recompute the whole summary from the base tables, in one transaction.
+     *
+     * @param db an open connection, in auto-commit mode
+     * @throws SQLException
+     */
+    static void rebuild(Connection db) throws SQLException {
+        db.setAutoCommit(false);
+        try (Statement statement = db.createStatement()) {
+            rebuild(statement);
+            db.commit();
+        } catch (SQLException | RuntimeException | Error e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(true);
+        }
+    }
+
+    private static void rebuild(Statement statement) throws SQLException {
+        statement.execute("DELETE FROM SubmissionScore;");
+        statement.execute("INSERT INTO SubmissionScore (SubmissionId, UserId, ExerciseId, SubmissionTime, TotalPoints, GradeCount) " +
+                SQL_QUERY_TOTALS + ";");
+        statement.execute("UPDATE SubmissionScore SET IsLatest = Flags.IsLatest, IsBest = Flags.IsBest " +
+                "FROM (" + SQL_QUERY_FLAGS + ") AS Flags WHERE SubmissionScore.SubmissionId = Flags.SubmissionId;");
+    }
+
+    /**
+     * Compare the summary against the base tables.
+     *
+     * @param db an open connection to the database
+     * @return a description of every inconsistency found; empty if the summary is consistent.
+     * @throws SQLException
+     */
+    static List<String> check(Connection db) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        for (String trigger : missingTriggers(db))
+            problems.add("Trigger " + trigger + " is missing, so the summary is not maintained");
+        try (Statement statement = db.createStatement()) {
+            // Submissions whose summary row is missing or differs from the base tables
+            try (ResultSet rs = statement.executeQuery(
+                    "SELECT Expected.SubmissionId, Expected.TotalPoints, Expected.GradeCount, " +
+                    "SubmissionScore.SubmissionId, SubmissionScore.TotalPoints, SubmissionScore.GradeCount, " +
+                    "Expected.UserId IS NOT SubmissionScore.UserId OR Expected.ExerciseId IS NOT SubmissionScore.ExerciseId " +
+                    "OR Expected.SubmissionTime IS NOT SubmissionScore.SubmissionTime " +
+                    "FROM (" + SQL_QUERY_TOTALS + ") AS Expected " +
+                    "LEFT JOIN SubmissionScore ON Expected.SubmissionId = SubmissionScore.SubmissionId;")) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    rs.getInt(4);
+                    if (rs.wasNull()) {
+                        problems.add("Submission " + id + " is missing from the summary");
+                        continue;
+                    }
+                    double expected = rs.getDouble(2);
+                    double actual = rs.getDouble(5);
+                    if (Math.abs(expected - actual) > TOLERANCE * Math.max(1, Math.abs(expected)))
+                        problems.add("Submission " + id + " has a total of " + actual + " points instead of " + expected);
+                    if (rs.getInt(3) != rs.getInt(6))
+                        problems.add("Submission " + id + " has " + rs.getInt(6) + " grades instead of " + rs.getInt(3));
+                    if (rs.getBoolean(7))
+                        problems.add("Submission " + id + " has a different user, exercise or time in the summary");
+                }
+            }
+
+            // Summary rows without a submission
+            try (ResultSet rs = statement.executeQuery(
+                    "SELECT SubmissionId FROM SubmissionScore WHERE SubmissionId NOT IN (SELECT SubmissionId FROM Submission);")) {
+                while (rs.next())
+                    problems.add("Submission " + rs.getInt(1) + " is in the summary but not in the database");
+            }
+
+            // Flags that differ from a ranking of the summary itself
+            try (ResultSet rs = statement.executeQuery(
+                    "SELECT SubmissionScore.SubmissionId, SubmissionScore.IsLatest, COALESCE(Flags.IsLatest, 0), " +
+                    "SubmissionScore.IsBest, COALESCE(Flags.IsBest, 0) " +
+                    "FROM SubmissionScore LEFT JOIN (" + SQL_QUERY_FLAGS + ") AS Flags ON SubmissionScore.SubmissionId = Flags.SubmissionId " +
+                    "WHERE SubmissionScore.IsLatest IS NOT COALESCE(Flags.IsLatest, 0) OR SubmissionScore.IsBest IS NOT COALESCE(Flags.IsBest, 0);")) {
+                while (rs.next()) {
+                    int id = rs.getInt(1);
+                    if (rs.getInt(2) != rs.getInt(3))
+                        problems.add("Submission " + id + " has IsLatest = " + rs.getInt(2) + " instead of " + rs.getInt(3));
+                    if (rs.getInt(4) != rs.getInt(5))
+                        problems.add("Submission " + id + " has IsBest = " + rs.getInt(4) + " instead of " + rs.getInt(5));
+                }
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Rebuild or check the score summary of an existing database.
+     *
+     * @param args the JDBC url of the database, followed by "rebuild" (the default) or "check"
+     * @throws SQLException
+     */
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 1 || args.length > 2 || (args.length == 2 && !args[1].matches("rebuild|check"))) {
+            System.err.println("Usage: ScoreSummary <dburl> [rebuild|check]");
+            System.exit(2);
+        }
+
+        Smarticulous smarticulous = new Smarticulous();
+        smarticulous.openDB(args[0]);
+        try {
+            if (args.length == 1 || args[1].equals("rebuild")) {
+                smarticulous.rebuildScores();
+                System.out.println("Score summary rebuilt");
+            } else {
+                List<String> problems = smarticulous.checkScores();
+                problems.forEach(System.out::println);
+                System.out.println(problems.isEmpty() ? "Score summary is consistent" : problems.size() + " problems found");
+                if (!problems.isEmpty())
+                    System.exit(1);
+            }
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+}
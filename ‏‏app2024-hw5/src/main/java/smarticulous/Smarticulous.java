@@ -8,12 +8,186 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * The Smarticulous class, implementing a grading system.
+ * <p>
+ * A Smarticulous object owns a single connection and is not thread-safe; use
+ * {@link ConcurrentSmarticulous} to share a database between threads.
+ * <p>
+ * This is the SQLite implementation of {@link Storage}; {@link MemoryStorage} is the in-memory one.
  */
-public class Smarticulous {
+public class Smarticulous implements Storage {
+
+    /**
+     * Looks up a user id by username.
+     */
+    static final String SQL_QUERY_USER_ID = "SELECT UserId FROM User WHERE Username = ?";
+
+    /**
+     * Looks up the stored password of a user by username.
+     */
+    static final String SQL_QUERY_USER_PASSWORD = "SELECT Password FROM User WHERE Username = ?";
+
+    /**
+     * Looks up an exercise id.
+     */
+    static final String SQL_QUERY_EXERCISE_ID = "SELECT ExerciseId FROM Exercise WHERE ExerciseId = ?";
+
+    /**
+     * The query of {@link #getLastSubmissionGradesStatement()}.
+     * <p>
+     * The latest graded submission is flagged in the {@link ScoreSummary}, so it is found with one index lookup.
+     */
+    static final String SQL_QUERY_LAST_SUBMISSION_GRADES =
+            // Joining the tables: User, the score summary, and QuestionGrade or the packed grades
+            "SELECT SubmissionScore.SubmissionId, QuestionGrade.QuestionId, QuestionGrade.Grade, SubmissionScore.SubmissionTime, " +
+            "SubmissionGrades.Grades FROM " +
+            "User INNER JOIN SubmissionScore ON User.UserId = SubmissionScore.UserId " +
+            // The grades are either QuestionGrade rows or a single packed row
+            "LEFT JOIN QuestionGrade ON SubmissionScore.SubmissionId = QuestionGrade.SubmissionId " +
+            "LEFT JOIN SubmissionGrades ON SubmissionScore.SubmissionId = SubmissionGrades.SubmissionId " +
+            // Filtering the data down to the flagged submission
+            "WHERE User.Username = ? AND SubmissionScore.ExerciseId = ? AND SubmissionScore.IsLatest = 1 " +
+            // Sorting and limiting the results
+            "ORDER BY QuestionGrade.QuestionId LIMIT ? ";
+
+    /**
+     * The query of {@link #getBestSubmissionGradesStatement()}.
+     * <p>
+     * The point totals are kept up to date in the {@link ScoreSummary}, which flags the best submission
+     * (ties go to the latest one), so it is found with one index lookup.
+     */
+    static final String SQL_QUERY_BEST_SUBMISSION_GRADES =
+            // Joining the tables: User, the score summary, and QuestionGrade or the packed grades
+            "SELECT SubmissionScore.SubmissionId, QuestionGrade.QuestionId, QuestionGrade.Grade, SubmissionScore.SubmissionTime, " +
+            "SubmissionGrades.Grades FROM " +
+            "User INNER JOIN SubmissionScore ON User.UserId = SubmissionScore.UserId " +
+            // The grades are either QuestionGrade rows or a single packed row
+            "LEFT JOIN QuestionGrade ON SubmissionScore.SubmissionId = QuestionGrade.SubmissionId " +
+            "LEFT JOIN SubmissionGrades ON SubmissionScore.SubmissionId = SubmissionGrades.SubmissionId " +
+            // Filtering the data down to the flagged submission
+            "WHERE User.Username = ? AND SubmissionScore.ExerciseId = ? AND SubmissionScore.IsBest = 1 " +
+            // Sorting and limiting the results
+            "ORDER BY QuestionGrade.QuestionId LIMIT ? ";
+
+    /**
+     * The number of users or exercises looked up by one run of a multi-get query. Shorter lists are
+     * padded with NULLs, so every multi-get is one cached statement.
+     */
+    static final int MULTI_GET_CHUNK_SIZE = 64;
+
+    /**
+     * The query of {@link #getLastSubmissions(Collection, Exercise)}: parameters 1 to {@link #MULTI_GET_CHUNK_SIZE}
+     * are usernames, and the next one is the exercise id.
+     */
+    static final String SQL_QUERY_LAST_SUBMISSIONS_OF_USERS = multiGetQuery("User.Username", "IsLatest");
+
+    /**
+     * The query of {@link #getBestSubmissions(Collection, Exercise)}, with the parameters of
+     * {@link #SQL_QUERY_LAST_SUBMISSIONS_OF_USERS}.
+     */
+    static final String SQL_QUERY_BEST_SUBMISSIONS_OF_USERS = multiGetQuery("User.Username", "IsBest");
+
+    /**
+     * The query of {@link #getLastSubmissions(User, Collection)}: parameters 1 to {@link #MULTI_GET_CHUNK_SIZE}
+     * are exercise ids, and the next one is the username.
+     */
+    static final String SQL_QUERY_LAST_SUBMISSIONS_OF_EXERCISES = multiGetQuery("SubmissionScore.ExerciseId", "IsLatest");
+
+    /**
+     * The query of {@link #getBestSubmissions(User, Collection)}, with the parameters of
+     * {@link #SQL_QUERY_LAST_SUBMISSIONS_OF_EXERCISES}.
+     */
+    static final String SQL_QUERY_BEST_SUBMISSIONS_OF_EXERCISES = multiGetQuery("SubmissionScore.ExerciseId", "IsBest");
+
+    // The flagged submissions of a chunk of users for one exercise, or of one user for a chunk of exercises,
+    // like the last/best queries, with the username or exercise id they were looked up by in the first column
+    private static String multiGetQuery(String keyColumn, String flag) {
+        StringBuilder keys = new StringBuilder("?");
+        for (int i = 1; i < MULTI_GET_CHUNK_SIZE; ++i)
+            keys.append(",?");
+        String otherColumn = keyColumn.equals("User.Username") ? "SubmissionScore.ExerciseId" : "User.Username";
+        return "SELECT " + keyColumn + ", SubmissionScore.SubmissionId, SubmissionScore.SubmissionTime, " +
+                "QuestionGrade.Grade, SubmissionGrades.Grades FROM " +
+                "User INNER JOIN SubmissionScore ON User.UserId = SubmissionScore.UserId " +
+                "LEFT JOIN QuestionGrade ON SubmissionScore.SubmissionId = QuestionGrade.SubmissionId " +
+                "LEFT JOIN SubmissionGrades ON SubmissionScore.SubmissionId = SubmissionGrades.SubmissionId " +
+                "WHERE " + keyColumn + " IN (" + keys + ") AND " + otherColumn + " = ? " +
+                "AND SubmissionScore." + flag + " = 1 " +
+                // Each submission's rows together, in question order
+                "ORDER BY SubmissionScore.SubmissionId, QuestionGrade.QuestionId";
+    }
+
+    /**
+     * The query of {@link #readSubmissionPage(Exercise, int, int)}: the grades of the next page of submissions
+     * of an exercise, after a given submission id.
+     * <p>
+     * The page is limited in a subquery, so the limit counts submissions rather than grade rows, and found by
+     * a range lookup on the exercise's submissions index.
+     */
+    static final String SQL_QUERY_SUBMISSION_PAGE =
+            "SELECT Page.SubmissionId, Page.SubmissionTime, User.Username, User.Firstname, User.Lastname, " +
+            "QuestionGrade.QuestionId, QuestionGrade.Grade, SubmissionGrades.Grades FROM " +
+            "(SELECT SubmissionId, UserId, SubmissionTime FROM Submission WHERE ExerciseId = ? AND SubmissionId > ? " +
+            "ORDER BY SubmissionId LIMIT ?) AS Page " +
+            "INNER JOIN User ON User.UserId = Page.UserId " +
+            "LEFT JOIN QuestionGrade ON QuestionGrade.SubmissionId = Page.SubmissionId " +
+            "LEFT JOIN SubmissionGrades ON SubmissionGrades.SubmissionId = Page.SubmissionId " +
+            "ORDER BY Page.SubmissionId, QuestionGrade.QuestionId";
+
+    /**
+     * The lookups that run on every request, and must never scan a whole table.
+     *
+     * @see #findFullScans()
+     */
+    static final List<String> HOT_QUERIES = Arrays.asList(
+            SQL_QUERY_USER_ID,
+            SQL_QUERY_USER_PASSWORD,
+            SQL_QUERY_EXERCISE_ID,
+            SQL_QUERY_LAST_SUBMISSION_GRADES,
+            SQL_QUERY_BEST_SUBMISSION_GRADES,
+            SQL_QUERY_SUBMISSION_PAGE,
+            SQL_QUERY_LAST_SUBMISSIONS_OF_USERS,
+            SQL_QUERY_BEST_SUBMISSIONS_OF_USERS,
+            SQL_QUERY_LAST_SUBMISSIONS_OF_EXERCISES,
+            SQL_QUERY_BEST_SUBMISSIONS_OF_EXERCISES,
+            SubmissionImporter.SQL_QUERY_USERS);
+
+    /**
+     * The number of submissions committed together by {@link #addGrades(Iterable)}.
+     */
+    public static final int DEFAULT_GRADE_CHUNK_SIZE = 1000;
+
+    /**
+     * The number of submissions read per query by {@link #streamSubmissions(Exercise)}.
+     */
+    public static final int DEFAULT_SUBMISSION_PAGE_SIZE = 1000;
+
+    /**
+     * The number of exercises kept by the {@link ExerciseCache} of a new connection.
+     */
+    public static final int DEFAULT_EXERCISE_CACHE_SIZE = 256;
+
+    /**
+     * The number of logins kept by the {@link LoginCache} of a new connection.
+     */
+    public static final int DEFAULT_LOGIN_CACHE_SIZE = 1024;
+
+    /**
+     * How long the {@link LoginCache} of a new connection remembers a login.
+     */
+    public static final long DEFAULT_LOGIN_CACHE_TTL_MILLIS = 30_000;
 
     /**
      * The connection to the underlying DB.
@@ -22,6 +196,69 @@ public class Smarticulous {
      */
     Connection db;
 
+    /**
+     * The prepared statements of {@link #db}.
+     * <p>
+     * Created by {@link #openDB(String)} and released by {@link #closeDB()}.
+     */
+    StatementCache statements;
+
+    /**
+     * The exercises read through {@link #db}.
+     * <p>
+     * Created by {@link #openDB(String)}; it may be replaced by a cache shared with other connections.
+     */
+    ExerciseCache exercises;
+
+    /**
+     * The recent successful logins through {@link #db}.
+     * <p>
+     * Created by {@link #openDB(String)}; it may be replaced by a cache shared with other connections.
+     */
+    LoginCache logins;
+
+    /**
+     * Hashes new passwords, or null if passwords are stored as given.
+     */
+    PasswordHasher hasher;
+
+    /**
+     * Whether the plaintext passwords in the database were hashed since {@link #hasher} was set.
+     */
+    boolean credentialsMigrated;
+
+    /**
+     * The format new question grades are written in.
+     */
+    PackedGrades.Format gradeFormat = PackedGrades.Format.ROWS;
+
+    /**
+     * Records the latency of the public operations and of the statements on {@link #db}, or null.
+     */
+    Metrics metrics;
+
+    /**
+     * Ranks the scores of the grades stored through {@link #db}, or null.
+     */
+    Leaderboard leaderboard;
+
+    /**
+     * The scores of the grades stored in the open transaction, applied to {@link #leaderboard} once it commits.
+     */
+    private final List<Leaderboard.Score> pendingScores = new ArrayList<>();
+
+    /**
+     * Caches the latest and best submissions read through {@link #db}, or null.
+     * <p>
+     * Volatile, since {@link ConcurrentSmarticulous} sets it on connections that may be in use.
+     */
+    volatile SubmissionCache submissionCache;
+
+    /**
+     * The submissions graded in the open transaction, written through to {@link #submissionCache} once it commits.
+     */
+    private final List<Submission> pendingGrades = new ArrayList<>();
+
     /**
      * Open the {@link Smarticulous} SQLite database.
      * <p>
@@ -81,6 +318,12 @@ public class Smarticulous {
      * </table>
      * In this table the combination of SubmissionId and QuestionId together comprise the primary key.
      *
+     * <p>
+     * After the tables exist, the pending {@link Schema} migrations are applied, so an existing database
+     * is upgraded in place to the current schema version (including the lookup indexes).
+     * Finally the functions that read {@link PackedGrades} are registered, and the {@link ScoreSummary} is
+     * created, or rebuilt if it was not maintained.
+     *
      * @param dburl The JDBC url of the database to open (will be of the form "jdbc:sqlite:...")
      * @return the new connection
      * @throws SQLException
@@ -88,33 +331,344 @@ public class Smarticulous {
     public Connection openDB(String dburl) throws SQLException {
         // Connection to the database using the provided URL
         this.db = DriverManager.getConnection(dburl);
+        if (metrics != null)
+            this.db = metrics.instrument(this.db);
+        this.statements = new StatementCache(this.db);
+        this.exercises = new ExerciseCache(DEFAULT_EXERCISE_CACHE_SIZE);
+        this.logins = new LoginCache(DEFAULT_LOGIN_CACHE_SIZE, DEFAULT_LOGIN_CACHE_TTL_MILLIS);
         // Create tables if they don't exist
-        Statement statement = this.db.createStatement();
-        //Create User table
-        statement.execute("CREATE TABLE IF NOT EXISTS User (UserId INTEGER PRIMARY KEY, Username TEXT UNIQUE ,Firstname TEXT, Lastname TEXT, Password TEXT);");
-        //Create Exercise table
-        statement.execute("CREATE TABLE IF NOT EXISTS Exercise (ExerciseId INTEGER PRIMARY KEY, Name TEXT, DueDate INTEGER);");
-        // Create Question table
-        statement.execute("CREATE TABLE IF NOT EXISTS Question (ExerciseId INTEGER, QuestionId INTEGER, Name TEXT, Desc TEXT, Points INTEGER ,PRIMARY KEY(ExerciseId,QuestionId));");
-        // Create Submission table
-        statement.execute("CREATE TABLE IF NOT EXISTS Submission (SubmissionId INTEGER PRIMARY KEY, UserId INTEGER, ExerciseId INTEGER, SubmissionTime INTEGER);");
-        // Create QuestionGrade table
-        statement.execute("CREATE TABLE IF NOT EXISTS QuestionGrade (SubmissionId INTEGER, QuestionId INTEGER, Grade Real, PRIMARY KEY (SubmissionId, QuestionId));");
+        try (Statement statement = this.db.createStatement()) {
+            //Create User table
+            statement.execute("CREATE TABLE IF NOT EXISTS User (UserId INTEGER PRIMARY KEY, Username TEXT UNIQUE ,Firstname TEXT, Lastname TEXT, Password TEXT);");
+            //Create Exercise table
+            statement.execute("CREATE TABLE IF NOT EXISTS Exercise (ExerciseId INTEGER PRIMARY KEY, Name TEXT, DueDate INTEGER);");
+            // Create Question table
+            statement.execute("CREATE TABLE IF NOT EXISTS Question (ExerciseId INTEGER, QuestionId INTEGER, Name TEXT, Desc TEXT, Points INTEGER ,PRIMARY KEY(ExerciseId,QuestionId));");
+            // Create Submission table
+            statement.execute("CREATE TABLE IF NOT EXISTS Submission (SubmissionId INTEGER PRIMARY KEY, UserId INTEGER, ExerciseId INTEGER, SubmissionTime INTEGER);");
+            // Create QuestionGrade table
+            statement.execute("CREATE TABLE IF NOT EXISTS QuestionGrade (SubmissionId INTEGER, QuestionId INTEGER, Grade Real, PRIMARY KEY (SubmissionId, QuestionId));");
+        }
+        // Bring the indexes (and anything else added since the tables were created) up to date
+        Schema.migrate(this.db);
+        // The functions the score summary reads packed grades with
+        PackedGrades.registerFunctions(this.db);
+        // Create the score summary, rebuilding it if the database was changed without it
+        ScoreSummary.open(this.db);
 
         return this.db;
 }
     /**
      * Close the DB if it is open.
+     * <p>
+     * All the statements prepared through {@link #statements} are closed as well.
      *
      * @throws SQLException
      */
     public void closeDB() throws SQLException {
         if (db != null) {
-            db.close();
-            db = null;
+            try {
+                statements.close();
+            } finally {
+                statements = null;
+                exercises = null;
+                logins = null;
+                db.close();
+                db = null;
+            }
+        }
+    }
+
+    /**
+     * Close the DB if it is open, as {@link #closeDB()}.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        closeDB();
+    }
+
+    /**
+     * Return the prepared statement registry of the open DB.
+     * <p>
+     * Its hit and miss counters show how often statements are reused.
+     *
+     * @return the statement registry, or null if the db is not open.
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * Return the exercise cache of the open DB.
+     * <p>
+     * Its hit, miss and eviction counters show how often exercises are read from the database.
+     *
+     * @return the exercise cache, or null if the db is not open.
+     */
+    public ExerciseCache getExerciseCache() {
+        return exercises;
+    }
+
+    /**
+     * Return the login cache of the open DB.
+     *
+     * @return the login cache, or null if the db is not open.
+     */
+    public LoginCache getLoginCache() {
+        return logins;
+    }
+
+    /**
+     * Store passwords as salted hashes from now on.
+     * <p>
+     * By default passwords are stored as given. Once a hasher is set, {@link #addOrUpdateUser(User, String)}
+     * stores hashes, and its first call hashes every plaintext password already in the database
+     * (see {@link #migrateCredentials()}). {@link #verifyLogin(String, String)} accepts both forms.
+     *
+     * @param hasher the hasher to use, or null to store passwords as given again
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        this.hasher = hasher;
+        this.credentialsMigrated = false;
+    }
+
+    /**
+     * Write question grades in the given format from now on.
+     * <p>
+     * Grades already stored keep their format, and are still read; use {@link #migrateGrades(PackedGrades.Format)}
+     * to convert them.
+     *
+     * @param format {@link PackedGrades.Format#ROWS} (the default) for QuestionGrade rows, or a packed format
+     */
+    public void setGradeFormat(PackedGrades.Format format) {
+        if (format == null)
+            throw new NullPointerException("format");
+        this.gradeFormat = format;
+    }
+
+    /**
+     * @return the format new question grades are written in.
+     */
+    public PackedGrades.Format getGradeFormat() {
+        return gradeFormat;
+    }
+
+    /**
+     * Convert every question grade in the database to the given format, e.g. to pack the grades of an
+     * existing database. New grades are still written in the format set by {@link #setGradeFormat(PackedGrades.Format)}.
+     * <p>
+     * The grades are converted {@link PackedGrades#MIGRATION_CHUNK_SIZE} submissions per transaction, and the
+     * score summary is rebuilt at the end. Converting to {@link PackedGrades.Format#FIXED16} rounds the grades.
+     * <p>
+     * No other connection may use the database meanwhile (e.g. a {@link ConcurrentSmarticulous}): the
+     * conversion locks it exclusively, and fails if it can't.
+     *
+     * @param format the format to convert to
+     * @return the number of submissions whose grades were converted
+     * @throws SQLException if another connection uses the database
+     */
+    public int migrateGrades(PackedGrades.Format format) throws SQLException {
+        return timed("migrateGrades", () -> {
+            int converted = PackedGrades.migrate(this, format);
+            if (leaderboard != null)
+                leaderboard.rebuild(this);
+            // Fixed-point grades read back rounded
+            if (submissionCache != null)
+                submissionCache.clear();
+            return converted;
+        });
+    }
+
+    /**
+     * A unit of work against {@link #db}.
+     */
+    interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Run the given work in a single transaction.
+     * <p>
+     * The transaction is committed if the work completes and rolled back if it throws.
+     * If a transaction is already open, the work simply joins it.
+     *
+     * @param work the work to run
+     * @return the result of the work
+     * @throws SQLException
+     */
+    <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        if (!db.getAutoCommit())
+            return work.run();
+
+        db.setAutoCommit(false);
+        try {
+            T result = work.run();
+            db.commit();
+            publishScores();
+            publishGrades();
+            return result;
+        } catch (SQLException | RuntimeException | Error e) {
+            // Also on an Error: re-enabling auto-commit below would commit the work done so far
+            db.rollback();
+            throw e;
+        } finally {
+            pendingScores.clear();
+            pendingGrades.clear();
+            db.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Run a public operation, recording its latency if metrics are on.
+     *
+     * @param operation the name of the operation
+     * @param work the operation
+     * @return the result of the work
+     * @throws SQLException
+     */
+    <T> T timed(String operation, SqlWork<T> work) throws SQLException {
+        Metrics metrics = this.metrics;
+        if (metrics == null)
+            return work.run();
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = work.run();
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordCall(operation, System.nanoTime() - start, failed);
+        }
+    }
+
+    /**
+     * Turn instrumentation on or off.
+     * <p>
+     * If the database is open, its connection is wrapped (or unwrapped) at once, and its prepared statements
+     * are prepared again.
+     *
+     * @param metrics the metrics to record to, or null to turn instrumentation off
+     * @throws SQLException
+     * @see Metrics
+     */
+    public void setMetrics(Metrics metrics) throws SQLException {
+        this.metrics = metrics;
+        if (db != null) {
+            statements.close();
+            db = metrics == null ? InstrumentedJdbc.unwrap(db) : metrics.instrument(db);
+            statements = new StatementCache(db);
         }
     }
 
+    /**
+     * @return the metrics recorded by this connection, or null if instrumentation is off.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Rank the grades stored through this connection on a leaderboard.
+     * <p>
+     * The leaderboard is rebuilt from the database first. Pass null to stop updating it.
+     *
+     * @param leaderboard the leaderboard, or null
+     * @throws SQLException
+     */
+    public void setLeaderboard(Leaderboard leaderboard) throws SQLException {
+        if (leaderboard != null)
+            leaderboard.rebuild(this);
+        this.leaderboard = leaderboard;
+    }
+
+    /**
+     * @return the leaderboard updated by this connection, or null.
+     */
+    public Leaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    // Applies the scores of a committed transaction
+    private void publishScores() {
+        if (leaderboard == null)
+            return;
+        for (Leaderboard.Score score : pendingScores)
+            leaderboard.apply(score);
+    }
+
+    /**
+     * Cache the latest and best submissions read through this connection. Pass null to stop caching.
+     * <p>
+     * Grades stored through this connection are written through to the cache once they commit.
+     *
+     * @param cache the cache, or null
+     */
+    public void setSubmissionCache(SubmissionCache cache) {
+        this.submissionCache = cache;
+    }
+
+    /**
+     * @return the cache of latest and best submissions, or null.
+     */
+    public SubmissionCache getSubmissionCache() {
+        return submissionCache;
+    }
+
+    // Writes the grades of a committed transaction through to the cache
+    private void publishGrades() {
+        SubmissionCache cache = submissionCache;
+        if (cache != null && !pendingGrades.isEmpty())
+            cache.written(pendingGrades);
+    }
+
+    // A copy of a graded submission as it reads back from the database: grades as fractions, in the grade format
+    private Submission storedCopy(Submission submission) {
+        float[] fractions = MemoryStorage.fractions(submission);
+        if (gradeFormat != PackedGrades.Format.ROWS)
+            fractions = PackedGrades.decode(PackedGrades.encode(fractions, gradeFormat));
+        return new Submission(submission.id, submission.user, submission.exercise, submission.submissionTime, fractions);
+    }
+
+    /**
+     * Recompute the {@link ScoreSummary} of the open DB from scratch.
+     * <p>
+     * The summary is kept up to date by triggers in the database, so this is needed only to repair a
+     * summary that was edited directly.
+     *
+     * @throws SQLException
+     */
+    public void rebuildScores() throws SQLException {
+        timed("rebuildScores", () -> {
+            ScoreSummary.rebuild(db);
+            if (submissionCache != null)
+                submissionCache.clear();
+            return null;
+        });
+    }
+
+    /**
+     * Compare the {@link ScoreSummary} of the open DB against the submission and grade tables.
+     *
+     * @return a description of every inconsistency found; empty if the summary is consistent.
+     * @throws SQLException
+     */
+    public List<String> checkScores() throws SQLException {
+        return timed("checkScores", () -> ScoreSummary.check(db));
+    }
+
+    /**
+     * Check the query plans of the {@link #HOT_QUERIES} against the open DB.
+     *
+     * @return the steps that scan a whole table or index, one per entry; empty if every hot query uses an index.
+     * @throws SQLException
+     */
+    public List<String> findFullScans() throws SQLException {
+        return Schema.findFullScans(db, HOT_QUERIES);
+    }
+
     // =========== User Management =============
 
     /**
@@ -122,6 +676,9 @@ public class Smarticulous {
      * <p>
      * Add the user to the database if they don't exist. If a user with user.username does exist,
      * update their password and firstname/lastname in the database.
+     * <p>
+     * If a {@link PasswordHasher} is set, the password is stored as a salted hash, and the first call
+     * hashes the plaintext passwords already in the database.
      *
      * @param user
      * @param password
@@ -129,80 +686,235 @@ public class Smarticulous {
      * @throws SQLException
      */
     public int addOrUpdateUser(User user, String password) throws SQLException {
+        return timed("addOrUpdateUser", () -> {
+            if (hasher != null && !credentialsMigrated)
+                migrateCredentials();
+            int userId = storeUser(user, encodePassword(password));
+            logins.invalidate(user.username);
+            return userId;
+        });
+    }
+
+    /**
+     * Return the value to store in the Password column for a password.
+     * <p>
+     * Hashing runs on the hasher's threads, which bound how many hashes run at once. The caller waits for
+     * it, so it must not hold a transaction or a pooled connection meanwhile.
+     */
+    String encodePassword(String password) {
+        return hasher == null ? password : hasher.hashAsync(password).join();
+    }
+
+    /**
+     * Hash every plaintext password in the database with the current {@link PasswordHasher}.
+     * <p>
+     * The passwords are hashed in parallel on the hasher's threads before the transaction that writes
+     * them starts, so hashing never holds the database's write lock. A password that changed in the
+     * meantime is left alone.
+     *
+     * @return the number of passwords hashed
+     * @throws IllegalStateException if no hasher is set
+     * @throws SQLException
+     */
+    public int migrateCredentials() throws SQLException {
+        return timed("migrateCredentials", () -> {
+            if (hasher == null)
+                throw new IllegalStateException("No password hasher is set");
+
+            Map<Integer, String> passwords = plaintextPasswords();
+            int migrated = storeHashedPasswords(passwords, hashPasswords(passwords));
+            credentialsMigrated = true;
+            return migrated;
+        });
+    }
+
+    /**
+     * Return the passwords that aren't hashed yet.
+     *
+     * @return the plaintext passwords by user id
+     * @throws SQLException
+     */
+    Map<Integer, String> plaintextPasswords() throws SQLException {
+        // SELECT query for the users whose password isn't hashed yet
+        String sqlQueryPlain = "SELECT UserId, Password FROM User WHERE Password IS NOT NULL AND substr(Password, 1, ?) <> ?";
+        PreparedStatement psPlain = statements.prepare(sqlQueryPlain);
+        psPlain.setInt(1, PasswordHasher.PREFIX.length());
+        psPlain.setString(2, PasswordHasher.PREFIX);
+        Map<Integer, String> passwords = new LinkedHashMap<>();
+        try (ResultSet rs = psPlain.executeQuery()) {
+            while (rs.next())
+                passwords.put(rs.getInt(1), rs.getString(2));
+        }
+        return passwords;
+    }
+
+    /**
+     * Hash passwords in parallel on the hasher's threads, and wait for all of them. Uses no connection.
+     *
+     * @param passwords the passwords by user id
+     * @return the hashes by user id
+     */
+    Map<Integer, String> hashPasswords(Map<Integer, String> passwords) {
+        Map<Integer, CompletableFuture<String>> hashes = new LinkedHashMap<>();
+        for (Map.Entry<Integer, String> password : passwords.entrySet())
+            hashes.put(password.getKey(), hasher.hashAsync(password.getValue()));
+        Map<Integer, String> hashed = new LinkedHashMap<>();
+        for (Map.Entry<Integer, CompletableFuture<String>> hash : hashes.entrySet())
+            hashed.put(hash.getKey(), hash.getValue().join());
+        return hashed;
+    }
+
+    /**
+     * Replace plaintext passwords by their hashes in one transaction.
+     *
+     * @param passwords the plaintext passwords by user id
+     * @param hashes their hashes by user id
+     * @return the number of passwords replaced
+     * @throws SQLException
+     */
+    int storeHashedPasswords(Map<Integer, String> passwords, Map<Integer, String> hashes) throws SQLException {
+        if (passwords.isEmpty())
+            return 0;
+        return inTransaction(() -> {
+            // The old password is part of the condition, so a concurrent change wins
+            String sqlQueryUpdate = "UPDATE User SET Password = ? WHERE UserId = ? AND Password = ?";
+            PreparedStatement psUpdate = statements.prepare(sqlQueryUpdate);
+            psUpdate.clearBatch();
+            for (Map.Entry<Integer, String> password : passwords.entrySet()) {
+                psUpdate.setString(1, hashes.get(password.getKey()));
+                psUpdate.setInt(2, password.getKey());
+                psUpdate.setString(3, password.getValue());
+                psUpdate.addBatch();
+            }
+            int n = 0;
+            for (int count : psUpdate.executeBatch())
+                n += count;
+            return n;
+        });
+    }
+
+    /**
+     * Add or update a user with an already encoded password.
+     *
+     * @see #addOrUpdateUser(User, String)
+     */
+    int storeUser(User user, String storedPassword) throws SQLException {
         // SELECT query to check if the user already exists
-        String sqlQueryCheck = "SELECT UserId FROM User WHERE Username = ?";
-        PreparedStatement psCheck = db.prepareStatement(sqlQueryCheck);
+        String sqlQueryCheck = SQL_QUERY_USER_ID;
+        PreparedStatement psCheck = statements.prepare(sqlQueryCheck);
         psCheck.setString(1, user.username);
-        ResultSet rs = psCheck.executeQuery();
+        int userId = -1;
+        try (ResultSet rs = psCheck.executeQuery()) {
+            if (rs.next())
+                userId = rs.getInt(1);
+        }
 
-        if(rs.next()){
+        if(userId != -1){
             // If the user already exists in the database, update
-            int userId = rs.getInt(1);
-            String sqlQueryUpdate = "Update User SET Firstname = ?, Lastname = ? , Password = ? ";
-            PreparedStatement psUpdate = db.prepareStatement(sqlQueryUpdate);
+            String sqlQueryUpdate = "Update User SET Firstname = ?, Lastname = ? , Password = ? WHERE UserId = ?";
+            PreparedStatement psUpdate = statements.prepare(sqlQueryUpdate);
             // Set the password and firstname/lastname in the database
             psUpdate.setString(1, user.firstname);
             psUpdate.setString(2, user.lastname);
-            psUpdate.setString(3, password);
+            psUpdate.setString(3, storedPassword);
+            psUpdate.setInt(4, userId);
             psUpdate.execute();
             return userId;
         }
         else{
             // If user does not exist in the database, add
             String sqlQueryAdd = "INSERT INTO User (Username, Firstname, Lastname, Password) VALUES (?,?,?,?)";
-            PreparedStatement psAdd = db.prepareStatement(sqlQueryAdd, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement psAdd = statements.prepare(sqlQueryAdd, Statement.RETURN_GENERATED_KEYS);
             // Set the user name, firstname, lastname and password in the database
             psAdd.setString(1, user.username);
             psAdd.setString(2, user.firstname);
             psAdd.setString(3, user.lastname);
-            psAdd.setString(4, password);
+            psAdd.setString(4, storedPassword);
             psAdd.execute();
-            ResultSet generatedKey = psAdd.getGeneratedKeys();
-            return generatedKey.getInt(1);
+            try (ResultSet generatedKey = psAdd.getGeneratedKeys()) {
+                return generatedKey.getInt(1);
+            }
         }
     }
 
 
     /**
      * Verify a user's login credentials.
+     * <p>
+     * The stored password is read with a single lookup by username. It may be a salted hash (see
+     * {@link #setPasswordHasher(PasswordHasher)}) or, for users stored without a hasher, the password itself;
+     * both are compared in constant time. Recent successful logins are answered from the {@link LoginCache}.
+     * <p>
+     * If a hasher is set and the stored password is plaintext or was hashed with a different cost, a
+     * successful login stores it again as a hash of the current cost.
      *
      * @param username
      * @param password
      * @return true if the user exists in the database and the password matches; false otherwise.
      * @throws SQLException
-     * <p>
-     * Note: this is totally insecure. For real-life password checking, it's important to store only
-     * a password hash
      * @see <a href="https://crackstation.net/hashing-security.htm">How to Hash Passwords Properly</a>
      */
     public boolean verifyLogin(String username, String password) throws SQLException {
-        // SELECT query to check if the user already exists in the database
-        String sqlQueryName = "SELECT UserId FROM User WHERE Username = ?";
-        PreparedStatement psName = db.prepareStatement(sqlQueryName);
-        psName.setString(1, username);
-        ResultSet rs = psName.executeQuery();
-
-        if(rs.next()){
-            // SELECT query to check if the password matches
-            String sqlQueryPass = "SELECT UserId FROM User WHERE Password = ?";
-            PreparedStatement psPass = db.prepareStatement(sqlQueryPass);
-            psPass.setString(1, password);
-            ResultSet rsPass = psPass.executeQuery();
-            // If the user exist and the password matches
-            if(rsPass.next()){
+        return timed("verifyLogin", () -> {
+            if (logins.contains(username, password))
                 return true;
+
+            long generation = logins.generation();
+            String stored = storedPassword(username);
+            boolean verified = checkPassword(password, stored);
+            if (verified) {
+                if (hasher != null && hasher.needsRehash(stored))
+                    replacePassword(username, stored, encodePassword(password));
+                logins.put(username, password, generation);
             }
-            // If the user exist and the password matches
-            else{
-                return false;
-            }
-        }
-        // If the user not exist return false
-        else {
-            return false;
+            return verified;
+        });
+    }
+
+    /**
+     * Return the stored password of a user.
+     *
+     * @return the value of the Password column, or null if the user doesn't exist.
+     * @throws SQLException
+     */
+    String storedPassword(String username) throws SQLException {
+        // SELECT query for the stored password of this user
+        String sqlQueryPass = SQL_QUERY_USER_PASSWORD;
+        PreparedStatement psPass = statements.prepare(sqlQueryPass);
+        psPass.setString(1, username);
+        try (ResultSet rs = psPass.executeQuery()) {
+            return rs.next() ? rs.getString(1) : null;
         }
     }
 
+    /**
+     * Replace a user's stored password, unless it changed in the meantime.
+     *
+     * @param username the user
+     * @param stored the stored password that was read
+     * @param replacement the new stored password
+     * @throws SQLException
+     */
+    void replacePassword(String username, String stored, String replacement) throws SQLException {
+        String sqlQueryUpdate = "UPDATE User SET Password = ? WHERE Username = ? AND Password = ?";
+        PreparedStatement psUpdate = statements.prepare(sqlQueryUpdate);
+        psUpdate.setString(1, replacement);
+        psUpdate.setString(2, username);
+        psUpdate.setString(3, stored);
+        psUpdate.execute();
+    }
+
+    /**
+     * Check a password against a stored value, on the hasher's threads if a hasher is set.
+     *
+     * @see #encodePassword(String)
+     */
+    boolean checkPassword(String password, String stored) {
+        if (hasher != null && PasswordHasher.isHash(stored))
+            return hasher.verifyAsync(password, stored).join();
+        return PasswordHasher.matches(password, stored);
+    }
+
     // =========== Exercise Management =============
 
     /**
@@ -213,85 +925,154 @@ public class Smarticulous {
      * @throws SQLException
      */
     public int addExercise(Exercise exercise) throws SQLException {
-        // SELECT query to check if the exercise already exists in the database
-        String sqlQueryCheck = "SELECT ExerciseId FROM Exercise WHERE ExerciseId = ?";
-        PreparedStatement psCheck = db.prepareStatement(sqlQueryCheck);
-        psCheck.setInt(1, exercise.id);
-        ResultSet rs = psCheck.executeQuery();
-        // If the exercise already exists, return -1
-        if(rs.next()){
-            return -1;
-        }
-        // If the exercise doesn't exist, insert it into the database
-        else{
-            String sqlQueryAdd = "INSERT INTO EXERCISE (ExerciseId, Name, DueDate) VALUES (?,?,?)";
-            PreparedStatement psAdd = db.prepareStatement(sqlQueryAdd, Statement.RETURN_GENERATED_KEYS);
-            psAdd.setInt(1, exercise.id);
-            psAdd.setString(2,exercise.name);
-            java.sql.Date sqlDueDate = new java.sql.Date(exercise.dueDate.getTime());
-            psAdd.setDate(3, sqlDueDate);
-            psAdd.execute();
+        return timed("addExercise", () -> {
+            // SELECT query to check if the exercise already exists in the database
+            String sqlQueryCheck = SQL_QUERY_EXERCISE_ID;
+            PreparedStatement psCheck = statements.prepare(sqlQueryCheck);
+            psCheck.setInt(1, exercise.id);
+            boolean exists;
+            try (ResultSet rs = psCheck.executeQuery()) {
+                exists = rs.next();
+            }
+            // If the exercise already exists, return -1
+            if(exists){
+                return -1;
+            }
+            // If the exercise doesn't exist, insert it into the database
+            else{
+                String sqlQueryAdd = "INSERT INTO EXERCISE (ExerciseId, Name, DueDate) VALUES (?,?,?)";
+                PreparedStatement psAdd = statements.prepare(sqlQueryAdd, Statement.RETURN_GENERATED_KEYS);
+                psAdd.setInt(1, exercise.id);
+                psAdd.setString(2,exercise.name);
+                java.sql.Date sqlDueDate = new java.sql.Date(exercise.dueDate.getTime());
+                psAdd.setDate(3, sqlDueDate);
+                psAdd.execute();
+                // Read the generated key before the question inserts replace the last inserted row id
+                int exerciseId;
+                try (ResultSet generatedKey = psAdd.getGeneratedKeys()) {
+                    exerciseId = generatedKey.getInt(1);
+                }
 
-            // Insert the questions of the current exercise into the database
-            for(Exercise.Question q :exercise.questions) {
-                addQuestion(q,exercise.id);
+                // Insert the questions of the current exercise into the database
+                for(Exercise.Question q :exercise.questions) {
+                    addQuestion(q,exercise.id);
+                }
+                exercises.invalidate(exercise.id);
+                return exerciseId;
             }
-            ResultSet generatedKey = psAdd.getGeneratedKeys();
-            return generatedKey.getInt(1);
-        }
+        });
     }
 
     // Helper function that add question of some exercise to the Question table
     public void addQuestion(Exercise.Question q, int exerciseId) throws SQLException {
-        String sqlQueryAdd = "INSERT INTO Question (ExerciseId, Name, Desc, Points) VALUES (?,?,?,?)";
-        PreparedStatement psAdd = db.prepareStatement(sqlQueryAdd);
-        psAdd.setInt(1,exerciseId);
-        psAdd.setString(2,q.name);
-        psAdd.setString(3,q.desc);
-        psAdd.setInt(4,q.points);
-        psAdd.execute();
+        timed("addQuestion", () -> {
+            // Questions are numbered from 1 in the order they are added
+            String sqlQueryAdd = "INSERT INTO Question (ExerciseId, QuestionId, Name, Desc, Points) " +
+                    "VALUES (?,(SELECT COALESCE(MAX(QuestionId), 0) + 1 FROM Question WHERE ExerciseId = ?),?,?,?)";
+            PreparedStatement psAdd = statements.prepare(sqlQueryAdd);
+            psAdd.setInt(1,exerciseId);
+            psAdd.setInt(2,exerciseId);
+            psAdd.setString(3,q.name);
+            psAdd.setString(4,q.desc);
+            psAdd.setInt(5,q.points);
+            psAdd.execute();
+            exercises.invalidate(exerciseId);
+            return null;
+        });
     }
 
     /**
      * Return a list of all the exercises in the database.
      * <p>
      * The list should be sorted by exercise id.
+     * <p>
+     * The exercises are answered from the {@link ExerciseCache} when possible, as copies the caller may modify.
      *
      * @return list of all exercises.
      * @throws SQLException
      */
     public List<Exercise> loadExercises() throws SQLException {
+        return timed("loadExercises", () -> exercises.getAll(this));
+    }
+
+    /**
+     * Return the exercise with the given id, answered from the {@link ExerciseCache} when possible.
+     * <p>
+     * The exercise is a copy the caller may modify.
+     *
+     * @param id the exercise id
+     * @return the exercise, or null if it isn't in the database.
+     * @throws SQLException
+     */
+    public Exercise getExercise(int id) throws SQLException {
+        return timed("getExercise", () -> exercises.get(id, this));
+    }
+
+    // The SELECT query of the exercises and all their questions, ordered by ExerciseId.
+    // Questions keep the order of the (ExerciseId, QuestionId) key, ties broken by insertion order.
+    private static final String SQL_QUERY_EXERCISES = "SELECT Exercise.ExerciseId, Exercise.Name, Exercise.DueDate, " +
+            "Question.ExerciseId, Question.Name, Question.Desc, Question.Points " +
+            "FROM Exercise LEFT JOIN Question ON Exercise.ExerciseId = Question.ExerciseId ";
+
+    /**
+     * Read all the exercises and their questions from the database with a single query, bypassing the cache.
+     *
+     * @return list of all exercises, sorted by exercise id.
+     * @throws SQLException
+     */
+    List<Exercise> loadExercisesFromDB() throws SQLException {
+        String sqlQueryRes = SQL_QUERY_EXERCISES + "ORDER BY Exercise.ExerciseId, Question.QuestionId, Question.rowid";
+        PreparedStatement statement = statements.prepare(sqlQueryRes);
+        try (ResultSet rs = statement.executeQuery()) {
+            return readExercises(rs);
+        }
+    }
+
+    /**
+     * Read one exercise and its questions from the database, bypassing the cache.
+     *
+     * @return the exercise, or null if it isn't in the database.
+     * @throws SQLException
+     */
+    Exercise loadExercise(int id) throws SQLException {
+        String sqlQueryRes = SQL_QUERY_EXERCISES + "WHERE Exercise.ExerciseId = ? ORDER BY Question.QuestionId, Question.rowid";
+        PreparedStatement statement = statements.prepare(sqlQueryRes);
+        statement.setInt(1, id);
+        try (ResultSet rs = statement.executeQuery()) {
+            List<Exercise> res = readExercises(rs);
+            return res.isEmpty() ? null : res.get(0);
+        }
+    }
+
+    // Helper function that builds exercises from the rows of SQL_QUERY_EXERCISES
+    private static List<Exercise> readExercises(ResultSet rs) throws SQLException {
         // Initialize an empty list to store Exercise objects
         List <Exercise> resList = new ArrayList<>();
-        // SELECT query to retrieve all exercises from the database, ordered by ExerciseId
-        String sqlQueryRes = "SELECT * FROM Exercise ORDER BY ExerciseId";
-        Statement statement = this.db.createStatement();
-        ResultSet rsEx  = statement.executeQuery(sqlQueryRes);
-        // Iterate through the result set of exercises
-        while(rsEx.next()){
-            // Retrieve exercise details from the result set
-            int idEx = rsEx.getInt(1);
-            String nameEx = rsEx.getString(2);
-            Date dueDateEx = rsEx.getDate(3);
-            // Create a new Exercise object with the retrieved details
-            Exercise ex = new Exercise(idEx,nameEx,dueDateEx);
-
-            //SELECT query to retrieve questions of the current exercise
-            String sqlQueryQ = "SELECT * FROM Question WHERE ExerciseId = ?";
-            PreparedStatement ps = db.prepareStatement(sqlQueryQ);
-            ps.setInt(1, ex.id);
-            ResultSet rsQ = ps.executeQuery();
-            // Iterate through the result set of questions
-            while (rsQ.next()){
-                // Retrieve question details from the result set
-                String nameQ = rsQ.getString(3);
-                String descQ = rsQ.getString(4);
-                int pointsQ = rsQ.getInt(5);
-                // Add the question to the current exercise
-                ex.addQuestion(nameQ,descQ,pointsQ);
+        Exercise ex = null;
+        // Iterate through the result set, one row per question (or per exercise without questions)
+        while(rs.next()){
+            int idEx = rs.getInt(1);
+            // Rows of the same exercise are adjacent, so a new id starts a new exercise
+            if (ex == null || ex.id != idEx) {
+                // Retrieve exercise details from the result set
+                String nameEx = rs.getString(2);
+                Date dueDateEx = rs.getDate(3);
+                // Create a new Exercise object and add it to the resList
+                ex = new Exercise(idEx,nameEx,dueDateEx);
+                resList.add(ex);
             }
-            // Add the Exercise to the resList
-            resList.add(ex);
+
+            // An exercise without questions has a single row with no question columns
+            rs.getInt(4);
+            if (rs.wasNull())
+                continue;
+
+            // Retrieve question details from the result set
+            String nameQ = rs.getString(5);
+            String descQ = rs.getString(6);
+            int pointsQ = rs.getInt(7);
+            // Add the question to the current exercise
+            ex.addQuestion(nameQ,descQ,pointsQ);
         }
         return resList;
     }
@@ -309,59 +1090,173 @@ public class Smarticulous {
      * @throws SQLException
      */
     public int storeSubmission(Submission submission) throws SQLException {
-        // SELECT query to check if the user already exists in the database
-        String sqlQueryCheck = "SELECT UserId FROM User WHERE Username = ?";
-        PreparedStatement psCheck = db.prepareStatement(sqlQueryCheck);
-        psCheck.setString(1, submission.user.username);
-        ResultSet rsCheck = psCheck.executeQuery();
-
-        // If the user exists in the database
-        if (rsCheck.next()) {
-            // Get the user id from the result set
-            int userId = rsCheck.getInt(1);
-            PreparedStatement psStore;
-
-            // If the submission has a valid id
-            if (submission.id != -1) {
-                // SQL query to insert submission without specifying the submission id
-                String sqlQueryStore = "INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (?,?,?)";
-                psStore = db.prepareStatement(sqlQueryStore, Statement.RETURN_GENERATED_KEYS);
-                psStore.setInt(1, userId);
-                psStore.setInt(2, submission.exercise.id);
-                java.sql.Date sqlTime = new java.sql.Date(submission.submissionTime.getTime());
-                psStore.setDate(3, sqlTime);
+        return timed("storeSubmission", () -> {
+            // SELECT query to check if the user already exists in the database
+            String sqlQueryCheck = SQL_QUERY_USER_ID;
+            PreparedStatement psCheck = statements.prepare(sqlQueryCheck);
+            psCheck.setString(1, submission.user.username);
+            int userId = -1;
+            try (ResultSet rsCheck = psCheck.executeQuery()) {
+                // Get the user id from the result set
+                if (rsCheck.next())
+                    userId = rsCheck.getInt(1);
+            }
+
+            // If the user exists in the database
+            if (userId != -1) {
+                // If the submission has no id yet
+                if (submission.id == -1) {
+                    // SQL query to insert submission without specifying the submission id
+                    String sqlQueryStore = "INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (?,?,?)";
+                    PreparedStatement psStore = statements.prepare(sqlQueryStore, Statement.RETURN_GENERATED_KEYS);
+                    psStore.setInt(1, userId);
+                    psStore.setInt(2, submission.exercise.id);
+                    java.sql.Date sqlTime = new java.sql.Date(submission.submissionTime.getTime());
+                    psStore.setDate(3, sqlTime);
+                    // Execute the SQL statement to insert the submission
+                    psStore.execute();
+
+                    try (ResultSet generatedKeys = psStore.getGeneratedKeys()) {
+                        return generatedKeys.getInt(1);
+                    }
+                } else {
+                    // SQL query to insert submission with specified submission id
+                    String sqlQueryStore = "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?,?,?,?)";
+                    PreparedStatement psStore = statements.prepare(sqlQueryStore);
+                    psStore.setInt(1, submission.id);
+                    psStore.setInt(2, userId);
+                    psStore.setInt(3, submission.exercise.id);
+                    java.sql.Date sqlTime = new java.sql.Date(submission.submissionTime.getTime());
+                    psStore.setDate(4, sqlTime);
+                    // Execute the SQL statement to insert the submission
+                    psStore.execute();
+                    return submission.id;
+                }
             } else {
-                // SQL query to insert submission with specified submission id
-                String sqlQueryStore = "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?,?,?,?)";
-                psStore = db.prepareStatement(sqlQueryStore);
-                psStore.setInt(1, submission.id);
-                psStore.setInt(2, userId);
-                psStore.setInt(3, submission.exercise.id);
-                java.sql.Date sqlTime = new java.sql.Date(submission.submissionTime.getTime());
-                psStore.setDate(4, sqlTime);
+                return -1;
             }
-            // Execute the SQL statement to insert the submission
-            psStore.execute();
+        });
+    }
 
-            ResultSet generatedKeys = psStore.getGeneratedKeys();
-            return generatedKeys.getInt(1);
-        } else {
-            return -1;
-        }
+    /**
+     * Store many submissions in the database, e.g. from a CSV import.
+     * <p>
+     * The submissions are read a block at a time, so the source is never held in memory as a whole.
+     * The user ids of each block of submissions are resolved with one query, and the block is
+     * inserted with one batch. The whole import runs in a single transaction, and the source is
+     * iterated on the calling thread, so it may read through this connection.
+     * <p>
+     * The id of every stored submission is written back into it (ids of -1 are replaced by new ids).
+     * Submissions whose user doesn't exist in the database are skipped, and their id is set to -1.
+     * If the import fails, it is rolled back and the ids written so far are not valid.
+     *
+     * @param submissions the submissions to store
+     * @return the number of submissions stored
+     * @throws SQLException
+     * @see SubmissionImporter
+     */
+    public int storeSubmissions(Iterable<Submission> submissions) throws SQLException {
+        return timed("storeSubmissions", () -> inTransaction(() -> new SubmissionImporter(statements).run(submissions)));
+    }
+
+    /**
+     * Store the question grades of a submission in the database.
+     * <p>
+     * All the grades are written with one batch in one transaction, so either all of them are
+     * stored or none is. They are written in the {@link #setGradeFormat(PackedGrades.Format) grade format}.
+     *
+     * @param submission a stored submission (its id must be set)
+     * @throws SQLException
+     */
+    public void addGrade(Submission submission) throws SQLException {
+        timed("addGrade", () -> inTransaction(() -> {
+            PreparedStatement psAdd = gradeInsertStatement();
+            addGradeBatch(psAdd, submission);
+            psAdd.executeBatch();
+            return null;
+        }));
     }
 
-        public void addGrade(Submission submission) throws SQLException {
-            for (int i = 1; i <= submission.exercise.questions.size(); i++) {
-                String sqlQueryAdd = "INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?,?,?)";
-                PreparedStatement psAdd = db.prepareStatement(sqlQueryAdd);
+    /**
+     * Store the question grades of many submissions, committing every {@link #DEFAULT_GRADE_CHUNK_SIZE} submissions.
+     *
+     * @param submissions stored submissions (their ids must be set)
+     * @return the number of submissions whose grades were stored
+     * @throws SQLException
+     * @see #addGrades(Iterable, int)
+     */
+    public int addGrades(Iterable<Submission> submissions) throws SQLException {
+        return addGrades(submissions, DEFAULT_GRADE_CHUNK_SIZE);
+    }
+
+    /**
+     * Store the question grades of many submissions, e.g. the results of an autograder run.
+     * <p>
+     * The submissions are written in chunks of chunkSize submissions. The grades of each chunk are
+     * sent as one batch and committed in one transaction. If a chunk fails, it is rolled back and
+     * the exception is thrown; chunks committed before it stay in the database.
+     *
+     * @param submissions stored submissions (their ids must be set)
+     * @param chunkSize the number of submissions committed together
+     * @return the number of submissions whose grades were stored
+     * @throws SQLException
+     */
+    public int addGrades(Iterable<Submission> submissions, int chunkSize) throws SQLException {
+        return timed("addGrades", () -> {
+            if (chunkSize < 1)
+                throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+
+            Iterator<Submission> it = submissions.iterator();
+            int count = 0;
+            while (it.hasNext()) {
+                count += inTransaction(() -> {
+                    PreparedStatement psAdd = gradeInsertStatement();
+                    int n = 0;
+                    for (; n < chunkSize && it.hasNext(); ++n)
+                        addGradeBatch(psAdd, it.next());
+                    psAdd.executeBatch();
+                    return n;
+                });
+            }
+            return count;
+        });
+    }
+
+    // Helper function that returns the grade insert statement of the grade format with an empty batch
+    private PreparedStatement gradeInsertStatement() throws SQLException {
+        String sqlQueryAdd = gradeFormat == PackedGrades.Format.ROWS ?
+                "INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?,?,?)" :
+                "INSERT INTO SubmissionGrades (SubmissionId, Grades) VALUES (?,?)";
+        PreparedStatement psAdd = statements.prepare(sqlQueryAdd);
+        // Drop rows left over by a batch that failed before it was executed
+        psAdd.clearBatch();
+        return psAdd;
+    }
+
+    // Helper function that adds the grades of a submission to the QuestionGrade insert batch
+    private void addGradeBatch(PreparedStatement psAdd, Submission submission) throws SQLException {
+        List<Exercise.Question> questions = submission.exercise.questions;
+        if (gradeFormat == PackedGrades.Format.ROWS) {
+            for (int i = 0; i < questions.size(); i++) {
                 psAdd.setInt(1, submission.id);
-                psAdd.setInt(2, i);
-                float grade = submission.questionGrades[i] / submission.exercise.questions.get(i).points;
+                // Question ids start at 1
+                psAdd.setInt(2, i + 1);
+                // The grade is stored as a fraction of the question's points
+                float grade = submission.questionGrades[i] / questions.get(i).points;
                 psAdd.setFloat(3, grade);
-                psAdd.execute();
-
+                psAdd.addBatch();
             }
+        } else if (!questions.isEmpty()) {
+            // One row with all the grades; without questions there is nothing to store, as with rows
+            psAdd.setInt(1, submission.id);
+            psAdd.setBytes(2, PackedGrades.encode(MemoryStorage.fractions(submission), gradeFormat));
+            psAdd.addBatch();
         }
+        if (leaderboard != null)
+            pendingScores.add(Leaderboard.Score.of(submission));
+        if (submissionCache != null && !questions.isEmpty())
+            pendingGrades.add(storedCopy(submission));
+    }
 
     // ============= Submission Query ===============
 
@@ -380,23 +1275,14 @@ public class Smarticulous {
      * Parameter 3 to the number of questions in the given exercise.
      * <p>
      * This will be used by {@link #getLastSubmission(User, Exercise)}
+     * <p>
+     * The statement is owned by {@link #statements} and is reused by later calls.
      *
      * @return
      */
     PreparedStatement getLastSubmissionGradesStatement() throws SQLException {
-        String sqlQuery =
-                // Joining the tables: User, Submission, Question, and QuestionGrade
-                "SELECT Submission.SubmissionId, Question.QuestionId, QuestionGrade.Grade, Submission.SubmissionTime FROM " +
-                "User INNER JOIN Submission ON User.UserId = Submission.UserId " +
-                "INNER JOIN Question ON Submission.ExerciseId = Question.ExerciseId " +
-                "INNER JOIN QuestionGrade ON (Submission.SubmissionId = QuestionGrade.submissionId AND Question.QuestionId = QuestionGrade.QuestionId) " +
-                // Filtering the data
-                "WHERE User.UserName = ? AND Submission.ExerciseId = ? " +
-                // Grouping and filtering by maximum submission time
-                "GROUP BY QuestionGrade.QuestionId HAVING MAX (Submission.SubmissionTime) " +
-                // Sorting and limiting the results
-                "ORDER BY Question.QuestionId LIMIT ? ";
-        PreparedStatement ps = db.prepareStatement(sqlQuery);
+        String sqlQuery = SQL_QUERY_LAST_SUBMISSION_GRADES;
+        PreparedStatement ps = statements.prepare(sqlQuery);
         return ps;
     }
 
@@ -415,11 +1301,14 @@ public class Smarticulous {
      * Parameter 3 to the number of questions in the given exercise.
      * <p>
      * This will be used by {@link #getBestSubmission(User, Exercise)}
+     * <p>
+     * The statement is owned by {@link #statements} and is reused by later calls.
      *
      */
     PreparedStatement getBestSubmissionGradesStatement() throws SQLException {
-        // TODO: Implement
-        return null;
+        String sqlQuery = SQL_QUERY_BEST_SUBMISSION_GRADES;
+        PreparedStatement ps = statements.prepare(sqlQuery);
+        return ps;
     }
 
     /**
@@ -428,6 +1317,7 @@ public class Smarticulous {
      * <p>
      * The prepared statement should accept the user name as parameter 1, the exercise id as parameter 2 and a limit on the
      * number of rows returned as parameter 3, and return a row for each question corresponding to the submission, sorted by questionId.
+     * If it has a "Grades" column, a row where it isn't NULL holds all the grades as {@link PackedGrades}.
      * <p>
      * Return null if the user has not submitted the exercise (or is not in the database).
      *
@@ -442,22 +1332,39 @@ public class Smarticulous {
         stmt.setInt(2, exercise.id);
         stmt.setInt(3, exercise.questions.size());
 
-        ResultSet res = stmt.executeQuery();
+        try (ResultSet res = stmt.executeQuery()) {
+            boolean hasNext = res.next();
+            if (!hasNext)
+                return null;
 
-        boolean hasNext = res.next();
-        if (!hasNext)
-            return null;
+            int sid = res.getInt("SubmissionId");
+            Date submissionTime = new Date(res.getLong("SubmissionTime"));
 
-        int sid = res.getInt("SubmissionId");
-        Date submissionTime = new Date(res.getLong("SubmissionTime"));
+            float[] grades = new float[exercise.questions.size()];
 
-        float[] grades = new float[exercise.questions.size()];
+            // Packed grades come in a single row
+            byte[] packed = hasColumn(res, "Grades") ? res.getBytes("Grades") : null;
+            if (packed != null) {
+                PackedGrades.decode(packed, grades);
+                return new Submission(sid, user, exercise, submissionTime, grades);
+            }
 
-        for (int i = 0; hasNext; ++i, hasNext = res.next()) {
-            grades[i] = res.getFloat("Grade");
+            for (int i = 0; hasNext; ++i, hasNext = res.next()) {
+                grades[i] = res.getFloat("Grade");
+            }
+
+            return new Submission(sid, user, exercise, submissionTime, (float[]) grades);
         }
+    }
 
-        return new Submission(sid, user, exercise, submissionTime, (float[]) grades);
+    // Whether a result set has a column with the given label
+    private static boolean hasColumn(ResultSet res, String label) throws SQLException {
+        ResultSetMetaData meta = res.getMetaData();
+        for (int i = 1; i <= meta.getColumnCount(); ++i) {
+            if (label.equalsIgnoreCase(meta.getColumnLabel(i)))
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -471,7 +1378,12 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getLastSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getLastSubmissionGradesStatement());
+        return timed("getLastSubmission", () -> {
+            SubmissionCache cache = submissionCache;
+            if (cache == null)
+                return getSubmission(user, exercise, getLastSubmissionGradesStatement());
+            return cache.get(false, user, exercise, () -> getSubmission(user, exercise, getLastSubmissionGradesStatement()));
+        });
     }
 
 
@@ -484,6 +1396,203 @@ public class Smarticulous {
      * @throws SQLException
      */
     public Submission getBestSubmission(User user, Exercise exercise) throws SQLException {
-        return getSubmission(user, exercise, getBestSubmissionGradesStatement());
+        return timed("getBestSubmission", () -> {
+            SubmissionCache cache = submissionCache;
+            if (cache == null)
+                return getSubmission(user, exercise, getBestSubmissionGradesStatement());
+            return cache.get(true, user, exercise, () -> getSubmission(user, exercise, getBestSubmissionGradesStatement()));
+        });
+    }
+
+    /**
+     * Return the latest submissions of several users for one exercise, e.g. to render a class gradebook.
+     * <p>
+     * The submissions are found by one query per {@link #MULTI_GET_CHUNK_SIZE} users, rather than one
+     * query per user, and are the ones {@link #getLastSubmission(User, Exercise)} returns.
+     *
+     * @param users the users; duplicates are looked up once
+     * @param exercise the exercise, with its questions
+     * @return the submissions by username; users without a submission (or not in the database) are left out.
+     * @throws SQLException
+     */
+    public Map<String, Submission> getLastSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        return timed("getLastSubmissions", () -> submissionsOfUsers(users, exercise, SQL_QUERY_LAST_SUBMISSIONS_OF_USERS));
+    }
+
+    /**
+     * Return the best submissions of several users for one exercise, as {@link #getLastSubmissions(Collection, Exercise)}.
+     *
+     * @return the submissions by username; users without a submission (or not in the database) are left out.
+     * @throws SQLException
+     */
+    public Map<String, Submission> getBestSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        return timed("getBestSubmissions", () -> submissionsOfUsers(users, exercise, SQL_QUERY_BEST_SUBMISSIONS_OF_USERS));
+    }
+
+    /**
+     * Return the latest submissions of one user for several exercises, with one query per
+     * {@link #MULTI_GET_CHUNK_SIZE} exercises.
+     *
+     * @param user the user
+     * @param exercises the exercises, with their questions
+     * @return the submissions by exercise id; exercises without a submission are left out.
+     * @throws SQLException
+     */
+    public Map<Integer, Submission> getLastSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        return timed("getLastSubmissions", () -> submissionsOfExercises(user, exercises, SQL_QUERY_LAST_SUBMISSIONS_OF_EXERCISES));
+    }
+
+    /**
+     * Return the best submissions of one user for several exercises, as {@link #getLastSubmissions(User, Collection)}.
+     *
+     * @return the submissions by exercise id; exercises without a submission are left out.
+     * @throws SQLException
+     */
+    public Map<Integer, Submission> getBestSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        return timed("getBestSubmissions", () -> submissionsOfExercises(user, exercises, SQL_QUERY_BEST_SUBMISSIONS_OF_EXERCISES));
+    }
+
+    private Map<String, Submission> submissionsOfUsers(Collection<User> users, Exercise exercise, String sql) throws SQLException {
+        Map<String, User> byName = new LinkedHashMap<>();
+        for (User user : users)
+            byName.putIfAbsent(user.username, user);
+        return multiGet(sql, new ArrayList<>(byName.keySet()), exercise.id, res -> res.getString(1), byName::get, name -> exercise);
+    }
+
+    private Map<Integer, Submission> submissionsOfExercises(User user, Collection<Exercise> exercises, String sql) throws SQLException {
+        Map<Integer, Exercise> byId = new LinkedHashMap<>();
+        for (Exercise exercise : exercises)
+            byId.putIfAbsent(exercise.id, exercise);
+        return multiGet(sql, new ArrayList<>(byId.keySet()), user.username, res -> res.getInt(1), id -> user, byId::get);
+    }
+
+    /**
+     * Reads the key a row of a multi-get query was looked up by.
+     */
+    interface RowKey<K> {
+        K read(ResultSet res) throws SQLException;
+    }
+
+    // Runs a multi-get query chunk by chunk, and reads each submission's rows into one Submission
+    private <K> Map<K, Submission> multiGet(String sql, List<K> keys, Object other, RowKey<K> rowKey,
+                                            Function<K, User> userOf, Function<K, Exercise> exerciseOf) throws SQLException {
+        Map<K, Submission> submissions = new HashMap<>();
+        PreparedStatement ps = statements.prepare(sql);
+        for (int from = 0; from < keys.size(); from += MULTI_GET_CHUNK_SIZE) {
+            int to = Math.min(keys.size(), from + MULTI_GET_CHUNK_SIZE);
+            for (int i = 0; i < MULTI_GET_CHUNK_SIZE; ++i) {
+                if (from + i < to)
+                    ps.setObject(i + 1, keys.get(from + i));
+                else
+                    ps.setNull(i + 1, Types.NULL);
+            }
+            ps.setObject(MULTI_GET_CHUNK_SIZE + 1, other);
+
+            try (ResultSet res = ps.executeQuery()) {
+                Submission current = null;
+                int question = 0;
+                while (res.next()) {
+                    int sid = res.getInt(2);
+                    if (current == null || current.id != sid) {
+                        K key = rowKey.read(res);
+                        Exercise exercise = exerciseOf.apply(key);
+                        current = new Submission(sid, userOf.apply(key), exercise, new Date(res.getLong(3)),
+                                new float[exercise.questions.size()]);
+                        submissions.put(key, current);
+                        question = 0;
+                        // Packed grades come in a single row
+                        byte[] packed = res.getBytes(5);
+                        if (packed != null) {
+                            PackedGrades.decode(packed, current.questionGrades);
+                            continue;
+                        }
+                    }
+                    if (question < current.questionGrades.length)
+                        current.questionGrades[question++] = res.getFloat(4);
+                }
+            }
+        }
+        return submissions;
+    }
+
+    /**
+     * Return all submissions of an exercise, in order of their ids, with their grades.
+     * <p>
+     * The submissions are read lazily, {@link #DEFAULT_SUBMISSION_PAGE_SIZE} at a time, so the stream
+     * uses constant memory however many submissions there are. Grades are as returned by
+     * {@link #getLastSubmission(User, Exercise)}; questions without a grade (e.g. of a submission that
+     * wasn't graded yet) are 0.
+     * <p>
+     * The stream must be consumed while the database is open, and on the thread that owns this object.
+     *
+     * @param exercise the exercise, with its questions
+     * @return a lazy stream of the submissions
+     * @see SubmissionCursor
+     */
+    public Stream<Submission> streamSubmissions(Exercise exercise) {
+        return streamSubmissions(exercise, DEFAULT_SUBMISSION_PAGE_SIZE);
+    }
+
+    /**
+     * Return all submissions of an exercise, reading pageSize submissions at a time.
+     *
+     * @see #streamSubmissions(Exercise)
+     */
+    public Stream<Submission> streamSubmissions(Exercise exercise, int pageSize) {
+        return new SubmissionCursor((afterId, limit) -> readSubmissionPage(exercise, afterId, limit), pageSize).stream();
+    }
+
+    /**
+     * Read a page of the submissions of an exercise.
+     *
+     * @param exercise the exercise, with its questions
+     * @param afterId only submissions with a larger id are returned
+     * @param limit the maximal number of submissions returned
+     * @return the submissions, sorted by id
+     * @throws SQLException
+     */
+    List<Submission> readSubmissionPage(Exercise exercise, int afterId, int limit) throws SQLException {
+        PreparedStatement ps = statements.prepare(SQL_QUERY_SUBMISSION_PAGE);
+        ps.setInt(1, exercise.id);
+        ps.setInt(2, afterId);
+        ps.setInt(3, limit);
+
+        List<Submission> page = new ArrayList<>(limit);
+        try (ResultSet rs = ps.executeQuery()) {
+            Submission submission = null;
+            while (rs.next()) {
+                int id = rs.getInt(1);
+                if (submission == null || submission.id != id) {
+                    User user = new User(rs.getString(3), rs.getString(4), rs.getString(5));
+                    submission = new Submission(id, user, exercise, new Date(rs.getLong(2)), new float[exercise.questions.size()]);
+                    page.add(submission);
+                }
+                byte[] packed = rs.getBytes(8);
+                if (packed != null) {
+                    PackedGrades.decode(packed, submission.questionGrades);
+                    continue;
+                }
+                // QuestionId is NULL for a submission without grades or with packed grades; ids are 1-based
+                int questionId = rs.getInt(6);
+                if (!rs.wasNull() && questionId >= 1 && questionId <= submission.questionGrades.length)
+                    submission.questionGrades[questionId - 1] = rs.getFloat(7);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Load the grades of all graded submissions of an exercise into a columnar snapshot for analytics.
+     *
+     * @param exercise the exercise, with its questions
+     * @return the snapshot; {@link GradebookSnapshot#refresh(Smarticulous)} appends later submissions
+     * @throws SQLException
+     */
+    public GradebookSnapshot loadGradebook(Exercise exercise) throws SQLException {
+        return timed("loadGradebook", () -> {
+            GradebookSnapshot snapshot = new GradebookSnapshot(exercise);
+            snapshot.refresh(this);
+            return snapshot;
+        });
     }
 }
@@ -0,0 +1,131 @@
+package smarticulous;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A registry of prepared statements that belongs to a single {@link Connection}.
+ * <p>
+ * Every SQL string is prepared once, and later requests for the same string get the same
+ * statement back. All the statements are released together when the registry is closed.
+ * <p>
+ * The registry keeps count of hits (a statement was reused) and misses (a statement had to be
+ * prepared), so the effect of the cache can be observed.
+ */
+public class StatementCache implements AutoCloseable {
+
+    /**
+     * The connection the statements are prepared on.
+     */
+    private final Connection db;
+
+    /**
+     * Statements prepared without generated keys, by SQL string.
+     */
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    /**
+     * Statements prepared with {@link Statement#RETURN_GENERATED_KEYS}, by SQL string.
+     */
+    private final Map<String, PreparedStatement> keyedStatements = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+    StatementCache(Connection db) {
+        this.db = db;
+    }
+
+    /**
+     * Return a prepared statement for the given SQL, preparing it only if it is not cached yet.
+     *
+     * @param sql the SQL string
+     * @return a reusable prepared statement; the caller must not close it
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Return a prepared statement for the given SQL, preparing it only if it is not cached yet.
+     *
+     * @param sql the SQL string
+     * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or {@link Statement#NO_GENERATED_KEYS}
+     * @return a reusable prepared statement; the caller must not close it
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        Map<String, PreparedStatement> cache =
+                autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? keyedStatements : statements;
+
+        PreparedStatement ps = cache.get(sql);
+        // A statement a caller closed by mistake is prepared again
+        if (ps != null && !ps.isClosed()) {
+            ps.clearParameters();
+            ++hits;
+            return ps;
+        }
+
+        ps = db.prepareStatement(sql, autoGeneratedKeys);
+        cache.put(sql, ps);
+        ++misses;
+        return ps;
+    }
+
+    /**
+     * @return the number of requests answered with an already prepared statement.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that had to prepare a new statement.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of statements currently held by the registry.
+     */
+    public int size() {
+        return statements.size() + keyedStatements.size();
+    }
+
+    /**
+     * Close every statement held by the registry.
+     * <p>
+     * All the statements are closed even if some of them fail; the first failure is rethrown.
+     *
+     * @throws SQLException
+     */
+    @Override
+    public void close() throws SQLException {
+        SQLException failure = null;
+        for (Map<String, PreparedStatement> cache : Arrays.asList(statements, keyedStatements)) {
+            for (PreparedStatement ps : cache.values()) {
+                try {
+                    ps.close();
+                } catch (SQLException e) {
+                    if (failure == null)
+                        failure = e;
+                }
+            }
+            cache.clear();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCache[size=" + size() + ", hits=" + hits + ", misses=" + misses + "]";
+    }
+}
@@ -0,0 +1,187 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * The storage of Smarticulous: users, exercises, submissions and their grades.
+ * <p>
+ * There are three implementations:
+ * <ul>
+ *   <li>{@link Smarticulous} and {@link ConcurrentSmarticulous} keep everything in an SQLite database.</li>
+ *   <li>{@link MemoryStorage} keeps everything in memory, optionally snapshotted to a file; it serves
+ *   read replicas and tests.</li>
+ *   <li>{@link LoggedStorage} makes a MemoryStorage durable with a write-ahead {@link EventLog}.</li>
+ * </ul>
+ * All follow the contract documented here, and pass the same tests. Grades are passed in points, as in
+ * {@link Submission#questionGrades}, and returned as stored by {@link #addGrade(Submission)}.
+ * <p>
+ * Implementations throw {@link SQLException} for storage errors, e.g. grading a submission twice.
+ */
+public interface Storage extends AutoCloseable {
+
+    /**
+     * Add a user, or update the names and password of the user with the same username.
+     *
+     * @return the user id.
+     * @throws SQLException
+     */
+    int addOrUpdateUser(User user, String password) throws SQLException;
+
+    /**
+     * @return true if the user exists and the password matches; false otherwise.
+     * @throws SQLException
+     */
+    boolean verifyLogin(String username, String password) throws SQLException;
+
+    /**
+     * Add an exercise and its questions.
+     *
+     * @return the exercise id, or -1 if an exercise with this id already exists.
+     * @throws SQLException
+     */
+    int addExercise(Exercise exercise) throws SQLException;
+
+    /**
+     * @return all the exercises with their questions, sorted by exercise id. They must not be modified.
+     * @throws SQLException
+     */
+    List<Exercise> loadExercises() throws SQLException;
+
+    /**
+     * @return the exercise with the given id, or null if there is none. It must not be modified.
+     * @throws SQLException
+     */
+    Exercise getExercise(int id) throws SQLException;
+
+    /**
+     * Store a submission; its id is used unless it is -1.
+     *
+     * @return the submission id, or -1 if the user doesn't exist.
+     * @throws SQLException
+     */
+    int storeSubmission(Submission submission) throws SQLException;
+
+    /**
+     * Store many submissions, writing their ids back. Submissions of unknown users are skipped and
+     * their id is set to -1.
+     *
+     * @return the number of submissions stored.
+     * @throws SQLException
+     */
+    int storeSubmissions(Iterable<Submission> submissions) throws SQLException;
+
+    /**
+     * Store the question grades of a stored submission, all or none of them.
+     *
+     * @throws SQLException if the grades can't be stored, e.g. because the submission was already graded
+     */
+    void addGrade(Submission submission) throws SQLException;
+
+    /**
+     * Store the question grades of many stored submissions.
+     *
+     * @return the number of submissions whose grades were stored.
+     * @throws SQLException
+     */
+    int addGrades(Iterable<Submission> submissions) throws SQLException;
+
+    /**
+     * @return the latest graded submission of the user for the exercise, or null if there is none.
+     * @throws SQLException
+     */
+    Submission getLastSubmission(User user, Exercise exercise) throws SQLException;
+
+    /**
+     * @return the graded submission of the user for the exercise with the highest point total (ties go
+     * to the latest one), or null if there is none.
+     * @throws SQLException
+     */
+    Submission getBestSubmission(User user, Exercise exercise) throws SQLException;
+
+    /**
+     * The latest graded submissions of several users for one exercise. This implementation calls
+     * {@link #getLastSubmission(User, Exercise)} for each user.
+     *
+     * @return the submissions by username; users without one are left out.
+     * @throws SQLException
+     */
+    default Map<String, Submission> getLastSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        Map<String, Submission> submissions = new HashMap<>();
+        for (User user : users) {
+            Submission submission = getLastSubmission(user, exercise);
+            if (submission != null)
+                submissions.put(user.username, submission);
+        }
+        return submissions;
+    }
+
+    /**
+     * The best graded submissions of several users for one exercise, as {@link #getBestSubmission(User, Exercise)}.
+     *
+     * @return the submissions by username; users without one are left out.
+     * @throws SQLException
+     */
+    default Map<String, Submission> getBestSubmissions(Collection<User> users, Exercise exercise) throws SQLException {
+        Map<String, Submission> submissions = new HashMap<>();
+        for (User user : users) {
+            Submission submission = getBestSubmission(user, exercise);
+            if (submission != null)
+                submissions.put(user.username, submission);
+        }
+        return submissions;
+    }
+
+    /**
+     * The latest graded submissions of one user for several exercises.
+     *
+     * @return the submissions by exercise id; exercises without one are left out.
+     * @throws SQLException
+     */
+    default Map<Integer, Submission> getLastSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        Map<Integer, Submission> submissions = new HashMap<>();
+        for (Exercise exercise : exercises) {
+            Submission submission = getLastSubmission(user, exercise);
+            if (submission != null)
+                submissions.put(exercise.id, submission);
+        }
+        return submissions;
+    }
+
+    /**
+     * The best graded submissions of one user for several exercises.
+     *
+     * @return the submissions by exercise id; exercises without one are left out.
+     * @throws SQLException
+     */
+    default Map<Integer, Submission> getBestSubmissions(User user, Collection<Exercise> exercises) throws SQLException {
+        Map<Integer, Submission> submissions = new HashMap<>();
+        for (Exercise exercise : exercises) {
+            Submission submission = getBestSubmission(user, exercise);
+            if (submission != null)
+                submissions.put(exercise.id, submission);
+        }
+        return submissions;
+    }
+
+    /**
+     * @return all submissions of an exercise in order of their ids, with their grades (0 where there is none).
+     */
+    Stream<Submission> streamSubmissions(Exercise exercise);
+
+    /**
+     * Release the storage.
+     *
+     * @throws SQLException
+     */
+    @Override
+    void close() throws SQLException;
+}
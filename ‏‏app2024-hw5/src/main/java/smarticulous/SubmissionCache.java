@@ -0,0 +1,357 @@
+package smarticulous;
+
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded cache of each user's latest and best graded submission per exercise, keyed by
+ * (username, exercise id).
+ * <p>
+ * Near a deadline, students reload their results over and over. With a cache set
+ * ({@link Smarticulous#setSubmissionCache(SubmissionCache)}), {@link Smarticulous#getLastSubmission(User, Exercise)}
+ * and {@link Smarticulous#getBestSubmission(User, Exercise)} are answered from here, including the
+ * answer that there is no submission, and only a miss reads the database. Entries expire after
+ * {@link #getTtlMillis()}, and the least recently used ones are evicted once more than
+ * {@link #getCapacity()} are cached.
+ * <p>
+ * The cache is written through: once a transaction that stored grades commits, the cached entries of
+ * those users and exercises are replaced by the newly graded submission where it became the latest or
+ * the best, exactly as the database would answer. A best submission that can't be decided from the cached
+ * point totals alone (a near tie) is dropped instead, and read again on the next request. Changes made
+ * through other connections to the same file are not seen until entries expire.
+ * <p>
+ * Concurrent misses of the same entry wait for a single load instead of all reading the database. A load
+ * that overlaps a write of its entry is handed to the callers that were already waiting, but not cached.
+ * <p>
+ * The cache is thread-safe and may be shared by several connections to the same database (as
+ * {@link ConcurrentSmarticulous} does). The cached {@link Submission} objects are handed out as they are,
+ * with grades as fractions as the database returns them, and must not be modified.
+ */
+public class SubmissionCache {
+
+    /**
+     * The default maximal number of cached entries.
+     */
+    public static final int DEFAULT_CAPACITY = 100_000;
+
+    /**
+     * The default time an entry is kept.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+    /**
+     * The identity of an entry: the latest or best submission of a user for an exercise.
+     */
+    private static final class Key {
+        final boolean best;
+        final String username;
+        final int exerciseId;
+
+        Key(boolean best, String username, int exerciseId) {
+            this.best = best;
+            this.username = username;
+            this.exerciseId = exerciseId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return best == other.best && exerciseId == other.exerciseId && username.equals(other.username);
+        }
+
+        @Override
+        public int hashCode() {
+            return (username.hashCode() * 31 + exerciseId) * 2 + (best ? 1 : 0);
+        }
+    }
+
+    /**
+     * A cached submission, or null for no submission.
+     */
+    private static class Cached {
+        final Submission submission;
+        final long expiresAt;
+
+        Cached(Submission submission, long expiresAt) {
+            this.submission = submission;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+
+    /**
+     * The cached entries, least recently used first.
+     */
+    private final Map<Key, Cached> entries;
+
+    /**
+     * The loads in progress. A write removes the loads of its entries, so they aren't cached.
+     */
+    private final Map<Key, CompletableFuture<Submission>> loading = new HashMap<>();
+
+    private long hits;
+    private long misses;
+    private long waits;
+    private long evictions;
+    private long expirations;
+    private long writes;
+
+    /**
+     * Create a cache with the default capacity and time to live.
+     */
+    public SubmissionCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param capacity the maximal number of cached entries (each user and exercise takes up to two)
+     * @param ttlMillis how long an entry is kept
+     */
+    public SubmissionCache(int capacity, long ttlMillis) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (ttlMillis < 0)
+            throw new IllegalArgumentException("ttlMillis must not be negative: " + ttlMillis);
+
+        this.capacity = capacity;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() <= SubmissionCache.this.capacity)
+                    return false;
+                ++evictions;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Return the latest or best submission of a user for an exercise, loading it on a miss.
+     *
+     * @param best whether to return the best submission rather than the latest
+     * @param load reads the submission from the database
+     * @return the submission, or null if there is none.
+     * @throws SQLException
+     */
+    Submission get(boolean best, User user, Exercise exercise, Smarticulous.SqlWork<Submission> load) throws SQLException {
+        Key key = new Key(best, user.username, exercise.id);
+        CompletableFuture<Submission> running;
+        CompletableFuture<Submission> mine = null;
+        synchronized (this) {
+            Cached entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt - System.nanoTime() > 0) {
+                    ++hits;
+                    return entry.submission;
+                }
+                entries.remove(key);
+                ++expirations;
+            }
+            ++misses;
+            running = loading.get(key);
+            if (running == null) {
+                mine = new CompletableFuture<>();
+                loading.put(key, mine);
+            } else {
+                ++waits;
+            }
+        }
+        if (running != null)
+            return await(running);
+
+        Submission submission;
+        try {
+            submission = load.run();
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key, mine);
+            }
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            // Not if a write detached this load; the callers already waiting still get its result
+            if (loading.remove(key, mine))
+                entries.put(key, new Cached(submission, System.nanoTime() + ttlNanos));
+        }
+        mine.complete(submission);
+        return submission;
+    }
+
+    // Waits for another caller's load of the same entry
+    private static Submission await(CompletableFuture<Submission> load) throws SQLException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a submission to load", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException)
+                throw (SQLException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Write through the submissions graded by a committed transaction.
+     *
+     * @param graded the submissions, with their grades as stored: fractions of the questions' points
+     */
+    synchronized void written(List<Submission> graded) {
+        long expiresAt = System.nanoTime() + ttlNanos;
+        for (Submission submission : graded) {
+            ++writes;
+            Key lastKey = new Key(false, submission.user.username, submission.exercise.id);
+            Key bestKey = new Key(true, submission.user.username, submission.exercise.id);
+            loading.remove(lastKey);
+            loading.remove(bestKey);
+
+            Cached last = entries.get(lastKey);
+            if (last != null && (last.submission == null || isLater(submission, last.submission)))
+                entries.put(lastKey, new Cached(submission, expiresAt));
+
+            Cached best = entries.get(bestKey);
+            if (best != null) {
+                int c = best.submission == null ? 1 : compareTotals(submission, best.submission);
+                if (c == UNDECIDED)
+                    entries.remove(bestKey);
+                else if (c > 0 || (c == 0 && isLater(submission, best.submission)))
+                    entries.put(bestKey, new Cached(submission, expiresAt));
+            }
+        }
+    }
+
+    /**
+     * The result of {@link #compareTotals(Submission, Submission)} when the totals are too close to call.
+     */
+    private static final int UNDECIDED = 2;
+
+    // Compares point totals, summed as the ScoreSummary sums them
+    private static int compareTotals(Submission a, Submission b) {
+        double totalA = totalPoints(a);
+        double totalB = totalPoints(b);
+        if (totalA == totalB)
+            return 0;
+        // The database sums the same values, but maybe in another order
+        if (Math.abs(totalA - totalB) <= 1e-9 * Math.max(1, Math.abs(totalB)))
+            return UNDECIDED;
+        return totalA > totalB ? 1 : -1;
+    }
+
+    private static double totalPoints(Submission submission) {
+        List<Exercise.Question> questions = submission.exercise.questions;
+        double total = 0;
+        for (int i = 0; i < questions.size(); ++i)
+            total += (double) submission.questionGrades[i] * questions.get(i).points;
+        return total;
+    }
+
+    // Ordered as the ScoreSummary flags the latest submission: by time, then by id
+    private static boolean isLater(Submission a, Submission b) {
+        long c = a.submissionTime.getTime() - b.submissionTime.getTime();
+        return c > 0 || (c == 0 && a.id > b.id);
+    }
+
+    /**
+     * Forget all entries, e.g. because grades were rewritten.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        loading.clear();
+    }
+
+    /**
+     * @return the maximal number of cached entries.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return how long an entry is kept.
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * @return the number of lookups answered from the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups not answered from the cache, including those that waited for another load.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of misses that waited for a load already in progress instead of reading the database.
+     */
+    public synchronized long getWaits() {
+        return waits;
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, or 0 before the first lookup.
+     */
+    public synchronized double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @return the number of entries dropped to make room for new ones.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries dropped because they expired.
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /**
+     * @return the number of graded submissions written through.
+     */
+    public synchronized long getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the number of cached entries (including expired ones not yet dropped).
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SubmissionCache[size=" + entries.size() + ", capacity=" + capacity + ", hits=" + hits +
+                ", misses=" + misses + ", waits=" + waits + ", evictions=" + evictions + "]";
+    }
+}
@@ -0,0 +1,102 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A lazy iterator over the submissions of an exercise, in order of their ids.
+ * <p>
+ * The submissions are read a page at a time, with keyset pagination: each page is a separate query for the
+ * next submissions after the last id seen. No result set is held open between pages, so the cursor needs
+ * no closing, holds only one page in memory, and doesn't block writers between pages. Submissions added
+ * while iterating are returned if their ids are past the current page.
+ * <p>
+ * A database error while fetching a page is thrown as a {@link RuntimeException} whose cause is the
+ * {@link SQLException}, since iterators can't throw checked exceptions.
+ */
+public class SubmissionCursor implements Iterator<Submission> {
+
+    /**
+     * Reads one page of submissions.
+     */
+    interface PageReader {
+        /**
+         * @param afterId the id of the last submission already returned (0 before the first page)
+         * @param limit the maximal number of submissions to return
+         * @return the next submissions, sorted by id
+         */
+        List<Submission> read(int afterId, int limit) throws SQLException;
+    }
+
+    private final PageReader reader;
+    private final int pageSize;
+
+    private List<Submission> page = Collections.emptyList();
+    private int position;
+    private int lastId;
+    private boolean exhausted;
+    private int pages;
+
+    /**
+     * @param reader reads the pages
+     * @param pageSize the number of submissions per page
+     */
+    SubmissionCursor(PageReader reader, int pageSize) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+        this.reader = reader;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (position < page.size())
+            return true;
+        if (exhausted)
+            return false;
+
+        try {
+            page = reader.read(lastId, pageSize);
+        } catch (SQLException e) {
+            throw new RuntimeException("Reading a page of submissions failed", e);
+        }
+        position = 0;
+        ++pages;
+        // A short page is the last one, which saves an empty query at the end
+        exhausted = page.size() < pageSize;
+        if (!page.isEmpty())
+            lastId = page.get(page.size() - 1).id;
+        return !page.isEmpty();
+    }
+
+    @Override
+    public Submission next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return page.get(position++);
+    }
+
+    /**
+     * @return the number of pages read so far.
+     */
+    public int getPages() {
+        return pages;
+    }
+
+    /**
+     * @return a sequential stream of the remaining submissions.
+     */
+    public Stream<Submission> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+    }
+}
@@ -0,0 +1,158 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Imports a stream of submissions one block at a time, in three stages:
+ * <ol>
+ *   <li>Up to {@link #BLOCK_SIZE} submissions are pulled from the source into a bounded block, so the
+ *   source never has to fit in memory.</li>
+ *   <li>The user ids of the block's distinct usernames that weren't seen before are resolved with one
+ *   query.</li>
+ *   <li>The block is inserted with one JDBC batch, and the new submission ids are written back
+ *   into the {@link Submission} objects.</li>
+ * </ol>
+ * Everything runs on the calling thread. The source may therefore be tied to that thread, or read through
+ * the same connection (e.g. {@link Smarticulous#streamSubmissions(smarticulous.db.Exercise)}), which would
+ * not be safe if it were iterated or written on a thread of its own.
+ * <p>
+ * The caller is responsible for running the import inside a transaction.
+ */
+class SubmissionImporter {
+
+    /**
+     * The number of submissions inserted with one batch.
+     * <p>
+     * This is also the number of usernames resolved by one query, so it must stay below
+     * SQLite's limit of 999 bound parameters.
+     */
+    static final int BLOCK_SIZE = 500;
+
+    /**
+     * The user query, with one parameter per username of a block (unused parameters stay NULL).
+     */
+    static final String SQL_QUERY_USERS = "SELECT Username, UserId FROM User WHERE Username IN (" +
+            String.join(",", Collections.nCopies(BLOCK_SIZE, "?")) + ")";
+
+    private final StatementCache statements;
+
+    /**
+     * User ids by username, or -1 for usernames that are not in the database.
+     */
+    private final Map<String, Integer> userIds = new HashMap<>();
+
+    /**
+     * The id given to the next submission that has none, or 0 before it was read from the database.
+     */
+    private int nextId = 0;
+
+    SubmissionImporter(StatementCache statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * Import all the submissions of the source.
+     * <p>
+     * Every stored submission gets its id written back. Submissions whose user doesn't exist
+     * in the database are skipped, and their id is set to -1. Whatever the source throws is
+     * passed on, so that the caller's transaction is rolled back.
+     *
+     * @param source the submissions to import
+     * @return the number of submissions stored
+     * @throws SQLException
+     */
+    int run(Iterable<Submission> source) throws SQLException {
+        int stored = 0;
+        List<Submission> block = new ArrayList<>(BLOCK_SIZE);
+        for (Submission submission : source) {
+            block.add(submission);
+            if (block.size() == BLOCK_SIZE) {
+                stored += storeBlock(block);
+                block.clear();
+            }
+        }
+        if (!block.isEmpty())
+            stored += storeBlock(block);
+        return stored;
+    }
+
+    // The resolve and insert stages for one block of submissions
+    private int storeBlock(List<Submission> block) throws SQLException {
+        resolveUsers(block);
+
+        if (nextId == 0) {
+            PreparedStatement psMax = statements.prepare("SELECT COALESCE(MAX(SubmissionId), 0) FROM Submission");
+            try (ResultSet rs = psMax.executeQuery()) {
+                nextId = rs.getInt(1) + 1;
+            }
+        }
+
+        String sqlQueryStore = "INSERT INTO Submission (SubmissionId, UserId, ExerciseId, SubmissionTime) VALUES (?,?,?,?)";
+        PreparedStatement psStore = statements.prepare(sqlQueryStore);
+        psStore.clearBatch();
+
+        // Ids are assigned up front, since a batch doesn't report generated keys
+        int[] ids = new int[block.size()];
+        int stored = 0;
+        for (int i = 0; i < block.size(); ++i) {
+            Submission submission = block.get(i);
+            int userId = userIds.get(submission.user.username);
+            if (userId == -1) {
+                ids[i] = -1;
+                continue;
+            }
+
+            ids[i] = submission.id == -1 ? nextId : submission.id;
+            nextId = Math.max(nextId, ids[i] + 1);
+
+            psStore.setInt(1, ids[i]);
+            psStore.setInt(2, userId);
+            psStore.setInt(3, submission.exercise.id);
+            java.sql.Date sqlTime = new java.sql.Date(submission.submissionTime.getTime());
+            psStore.setDate(4, sqlTime);
+            psStore.addBatch();
+            ++stored;
+        }
+        psStore.executeBatch();
+
+        // Write the ids back only once the rows are in
+        for (int i = 0; i < block.size(); ++i)
+            block.get(i).id = ids[i];
+        return stored;
+    }
+
+    // Resolves the usernames of a block that haven't been seen yet with a single query
+    private void resolveUsers(List<Submission> block) throws SQLException {
+        List<String> unknown = new ArrayList<>();
+        for (Submission submission : block) {
+            String username = submission.user.username;
+            if (!userIds.containsKey(username)) {
+                // Mark as pending so that each username is queried once
+                userIds.put(username, -1);
+                unknown.add(username);
+            }
+        }
+        if (unknown.isEmpty())
+            return;
+
+        PreparedStatement psUsers = statements.prepare(SQL_QUERY_USERS);
+        Iterator<String> names = unknown.iterator();
+        for (int i = 1; i <= BLOCK_SIZE; ++i)
+            psUsers.setString(i, names.hasNext() ? names.next() : null);
+
+        try (ResultSet rs = psUsers.executeQuery()) {
+            while (rs.next())
+                userIds.put(rs.getString(1), rs.getInt(2));
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package smarticulous;
+
+import smarticulous.db.Submission;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An asynchronous front end for storing graded submissions, e.g. during a deadline spike.
+ * <p>
+ * Callers hand submissions to {@link #submit(Submission)} and get a future of the submission id back.
+ * A single writer thread drains the queue and stores everything that arrived within
+ * {@link #getMaxDelayMillis()} of the first pending submission (or {@link #getMaxGroupSize()} submissions,
+ * whichever comes first) in one transaction, so a burst of submissions costs a few commits instead of one
+ * each. The price is at most maxDelayMillis of extra latency.
+ * <p>
+ * The queue is bounded: once {@link #getCapacity()} submissions are waiting, {@link #submit(Submission)}
+ * blocks until the writer catches up.
+ * <p>
+ * Writes go through the writer connection of a {@link ConcurrentSmarticulous}, so they are serialized with
+ * its other writes. Futures are completed on the writer thread.
+ */
+public class SubmissionIngest implements AutoCloseable {
+
+    /**
+     * The default maximal number of submissions committed together.
+     */
+    public static final int DEFAULT_MAX_GROUP_SIZE = 256;
+
+    /**
+     * The default time the writer waits for more submissions before committing.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5;
+
+    /**
+     * The default number of submissions that may wait for the writer.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * A submission waiting for the writer, with the future of its id.
+     */
+    private static class Pending {
+        final Submission submission;
+        final CompletableFuture<Integer> id = new CompletableFuture<>();
+
+        Pending(Submission submission) {
+            this.submission = submission;
+        }
+    }
+
+    private final ConcurrentSmarticulous pool;
+    private final int maxGroupSize;
+    private final long maxDelayMillis;
+    private final GroupingQueue<Pending> queue;
+
+    private volatile long commits;
+
+    /**
+     * Start an ingest with the default group size, delay and capacity.
+     *
+     * @param pool the database the submissions are stored in
+     */
+    public SubmissionIngest(ConcurrentSmarticulous pool) {
+        this(pool, DEFAULT_MAX_GROUP_SIZE, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Start an ingest.
+     *
+     * @param pool the database the submissions are stored in
+     * @param maxGroupSize the maximal number of submissions committed together
+     * @param maxDelayMillis how long the writer waits for more submissions before committing
+     * @param capacity the number of submissions that may wait before {@link #submit(Submission)} blocks
+     */
+    public SubmissionIngest(ConcurrentSmarticulous pool, int maxGroupSize, long maxDelayMillis, int capacity) {
+        if (maxGroupSize < 1)
+            throw new IllegalArgumentException("maxGroupSize must be positive: " + maxGroupSize);
+        if (maxDelayMillis < 0)
+            throw new IllegalArgumentException("maxDelayMillis must not be negative: " + maxDelayMillis);
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+        this.pool = pool;
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.queue = new GroupingQueue<>("submission-ingest-writer", maxGroupSize, maxDelayMillis, capacity,
+                this::storeGroup, (pending, e) -> pending.id.completeExceptionally(e));
+    }
+
+    /**
+     * Queue a submission to be stored with its grades, waiting for room if the queue is full.
+     * <p>
+     * The future completes with the submission id (which is also written back into the submission),
+     * or -1 if the user doesn't exist in the database, in which case no grades are stored.
+     * It completes exceptionally if the submission could not be stored.
+     *
+     * @param submission the submission to store; if its questionGrades is null, only the submission is stored
+     * @return the future id of the submission
+     * @throws IllegalStateException if the ingest was closed
+     */
+    public CompletableFuture<Integer> submit(Submission submission) {
+        if (queue.isClosed())
+            throw new IllegalStateException("Submission ingest is closed");
+
+        Pending pending = new Pending(submission);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.id.completeExceptionally(e);
+        }
+        return pending.id;
+    }
+
+    // Stores a group in one transaction; if that fails, stores its submissions one by one
+    // so that a single bad submission only fails its own future
+    private void storeGroup(List<Pending> group) {
+        int[] originalIds = new int[group.size()];
+        for (int i = 0; i < group.size(); ++i)
+            originalIds[i] = group.get(i).submission.id;
+
+        List<Integer> ids;
+        try {
+            ids = pool.write(s -> s.inTransaction(() -> store(s, group)));
+        } catch (Throwable e) {
+            // The ids written back belong to the rolled back transaction
+            for (int i = 0; i < group.size(); ++i)
+                group.get(i).submission.id = originalIds[i];
+            for (Pending pending : group) {
+                try {
+                    List<Pending> single = new ArrayList<>(1);
+                    single.add(pending);
+                    pending.id.complete(pool.write(s -> s.inTransaction(() -> store(s, single))).get(0));
+                    ++commits;
+                } catch (Throwable e1) {
+                    pending.id.completeExceptionally(e1);
+                }
+            }
+            return;
+        }
+
+        ++commits;
+        // Complete the futures only once the group is committed
+        for (int i = 0; i < group.size(); ++i)
+            group.get(i).id.complete(ids.get(i));
+    }
+
+    // Stores the submissions and then all their grades, inside the caller's transaction
+    private static List<Integer> store(Smarticulous smarticulous, List<Pending> group) throws SQLException {
+        List<Integer> ids = new ArrayList<>(group.size());
+        List<Submission> graded = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            Submission submission = pending.submission;
+            int id = smarticulous.storeSubmission(submission);
+            ids.add(id);
+            if (id != -1 && submission.questionGrades != null) {
+                submission.id = id;
+                graded.add(submission);
+            }
+        }
+        smarticulous.addGrades(graded);
+        return ids;
+    }
+
+    /**
+     * @return the number of transactions committed so far.
+     */
+    public long getCommits() {
+        return commits;
+    }
+
+    /**
+     * @return the maximal number of submissions committed together.
+     */
+    public int getMaxGroupSize() {
+        return maxGroupSize;
+    }
+
+    /**
+     * @return how long the writer waits for more submissions before committing.
+     */
+    public long getMaxDelayMillis() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * @return the number of submissions that may wait before {@link #submit(Submission)} blocks.
+     */
+    public int getCapacity() {
+        return queue.getCapacity();
+    }
+
+    /**
+     * Stop accepting submissions and wait until the ones already queued are stored.
+     * <p>
+     * Does not close the underlying {@link ConcurrentSmarticulous}.
+     *
+     * @throws SQLException if interrupted while waiting; submissions still queued then fail
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            queue.close("Submission ingest is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for queued submissions", e);
+        }
+    }
+}
@@ -3,15 +3,45 @@ package smarticulous;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import com.sun.net.httpserver.HttpServer;
 import smarticulous.db.Exercise;
 import smarticulous.db.Submission;
 import smarticulous.db.User;
 
 import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -40,7 +70,7 @@ public class SmarticulousTest {
     public void tearDown() throws Exception {
         db.close();
         if (tmpdb != null)
-            tmpdb.delete();
+            deleteDbFiles(tmpdb);
     }
 
     /**
@@ -90,7 +120,7 @@ public class SmarticulousTest {
         try {
             smarticulous.openDB(db.getDbUrl());
 
-            db.checkTableStructure();
+            checkReferenceTables();
 
             smarticulous.closeDB();
         } catch (Exception e) {
@@ -98,6 +128,58 @@ public class SmarticulousTest {
         }
     }
 
+    // Runs the reference structure check on the tables openDB created, except the packed grades and the
+    // score summary, which Smarticulous keeps in the same database: they are copied to an empty database
+    // and checked there
+    private void checkReferenceTables() throws Exception {
+        DBUtil reference = new DBUtil(1);
+        reference.open(null);
+        try {
+            try (Statement st = smarticulous.db.createStatement();
+                 Statement copy = reference.getDbCon().createStatement()) {
+                ResultSet rs = st.executeQuery("SELECT sql FROM sqlite_master WHERE type = 'table' " +
+                        "AND name NOT IN ('" + PackedGrades.TABLE + "', '" + ScoreSummary.TABLE + "')");
+                while (rs.next())
+                    copy.execute(rs.getString(1));
+            }
+            reference.checkTableStructure();
+        } finally {
+            reference.close();
+        }
+    }
+
+    /**
+     * Test that openDB migrates an existing database to the current schema version.
+     */
+    @Test
+    public void create_migrateSchema() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        assertEquals("The schema version was not updated", Schema.VERSION, Schema.version(smarticulous.db));
+        assertTrue(Schema.hasIndexOn(smarticulous.db, "Submission", "UserId"));
+
+        smarticulous.closeDB();
+
+        // Opening an up-to-date database applies nothing
+        smarticulous.openDB(db.getDbUrl());
+        assertEquals(0, Schema.migrate(smarticulous.db));
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void create_hotQueriesUseIndexes() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+
+        List<String> scans = smarticulous.findFullScans();
+        assertTrue("Hot queries scan whole tables: " + scans, scans.isEmpty());
+
+        // A query without a usable index is reported
+        scans = Schema.findFullScans(smarticulous.db, Collections.singletonList("SELECT * FROM Submission WHERE SubmissionTime > 0"));
+        assertEquals(scans.toString(), 1, scans.size());
+
+        smarticulous.closeDB();
+    }
+
     @Test
     public void user_addUser() {
         try {
@@ -155,6 +237,180 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void user_hashPasswords() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User existing = db.getUser(userId);
+        String existingPass = db.getPassword(userId);
+
+        smarticulous.openDB(db.getDbUrl());
+        try (PasswordHasher hasher = new PasswordHasher(1000, 2)) {
+            smarticulous.setPasswordHasher(hasher);
+
+            // A login hashes a plaintext password
+            assertTrue(smarticulous.verifyLogin(existing.username, existingPass));
+            assertFalse(hasher.needsRehash(smarticulous.storedPassword(existing.username)));
+
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            String pass = getRandomString(10);
+            int id = smarticulous.addOrUpdateUser(user, pass);
+
+            // The first call hashed the passwords that were already there
+            try (Statement st = smarticulous.db.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT Password FROM User")) {
+                while (rs.next())
+                    assertTrue("Plaintext password left behind", PasswordHasher.isHash(rs.getString(1)));
+            }
+            assertFalse(hasher.needsRehash(smarticulous.storedPassword(user.username)));
+            assertEquals(0, smarticulous.migrateCredentials());
+
+            assertTrue(smarticulous.verifyLogin(user.username, pass));
+            assertTrue(smarticulous.verifyLogin(existing.username, existingPass));
+            assertFalse(smarticulous.verifyLogin(user.username, getRandomString(10)));
+            assertFalse(smarticulous.verifyLogin(existing.username, smarticulous.storedPassword(existing.username)));
+
+            // Updating keeps the id and replaces the hash
+            String newPass = getRandomString(10);
+            assertEquals(id, smarticulous.addOrUpdateUser(user, newPass));
+            assertFalse(smarticulous.verifyLogin(user.username, pass));
+            assertTrue(smarticulous.verifyLogin(user.username, newPass));
+
+            // A login hashes a password of a different cost again
+            try (PasswordHasher stronger = new PasswordHasher(2000, 2)) {
+                smarticulous.setPasswordHasher(stronger);
+                smarticulous.getLoginCache().invalidate(user.username);
+                assertTrue(stronger.needsRehash(smarticulous.storedPassword(user.username)));
+                assertTrue(smarticulous.verifyLogin(user.username, newPass));
+                assertFalse(stronger.needsRehash(smarticulous.storedPassword(user.username)));
+                smarticulous.getLoginCache().invalidate(user.username);
+                assertTrue(smarticulous.verifyLogin(user.username, newPass));
+            }
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void user_hashPasswordsOutsideTransactions() throws Exception {
+        AtomicBoolean blocked = new AtomicBoolean();
+
+        smarticulous.openDB(db.getDbUrl());
+        try (PasswordHasher hasher = watchingHasher(smarticulous, blocked)) {
+            smarticulous.setPasswordHasher(hasher);
+            smarticulous.addOrUpdateUser(new User(getRandomString(10), db.getRandomWord(), db.getRandomWord()), getRandomString(10));
+            assertTrue(smarticulous.plaintextPasswords().isEmpty());
+        }
+        smarticulous.closeDB();
+        assertFalse("A password was hashed inside a transaction", blocked.get());
+
+        File file = File.createTempFile("testHash", "sqlite");
+        file.delete();
+        try (ConcurrentSmarticulous pool = new ConcurrentSmarticulous(db.convertFileToURL(file), 2)) {
+            List<User> users = new ArrayList<>();
+            for (int i = 0; i < 10; ++i) {
+                User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+                pool.addOrUpdateUser(user, "pass" + i);
+                users.add(user);
+            }
+            try (PasswordHasher hasher = watchingHasher(pool.write(s -> s), blocked)) {
+                pool.setPasswordHasher(hasher);
+                pool.addOrUpdateUser(new User(getRandomString(10), db.getRandomWord(), db.getRandomWord()), getRandomString(10));
+                assertTrue(pool.write(Smarticulous::plaintextPasswords).isEmpty());
+                for (int i = 0; i < users.size(); ++i)
+                    assertTrue(pool.verifyLogin(users.get(i).username, "pass" + i));
+            }
+        } finally {
+            deleteDbFiles(file);
+        }
+        assertFalse("A password was hashed while holding the writer", blocked.get());
+    }
+
+    // A hasher that records whether a hash was waited for while the connection was taken or in a transaction
+    private static PasswordHasher watchingHasher(Smarticulous connection, AtomicBoolean blocked) {
+        return new PasswordHasher(1000, 2) {
+            @Override
+            public CompletableFuture<String> hashAsync(String password) {
+                CompletableFuture<String> hash = super.hashAsync(password);
+                return new CompletableFuture<String>() {
+                    @Override
+                    public String join() {
+                        try {
+                            if (Thread.holdsLock(connection) || !connection.db.getAutoCommit())
+                                blocked.set(true);
+                        } catch (SQLException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return hash.join();
+                    }
+                };
+            }
+        };
+    }
+
+    @Test
+    public void user_loginCache() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+
+        smarticulous.openDB(db.getDbUrl());
+        LoginCache logins = smarticulous.getLoginCache();
+
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+        long hits = logins.getHits();
+        assertTrue(smarticulous.verifyLogin(user.username, pass));
+        assertEquals("The login was checked again", hits + 1, logins.getHits());
+
+        // A changed password invalidates the cached login
+        String newPass = getRandomString(10);
+        smarticulous.addOrUpdateUser(user, newPass);
+        assertFalse(smarticulous.verifyLogin(user.username, pass));
+        assertTrue(smarticulous.verifyLogin(user.username, newPass));
+        smarticulous.closeDB();
+
+        // Entries expire, and stay within the capacity
+        LoginCache cache = new LoginCache(2, 50);
+        cache.put("a", "1", cache.generation());
+        cache.put("b", "2", cache.generation());
+        assertTrue(cache.contains("a", "1"));
+        assertFalse(cache.contains("a", "2"));
+        cache.put("c", "3", cache.generation());
+        assertEquals(2, cache.size());
+        assertFalse("The least recently used login was kept", cache.contains("b", "2"));
+        Thread.sleep(100);
+        assertFalse("An expired login was accepted", cache.contains("a", "1"));
+
+        // A verification that overlaps an invalidation isn't remembered
+        long generation = cache.generation();
+        cache.invalidate("d");
+        cache.put("d", "4", generation);
+        assertFalse(cache.contains("d", "4"));
+    }
+
+    @Test
+    public void statements_reusedUntilClose() throws Exception {
+        int userId = rand.nextInt(db.getNumUsers()) + 1;
+        User user = db.getUser(userId);
+        String pass = db.getPassword(userId);
+
+        smarticulous.openDB(db.getDbUrl());
+        StatementCache cache = smarticulous.getStatementCache();
+
+        // Failed logins aren't cached, so each one looks up the user
+        assertFalse(smarticulous.verifyLogin(user.username, pass + "x"));
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        for (int i = 0; i < 10; ++i)
+            assertFalse(smarticulous.verifyLogin(user.username, pass + "x"));
+
+        assertEquals("Statements were prepared again", misses, cache.getMisses());
+        assertEquals("Statements were not reused", hits + 10, cache.getHits());
+
+        smarticulous.closeDB();
+        assertEquals("Statements were not released on close", 0, cache.size());
+        assertNull(smarticulous.getStatementCache());
+    }
+
     private Exercise createRandomExercise() throws Exception {
         int id = db.getNumExercises() + 1;
         String name = db.getRandomWord();
@@ -212,6 +468,81 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void exercise_loadExercisesWithoutQuestions() throws Exception {
+        Exercise empty = new Exercise(db.getNumExercises() + 1, db.getRandomWord(), new Date());
+
+        smarticulous.openDB(db.getDbUrl());
+        smarticulous.addExercise(empty);
+
+        List<Exercise> exs = smarticulous.loadExercises();
+
+        assertEquals("You didn't return all the exercises!", db.getNumExercises(), exs.size());
+        Exercise last = exs.get(exs.size() - 1);
+        assertEquals(empty.id, last.id);
+        assertTrue("An exercise without questions got questions", last.questions.isEmpty());
+        for (Exercise ex : exs.subList(0, exs.size() - 1))
+            db.checkExercise(ex);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void exercise_cachedUntilChanged() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        ExerciseCache cache = smarticulous.getExerciseCache();
+
+        int count = smarticulous.loadExercises().size();
+        long misses = cache.getMisses();
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(count, smarticulous.loadExercises().size());
+            db.checkExercise(smarticulous.getExercise(1));
+        }
+        assertEquals("The catalog was read again", misses, cache.getMisses());
+        assertEquals(20, cache.getHits());
+        assertNull(smarticulous.getExercise(count + 100));
+
+        // Modifying a returned exercise doesn't change the cached one
+        Exercise changed = smarticulous.getExercise(1);
+        changed.name = "changed";
+        changed.questions.clear();
+        smarticulous.loadExercises().get(0).questions.get(0).points = -1;
+        db.checkExercise(smarticulous.getExercise(1));
+        db.checkExercise(smarticulous.loadExercises().get(0));
+
+        // Adding an exercise or a question invalidates the catalog and the exercise
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+        assertEquals(count + 1, smarticulous.loadExercises().size());
+        smarticulous.addQuestion(ex.new Question(db.getRandomWord(), db.getRandomDesc(), 10), ex.id);
+        assertEquals(ex.questions.size() + 1, smarticulous.getExercise(ex.id).questions.size());
+
+        smarticulous.closeDB();
+        assertNull(smarticulous.getExerciseCache());
+    }
+
+    @Test
+    public void exercise_cacheEvictsLeastRecentlyUsed() throws Exception {
+        smarticulous.openDB(db.getDbUrl());
+        ExerciseCache cache = new ExerciseCache(2);
+
+        assertNotNull(cache.get(1, smarticulous));
+        assertNotNull(cache.get(2, smarticulous));
+        assertNotNull(cache.get(1, smarticulous));
+        // Exercise 2 is now the least recently used
+        assertNotNull(cache.get(3, smarticulous));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+
+        long misses = cache.getMisses();
+        cache.get(1, smarticulous);
+        assertEquals(misses, cache.getMisses());
+        cache.get(2, smarticulous);
+        assertEquals(misses + 1, cache.getMisses());
+
+        smarticulous.closeDB();
+    }
+
     @Test
     public void submission_storeSubmission() throws Exception  {
         smarticulous.openDB(db.getDbUrl());
@@ -225,6 +556,157 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void submission_storeSubmissions() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        // Several blocks and a partial one
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 4 * SubmissionImporter.BLOCK_SIZE + 150; ++i)
+            subs.add(createRandomSubmission());
+        Submission unknown = createRandomSubmission();
+        unknown.user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        subs.add(unknown);
+
+        assertEquals(subs.size() - 1, smarticulous.storeSubmissions(subs));
+
+        assertEquals("A submission of an unknown user got an id", -1, unknown.id);
+        Set<Integer> ids = new HashSet<>();
+        for (Submission sub : subs.subList(0, subs.size() - 1))
+            assertTrue("A stored submission has no unique id", sub.id != -1 && ids.add(sub.id));
+        for (int i = 0; i < subs.size() - 1; i += 50)
+            db.checkSubmission(subs.get(i));
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_storeSubmissionsSourceFails() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        int before;
+        try (Statement st = smarticulous.db.createStatement()) {
+            before = st.executeQuery("SELECT COUNT(*) FROM Submission").getInt(1);
+        }
+
+        // An Error thrown by the source fails the import and rolls back the blocks already inserted
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < SubmissionImporter.BLOCK_SIZE + 10; ++i)
+            subs.add(createRandomSubmission());
+        Iterable<Submission> failing = () -> new Iterator<Submission>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Submission next() {
+                if (next == subs.size())
+                    throw new StackOverflowError("source failed");
+                return subs.get(next++);
+            }
+        };
+        Future<Integer> result = ForkJoinPool.commonPool().submit(() -> smarticulous.storeSubmissions(failing));
+        try {
+            result.get(30, TimeUnit.SECONDS);
+            fail("The import succeeded although its source failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+
+        // Nothing was stored
+        try (Statement st = smarticulous.db.createStatement()) {
+            assertEquals(before, st.executeQuery("SELECT COUNT(*) FROM Submission").getInt(1));
+        }
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_storeSubmissionsFromOwnStream() throws Exception  {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            DatasetGenerator.Dataset dataset = new DatasetGenerator(5)
+                    .users(20).exercises(2).submissions(3 * SubmissionImporter.BLOCK_SIZE).generate(generated);
+            Exercise from = dataset.exercises.get(0);
+            Exercise to = dataset.exercises.get(1);
+            long expected = generated.streamSubmissions(from).count() + generated.streamSubmissions(to).count();
+
+            // The source reads through the importing connection, and must be iterated on the calling thread
+            Thread caller = Thread.currentThread();
+            Iterable<Submission> copies = () -> generated.streamSubmissions(from).map(sub -> {
+                assertSame("The source was iterated on another thread", caller, Thread.currentThread());
+                return new Submission(sub.user, to, sub.submissionTime, null);
+            }).iterator();
+            generated.storeSubmissions(copies);
+
+            assertEquals(expected, generated.streamSubmissions(to).count());
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    private int countGrades(int submissionId) throws Exception {
+        try (PreparedStatement st = db.getDbCon().prepareStatement("SELECT COUNT(*) FROM QuestionGrade WHERE SubmissionId = ?")) {
+            st.setInt(1, submissionId);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    @Test
+    public void submission_addGrade() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        Submission sub = createRandomSubmission();
+        sub.id = smarticulous.storeSubmission(sub);
+        smarticulous.addGrade(sub);
+
+        try (PreparedStatement st = db.getDbCon().prepareStatement("SELECT QuestionId, Grade FROM QuestionGrade WHERE SubmissionId = ? ORDER BY QuestionId")) {
+            st.setInt(1, sub.id);
+            try (ResultSet rs = st.executeQuery()) {
+                for (int i = 0; i < sub.questionGrades.length; ++i) {
+                    assertTrue("Missing grade for question " + (i + 1), rs.next());
+                    assertEquals(i + 1, rs.getInt(1));
+                    assertEquals(sub.questionGrades[i] / sub.exercise.questions.get(i).points, rs.getFloat(2), 1e-6);
+                }
+                assertFalse("Too many grades stored", rs.next());
+            }
+        }
+
+        // Storing the same grades again violates the primary key; nothing may be written
+        try {
+            smarticulous.addGrade(sub);
+            fail("Duplicate grades were accepted");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(sub.questionGrades.length, countGrades(sub.id));
+        assertTrue("Auto-commit was not restored", smarticulous.db.getAutoCommit());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_addGrades() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 7; ++i) {
+            Submission sub = createRandomSubmission();
+            sub.id = smarticulous.storeSubmission(sub);
+            subs.add(sub);
+        }
+
+        assertEquals(subs.size(), smarticulous.addGrades(subs, 3));
+        for (Submission sub : subs)
+            assertEquals(sub.questionGrades.length, countGrades(sub.id));
+
+        smarticulous.closeDB();
+    }
+
     @Test
     public void submission_getLastSubmissionStatement() throws Exception  {
         smarticulous.openDB(db.getDbUrl());
@@ -265,6 +747,1147 @@ public class SmarticulousTest {
         smarticulous.closeDB();
     }
 
+    @Test
+    public void submission_getBestSubmissionAmongMany() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+
+        List<Submission> subs = new ArrayList<>();
+        Submission expected = null;
+        double expectedPoints = -1;
+        for (int i = 0; i < 2000; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            double points = 0;
+            for (int q = 0; q < grades.length; ++q) {
+                grades[q] = rand.nextFloat() * ex.questions.get(q).points;
+                points += grades[q];
+            }
+            Submission sub = new Submission(user, ex, new Date(1000L * i), grades);
+            subs.add(sub);
+            if (points > expectedPoints) {
+                expected = sub;
+                expectedPoints = points;
+            }
+        }
+        smarticulous.storeSubmissions(subs);
+        smarticulous.addGrades(subs);
+
+        Submission best = smarticulous.getBestSubmission(user, ex);
+        assertEquals("Wrong submission returned", expected.id, best.id);
+        assertEquals(ex.questions.size(), best.questionGrades.length);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void submission_streamSubmissions() throws Exception  {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            DatasetGenerator.Dataset dataset = new DatasetGenerator(3)
+                    .users(50).exercises(3).submissions(1000).generate(generated);
+            Exercise ex = dataset.exercises.get(1);
+            // An ungraded submission is streamed with zero grades
+            int ungraded = generated.storeSubmission(new Submission(dataset.users.get(0), ex, new Date(), new float[ex.questions.size()]));
+
+            int expected;
+            try (Statement st = generated.db.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM Submission WHERE ExerciseId = " + ex.id)) {
+                expected = rs.getInt(1);
+            }
+
+            SubmissionCursor cursor = new SubmissionCursor((afterId, limit) -> generated.readSubmissionPage(ex, afterId, limit), 50);
+            int count = 0;
+            int lastId = 0;
+            Map<String, Submission> latest = new HashMap<>();
+            while (cursor.hasNext()) {
+                Submission sub = cursor.next();
+                assertTrue("Submissions are out of order", sub.id > lastId);
+                assertSame(ex, sub.exercise);
+                assertEquals(ex.questions.size(), sub.questionGrades.length);
+                lastId = sub.id;
+                ++count;
+                if (sub.id != ungraded && (!latest.containsKey(sub.user.username) ||
+                        !sub.submissionTime.before(latest.get(sub.user.username).submissionTime)))
+                    latest.put(sub.user.username, sub);
+            }
+            assertEquals(expected, count);
+            assertEquals(ungraded, lastId);
+            // The last page is short, or empty when the count is a multiple of the page size
+            assertEquals(expected / 50 + 1, cursor.getPages());
+
+            // The streamed grades are the stored ones
+            for (User user : dataset.users.subList(0, 10)) {
+                Submission last = generated.getLastSubmission(user, ex);
+                if (last == null)
+                    continue;
+                assertArrayEquals(last.questionGrades, latest.get(user.username).questionGrades, 0);
+            }
+
+            assertEquals(expected, generated.streamSubmissions(ex).count());
+            assertEquals(0, generated.streamSubmissions(new Exercise(1000, "None", new Date())).count());
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    @Test
+    public void gradebook_aggregatesAndRefresh() throws Exception  {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            DatasetGenerator.Dataset dataset = new DatasetGenerator(5)
+                    .users(100).exercises(2).submissions(40_000).generate(generated);
+            Exercise ex = dataset.exercises.get(0);
+            // A small pool and more rows than the split threshold, so the aggregates really fork
+            GradebookSnapshot snapshot = new GradebookSnapshot(ex, new ForkJoinPool(3));
+            assertTrue(snapshot.refresh(generated) > GradebookSnapshot.SPLIT_THRESHOLD);
+            assertEquals(0, snapshot.refresh(generated));
+            checkGradebook(generated, snapshot);
+
+            // Refreshing appends only the new graded submissions
+            int mark = snapshot.getHighWaterMark();
+            List<Submission> subs = new ArrayList<>();
+            for (int i = 0; i < 5; ++i) {
+                float[] grades = new float[ex.questions.size()];
+                for (int q = 0; q < grades.length; ++q)
+                    grades[q] = ex.questions.get(q).points;
+                subs.add(new Submission(dataset.users.get(i), ex, new Date(), grades));
+            }
+            generated.storeSubmissions(subs);
+            generated.addGrades(subs.subList(0, 4));
+            int size = snapshot.size();
+            assertEquals(4, snapshot.refresh(generated));
+            assertEquals(size + 4, snapshot.size());
+            assertTrue(snapshot.getHighWaterMark() > mark);
+            assertEquals(1.0f, snapshot.getGrade(size + 3, 0), 0);
+            checkGradebook(generated, snapshot);
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    // Compares the aggregates of a snapshot to the same aggregates computed by SQL
+    private void checkGradebook(Smarticulous smarticulous, GradebookSnapshot snapshot) throws SQLException {
+        Exercise ex = snapshot.getExercise();
+        double[] means = snapshot.questionMeans();
+        try (Statement st = smarticulous.db.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT COUNT(DISTINCT SubmissionId) FROM QuestionGrade JOIN Submission USING (SubmissionId) " +
+                    "WHERE ExerciseId = " + ex.id);
+            assertEquals(rs.getInt(1), snapshot.size());
+            for (int q = 0; q < means.length; ++q) {
+                rs = st.executeQuery("SELECT AVG(Grade), SUM(Grade < 0.5) FROM QuestionGrade JOIN Submission USING (SubmissionId) " +
+                        "WHERE ExerciseId = " + ex.id + " AND QuestionId = " + (q + 1));
+                assertEquals(rs.getDouble(1), means[q], 1e-6);
+                int[] histogram = snapshot.histogram(q, 2);
+                assertEquals(rs.getInt(2), histogram[0]);
+                assertEquals(snapshot.size(), histogram[0] + histogram[1]);
+            }
+            rs = st.executeQuery("SELECT AVG(Total) FROM (SELECT SUM(Grade * Points) AS Total FROM QuestionGrade " +
+                    "JOIN Submission USING (SubmissionId) JOIN Question USING (ExerciseId, QuestionId) " +
+                    "WHERE ExerciseId = " + ex.id + " GROUP BY SubmissionId)");
+            assertEquals(rs.getDouble(1), snapshot.meanTotalPoints(), 1e-3);
+        }
+
+        float[] percentiles = snapshot.percentiles(0, 0, 50, 100);
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        int below = 0;
+        for (int row = 0; row < snapshot.size(); ++row) {
+            float grade = snapshot.getGrade(row, 0);
+            min = Math.min(min, grade);
+            max = Math.max(max, grade);
+            if (grade < percentiles[1])
+                ++below;
+        }
+        assertEquals(min, percentiles[0], 0);
+        assertEquals(max, percentiles[2], 0);
+        assertTrue("Wrong median", below < (snapshot.size() + 1) / 2);
+    }
+
+    @Test
+    public void leaderboard_incrementalMatchesRebuild() throws Exception  {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            DatasetGenerator.Dataset dataset = new DatasetGenerator(11)
+                    .users(300).exercises(3).submissions(3000).generate(generated);
+            Leaderboard leaderboard = new Leaderboard();
+            generated.setLeaderboard(leaderboard);
+            Exercise ex = dataset.exercises.get(0);
+            int ranked = leaderboard.size(ex.id);
+            assertTrue(ranked > 0);
+
+            // Grades stored through every path update the leaderboard
+            List<Submission> subs = new ArrayList<>();
+            for (int i = 0; i < 400; ++i) {
+                float[] grades = new float[ex.questions.size()];
+                for (int q = 0; q < grades.length; ++q)
+                    grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+                subs.add(new Submission(dataset.users.get(rand.nextInt(dataset.users.size())), ex,
+                        new Date(DatasetGenerator.TERM_START + rand.nextInt(1_000_000_000)), grades));
+            }
+            generated.storeSubmissions(subs);
+            generated.addGrades(subs.subList(0, 200));
+            for (Submission sub : subs.subList(200, 400))
+                generated.addGrade(sub);
+
+            // A perfect score takes the lead, unless the transaction is rolled back
+            float[] perfect = new float[ex.questions.size()];
+            for (int q = 0; q < perfect.length; ++q)
+                perfect[q] = ex.questions.get(q).points;
+            User last = dataset.users.get(dataset.users.size() - 1);
+            Submission best = new Submission(last, ex, new Date(0), perfect);
+            best.id = generated.storeSubmission(best);
+            try {
+                generated.inTransaction(() -> {
+                    generated.addGrade(best);
+                    throw new SQLException("rolled back");
+                });
+                fail("The transaction was not rolled back");
+            } catch (SQLException e) {
+                assertEquals("rolled back", e.getMessage());
+            }
+            assertNotEquals(last.username, leaderboard.top(ex.id, 1).get(0).username);
+            generated.addGrade(best);
+            assertEquals(last.username, leaderboard.top(ex.id, 1).get(0).username);
+            assertEquals(1, leaderboard.rank(ex.id, last.username));
+
+            // The incremental leaderboard is the one rebuilt from the database
+            Leaderboard rebuilt = new Leaderboard();
+            rebuilt.rebuild(generated);
+            for (Exercise exercise : dataset.exercises) {
+                List<Leaderboard.Standing> expected = rebuilt.top(exercise.id, Integer.MAX_VALUE);
+                List<Leaderboard.Standing> actual = leaderboard.top(exercise.id, Integer.MAX_VALUE);
+                assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); ++i) {
+                    assertEquals(expected.get(i).username, actual.get(i).username);
+                    assertEquals(expected.get(i).totalPoints, actual.get(i).totalPoints, 1e-6);
+                    assertEquals(i + 1, leaderboard.rank(exercise.id, actual.get(i).username));
+                }
+            }
+            assertEquals(10, leaderboard.top(ex.id, 10).size());
+            assertEquals(0, leaderboard.rank(ex.id, "nobody"));
+            assertNull(leaderboard.standing(1000, last.username));
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    @Test
+    public void metrics_recordCallsStatementsAndSlowQueries() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        // Every statement counts as slow
+        Metrics metrics = new Metrics(0);
+        smarticulous.setMetrics(metrics);
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        String password = getRandomString(10);
+        smarticulous.addOrUpdateUser(user, password);
+        assertTrue(smarticulous.verifyLogin(user.username, password));
+        assertFalse(smarticulous.verifyLogin(user.username, password + "x"));
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+        float[] grades = new float[ex.questions.size()];
+        Submission sub = new Submission(user, ex, new Date(), grades);
+        sub.id = smarticulous.storeSubmission(sub);
+        smarticulous.addGrade(sub);
+        assertEquals(sub.id, smarticulous.getLastSubmission(user, ex).id);
+        try {
+            smarticulous.addGrades(Collections.emptyList(), 0);
+            fail("A chunk size of 0 was accepted");
+        } catch (IllegalArgumentException e) {
+            // Counted as a failed call
+        }
+
+        assertEquals(2, metrics.getCallStats("verifyLogin").latency.getCount());
+        assertEquals(1, metrics.getCallStats("getLastSubmission").latency.getCount());
+        assertEquals(1, metrics.getCallStats("addGrades").getErrors());
+        Metrics.StatementStats gradeInserts = metrics.getStatementStats("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (?,?,?)");
+        assertEquals(ex.questions.size(), gradeInserts.getRowsWritten());
+        Metrics.StatementStats lastGrades = metrics.getStatementStats(Smarticulous.SQL_QUERY_LAST_SUBMISSION_GRADES);
+        assertEquals(1, lastGrades.latency.getCount());
+        assertEquals(ex.questions.size(), lastGrades.getRowsRead());
+
+        // Slow queries are logged with their parameters and plan
+        Metrics.SlowQuery slow = null;
+        for (Metrics.SlowQuery query : metrics.getSlowQueries()) {
+            if (query.sql.equals(Smarticulous.SQL_QUERY_LAST_SUBMISSION_GRADES))
+                slow = query;
+        }
+        assertNotNull("The query was not logged", slow);
+        assertEquals(Arrays.asList(null, user.username, ex.id, ex.questions.size()), slow.parameters);
+        assertTrue("No plan: " + slow.plan, slow.plan.toString().contains("SubmissionScore"));
+
+        // Prometheus export, to a file and over HTTP
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("smarticulous_call_seconds_count{operation=\"verifyLogin\"} 2\n"));
+        assertTrue(text.contains("# TYPE smarticulous_sql_rows_read_total counter\n"));
+        File file = File.createTempFile("metrics", ".prom");
+        try {
+            metrics.exportTo(file.toPath());
+            assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).startsWith("# HELP smarticulous_call_seconds"));
+        } finally {
+            file.delete();
+        }
+        HttpServer server = metrics.startServer(new InetSocketAddress("localhost", 0));
+        try {
+            URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/metrics");
+            try (InputStream in = url.openStream()) {
+                Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+                assertTrue(scanner.next().contains("smarticulous_slow_queries_total"));
+            }
+        } finally {
+            server.stop(0);
+        }
+
+        // Turned off, nothing is recorded
+        smarticulous.setMetrics(null);
+        smarticulous.verifyLogin(user.username, password);
+        assertEquals(2, metrics.getCallStats("verifyLogin").latency.getCount());
+        assertSame(InstrumentedJdbc.unwrap(smarticulous.db), smarticulous.db);
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void metrics_histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; ++value)
+            histogram.record(value * 1000);
+        assertEquals(100_000, histogram.getCount());
+        assertEquals(100_000_000L, histogram.getMax());
+        for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+            double exact = percentile * 1000 * 1000;
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + value, value >= exact && value <= exact * 1.02);
+        }
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+        for (long value = 0; value < 1 << 20; value += 7)
+            assertTrue(LatencyHistogram.highestValue(LatencyHistogram.index(value)) >= value);
+    }
+
+    @Test
+    public void scores_consistentAfterWrites() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        // The summary of the prefilled database was built when it was opened
+        assertTrue(smarticulous.checkScores().isEmpty());
+
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            float[] grades = new float[ex.questions.size()];
+            for (int q = 0; q < grades.length; ++q)
+                grades[q] = rand.nextFloat() * ex.questions.get(q).points;
+            subs.add(new Submission(user, ex, new Date(1000L * i), grades));
+        }
+        smarticulous.storeSubmissions(subs.subList(0, 10));
+        smarticulous.addGrades(subs.subList(0, 10));
+        for (Submission sub : subs.subList(10, 20)) {
+            sub.id = smarticulous.storeSubmission(sub);
+            smarticulous.addGrade(sub);
+        }
+        assertEquals(subs.get(19).id, smarticulous.getLastSubmission(user, ex).id);
+
+        // Direct changes through the same connection are tracked as well
+        Submission top = smarticulous.getBestSubmission(user, ex);
+        try (Statement st = smarticulous.db.createStatement()) {
+            st.execute("UPDATE QuestionGrade SET Grade = 0 WHERE SubmissionId = " + top.id);
+            st.execute("DELETE FROM QuestionGrade WHERE SubmissionId = " + subs.get(19).id);
+        }
+        assertNotEquals(top.id, smarticulous.getBestSubmission(user, ex).id);
+        assertEquals(subs.get(18).id, smarticulous.getLastSubmission(user, ex).id);
+
+        List<String> problems = smarticulous.checkScores();
+        assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void scores_rebuildRepairsDrift() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+
+        // Editing the summary itself is not tracked
+        try (Statement st = smarticulous.db.createStatement()) {
+            st.execute("UPDATE SubmissionScore SET TotalPoints = TotalPoints + 1");
+        }
+        assertFalse(smarticulous.checkScores().isEmpty());
+
+        smarticulous.rebuildScores();
+        assertTrue(smarticulous.checkScores().isEmpty());
+        assertTrue("Auto-commit was not restored", smarticulous.db.getAutoCommit());
+
+        // Neither is anything done while it is suspended, until the next open rebuilds it
+        ScoreSummary.suspend(smarticulous.db);
+        try (Statement st = smarticulous.db.createStatement()) {
+            st.execute("DELETE FROM QuestionGrade WHERE SubmissionId IN (SELECT SubmissionId FROM Submission LIMIT 10)");
+        }
+        assertFalse(smarticulous.checkScores().isEmpty());
+        smarticulous.closeDB();
+        smarticulous.openDB(db.getDbUrl());
+        assertTrue(smarticulous.checkScores().isEmpty());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void scores_followOtherConnections() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+        smarticulous.addOrUpdateUser(user, getRandomString(10));
+        Exercise ex = createRandomExercise();
+        smarticulous.addExercise(ex);
+        float[] grades = new float[ex.questions.size()];
+        for (int q = 0; q < grades.length; ++q)
+            grades[q] = ex.questions.get(q).points;
+        Submission first = new Submission(user, ex, new Date(1000), grades);
+        first.id = smarticulous.storeSubmission(first);
+        smarticulous.addGrade(first);
+
+        // A connection without the Smarticulous functions, e.g. the sqlite3 shell, keeps the summary current
+        try (Statement st = db.getDbCon().createStatement()) {
+            int userId = st.executeQuery("SELECT UserId FROM User WHERE Username = '" + user.username + "'").getInt(1);
+            st.execute("INSERT INTO Submission (UserId, ExerciseId, SubmissionTime) VALUES (" + userId + ", " + ex.id + ", 2000)");
+            int second = st.executeQuery("SELECT MAX(SubmissionId) FROM Submission").getInt(1);
+            String question = "(SELECT MIN(QuestionId) FROM Question WHERE ExerciseId = " + ex.id + ")";
+            st.execute("INSERT INTO QuestionGrade (SubmissionId, QuestionId, Grade) VALUES (" + second + ", " + question + ", 0.5)");
+            assertEquals(second, smarticulous.getLastSubmission(user, ex).id);
+            assertEquals(first.id, smarticulous.getBestSubmission(user, ex).id);
+
+            // Grades and points change the best submission
+            st.execute("UPDATE QuestionGrade SET Grade = 0 WHERE SubmissionId = " + first.id);
+            assertEquals(second, smarticulous.getBestSubmission(user, ex).id);
+            st.execute("UPDATE QuestionGrade SET Grade = 1 WHERE SubmissionId = " + first.id);
+            st.execute("UPDATE Question SET Points = 0 WHERE ExerciseId = " + ex.id + " AND QuestionId <> " + question);
+            st.execute("UPDATE Question SET Points = Points + 1000 WHERE ExerciseId = " + ex.id + " AND QuestionId = " + question);
+            assertEquals(first.id, smarticulous.getBestSubmission(user, ex).id);
+            st.execute("UPDATE QuestionGrade SET Grade = 2 WHERE SubmissionId = " + second);
+            assertEquals(second, smarticulous.getBestSubmission(user, ex).id);
+
+            st.execute("DELETE FROM Submission WHERE SubmissionId = " + second);
+            assertEquals(first.id, smarticulous.getLastSubmission(user, ex).id);
+        }
+        List<String> problems = smarticulous.checkScores();
+        assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void grades_packedEncodings() {
+        float[] fractions = {0, 0.25f, 1, 1f / 3, 0.999f, 1.5f};
+        byte[] float32 = PackedGrades.encode(fractions, PackedGrades.Format.FLOAT32);
+        byte[] fixed16 = PackedGrades.encode(fractions, PackedGrades.Format.FIXED16);
+        assertEquals(1 + 4 * fractions.length, float32.length);
+        assertEquals(1 + 2 * fractions.length, fixed16.length);
+        assertEquals(PackedGrades.Format.FIXED16, PackedGrades.format(fixed16));
+        assertArrayEquals(fractions, PackedGrades.decode(float32), 0);
+        // Fixed-point grades are within half a step
+        assertArrayEquals(fractions, PackedGrades.decode(fixed16), 0.5f / (1 << 14));
+
+        // Decoding into a submission's grades stops at the shorter of the two
+        float[] grades = new float[3];
+        PackedGrades.decode(float32, grades);
+        assertArrayEquals(Arrays.copyOf(fractions, 3), grades, 0);
+    }
+
+    @Test
+    public void grades_packedFormatsAndMigration() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        List<User> users = new ArrayList<>();
+        int graded;
+        try (Statement st = smarticulous.db.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT Username, Firstname, Lastname FROM User");
+            while (rs.next())
+                users.add(new User(rs.getString(1), rs.getString(2), rs.getString(3)));
+            graded = st.executeQuery("SELECT COUNT(DISTINCT SubmissionId) FROM QuestionGrade").getInt(1);
+        }
+        List<Exercise> exercises = smarticulous.loadExercises();
+        Map<String, Submission> last = new HashMap<>();
+        Map<String, Submission> best = new HashMap<>();
+        for (User user : users) {
+            for (Exercise ex : exercises) {
+                last.put(user.username + "/" + ex.id, smarticulous.getLastSubmission(user, ex));
+                best.put(user.username + "/" + ex.id, smarticulous.getBestSubmission(user, ex));
+            }
+        }
+
+        // Packing as floats changes nothing that is read back
+        assertEquals(graded, smarticulous.migrateGrades(PackedGrades.Format.FLOAT32));
+        // The packed grades are in the database itself, not in a file next to it
+        try (Statement st = db.getDbCon().createStatement()) {
+            assertEquals(0, st.executeQuery("SELECT COUNT(*) FROM QuestionGrade").getInt(1));
+            assertEquals(graded, st.executeQuery("SELECT COUNT(*) FROM SubmissionGrades").getInt(1));
+        }
+        List<String> problems = smarticulous.checkScores();
+        assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+        // Without the packed functions, the summary of packed grades can't follow a change of points
+        try (Statement st = db.getDbCon().createStatement()) {
+            st.execute("UPDATE Question SET Points = Points + 1");
+            fail("A change the score summary can't follow was accepted");
+        } catch (SQLException e) {
+            // expected
+        }
+        for (User user : users) {
+            for (Exercise ex : exercises) {
+                checkSameSubmission(last.get(user.username + "/" + ex.id), smarticulous.getLastSubmission(user, ex), 0);
+                checkSameSubmission(best.get(user.username + "/" + ex.id), smarticulous.getBestSubmission(user, ex), 0);
+            }
+        }
+
+        // Fixed-point grades are rounded, which may reorder the best submissions but not the latest ones
+        assertEquals(graded, smarticulous.migrateGrades(PackedGrades.Format.FIXED16));
+        assertTrue(smarticulous.checkScores().isEmpty());
+        for (User user : users) {
+            for (Exercise ex : exercises)
+                checkSameSubmission(last.get(user.username + "/" + ex.id), smarticulous.getLastSubmission(user, ex), 1e-4f);
+        }
+
+        // New grades are written in the chosen format, and read back with the rest
+        smarticulous.setGradeFormat(PackedGrades.Format.FLOAT32);
+        User user = users.get(0);
+        Exercise ex = exercises.get(0);
+        float[] grades = new float[ex.questions.size()];
+        for (int q = 0; q < grades.length; ++q)
+            grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+        Submission sub = new Submission(user, ex, new Date(), grades);
+        sub.id = smarticulous.storeSubmission(sub);
+        smarticulous.addGrade(sub);
+        try {
+            smarticulous.addGrade(sub);
+            fail("Duplicate packed grades were accepted");
+        } catch (SQLException e) {
+            // expected
+        }
+        Submission read = smarticulous.getLastSubmission(user, ex);
+        assertEquals(sub.id, read.id);
+        assertEquals(1, smarticulous.streamSubmissions(ex).filter(s -> s.id == sub.id).count());
+        GradebookSnapshot gradebook = smarticulous.loadGradebook(ex);
+        int row = 0;
+        while (gradebook.getSubmissionId(row) != sub.id)
+            ++row;
+        for (int q = 0; q < grades.length; ++q)
+            assertEquals(grades[q] / ex.questions.get(q).points, gradebook.getGrade(row, q), 0);
+        assertTrue(smarticulous.checkScores().isEmpty());
+
+        // And back to rows
+        assertEquals(graded + 1, smarticulous.migrateGrades(PackedGrades.Format.ROWS));
+        try (Statement st = smarticulous.db.createStatement()) {
+            assertEquals(0, st.executeQuery("SELECT COUNT(*) FROM SubmissionGrades").getInt(1));
+        }
+        assertTrue(smarticulous.checkScores().isEmpty());
+        assertEquals(sub.id, smarticulous.getLastSubmission(user, ex).id);
+        assertTrue("Auto-commit was not restored", smarticulous.db.getAutoCommit());
+
+        smarticulous.closeDB();
+    }
+
+    @Test
+    public void grades_migrationNeedsExclusiveAccess() throws Exception  {
+        File file = File.createTempFile("testMigrate", "sqlite");
+        file.delete();
+        String url = db.convertFileToURL(file);
+        Smarticulous migrator = new Smarticulous();
+        try {
+            ConcurrentSmarticulous pool = new ConcurrentSmarticulous(url, 1);
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(user, getRandomString(10));
+            Exercise ex = createRandomExercise();
+            pool.addExercise(ex);
+            float[] grades = new float[ex.questions.size()];
+            for (int q = 0; q < grades.length; ++q)
+                grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+            Submission sub = new Submission(user, ex, new Date(), grades);
+            sub.id = pool.storeSubmission(sub);
+            pool.addGrade(sub);
+            Submission stored = pool.getLastSubmission(user, ex);
+
+            // While the pool's connections are open, nothing is converted
+            migrator.openDB(url);
+            try {
+                migrator.migrateGrades(PackedGrades.Format.FLOAT32);
+                fail("Grades were converted while other connections used the database");
+            } catch (SQLException e) {
+                // expected
+            }
+            checkSameSubmission(stored, pool.getLastSubmission(user, ex), 0);
+            pool.close();
+
+            // Alone, the conversion runs, and releases its locks at the end
+            assertEquals(1, migrator.migrateGrades(PackedGrades.Format.FLOAT32));
+            try (ConcurrentSmarticulous after = new ConcurrentSmarticulous(url, 1)) {
+                checkSameSubmission(stored, after.getLastSubmission(user, ex), 0);
+            }
+        } finally {
+            migrator.closeDB();
+            deleteDbFiles(file);
+        }
+    }
+
+    private static void checkSameSubmission(Submission expected, Submission actual, float delta) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals("Wrong submission returned", expected.id, actual.id);
+        assertEquals(expected.submissionTime.getTime(), actual.submissionTime.getTime());
+        assertArrayEquals(expected.questionGrades, actual.questionGrades, delta);
+    }
+
+    @Test
+    public void cache_neverReturnsStaleGrades() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        SubmissionCache cache = new SubmissionCache(1000, 60_000);
+        smarticulous.setSubmissionCache(cache);
+        List<User> users = new ArrayList<>();
+        try (Statement st = smarticulous.db.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT Username, Firstname, Lastname FROM User LIMIT 10");
+            while (rs.next())
+                users.add(new User(rs.getString(1), rs.getString(2), rs.getString(3)));
+        }
+        List<Exercise> exercises = smarticulous.loadExercises();
+
+        // Warm the cache, then every read is a hit
+        for (User user : users) {
+            for (Exercise ex : exercises)
+                checkCached(user, ex);
+        }
+        long misses = cache.getMisses();
+        for (User user : users) {
+            for (Exercise ex : exercises) {
+                smarticulous.getLastSubmission(user, ex);
+                smarticulous.getBestSubmission(user, ex);
+            }
+        }
+        assertEquals("A cached read reached the database", misses, cache.getMisses());
+        assertTrue(cache.getHitRatio() > 0);
+
+        // Grades of every kind: later, earlier and simultaneous submissions, ties and ungraded ones
+        for (int i = 0; i < 200; ++i) {
+            User user = users.get(rand.nextInt(users.size()));
+            Exercise ex = exercises.get(rand.nextInt(exercises.size()));
+            Submission last = smarticulous.getLastSubmission(user, ex);
+            long time = last != null && rand.nextBoolean() ? last.submissionTime.getTime() + rand.nextInt(3) - 1
+                    : rand.nextInt(1_000_000_000);
+            float[] grades = new float[ex.questions.size()];
+            for (int q = 0; q < grades.length; ++q)
+                grades[q] = rand.nextBoolean() ? ex.questions.get(q).points : rand.nextInt(ex.questions.get(q).points + 1);
+            Submission sub = new Submission(user, ex, new Date(time), grades);
+            sub.id = smarticulous.storeSubmission(sub);
+            if (rand.nextInt(10) > 0)
+                smarticulous.addGrade(sub);
+            if (i == 100)
+                smarticulous.setGradeFormat(PackedGrades.Format.FIXED16);
+            checkCached(user, ex);
+        }
+        assertTrue(cache.getWrites() > 0);
+
+        // A rolled back transaction writes nothing through
+        User user = users.get(0);
+        Exercise ex = exercises.get(0);
+        float[] full = new float[ex.questions.size()];
+        for (int q = 0; q < full.length; ++q)
+            full[q] = ex.questions.get(q).points;
+        try {
+            smarticulous.inTransaction(() -> {
+                Submission sub = new Submission(user, ex, new Date(2_000_000_000_000L), full);
+                sub.id = smarticulous.storeSubmission(sub);
+                smarticulous.addGrade(sub);
+                throw new SQLException("Rolled back");
+            });
+            fail("The transaction was not rolled back");
+        } catch (SQLException e) {
+            // expected
+        }
+        checkCached(user, ex);
+        smarticulous.closeDB();
+    }
+
+    // Checks that the cached latest and best submissions are the ones in the database
+    private void checkCached(User user, Exercise ex) throws SQLException {
+        Submission last = smarticulous.getLastSubmission(user, ex);
+        Submission best = smarticulous.getBestSubmission(user, ex);
+        SubmissionCache cache = smarticulous.getSubmissionCache();
+        smarticulous.setSubmissionCache(null);
+        try {
+            checkSameSubmission(smarticulous.getLastSubmission(user, ex), last, 0);
+            checkSameSubmission(smarticulous.getBestSubmission(user, ex), best, 0);
+        } finally {
+            smarticulous.setSubmissionCache(cache);
+        }
+    }
+
+    @Test
+    public void cache_concurrentMissesLoadOnce() throws Exception  {
+        SubmissionCache cache = new SubmissionCache(10, 60_000);
+        User user = new User("alice", "Alice", "A");
+        Exercise ex = new Exercise(1, "Exercise", new Date());
+        Submission sub = new Submission(7, user, ex, new Date(), new float[0]);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Submission>> results = new ArrayList<>();
+        for (int t = 0; t < 8; ++t) {
+            results.add(executor.submit(() -> cache.get(false, user, ex, () -> {
+                loads.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+                return sub;
+            })));
+        }
+        // Let the other threads join the first load before it finishes
+        while (cache.getMisses() < 8)
+            Thread.sleep(1);
+        release.countDown();
+        for (Future<Submission> result : results)
+            assertSame(sub, result.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertEquals(1, loads.get());
+        assertEquals(7, cache.getWaits());
+
+        // Size and time bounds
+        assertSame(sub, cache.get(false, user, ex, () -> null));
+        assertEquals(1, cache.getHits());
+        for (int i = 0; i < 20; ++i)
+            cache.get(true, new User("user" + i, "U", "U"), ex, () -> null);
+        assertEquals(10, cache.size());
+        assertTrue(cache.getEvictions() > 0);
+        SubmissionCache expiring = new SubmissionCache(10, 0);
+        expiring.get(false, user, ex, () -> sub);
+        assertNull(expiring.get(false, user, ex, () -> null));
+        assertEquals(1, expiring.getExpirations());
+    }
+
+    @Test
+    public void export_csvAndColumnarMatchLookups() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        File file = File.createTempFile("testExport", ".out");
+        try {
+            for (boolean best : new boolean[] {false, true}) {
+                // Small pages and buffers, so the export takes many queries and row groups
+                GradebookExport export = new GradebookExport(smarticulous, 7, 1024);
+                long rows = export.write(file.toPath(), GradebookExport.Format.COLUMNAR, best);
+                checkExport(best, readColumnarExport(file), rows);
+                rows = export.write(file.toPath(), GradebookExport.Format.CSV, best);
+                checkExport(best, readCsvExport(file), rows);
+            }
+
+            // Packed grades export the same
+            smarticulous.migrateGrades(PackedGrades.Format.FLOAT32);
+            long rows = new GradebookExport(smarticulous).write(file.toPath(), GradebookExport.Format.COLUMNAR, false);
+            checkExport(false, readColumnarExport(file), rows);
+        } finally {
+            file.delete();
+        }
+    }
+
+    // The exported submissions, by username and exercise id, with the grades in questionGrades
+    private Map<String, Submission> readColumnarExport(File file) throws Exception {
+        Map<String, Submission> rows = new HashMap<>();
+        long count = GradebookExport.readColumnar(file.toPath(), (exerciseId, username, id, time, total, grades) -> {
+            Exercise ex = new Exercise(exerciseId, "", new Date());
+            rows.put(username + "/" + exerciseId,
+                    new Submission(id, new User(username, "", ""), ex, new Date(time), grades.clone()));
+        });
+        assertEquals(rows.size(), count);
+        return rows;
+    }
+
+    private Map<String, Submission> readCsvExport(File file) throws Exception {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("exercise_id,username,submission_id,submission_time,total_points,grades", lines.get(0));
+        Map<String, Submission> rows = new HashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",", -1);
+            assertEquals(6, fields.length);
+            String[] gradeFields = fields[5].isEmpty() ? new String[0] : fields[5].split(" ");
+            float[] grades = new float[gradeFields.length];
+            for (int q = 0; q < grades.length; ++q)
+                grades[q] = Float.parseFloat(gradeFields[q]);
+            int exerciseId = Integer.parseInt(fields[0]);
+            Exercise ex = new Exercise(exerciseId, "", new Date());
+            rows.put(fields[1] + "/" + exerciseId, new Submission(Integer.parseInt(fields[2]),
+                    new User(fields[1], "", ""), ex, new Date(Long.parseLong(fields[3])), grades));
+        }
+        return rows;
+    }
+
+    // Checks an export against the lookups of every user and exercise
+    private void checkExport(boolean best, Map<String, Submission> exported, long rows) throws SQLException {
+        List<User> users = new ArrayList<>();
+        try (Statement st = smarticulous.db.createStatement()) {
+            ResultSet rs = st.executeQuery("SELECT Username, Firstname, Lastname FROM User");
+            while (rs.next())
+                users.add(new User(rs.getString(1), rs.getString(2), rs.getString(3)));
+        }
+        int expectedRows = 0;
+        for (Exercise ex : smarticulous.loadExercises()) {
+            Map<String, Submission> expected = best
+                    ? smarticulous.getBestSubmissions(users, ex)
+                    : smarticulous.getLastSubmissions(users, ex);
+            for (Submission sub : expected.values()) {
+                Submission row = exported.get(sub.user.username + "/" + ex.id);
+                assertNotNull("Missing from the export: " + sub.user.username + "/" + ex.id, row);
+                assertEquals(sub.id, row.id);
+                assertEquals(sub.submissionTime.getTime(), row.submissionTime.getTime());
+                assertArrayEquals(sub.questionGrades, row.questionGrades, 0);
+            }
+            expectedRows += expected.size();
+        }
+        assertEquals(expectedRows, rows);
+        assertEquals(expectedRows, exported.size());
+    }
+
+    @Test
+    public void concurrent_readersAndWriter() throws Exception  {
+        File file = File.createTempFile("testConcurrent", "sqlite");
+        file.delete();
+        final int readerCount = 4;
+        final int writes = 200;
+
+        try (ConcurrentSmarticulous pool = new ConcurrentSmarticulous(db.convertFileToURL(file), readerCount)) {
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(user, getRandomString(10));
+            Exercise ex = createRandomExercise();
+            pool.addExercise(ex);
+
+            Map<Integer, float[]> written = new ConcurrentHashMap<>();
+            AtomicBoolean done = new AtomicBoolean(false);
+            AtomicLong reads = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(readerCount + 1);
+            List<Future<?>> tasks = new ArrayList<>();
+
+            // One writer stores graded submissions with increasing times
+            tasks.add(executor.submit(() -> {
+                try {
+                    for (int i = 0; i < writes; ++i) {
+                        float[] grades = new float[ex.questions.size()];
+                        for (int q = 0; q < grades.length; ++q)
+                            grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+                        Submission sub = new Submission(user, ex, new Date(1000L * i), grades);
+                        sub.id = pool.storeSubmission(sub);
+                        written.put(sub.id, grades);
+                        pool.addGrade(sub);
+                    }
+                } finally {
+                    done.set(true);
+                }
+                return null;
+            }));
+
+            // Readers check that the latest submission only moves forward, never disappears once seen,
+            // and has the grades written
+            for (int r = 0; r < readerCount; ++r) {
+                tasks.add(executor.submit(() -> {
+                    int lastSeen = -1;
+                    while (!done.get()) {
+                        assertEquals(1, pool.loadExercises().size());
+                        Submission last = pool.getLastSubmission(user, ex);
+                        reads.addAndGet(2);
+                        if (last == null) {
+                            assertEquals("The latest submission disappeared", -1, lastSeen);
+                            continue;
+                        }
+                        assertTrue("The latest submission went back in time", last.id >= lastSeen);
+                        lastSeen = last.id;
+                        float[] grades = written.get(last.id);
+                        for (int q = 0; q < grades.length; ++q)
+                            assertEquals(grades[q] / ex.questions.get(q).points, last.questionGrades[q], 1e-4);
+                    }
+                    return null;
+                }));
+            }
+
+            executor.shutdown();
+            for (Future<?> task : tasks)
+                task.get(60, TimeUnit.SECONDS);
+
+            assertTrue("Readers made no progress while the writer ran", reads.get() > readerCount);
+            assertEquals(written.size(), writes);
+            assertEquals(Collections.max(written.keySet()), (Integer) pool.getLastSubmission(user, ex).id);
+            List<String> problems = pool.checkScores();
+            assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+        } finally {
+            deleteDbFiles(file);
+        }
+    }
+
+    // Deletes a database file together with its WAL files
+    private void deleteDbFiles(File file) {
+        for (String suffix : new String[] {"", "-wal", "-shm"})
+            new File(file.getPath() + suffix).delete();
+    }
+
+    @Test
+    public void concurrent_ingestSurvivesErrors() throws Exception  {
+        File file = File.createTempFile("testIngest", "sqlite");
+        file.delete();
+
+        try (ConcurrentSmarticulous pool = new ConcurrentSmarticulous(db.convertFileToURL(file), 2)) {
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(user, getRandomString(10));
+            Exercise ex = createRandomExercise();
+            pool.addExercise(ex);
+            // The same exercise, but reading its questions throws an Error
+            Exercise broken = new Exercise(ex.id, ex.name, ex.dueDate);
+            broken.questions = new ArrayList<Exercise.Question>(ex.questions) {
+                @Override
+                public Exercise.Question get(int index) {
+                    throw new StackOverflowError();
+                }
+            };
+
+            // A queue of one, so a writer that died would leave the next submit waiting forever
+            try (SubmissionIngest ingest = new SubmissionIngest(pool, 64, 20, 1)) {
+                float[] grades = new float[ex.questions.size()];
+                CompletableFuture<Integer> failed = ingest.submit(new Submission(user, broken, new Date(1000), grades));
+                List<CompletableFuture<Integer>> stored = new ArrayList<>();
+                for (int i = 0; i < 5; ++i)
+                    stored.add(ingest.submit(new Submission(user, ex, new Date(2000 + i), grades)));
+
+                try {
+                    failed.get(30, TimeUnit.SECONDS);
+                    fail("A submission whose grades can't be read was stored");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof StackOverflowError);
+                }
+                for (CompletableFuture<Integer> id : stored)
+                    assertNotEquals(-1, (int) id.get(30, TimeUnit.SECONDS));
+            }
+            assertEquals(2004, pool.getLastSubmission(user, ex).submissionTime.getTime());
+        } finally {
+            deleteDbFiles(file);
+        }
+    }
+
+    @Test
+    public void concurrent_ingestGroupCommits() throws Exception  {
+        File file = File.createTempFile("testIngest", "sqlite");
+        file.delete();
+        final int threads = 8;
+        final int perThread = 50;
+
+        try (ConcurrentSmarticulous pool = new ConcurrentSmarticulous(db.convertFileToURL(file), 2)) {
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(user, getRandomString(10));
+            User unknown = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            Exercise ex = createRandomExercise();
+            pool.addExercise(ex);
+
+            List<Submission> subs = new ArrayList<>();
+            List<CompletableFuture<Integer>> ids = new ArrayList<>();
+            // A small queue, so the submitting threads have to wait for the writer
+            try (SubmissionIngest ingest = new SubmissionIngest(pool, 64, 20, 16)) {
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                List<Future<List<CompletableFuture<Integer>>>> tasks = new ArrayList<>();
+                for (int t = 0; t < threads; ++t) {
+                    List<Submission> mine = new ArrayList<>();
+                    for (int i = 0; i < perThread; ++i) {
+                        float[] grades = new float[ex.questions.size()];
+                        for (int q = 0; q < grades.length; ++q)
+                            grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+                        mine.add(new Submission(user, ex, new Date(1000L * (t * perThread + i)), grades));
+                    }
+                    subs.addAll(mine);
+                    tasks.add(executor.submit(() -> {
+                        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+                        for (Submission sub : mine)
+                            futures.add(ingest.submit(sub));
+                        return futures;
+                    }));
+                }
+                for (Future<List<CompletableFuture<Integer>>> task : tasks)
+                    ids.addAll(task.get(60, TimeUnit.SECONDS));
+                executor.shutdown();
+
+                assertEquals(-1, (int) ingest.submit(new Submission(unknown, ex, new Date(), new float[0])).get(60, TimeUnit.SECONDS));
+
+                Set<Integer> unique = new HashSet<>();
+                for (int i = 0; i < ids.size(); ++i) {
+                    int id = ids.get(i).get(60, TimeUnit.SECONDS);
+                    assertEquals(subs.get(i).id, id);
+                    assertTrue("Duplicate submission id " + id, unique.add(id));
+                }
+                assertTrue("Submissions were not committed in groups: " + ingest.getCommits() + " commits",
+                        ingest.getCommits() < subs.size());
+            }
+
+            Submission latest = subs.get(subs.size() - 1);
+            assertEquals(latest.id, pool.getLastSubmission(user, ex).id);
+            List<String> problems = pool.checkScores();
+            assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+        } finally {
+            deleteDbFiles(file);
+        }
+    }
+
+    @Test
+    public void concurrent_gradingPipeline() throws Exception  {
+        File file = File.createTempFile("testGrading", "sqlite");
+        file.delete();
+
+        try (ConcurrentSmarticulous pool = new ConcurrentSmarticulous(db.convertFileToURL(file), 2)) {
+            User user = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(user, getRandomString(10));
+            User cheater = new User(getRandomString(10), db.getRandomWord(), db.getRandomWord());
+            pool.addOrUpdateUser(cheater, getRandomString(10));
+            Exercise ex = createRandomExercise();
+            pool.addExercise(ex);
+
+            // Grades depend only on the submission time and question, and fail for one user
+            GradingPipeline.Grader grader = (sub, q) -> {
+                if (sub.user.username.equals(cheater.username))
+                    throw new Exception("Plagiarism detected");
+                Thread.sleep(1);
+                return (sub.submissionTime.getTime() / 1000 + q) % (sub.exercise.questions.get(q).points + 1);
+            };
+
+            List<Submission> subs = new ArrayList<>();
+            List<CompletableFuture<Integer>> ids = new ArrayList<>();
+            CompletableFuture<Integer> failed;
+            ForkJoinPool workers = new ForkJoinPool(4);
+            try (SubmissionIngest ingest = new SubmissionIngest(pool, 64, 20, 16);
+                 GradingPipeline pipeline = new GradingPipeline(ingest, grader, workers, 32)) {
+                for (int i = 0; i < 200; ++i) {
+                    Submission sub = new Submission(user, ex, new Date(1000L * i), null);
+                    subs.add(sub);
+                    ids.add(pipeline.grade(sub));
+                }
+                failed = pipeline.grade(new Submission(cheater, ex, new Date(), null));
+
+                Set<Integer> unique = new HashSet<>();
+                for (int i = 0; i < ids.size(); ++i) {
+                    int id = ids.get(i).get(60, TimeUnit.SECONDS);
+                    assertEquals(subs.get(i).id, id);
+                    assertTrue("Duplicate submission id " + id, unique.add(id));
+                }
+                try {
+                    failed.get(60, TimeUnit.SECONDS);
+                    fail("A failed grader did not fail the submission");
+                } catch (ExecutionException e) {
+                    assertEquals("Plagiarism detected", e.getCause().getMessage());
+                }
+
+                assertEquals(0, pipeline.getGradingQueueDepth());
+                assertEquals(0, pipeline.getPersistQueueDepth());
+                assertEquals(1, pipeline.getFailures());
+                assertEquals(subs.size() + 1, pipeline.getGradingLatency().getCount());
+                assertEquals(subs.size(), pipeline.getPersistLatency().getCount());
+                assertTrue(pipeline.getQuestionLatency().getCount() >= subs.size() * ex.questions.size());
+                assertTrue("Submissions were not committed in groups: " + ingest.getCommits() + " commits",
+                        ingest.getCommits() < subs.size());
+            } finally {
+                workers.shutdown();
+            }
+
+            Submission latest = subs.get(subs.size() - 1);
+            Submission stored = pool.getLastSubmission(user, ex);
+            assertEquals(latest.id, stored.id);
+            for (int q = 0; q < ex.questions.size(); ++q)
+                assertEquals(latest.questionGrades[q] / ex.questions.get(q).points, stored.questionGrades[q], 1e-6);
+            assertNull("A submission that failed grading was stored", pool.getLastSubmission(cheater, ex));
+            List<String> problems = pool.checkScores();
+            assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+        } finally {
+            deleteDbFiles(file);
+        }
+    }
+
+    @Test
+    public void dataset_reproducibleFromSeed() throws Exception  {
+        List<String> first = generatedRows(7);
+        assertEquals("The same seed generated different data", first, generatedRows(7));
+        assertNotEquals(first, generatedRows(8));
+    }
+
+    // Generates a small dataset into a new in-memory database and returns all of its rows
+    private List<String> generatedRows(long seed) throws Exception {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            new DatasetGenerator(seed).users(30).exercises(4).submissions(500).generate(generated);
+            List<String> rows = new ArrayList<>();
+            try (Statement st = generated.db.createStatement()) {
+                for (String table : new String[] {"User", "Exercise", "Question", "Submission", "QuestionGrade"}) {
+                    try (ResultSet rs = st.executeQuery("SELECT * FROM " + table + " ORDER BY 1, 2")) {
+                        while (rs.next()) {
+                            StringBuilder row = new StringBuilder(table);
+                            for (int i = 1; i <= rs.getMetaData().getColumnCount(); ++i)
+                                row.append('|').append(rs.getString(i));
+                            rows.add(row.toString());
+                        }
+                    }
+                }
+            }
+            return rows;
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    @Test
+    public void dataset_shape() throws Exception  {
+        Smarticulous generated = new Smarticulous();
+        generated.openDB("jdbc:sqlite::memory:");
+        try {
+            DatasetGenerator.Dataset dataset = new DatasetGenerator(42)
+                    .users(200).exercises(10).submissions(5000).generate(generated);
+            assertEquals(200, dataset.users.size());
+            assertEquals(10, dataset.exercises.size());
+
+            try (Statement st = generated.db.createStatement()) {
+                ResultSet rs = st.executeQuery("SELECT COUNT(*), MAX(SubmissionId) FROM Submission");
+                assertEquals(5000, rs.getLong(1));
+                assertEquals(5000, rs.getLong(2));
+                rs = st.executeQuery("SELECT COUNT(*) FROM QuestionGrade");
+                assertEquals(dataset.grades, rs.getLong(1));
+
+                // A few students make most of the submissions
+                rs = st.executeQuery("SELECT MAX(n) FROM (SELECT COUNT(*) AS n FROM Submission GROUP BY UserId)");
+                assertTrue("Submissions are not skewed", rs.getLong(1) > 10 * 5000 / 200);
+
+                // Most submissions are made shortly before the due date
+                rs = st.executeQuery("SELECT AVG(SubmissionTime <= DueDate), AVG(SubmissionTime >= DueDate - 172800000) " +
+                        "FROM Submission JOIN Exercise USING (ExerciseId)");
+                assertEquals(0.95, rs.getDouble(1), 0.02);
+                assertTrue("Submissions are not clustered before deadlines", rs.getDouble(2) > 0.8);
+            }
+
+            // The generated data is usable through the regular API
+            User user = dataset.users.get(0);
+            assertTrue(generated.verifyLogin(user.username, dataset.passwords.get(0)));
+            assertEquals(10, generated.loadExercises().size());
+            List<String> problems = generated.checkScores();
+            assertTrue("Score summary is inconsistent: " + problems, problems.isEmpty());
+            assertTrue("Auto-commit was not restored", generated.db.getAutoCommit());
+        } finally {
+            generated.closeDB();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void dataset_requiresEmptyDatabase() throws Exception  {
+        smarticulous.openDB(db.getDbUrl());
+        try {
+            new DatasetGenerator(1).generate(smarticulous);
+        } finally {
+            smarticulous.closeDB();
+        }
+    }
+
     @Test
     public void getBestSubmissionStatement()  throws Exception {
         smarticulous.openDB(db.getDbUrl());
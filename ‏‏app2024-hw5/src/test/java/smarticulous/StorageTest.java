@@ -0,0 +1,691 @@
+package smarticulous;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import smarticulous.db.Exercise;
+import smarticulous.db.Submission;
+import smarticulous.db.User;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The {@link Storage} contract, run against every implementation.
+ */
+@RunWith(Parameterized.class)
+public class StorageTest {
+
+    interface StorageFactory {
+        Storage create() throws SQLException;
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> engines() {
+        StorageFactory sqlite = () -> {
+            Smarticulous smarticulous = new Smarticulous();
+            smarticulous.openDB("jdbc:sqlite::memory:");
+            return smarticulous;
+        };
+        StorageFactory packed = () -> {
+            Smarticulous smarticulous = new Smarticulous();
+            smarticulous.openDB("jdbc:sqlite::memory:");
+            smarticulous.setGradeFormat(PackedGrades.Format.FLOAT32);
+            return smarticulous;
+        };
+        StorageFactory memory = MemoryStorage::new;
+        StorageFactory logged = () -> {
+            try {
+                return new LoggedStorage(Files.createTempDirectory("logged"), 4096, false);
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        };
+        return Arrays.asList(new Object[][] {{"sqlite", sqlite}, {"sqlite-packed", packed}, {"memory", memory}, {"logged", logged}});
+    }
+
+    @Parameterized.Parameter(0)
+    public String engine;
+
+    @Parameterized.Parameter(1)
+    public StorageFactory factory;
+
+    Random rand = new Random(18);
+    Storage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = factory.create();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+    }
+
+    Exercise createExercise(int id, int questions) {
+        Exercise ex = new Exercise(id, "Exercise " + id, new Date(1_700_000_000_000L + id));
+        for (int q = 0; q < questions; ++q)
+            ex.addQuestion("Q" + q, "Question " + q, 1 + rand.nextInt(20));
+        return ex;
+    }
+
+    float[] randomGrades(Exercise ex) {
+        float[] grades = new float[ex.questions.size()];
+        for (int q = 0; q < grades.length; ++q)
+            grades[q] = rand.nextInt(ex.questions.get(q).points + 1);
+        return grades;
+    }
+
+    // The grades as the storage returns them: fractions of the questions' points
+    static float[] stored(Submission sub) {
+        float[] fractions = new float[sub.questionGrades.length];
+        for (int q = 0; q < fractions.length; ++q)
+            fractions[q] = sub.questionGrades[q] / sub.exercise.questions.get(q).points;
+        return fractions;
+    }
+
+    static double totalPoints(Submission sub) {
+        float[] fractions = stored(sub);
+        double total = 0;
+        for (int q = 0; q < fractions.length; ++q)
+            total += (double) fractions[q] * sub.exercise.questions.get(q).points;
+        return total;
+    }
+
+    @Test
+    public void users_addUpdateAndVerify() throws Exception {
+        User alice = new User("alice", "Alice", "A");
+        int id = storage.addOrUpdateUser(alice, "secret");
+        assertTrue(storage.verifyLogin("alice", "secret"));
+        assertFalse(storage.verifyLogin("alice", "wrong"));
+        assertFalse(storage.verifyLogin("bob", "secret"));
+
+        assertEquals("An update changed the user id", id, storage.addOrUpdateUser(new User("alice", "Al", "B"), "other"));
+        assertFalse(storage.verifyLogin("alice", "secret"));
+        assertTrue(storage.verifyLogin("alice", "other"));
+        assertNotEquals(id, storage.addOrUpdateUser(new User("bob", "Bob", "B"), "pw"));
+    }
+
+    @Test
+    public void exercises_addLoadAndGet() throws Exception {
+        Exercise second = createExercise(2, 3);
+        Exercise first = createExercise(1, 2);
+        Exercise empty = createExercise(3, 0);
+        assertEquals(2, storage.addExercise(second));
+        assertEquals(1, storage.addExercise(first));
+        assertEquals(3, storage.addExercise(empty));
+        assertEquals("A duplicate exercise was added", -1, storage.addExercise(createExercise(1, 1)));
+
+        List<Exercise> all = storage.loadExercises();
+        assertEquals(Arrays.asList(1, 2, 3), all.stream().map(ex -> ex.id).collect(Collectors.toList()));
+        checkExercise(second, storage.getExercise(2));
+        checkExercise(first, all.get(0));
+        assertTrue(storage.getExercise(3).questions.isEmpty());
+        assertNull(storage.getExercise(4));
+    }
+
+    private static void checkExercise(Exercise expected, Exercise actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.dueDate.getTime(), actual.dueDate.getTime());
+        assertEquals(expected.questions.size(), actual.questions.size());
+        for (int q = 0; q < expected.questions.size(); ++q) {
+            assertEquals(expected.questions.get(q).name, actual.questions.get(q).name);
+            assertEquals(expected.questions.get(q).desc, actual.questions.get(q).desc);
+            assertEquals(expected.questions.get(q).points, actual.questions.get(q).points);
+        }
+    }
+
+    @Test
+    public void submissions_storeAndAssignIds() throws Exception {
+        User user = new User("alice", "Alice", "A");
+        storage.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 2);
+        storage.addExercise(ex);
+
+        int first = storage.storeSubmission(new Submission(user, ex, new Date(1000), randomGrades(ex)));
+        assertNotEquals(-1, first);
+        assertEquals(100, storage.storeSubmission(new Submission(100, user, ex, new Date(2000), randomGrades(ex))));
+        assertEquals("Generated ids must follow the largest id", 101,
+                storage.storeSubmission(new Submission(user, ex, new Date(3000), randomGrades(ex))));
+        assertEquals(-1, storage.storeSubmission(new Submission(new User("nobody", "", ""), ex, new Date(), randomGrades(ex))));
+        try {
+            storage.storeSubmission(new Submission(100, user, ex, new Date(4000), randomGrades(ex)));
+            fail("A taken submission id was accepted");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            subs.add(new Submission(user, ex, new Date(5000 + i), randomGrades(ex)));
+        Submission unknown = new Submission(new User("nobody", "", ""), ex, new Date(), randomGrades(ex));
+        subs.add(3, unknown);
+        assertEquals(10, storage.storeSubmissions(subs));
+        assertEquals(-1, unknown.id);
+        int previous = 101;
+        for (Submission sub : subs) {
+            if (sub == unknown)
+                continue;
+            assertTrue("Ids are not new and increasing", sub.id > previous);
+            previous = sub.id;
+        }
+        assertEquals(13, storage.streamSubmissions(ex).count());
+    }
+
+    @Test
+    public void grades_lastAndBest() throws Exception {
+        List<User> users = new ArrayList<>();
+        for (int u = 0; u < 5; ++u) {
+            User user = new User("user" + u, "First" + u, "Last" + u);
+            storage.addOrUpdateUser(user, "pw" + u);
+            users.add(user);
+        }
+        List<Exercise> exercises = new ArrayList<>();
+        for (int e = 1; e <= 3; ++e) {
+            Exercise ex = createExercise(e, 1 + rand.nextInt(4));
+            storage.addExercise(ex);
+            exercises.add(ex);
+        }
+
+        // Few distinct times and grades, so the tie-breaks matter
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 300; ++i) {
+            Exercise ex = exercises.get(rand.nextInt(exercises.size()));
+            subs.add(new Submission(users.get(rand.nextInt(users.size())), ex, new Date(1000L * rand.nextInt(20)), randomGrades(ex)));
+        }
+        assertEquals(subs.size(), storage.storeSubmissions(subs));
+        // Half are graded together, a few one by one, and the rest not at all
+        assertEquals(150, storage.addGrades(subs.subList(0, 150)));
+        for (Submission sub : subs.subList(150, 200))
+            storage.addGrade(sub);
+        List<Submission> graded = subs.subList(0, 200);
+
+        for (User user : users) {
+            for (Exercise ex : exercises) {
+                Submission last = null;
+                Submission best = null;
+                for (Submission sub : graded) {
+                    if (sub.user != user || sub.exercise != ex)
+                        continue;
+                    if (last == null || laterThan(sub, last))
+                        last = sub;
+                    if (best == null || totalPoints(sub) > totalPoints(best) ||
+                            (totalPoints(sub) == totalPoints(best) && laterThan(sub, best)))
+                        best = sub;
+                }
+                checkSubmission(last, storage.getLastSubmission(user, ex));
+                checkSubmission(best, storage.getBestSubmission(user, ex));
+            }
+        }
+        assertNull(storage.getLastSubmission(new User("nobody", "", ""), exercises.get(0)));
+    }
+
+    private static boolean laterThan(Submission a, Submission b) {
+        int c = a.submissionTime.compareTo(b.submissionTime);
+        return c > 0 || (c == 0 && a.id > b.id);
+    }
+
+    private static void checkSubmission(Submission expected, Submission actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull("Missing submission " + expected.id, actual);
+        assertEquals("Wrong submission returned", expected.id, actual.id);
+        assertEquals(expected.submissionTime.getTime(), actual.submissionTime.getTime());
+        assertArrayEquals(stored(expected), actual.questionGrades, 0);
+    }
+
+    @Test
+    public void grades_duplicateChangesNothing() throws Exception {
+        User user = new User("alice", "Alice", "A");
+        storage.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 3);
+        storage.addExercise(ex);
+        Submission sub = new Submission(user, ex, new Date(1000), randomGrades(ex));
+        sub.id = storage.storeSubmission(sub);
+        storage.addGrade(sub);
+
+        Submission regraded = new Submission(sub.id, user, ex, sub.submissionTime, randomGrades(ex));
+        try {
+            storage.addGrade(regraded);
+            fail("Duplicate grades were accepted");
+        } catch (SQLException e) {
+            // expected
+        }
+        checkSubmission(sub, storage.getLastSubmission(user, ex));
+    }
+
+    @Test
+    public void stream_inIdOrderWithGrades() throws Exception {
+        User alice = new User("alice", "Alice", "A");
+        User bob = new User("bob", "Bob", "B");
+        storage.addOrUpdateUser(alice, "pw");
+        storage.addOrUpdateUser(bob, "pw");
+        Exercise ex = createExercise(1, 2);
+        Exercise other = createExercise(2, 1);
+        storage.addExercise(ex);
+        storage.addExercise(other);
+
+        // Ids given out of order
+        Map<Integer, Submission> expected = new HashMap<>();
+        for (int id : new int[] {50, 10, 30, 20, 40}) {
+            Submission sub = new Submission(id, id % 20 == 0 ? alice : bob, ex, new Date(id), randomGrades(ex));
+            storage.storeSubmission(sub);
+            expected.put(id, sub);
+        }
+        storage.storeSubmission(new Submission(35, alice, other, new Date(), randomGrades(other)));
+        storage.addGrade(expected.get(10));
+        storage.addGrade(expected.get(40));
+
+        List<Submission> streamed = storage.streamSubmissions(ex).collect(Collectors.toList());
+        assertEquals(Arrays.asList(10, 20, 30, 40, 50), streamed.stream().map(sub -> sub.id).collect(Collectors.toList()));
+        for (Submission sub : streamed) {
+            Submission original = expected.get(sub.id);
+            assertEquals(original.user.username, sub.user.username);
+            assertEquals(original.user.firstname, sub.user.firstname);
+            assertEquals(original.submissionTime.getTime(), sub.submissionTime.getTime());
+            // Ungraded submissions are streamed with zero grades
+            float[] grades = sub.id == 10 || sub.id == 40 ? stored(original) : new float[ex.questions.size()];
+            assertArrayEquals(grades, sub.questionGrades, 0);
+        }
+        assertEquals(0, storage.streamSubmissions(createExercise(3, 1)).count());
+    }
+
+    @Test
+    public void memory_snapshotRoundTrip() throws Exception {
+        assumeTrue(storage instanceof MemoryStorage);
+        MemoryStorage memory = (MemoryStorage) storage;
+
+        User user = new User("alice", null, "A");
+        memory.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 3);
+        memory.addExercise(ex);
+        memory.addExercise(createExercise(2, 0));
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 100; ++i)
+            subs.add(new Submission(user, ex, new Date(1000L * i), randomGrades(ex)));
+        memory.storeSubmissions(subs);
+        memory.addGrades(subs.subList(0, 60));
+
+        Path file = Files.createTempFile("storage", ".snapshot");
+        try {
+            memory.save(file);
+            MemoryStorage loaded = MemoryStorage.load(file);
+
+            assertTrue(loaded.verifyLogin("alice", "pw"));
+            assertEquals(2, loaded.loadExercises().size());
+            checkExercise(ex, loaded.getExercise(1));
+            assertEquals(memory.getSubmissionCount(), loaded.getSubmissionCount());
+            assertEquals(memory.getLastSubmission(user, ex).id, loaded.getLastSubmission(user, ex).id);
+            assertArrayEquals(memory.getBestSubmission(user, ex).questionGrades, loaded.getBestSubmission(user, ex).questionGrades, 0);
+            List<Submission> before = memory.streamSubmissions(ex).collect(Collectors.toList());
+            List<Submission> after = loaded.streamSubmissions(ex).collect(Collectors.toList());
+            assertEquals(before.size(), after.size());
+            for (int i = 0; i < before.size(); ++i) {
+                assertEquals(before.get(i).id, after.get(i).id);
+                assertNull(after.get(i).user.firstname);
+                assertArrayEquals(before.get(i).questionGrades, after.get(i).questionGrades, 0);
+            }
+            // New ids continue after the saved ones
+            assertEquals(subs.get(99).id + 1, loaded.storeSubmission(new Submission(user, ex, new Date(), randomGrades(ex))));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Abandon a LoggedStorage without closing or checkpointing it, as a crash would
+    private LoggedStorage crashAndReopen(Path dir) throws IOException {
+        return new LoggedStorage(dir, 1 << 20, false);
+    }
+
+    @Test
+    public void logged_recoversAcknowledgedWritesAfterCrash() throws Exception {
+        assumeTrue(storage instanceof LoggedStorage);
+        Path dir = Files.createTempDirectory("logged");
+        // Small enough that the log is checkpointed a few times on the way
+        LoggedStorage logged = new LoggedStorage(dir, 8192, false);
+
+        User user = new User("alice", "Alice", null);
+        logged.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 4);
+        logged.addExercise(ex);
+        List<Submission> subs = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            Submission sub = new Submission(user, ex, new Date(1000L * i), randomGrades(ex));
+            sub.id = logged.storeSubmission(sub);
+            subs.add(sub);
+            if (i % 3 != 0)
+                logged.addGrade(sub);
+        }
+        List<Submission> batch = new ArrayList<>();
+        for (int i = 0; i < 50; ++i)
+            batch.add(new Submission(user, ex, new Date(1_000_000L + i), randomGrades(ex)));
+        logged.storeSubmissions(batch);
+        logged.addGrades(batch);
+        subs.addAll(batch);
+        assertTrue("The log was never checkpointed", Files.exists(dir.resolve(LoggedStorage.SNAPSHOT_FILE)));
+
+        LoggedStorage recovered = crashAndReopen(dir);
+        try {
+            assertTrue(recovered.verifyLogin("alice", "pw"));
+            checkExercise(ex, recovered.getExercise(1));
+            assertEquals(subs.size(), recovered.getSubmissionCount());
+            List<Submission> streamed = recovered.streamSubmissions(ex).collect(Collectors.toList());
+            for (int i = 0; i < subs.size(); ++i) {
+                Submission sub = subs.get(i);
+                assertEquals(sub.id, streamed.get(i).id);
+                float[] grades = i < 500 && i % 3 == 0 ? new float[ex.questions.size()] : stored(sub);
+                assertArrayEquals(grades, streamed.get(i).questionGrades, 0);
+            }
+            checkSubmission(batch.get(49), recovered.getLastSubmission(user, ex));
+            // New writes continue the log after the replayed ones
+            assertEquals(batch.get(49).id + 1, recovered.storeSubmission(new Submission(user, ex, new Date(), randomGrades(ex))));
+        } finally {
+            recovered.close();
+        }
+        LoggedStorage reopened = new LoggedStorage(dir);
+        assertEquals(subs.size() + 1, reopened.getSubmissionCount());
+        reopened.close();
+    }
+
+    @Test
+    public void logged_ignoresTornRecordAtTheEnd() throws Exception {
+        assumeTrue(storage instanceof LoggedStorage);
+        Path dir = Files.createTempDirectory("logged");
+        LoggedStorage logged = new LoggedStorage(dir);
+        User user = new User("alice", "Alice", "A");
+        logged.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 2);
+        logged.addExercise(ex);
+        Submission sub = new Submission(user, ex, new Date(1000), randomGrades(ex));
+        sub.id = logged.storeSubmission(sub);
+        logged.addGrade(sub);
+        long end = logged.getLogSize();
+
+        // A record cut short by a crash: its length is written, the rest is garbage
+        try (FileChannel channel = FileChannel.open(dir.resolve(LoggedStorage.LOG_FILE), StandardOpenOption.WRITE)) {
+            ByteBuffer torn = ByteBuffer.allocate(40);
+            torn.putInt(40).putInt(12345).putLong(99);
+            torn.rewind();
+            channel.write(torn, end);
+        }
+
+        LoggedStorage recovered = crashAndReopen(dir);
+        try {
+            assertEquals(end, recovered.getLogSize());
+            checkSubmission(sub, recovered.getLastSubmission(user, ex));
+            Submission next = new Submission(user, ex, new Date(2000), randomGrades(ex));
+            next.id = recovered.storeSubmission(next);
+            recovered.addGrade(next);
+        } finally {
+            recovered.close();
+        }
+        LoggedStorage reopened = new LoggedStorage(dir);
+        assertEquals(2, reopened.getSubmissionCount());
+        reopened.close();
+    }
+
+    @Test
+    public void logged_crashDuringCheckpointReplaysNothingTwice() throws Exception {
+        assumeTrue(storage instanceof LoggedStorage);
+        Path dir = Files.createTempDirectory("logged");
+        LoggedStorage logged = new LoggedStorage(dir);
+        User user = new User("alice", "Alice", "A");
+        logged.addOrUpdateUser(user, "pw");
+        Exercise ex = createExercise(1, 2);
+        logged.addExercise(ex);
+        for (int i = 0; i < 10; ++i) {
+            Submission sub = new Submission(user, ex, new Date(1000L * i), randomGrades(ex));
+            sub.id = logged.storeSubmission(sub);
+            logged.addGrade(sub);
+        }
+        // The snapshot is saved, but the crash comes before the log is emptied
+        Path log = dir.resolve(LoggedStorage.LOG_FILE);
+        Path copy = Files.createTempFile("events", ".log");
+        Files.copy(log, copy, StandardCopyOption.REPLACE_EXISTING);
+        logged.checkpoint();
+        Files.copy(copy, log, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(copy);
+
+        LoggedStorage recovered = crashAndReopen(dir);
+        try {
+            assertEquals(10, recovered.getSubmissionCount());
+            recovered.storeSubmission(new Submission(user, ex, new Date(), randomGrades(ex)));
+        } finally {
+            recovered.close();
+        }
+        LoggedStorage reopened = new LoggedStorage(dir);
+        assertEquals(11, reopened.getSubmissionCount());
+        reopened.close();
+    }
+
+    @Test
+    public void multiGet_matchesSingleLookups() throws Exception {
+        // More users than one chunk of a multi-get query
+        List<User> users = new ArrayList<>();
+        for (int u = 0; u < 70; ++u) {
+            User user = new User("user" + u, "User", "U" + u);
+            storage.addOrUpdateUser(user, "pw");
+            users.add(user);
+        }
+        List<Exercise> exercises = new ArrayList<>();
+        for (int e = 1; e <= 3; ++e) {
+            Exercise ex = createExercise(e, 2 + e);
+            storage.addExercise(ex);
+            exercises.add(ex);
+        }
+        for (int i = 0; i < 300; ++i) {
+            Exercise ex = exercises.get(rand.nextInt(exercises.size()));
+            // Leave some users without submissions
+            Submission sub = new Submission(users.get(rand.nextInt(60)), ex, new Date(1000L * rand.nextInt(100_000)), randomGrades(ex));
+            sub.id = storage.storeSubmission(sub);
+            if (rand.nextInt(5) > 0)
+                storage.addGrade(sub);
+        }
+
+        List<User> asked = new ArrayList<>(users);
+        asked.add(users.get(0));
+        asked.add(new User("nobody", "No", "Body"));
+        for (Exercise ex : exercises) {
+            Map<String, Submission> last = storage.getLastSubmissions(asked, ex);
+            Map<String, Submission> best = storage.getBestSubmissions(asked, ex);
+            for (User user : users) {
+                checkSame(storage.getLastSubmission(user, ex), last.get(user.username));
+                checkSame(storage.getBestSubmission(user, ex), best.get(user.username));
+            }
+            assertFalse(last.containsKey("nobody"));
+        }
+        for (User user : users.subList(0, 10)) {
+            Map<Integer, Submission> last = storage.getLastSubmissions(user, exercises);
+            Map<Integer, Submission> best = storage.getBestSubmissions(user, exercises);
+            for (Exercise ex : exercises) {
+                checkSame(storage.getLastSubmission(user, ex), last.get(ex.id));
+                checkSame(storage.getBestSubmission(user, ex), best.get(ex.id));
+            }
+        }
+        assertTrue(storage.getLastSubmissions(new ArrayList<>(), exercises.get(0)).isEmpty());
+    }
+
+    private static void checkSame(Submission expected, Submission actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.user.username, actual.user.username);
+        assertEquals(expected.exercise.id, actual.exercise.id);
+        assertEquals(expected.submissionTime.getTime(), actual.submissionTime.getTime());
+        assertArrayEquals(expected.questionGrades, actual.questionGrades, 0);
+    }
+
+    @Test
+    public void batcher_mergesConcurrentLookups() throws Exception {
+        Exercise ex = createExercise(1, 4);
+        storage.addExercise(ex);
+        List<User> users = new ArrayList<>();
+        Map<String, Submission> latest = new HashMap<>();
+        for (int u = 0; u < 20; ++u) {
+            User user = new User("user" + u, "User", "U" + u);
+            storage.addOrUpdateUser(user, "pw");
+            users.add(user);
+            for (int i = 0; i < 3 && u % 4 > 0; ++i) {
+                Submission sub = new Submission(user, ex, new Date(1000L * (u * 3 + i)), randomGrades(ex));
+                sub.id = storage.storeSubmission(sub);
+                storage.addGrade(sub);
+                latest.put(user.username, sub);
+            }
+        }
+
+        try (LookupBatcher batcher = new LookupBatcher(storage, 64, 50, 100)) {
+            List<CompletableFuture<Submission>> last = new ArrayList<>();
+            List<CompletableFuture<Submission>> best = new ArrayList<>();
+            for (User user : users) {
+                last.add(batcher.getLastSubmission(user, ex));
+                best.add(batcher.getBestSubmission(user, ex));
+            }
+            // Every lookup is answered before the storage is used directly, since a Smarticulous is single-threaded
+            CompletableFuture.allOf(last.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            CompletableFuture.allOf(best.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            for (int u = 0; u < users.size(); ++u) {
+                Submission expected = latest.get(users.get(u).username);
+                Submission found = last.get(u).get(10, TimeUnit.SECONDS);
+                if (expected == null) {
+                    assertNull(found);
+                } else {
+                    assertEquals(expected.id, found.id);
+                    assertArrayEquals(stored(expected), found.questionGrades, 0);
+                }
+                checkSame(storage.getBestSubmission(users.get(u), ex), best.get(u).get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(2 * users.size(), batcher.getLookups());
+            assertTrue("Lookups were not merged: " + batcher.getQueries() + " queries", batcher.getQueries() < users.size());
+        }
+    }
+
+    @Test
+    public void batcher_survivesErrors() throws Exception {
+        Exercise ex = createExercise(1, 2);
+        storage.addExercise(ex);
+        User alice = new User("alice", "Alice", "A");
+        storage.addOrUpdateUser(alice, "pw");
+        Submission sub = new Submission(alice, ex, new Date(1000), randomGrades(ex));
+        sub.id = storage.storeSubmission(sub);
+        storage.addGrade(sub);
+
+        // The first multi-get throws an Error
+        AtomicBoolean thrown = new AtomicBoolean();
+        Storage broken = (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[] {Storage.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getLastSubmissions") && thrown.compareAndSet(false, true))
+                        throw new StackOverflowError();
+                    try {
+                        return method.invoke(storage, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        // A queue of one, so a batcher that died would leave the next lookup waiting forever
+        try (LookupBatcher batcher = new LookupBatcher(broken, 64, 0, 1)) {
+            try {
+                batcher.getLastSubmission(alice, ex).get(10, TimeUnit.SECONDS);
+                fail("The failing lookup was answered");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof StackOverflowError);
+            }
+            for (int i = 0; i < 3; ++i)
+                assertEquals(sub.id, batcher.getLastSubmission(alice, ex).get(10, TimeUnit.SECONDS).id);
+        }
+    }
+
+    @Test
+    public void async_coalescesReadsAndSeesWrites() throws Exception {
+        Exercise ex = createExercise(1, 3);
+        storage.addExercise(ex);
+        User alice = new User("alice", "Alice", "A");
+
+        // Hold the first loadExercises until the rest have been made
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        Storage slow = (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[] {Storage.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("loadExercises")) {
+                        loads.incrementAndGet();
+                        release.await();
+                    }
+                    try {
+                        return method.invoke(storage, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        try (AsyncSmarticulous async = new AsyncSmarticulous(slow, 1, 100)) {
+            List<CompletableFuture<List<Exercise>>> lists = new ArrayList<>();
+            for (int i = 0; i < 10; ++i)
+                lists.add(async.loadExercises());
+            release.countDown();
+            for (CompletableFuture<List<Exercise>> list : lists)
+                assertSame(lists.get(0).get(10, TimeUnit.SECONDS), list.get(10, TimeUnit.SECONDS));
+            assertEquals(1, loads.get());
+            assertEquals(9, async.getCoalesced());
+            assertEquals(1, async.loadExercises().get(10, TimeUnit.SECONDS).size());
+            assertEquals("A finished read was reused", 2, loads.get());
+
+            int id = async.addOrUpdateUser(alice, "secret").get(10, TimeUnit.SECONDS);
+            assertEquals(id, storage.addOrUpdateUser(alice, "secret"));
+            assertTrue(async.verifyLogin("alice", "secret").get(10, TimeUnit.SECONDS));
+            assertNull(async.getLastSubmission(alice, ex).get(10, TimeUnit.SECONDS));
+
+            // A read made after a write completes sees it, even while an older identical read is in flight
+            Submission sub = new Submission(alice, ex, new Date(1000), randomGrades(ex));
+            CompletableFuture<Submission> before = async.getLastSubmission(alice, ex);
+            sub.id = async.storeSubmission(sub).get(10, TimeUnit.SECONDS);
+            async.addGrade(sub).get(10, TimeUnit.SECONDS);
+            Submission after = async.getLastSubmission(alice, ex).get(10, TimeUnit.SECONDS);
+            assertEquals(sub.id, after.id);
+            assertArrayEquals(stored(sub), after.questionGrades, 0);
+            before.get(10, TimeUnit.SECONDS);
+            assertEquals(sub.id, async.getBestSubmission(alice, ex).get(10, TimeUnit.SECONDS).id);
+
+            // Storage errors fail the future with their SQLException
+            try {
+                async.addGrade(sub).get(10, TimeUnit.SECONDS);
+                fail("A duplicate grade was accepted");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+        }
+    }
+}